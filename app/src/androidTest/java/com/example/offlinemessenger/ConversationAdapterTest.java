@@ -0,0 +1,182 @@
+package com.example.offlinemessenger;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.example.offlinemessenger.data.ChatMessage;
+import com.example.offlinemessenger.data.MessageStore;
+import com.example.offlinemessenger.data.Sendable;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Forwarding of message store changes to an attached list as range notifications, and the
+ * stable ids of the rows.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ConversationAdapterTest {
+
+    private static final int MAX_SIZE = 8;
+
+    private final UUID mUser = UUID.randomUUID();
+    /** The notifications the adapter sent, in order. */
+    private final List<String> mEvents = new ArrayList<>();
+    private int mNext = 0;
+    private ConversationAdapter mAdapter;
+    private RecyclerView mList;
+
+    @Before
+    public void setUp() {
+        runOnMainSync(() -> {
+            Context context = InstrumentationRegistry.getTargetContext();
+            mAdapter = new ConversationAdapter(LayoutInflater.from(context));
+            mList = new RecyclerView(context);
+            mList.setLayoutManager(new LinearLayoutManager(context));
+            mList.setAdapter(mAdapter);
+            mAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+                @Override
+                public void onChanged() {
+                    mEvents.add("all changed");
+                }
+
+                @Override
+                public void onItemRangeChanged(int positionStart, int itemCount) {
+                    mEvents.add("changed " + positionStart + "+" + itemCount);
+                }
+
+                @Override
+                public void onItemRangeInserted(int positionStart, int itemCount) {
+                    mEvents.add("inserted " + positionStart + "+" + itemCount);
+                }
+
+                @Override
+                public void onItemRangeRemoved(int positionStart, int itemCount) {
+                    mEvents.add("removed " + positionStart + "+" + itemCount);
+                }
+
+                @Override
+                public void onItemRangeMoved(int fromPosition, int toPosition, int itemCount) {
+                    mEvents.add("moved " + fromPosition + "->" + toPosition + "+" + itemCount);
+                }
+            });
+        });
+    }
+
+    @Test
+    public void storeChangesAreForwardedAsRanges() {
+        MessageStore store = new MessageStore(MAX_SIZE);
+        runOnMainSync(() -> {
+            mAdapter.setMessages(store);
+            // the store already shown is not redrawn
+            mAdapter.setMessages(store);
+            store.add(message());
+            store.append(messages(3));
+            store.notifyChanged(2);
+            // a page of older messages pushes the newest out of the window
+            store.prepend(messages(6));
+            store.clear();
+        });
+
+        assertEquals(Arrays.asList("all changed", "inserted 0+1", "inserted 1+3", "changed 2+1",
+                "inserted 0+6", "removed 8+2", "removed 0+8"), mEvents);
+        assertEquals(0, mAdapter.getItemCount());
+    }
+
+    @Test
+    public void changesOffTheMainThreadAreRejected() {
+        MessageStore store = new MessageStore(MAX_SIZE);
+        runOnMainSync(() -> mAdapter.setMessages(store));
+
+        try {
+            store.add(message());
+            fail("a change off the main thread was forwarded");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(Arrays.asList("all changed"), mEvents);
+    }
+
+    @Test
+    public void storesNoLongerShownAreNotFollowed() {
+        MessageStore first = new MessageStore(MAX_SIZE);
+        MessageStore second = new MessageStore(MAX_SIZE);
+        runOnMainSync(() -> {
+            mAdapter.setMessages(first);
+            mAdapter.setMessages(second);
+            first.add(message());
+            second.add(message());
+            // a detached adapter lets go of its store, which outlives the activity
+            mList.setAdapter(null);
+            second.add(message());
+        });
+
+        assertEquals(Arrays.asList("all changed", "all changed", "inserted 0+1"), mEvents);
+        // a store followed by nobody may change on any thread
+        second.add(message());
+        assertEquals(3, mAdapter.getItemCount());
+    }
+
+    @Test
+    public void rowsKeepTheirIdsWhenOlderMessagesArePagedIn() {
+        MessageStore store = new MessageStore(MAX_SIZE);
+        List<ChatMessage> newer = messages(3);
+        store.append(newer);
+        List<ChatMessage> older = messages(4);
+        long[] ids = new long[newer.size()];
+        runOnMainSync(() -> {
+            mAdapter.setMessages(store);
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = mAdapter.getItemId(i);
+            }
+            store.prepend(older);
+        });
+
+        assertTrue(mAdapter.hasStableIds());
+        Set<Long> distinct = new HashSet<>();
+        for (int i = 0; i < mAdapter.getItemCount(); i++) {
+            distinct.add(mAdapter.getItemId(i));
+        }
+        assertEquals(mAdapter.getItemCount(), distinct.size());
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals(ids[i], mAdapter.getItemId(4 + i));
+            assertEquals(newer.get(i), mAdapter.getItem(4 + i));
+        }
+    }
+
+    private static void runOnMainSync(Runnable runnable) {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(runnable);
+    }
+
+    private List<ChatMessage> messages(int count) {
+        List<ChatMessage> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            messages.add(message());
+        }
+        return messages;
+    }
+
+    private ChatMessage message() {
+        int n = mNext++;
+        return new ChatMessage(Sendable.Action.ADD, mUser, "message " + n, n % 2 == 0, n,
+                UUID.randomUUID());
+    }
+
+}
@@ -0,0 +1,236 @@
+package com.example.offlinemessenger.data;
+
+import androidx.room.Room;
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.example.offlinemessenger.db.AppDatabase;
+import com.example.offlinemessenger.db.ChatMessageDao;
+import com.example.offlinemessenger.db.ChatMessageEntity;
+import com.example.offlinemessenger.db.ChatUserEntity;
+import com.example.offlinemessenger.net.Connection;
+import com.example.offlinemessenger.net.HistorySync;
+import com.example.offlinemessenger.net.LoopbackTransport;
+import com.example.offlinemessenger.net.Transport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Reconciles the histories of two devices, each with its own in-memory database, over a
+ * loopback connection: what each side stores, under which user and from which side.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MessageHistoryTest {
+
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+    private static final long TIMEOUT_MILLIS = 10000;
+    /** More than a chunk of ids per query. */
+    private static final int ONLY_A = 1200;
+    private static final int ONLY_B = 30;
+    private static final int COMMON = 500;
+
+    private static final Connection.Listener IGNORE = new Connection.Listener() {
+        @Override
+        public void onSendableReceived(Connection connection, Sendable s) {
+        }
+
+        @Override
+        public void onClosed(Connection connection) {
+        }
+    };
+
+    private final Random mRandom = new Random(42);
+    private final UUID mUserA = UUID.randomUUID();
+    private final UUID mUserB = UUID.randomUUID();
+    private final UUID mUserC = UUID.randomUUID();
+    private AppDatabase mDatabaseA;
+    private AppDatabase mDatabaseB;
+    private ChatMessageDao mDaoA;
+    private ChatMessageDao mDaoB;
+    private HistorySync mSyncA;
+    private HistorySync mSyncB;
+    private Connection mConnectionA;
+    private Connection mConnectionB;
+
+    @Before
+    public void setUp() throws Exception {
+        mDatabaseA = database();
+        mDatabaseB = database();
+        mDaoA = mDatabaseA.getChatMessageDao();
+        mDaoB = mDatabaseB.getChatMessageDao();
+        mSyncA = new HistorySync(new MessageHistory(mDaoA, mDatabaseA.getChatUserDao()), null);
+        mSyncB = new HistorySync(new MessageHistory(mDaoB, mDatabaseB.getChatUserDao()), null);
+
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        Transport.Acceptor acceptor = new LoopbackTransport(network, "b").listen();
+        Transport.Channel channelA = new LoopbackTransport(network, "a").connect("b");
+        Transport.Channel channelB = acceptor.accept();
+        acceptor.close();
+        mConnectionA = new Connection(channelA, IGNORE);
+        mConnectionB = new Connection(channelB, IGNORE);
+        mSyncA.attach(mConnectionA);
+        mSyncB.attach(mConnectionB);
+    }
+
+    @After
+    public void tearDown() {
+        mConnectionA.close();
+        mConnectionB.close();
+        mSyncA.shutdown();
+        mSyncB.shutdown();
+        mDatabaseA.close();
+        mDatabaseB.close();
+    }
+
+    @Test
+    public void syncFillsInTheMissingMessagesOnBothSides() throws Exception {
+        mDatabaseA.getChatUserDao().insertAll(user(mUserB));
+        mDatabaseB.getChatUserDao().insertAll(user(mUserA));
+        ChatMessageEntity[] common = messages(mUserB, COMMON);
+        mDaoA.insertAll(common);
+        mDaoB.insertAll(mirror(common, mUserA));
+        mDaoA.insertAll(messages(mUserB, ONLY_A));
+        mDaoB.insertAll(messages(mUserA, ONLY_B));
+
+        sync();
+        int total = COMMON + ONLY_A + ONLY_B;
+        awaitCount(mDaoA, mUserB, total);
+        awaitCount(mDaoB, mUserA, total);
+
+        // the same conversation, with every message on the same side of it
+        Map<UUID, ChatMessageEntity> b = byId(mDaoB.getAllFromUser(mUserA));
+        for (ChatMessageEntity m : mDaoA.getAllFromUser(mUserB)) {
+            ChatMessageEntity mirrored = b.get(m.id);
+            assertEquals(m.content, mirrored.content);
+            assertEquals(m.timestamp, mirrored.timestamp);
+            assertEquals(m.isOwn, !mirrored.isOwn);
+        }
+        assertEquals(ONLY_A, mSyncA.getStats().getMessagesSent());
+        assertEquals(ONLY_B, mSyncB.getStats().getMessagesSent());
+        // the triggers keep the summaries of synced messages up to date
+        assertEquals(total, mDatabaseA.getConversationDao().getByUserId(mUserB).messageCount);
+        assertEquals(total, mDatabaseB.getConversationDao().getByUserId(mUserA).messageCount);
+    }
+
+    @Test
+    public void otherConversationsStayPrivate() throws Exception {
+        mDatabaseA.getChatUserDao().insertAll(user(mUserB), user(mUserC));
+        mDatabaseB.getChatUserDao().insertAll(user(mUserA), user(mUserC));
+        mDaoA.insertAll(messages(mUserB, ONLY_B));
+        mDaoA.insertAll(messages(mUserC, ONLY_B));
+
+        sync();
+        awaitCount(mDaoB, mUserA, ONLY_B);
+
+        assertEquals(ONLY_B, mDaoB.getAll().size());
+        assertTrue(mDaoB.getAllFromUser(mUserC).isEmpty());
+    }
+
+    @Test
+    public void messagesOfUnknownUsersAreNotStored() throws Exception {
+        mDatabaseA.getChatUserDao().insertAll(user(mUserB));
+        mDaoA.insertAll(messages(mUserB, ONLY_B));
+
+        sync();
+        awaitSent(mSyncA, ONLY_B);
+        // the messages are on their way; give the receiving side time to drop them
+        Thread.sleep(500);
+
+        assertTrue(mDaoB.getAll().isEmpty());
+        assertFalse(mDaoA.getAllFromUser(mUserB).isEmpty());
+    }
+
+    private void sync() {
+        mConnectionA.start();
+        mConnectionB.start();
+        mSyncA.start(mConnectionA, mUserB);
+        mSyncB.start(mConnectionB, mUserA);
+    }
+
+    private static AppDatabase database() {
+        return Room.inMemoryDatabaseBuilder(InstrumentationRegistry.getTargetContext(),
+                AppDatabase.class).addCallback(AppDatabase.CALLBACK).allowMainThreadQueries()
+                .build();
+    }
+
+    private ChatMessageEntity[] messages(UUID userId, int count) {
+        ChatMessageEntity[] messages = new ChatMessageEntity[count];
+        for (int i = 0; i < count; i++) {
+            messages[i] = new ChatMessageEntity();
+            messages[i].id = UUID.randomUUID();
+            messages[i].userId = userId;
+            messages[i].content = "message " + i;
+            messages[i].timestamp = (long) (mRandom.nextDouble() * 60 * DAY);
+            messages[i].isOwn = mRandom.nextBoolean();
+        }
+        return messages;
+    }
+
+    /** The same messages as stored on the other device. */
+    private static ChatMessageEntity[] mirror(ChatMessageEntity[] messages, UUID userId) {
+        ChatMessageEntity[] mirrored = new ChatMessageEntity[messages.length];
+        for (int i = 0; i < messages.length; i++) {
+            mirrored[i] = new ChatMessageEntity();
+            mirrored[i].id = messages[i].id;
+            mirrored[i].userId = userId;
+            mirrored[i].content = messages[i].content;
+            mirrored[i].timestamp = messages[i].timestamp;
+            mirrored[i].isOwn = !messages[i].isOwn;
+        }
+        return mirrored;
+    }
+
+    private static Map<UUID, ChatMessageEntity> byId(List<ChatMessageEntity> messages) {
+        Map<UUID, ChatMessageEntity> byId = new HashMap<>();
+        for (ChatMessageEntity m : messages) {
+            byId.put(m.id, m);
+        }
+        return byId;
+    }
+
+    private static ChatUserEntity user(UUID id) {
+        ChatUserEntity user = new ChatUserEntity();
+        user.id = id;
+        user.name = id.toString();
+        return user;
+    }
+
+    private static void awaitCount(ChatMessageDao dao, UUID userId, int count)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (dao.getAllFromUser(userId).size() < count) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("expected " + count + " messages with " + userId + ", got "
+                        + dao.getAllFromUser(userId).size());
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static void awaitSent(HistorySync sync, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (sync.getStats().getMessagesSent() < count) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("expected " + count + " messages sent, got "
+                        + sync.getStats().getMessagesSent());
+            }
+            Thread.sleep(10);
+        }
+    }
+
+}
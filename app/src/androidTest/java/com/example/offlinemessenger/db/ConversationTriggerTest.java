@@ -0,0 +1,179 @@
+package com.example.offlinemessenger.db;
+
+import androidx.room.Room;
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * The conversations table as maintained by the triggers on the messages table: the latest
+ * message by (timestamp, id) whatever the order of the inserts, its successor after a delete,
+ * the counts and the read position.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ConversationTriggerTest {
+
+    private final UUID mUserA = UUID.randomUUID();
+    private final UUID mUserB = UUID.randomUUID();
+    private AppDatabase mDatabase;
+    private ChatMessageDao mDao;
+    private ConversationDao mConversationDao;
+
+    @Before
+    public void setUp() {
+        mDatabase = Room.inMemoryDatabaseBuilder(InstrumentationRegistry.getTargetContext(),
+                AppDatabase.class).addCallback(AppDatabase.CALLBACK).allowMainThreadQueries()
+                .build();
+        mDao = mDatabase.getChatMessageDao();
+        mConversationDao = mDatabase.getConversationDao();
+        mDatabase.getChatUserDao().insertAll(user(mUserA), user(mUserB));
+    }
+
+    @After
+    public void tearDown() {
+        mDatabase.close();
+    }
+
+    @Test
+    public void outOfOrderInsertsKeepTheLatestMessage() {
+        ChatMessageEntity middle = message(mUserA, 2, 200, false);
+        mDao.insert(middle);
+        assertLatest(mUserA, middle, 1);
+
+        // older messages arrive late from the history sync
+        mDao.insert(message(mUserA, 9, 100, false));
+        assertLatest(mUserA, middle, 2);
+        // an equal timestamp is broken by id, a smaller one is not newer...
+        mDao.insert(message(mUserA, 1, 200, false));
+        assertLatest(mUserA, middle, 3);
+        // ...a larger one is
+        ChatMessageEntity latest = message(mUserA, 3, 200, true);
+        mDao.insert(latest);
+        assertLatest(mUserA, latest, 4);
+
+        // a message already stored is ignored and not counted again
+        mDao.insert(message(mUserA, 9, 100, false));
+        assertLatest(mUserA, latest, 4);
+        assertNull(mConversationDao.getByUserId(mUserB));
+    }
+
+    @Test
+    public void deletingTheLatestMessageFallsBackToItsSuccessor() {
+        ChatMessageEntity oldest = message(mUserA, 3, 100, false);
+        ChatMessageEntity tied = message(mUserA, 1, 200, false);
+        ChatMessageEntity latest = message(mUserA, 2, 200, false);
+        mDao.insertAll(latest, oldest, tied);
+        ChatMessageEntity other = message(mUserB, 4, 300, false);
+        mDao.insert(other);
+
+        // deleting an older message leaves the latest alone
+        mDao.delete(oldest);
+        assertLatest(mUserA, latest, 2);
+        mDao.insert(oldest);
+
+        // the successor of the latest has the same timestamp and the next smaller id
+        mDao.delete(latest);
+        assertLatest(mUserA, tied, 2);
+        mDao.delete(tied);
+        assertLatest(mUserA, oldest, 1);
+        assertLatest(mUserB, other, 1);
+    }
+
+    @Test
+    public void deletingTheLastMessageRemovesTheConversation() {
+        ChatMessageEntity first = message(mUserA, 1, 100, true);
+        ChatMessageEntity second = message(mUserA, 2, 200, false);
+        mDao.insertAll(first, second);
+        mDao.insert(message(mUserB, 3, 300, false));
+
+        mDao.delete(second);
+        mDao.delete(first);
+
+        assertNull(mConversationDao.getByUserId(mUserA));
+        assertEquals(1, mConversationDao.getAll().size());
+        assertEquals(1, mConversationDao.getByUserId(mUserB).messageCount);
+
+        // a new message starts the conversation over, unread
+        ChatMessageEntity again = message(mUserA, 4, 50, false);
+        mDao.insert(again);
+        assertLatest(mUserA, again, 1);
+        assertEquals(1, mConversationDao.getByUserId(mUserA).unreadCount);
+    }
+
+    @Test
+    public void markReadCountsOnlyNewerReceivedMessages() {
+        mDao.insertAll(message(mUserA, 1, 100, false), message(mUserA, 2, 200, false),
+                message(mUserA, 3, 300, true));
+        assertEquals(2, mConversationDao.getByUserId(mUserA).unreadCount);
+
+        mConversationDao.markRead(mUserA);
+        ConversationEntity read = mConversationDao.getByUserId(mUserA);
+        assertEquals(0, read.unreadCount);
+        assertEquals(300, read.readTimestamp);
+
+        // a late message from before the read position stays read
+        ChatMessageEntity late = message(mUserA, 4, 250, false);
+        mDao.insert(late);
+        assertEquals(0, mConversationDao.getByUserId(mUserA).unreadCount);
+        // a new one is unread until it is deleted
+        ChatMessageEntity unread = message(mUserA, 5, 400, false);
+        mDao.insert(unread);
+        mDao.insert(message(mUserA, 6, 500, true));
+        assertEquals(1, mConversationDao.getByUserId(mUserA).unreadCount);
+        mDao.delete(unread);
+        mDao.delete(late);
+        ConversationEntity conversation = mConversationDao.getByUserId(mUserA);
+        assertEquals(0, conversation.unreadCount);
+        assertEquals(4, conversation.messageCount);
+        // marking a conversation without messages read does nothing
+        mConversationDao.markRead(mUserB);
+        assertNull(mConversationDao.getByUserId(mUserB));
+    }
+
+    private void assertLatest(UUID userId, ChatMessageEntity latest, int messageCount) {
+        ConversationEntity conversation = mConversationDao.getByUserId(userId);
+        assertNotNull(conversation);
+        assertEquals(latest.id, conversation.lastMessageId);
+        assertEquals(latest.timestamp, conversation.lastTimestamp);
+        assertEquals(latest.content.substring(0, ConversationEntity.PREVIEW_LENGTH),
+                conversation.preview);
+        assertEquals(messageCount, conversation.messageCount);
+    }
+
+    private static ChatUserEntity user(UUID id) {
+        ChatUserEntity user = new ChatUserEntity();
+        user.id = id;
+        user.name = id.toString();
+        return user;
+    }
+
+    /**
+     * Create a message whose id sorts by {@code order} as stored, with a content longer than
+     * the preview.
+     */
+    private static ChatMessageEntity message(UUID userId, int order, long timestamp,
+            boolean isOwn) {
+        ChatMessageEntity message = new ChatMessageEntity();
+        message.id = new UUID(0, order);
+        message.userId = userId;
+        StringBuilder content = new StringBuilder("message " + order);
+        while (content.length() <= ConversationEntity.PREVIEW_LENGTH) {
+            content.append(' ').append(order);
+        }
+        message.content = content.toString();
+        message.timestamp = timestamp;
+        message.isOwn = isOwn;
+        return message;
+    }
+
+}
@@ -0,0 +1,169 @@
+package com.example.offlinemessenger.db;
+
+import androidx.room.Room;
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Ranking and keyset paging of the full text search, and the index surviving VACUUM.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MessageSearchTest {
+
+    private static final int MESSAGES = 2000;
+    private static final int PAGE_SIZE = 20;
+
+    private final Random mRandom = new Random(42);
+    private final UUID mUserA = UUID.randomUUID();
+    private final UUID mUserB = UUID.randomUUID();
+    private AppDatabase mDatabase;
+    private ChatMessageDao mDao;
+
+    @Before
+    public void setUp() {
+        mDatabase = Room.inMemoryDatabaseBuilder(InstrumentationRegistry.getTargetContext(),
+                AppDatabase.class).addCallback(AppDatabase.CALLBACK).allowMainThreadQueries()
+                .build();
+        mDao = mDatabase.getChatMessageDao();
+        mDatabase.getChatUserDao().insertAll(user(mUserA), user(mUserB));
+        ChatMessageEntity[] messages = new ChatMessageEntity[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++) {
+            StringBuilder content = new StringBuilder("message " + i);
+            // up to three hits per message, and few distinct timestamps, so the ranking
+            // has plenty of ties to break by id
+            for (int hits = mRandom.nextInt(4); hits > 0; hits--) {
+                content.append(" needle");
+            }
+            messages[i] = message(i % 2 == 0 ? mUserA : mUserB, content.toString(),
+                    mRandom.nextInt(50));
+        }
+        mDao.insertAll(messages);
+    }
+
+    @After
+    public void tearDown() {
+        mDatabase.close();
+    }
+
+    @Test
+    public void pagesWalkTheRankingWithoutGapsOrDuplicates() {
+        List<ChatMessageSearchResult> all = mDao.search("needle", MESSAGES);
+        assertTrue(all.size() > MESSAGES / 2);
+        assertRanked(all);
+
+        List<ChatMessageSearchResult> paged = new ArrayList<>();
+        List<ChatMessageSearchResult> page = mDao.search("needle", PAGE_SIZE);
+        while (!page.isEmpty()) {
+            paged.addAll(page);
+            ChatMessageSearchResult last = page.get(page.size() - 1);
+            page = mDao.searchAfter("needle", last.hits, last.message.timestamp,
+                    last.message.id, PAGE_SIZE);
+        }
+        assertEquals(ids(all), ids(paged));
+    }
+
+    @Test
+    public void userPagesOnlyHoldTheConversation() {
+        List<ChatMessageSearchResult> paged = new ArrayList<>();
+        List<ChatMessageSearchResult> page = mDao.searchFromUser(mUserA, "needle", PAGE_SIZE);
+        while (!page.isEmpty()) {
+            paged.addAll(page);
+            ChatMessageSearchResult last = page.get(page.size() - 1);
+            page = mDao.searchFromUserAfter(mUserA, "needle", last.hits,
+                    last.message.timestamp, last.message.id, PAGE_SIZE);
+        }
+
+        assertRanked(paged);
+        assertEquals(new HashSet<>(ids(paged)).size(), paged.size());
+        int expected = 0;
+        for (ChatMessageSearchResult r : mDao.search("needle", MESSAGES)) {
+            if (r.message.userId.equals(mUserA)) {
+                expected++;
+            }
+        }
+        assertEquals(expected, paged.size());
+        for (ChatMessageSearchResult r : paged) {
+            assertEquals(mUserA, r.message.userId);
+        }
+    }
+
+    @Test
+    public void searchMatchesContentAfterVacuum() {
+        // deleting half of the rows leaves gaps VACUUM is free to close
+        List<ChatMessageEntity> messages = mDao.getAllFromUser(mUserA);
+        for (int i = 0; i < messages.size() / 2; i++) {
+            mDao.delete(messages.get(i));
+        }
+        ChatMessageEntity marked = message(mUserB, "a unique haystack", 100);
+        mDao.insert(marked);
+
+        mDatabase.vacuum();
+
+        List<ChatMessageSearchResult> found = mDao.search("haystack", PAGE_SIZE);
+        assertEquals(1, found.size());
+        assertEquals(marked.id, found.get(0).message.id);
+        for (ChatMessageSearchResult r : mDao.search("needle", MESSAGES)) {
+            assertEquals(count(r.message.content, "needle"), r.hits);
+        }
+    }
+
+    private static void assertRanked(List<ChatMessageSearchResult> results) {
+        for (int i = 1; i < results.size(); i++) {
+            ChatMessageSearchResult a = results.get(i - 1);
+            ChatMessageSearchResult b = results.get(i);
+            assertTrue(a.hits >= b.hits);
+            if (a.hits == b.hits) {
+                assertTrue(a.message.timestamp >= b.message.timestamp);
+            }
+        }
+    }
+
+    private static List<UUID> ids(List<ChatMessageSearchResult> results) {
+        List<UUID> ids = new ArrayList<>(results.size());
+        for (ChatMessageSearchResult r : results) {
+            ids.add(r.message.id);
+        }
+        return ids;
+    }
+
+    private static int count(String content, String word) {
+        int count = 0;
+        for (String token : content.split(" ")) {
+            if (token.equals(word)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static ChatUserEntity user(UUID id) {
+        ChatUserEntity user = new ChatUserEntity();
+        user.id = id;
+        user.name = id.toString();
+        return user;
+    }
+
+    private static ChatMessageEntity message(UUID userId, String content, long timestamp) {
+        ChatMessageEntity m = new ChatMessageEntity();
+        m.id = UUID.randomUUID();
+        m.userId = userId;
+        m.content = content;
+        m.timestamp = timestamp;
+        return m;
+    }
+
+}
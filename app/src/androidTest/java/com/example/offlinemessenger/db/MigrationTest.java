@@ -0,0 +1,278 @@
+package com.example.offlinemessenger.db;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import androidx.annotation.NonNull;
+import androidx.room.Room;
+import androidx.room.migration.Migration;
+import androidx.room.testing.MigrationTestHelper;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteOpenHelper;
+import androidx.sqlite.db.framework.FrameworkSQLiteOpenHelperFactory;
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Upgrades databases of old versions filled with data.  Schemas are only exported from
+ * version 6 on, so the old databases are created with the SQL Room generated for them, and
+ * the full chain is validated against the exported schema of the current version.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MigrationTest {
+
+    private static final String TEST_DB = "migration-test";
+
+    /** The tables of version 1, as created by Room. */
+    private static final String[] VERSION_1 = {
+            "CREATE TABLE IF NOT EXISTS `users` (`id` TEXT NOT NULL, `name` TEXT, "
+                    + "PRIMARY KEY(`id`))",
+            "CREATE TABLE IF NOT EXISTS `messages` (`id` TEXT NOT NULL, `user_id` TEXT, "
+                    + "`content` TEXT, `timestamp` INTEGER NOT NULL, `is_own` INTEGER NOT NULL, "
+                    + "PRIMARY KEY(`id`), FOREIGN KEY(`user_id`) REFERENCES `users`(`id`) "
+                    + "ON UPDATE NO ACTION ON DELETE NO ACTION )",
+            "CREATE INDEX IF NOT EXISTS `messages_user_id` ON `messages` (`user_id`)"
+    };
+
+    /** More than a chunk of the id migration. */
+    private static final int MESSAGES = BinaryIdMigration.CHUNK_ROWS + 500;
+
+    @Rule
+    public final MigrationTestHelper mHelper = new MigrationTestHelper(
+            InstrumentationRegistry.getInstrumentation(), AppDatabase.class.getCanonicalName(),
+            new FrameworkSQLiteOpenHelperFactory());
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+    private final UUID mAlice = UUID.randomUUID();
+    private final UUID mBob = UUID.randomUUID();
+
+    @Before
+    public void setUp() {
+        mContext.deleteDatabase(TEST_DB);
+    }
+
+    @Test
+    public void migrate2To3ConvertsIdsToBlobs() {
+        SupportSQLiteOpenHelper helper = open(2);
+        SupportSQLiteDatabase db = helper.getWritableDatabase();
+        insertUser(db, mAlice.toString(), "Alice");
+        insertUser(db, "not a uuid", "Mallory");
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        insertMessage(db, first.toString(), mAlice.toString(), "hello", 1000, true);
+        insertMessage(db, second.toString(), null, "broadcast", 2000, false);
+        insertMessage(db, "not a uuid", mAlice.toString(), "dropped", 3000, false);
+        db.execSQL("INSERT INTO outbox (id, payload, queued_at) VALUES (?, ?, ?)",
+                new Object[]{first.toString(), new byte[]{1, 2, 3}, 1000});
+        helper.close();
+
+        final List<Long> progress = new ArrayList<>();
+        BinaryIdMigration migration = new BinaryIdMigration();
+        migration.setProgressListener((migratedRows, totalRows) -> {
+            assertEquals(5, totalRows);
+            progress.add(migratedRows);
+        });
+        helper = open(3, migration);
+        db = helper.getWritableDatabase();
+
+        Cursor users = db.query("SELECT id, name FROM users");
+        try {
+            assertEquals(1, users.getCount());
+            users.moveToNext();
+            assertArrayEquals(UuidConverter.toBytes(mAlice), users.getBlob(0));
+            assertEquals("Alice", users.getString(1));
+        } finally {
+            users.close();
+        }
+        Cursor messages = db.query("SELECT id, user_id, content, timestamp, is_own "
+                + "FROM messages ORDER BY timestamp");
+        try {
+            assertEquals(2, messages.getCount());
+            messages.moveToNext();
+            assertArrayEquals(UuidConverter.toBytes(first), messages.getBlob(0));
+            assertArrayEquals(UuidConverter.toBytes(mAlice), messages.getBlob(1));
+            assertEquals("hello", messages.getString(2));
+            assertEquals(1000, messages.getLong(3));
+            assertEquals(1, messages.getInt(4));
+            messages.moveToNext();
+            assertArrayEquals(UuidConverter.toBytes(second), messages.getBlob(0));
+            assertTrue(messages.isNull(1));
+            assertEquals(0, messages.getInt(4));
+        } finally {
+            messages.close();
+        }
+        assertEquals(1, count(db, "SELECT COUNT(*) FROM sqlite_master "
+                + "WHERE type = 'index' AND name = 'messages_user_id'"));
+        Cursor violations = db.query("PRAGMA foreign_key_check");
+        try {
+            assertEquals(0, violations.getCount());
+        } finally {
+            violations.close();
+        }
+        // the outbox holds encoded sendables and is left alone
+        assertEquals(1, count(db, "SELECT COUNT(*) FROM outbox"));
+        assertFalse(progress.isEmpty());
+        assertEquals(5, (long) progress.get(progress.size() - 1));
+        helper.close();
+    }
+
+    @Test
+    public void migrate1To7KeepsTheHistory() {
+        SupportSQLiteOpenHelper helper = open(1);
+        SupportSQLiteDatabase db = helper.getWritableDatabase();
+        insertUser(db, mAlice.toString(), "Alice");
+        insertUser(db, mBob.toString(), "Bob");
+        for (int i = 0; i < MESSAGES; i++) {
+            UUID userId = i % 3 == 0 ? mBob : mAlice;
+            insertMessage(db, UUID.randomUUID().toString(), userId.toString(),
+                    "message " + i + (i % 100 == 0 ? " needle" : ""), i * 1000L, i % 2 == 0);
+        }
+        helper.close();
+
+        db = mHelper.runMigrationsAndValidate(TEST_DB, 7, true, AppDatabase.MIGRATIONS);
+        // without the identity of the exported schema, Room validates the tables against the
+        // schema it was compiled with before opening the database
+        db.execSQL("DROP TABLE room_master_table");
+        db.close();
+
+        AppDatabase database = Room.databaseBuilder(mContext, AppDatabase.class, TEST_DB)
+                .addMigrations(AppDatabase.MIGRATIONS).addCallback(AppDatabase.CALLBACK)
+                .allowMainThreadQueries().build();
+        mHelper.closeWhenFinished(database);
+        ChatMessageDao messageDao = database.getChatMessageDao();
+        ConversationDao conversationDao = database.getConversationDao();
+
+        assertEquals(MESSAGES, messageDao.getAll().size());
+        List<ChatMessageEntity> latest = messageDao.getLatestFromUser(mAlice, 1);
+        assertEquals((MESSAGES - 1) * 1000L, latest.get(0).timestamp);
+        assertEquals((MESSAGES + 99) / 100, messageDao.search("needle", MESSAGES).size());
+
+        ConversationEntity alice = conversationDao.getByUserId(mAlice);
+        assertEquals(messageDao.getAllFromUser(mAlice).size(), alice.messageCount);
+        assertEquals(latest.get(0).id, alice.lastMessageId);
+        assertEquals(0, alice.unreadCount);
+        assertEquals(2, conversationDao.getAll().size());
+        // there was no outbox in version 1, so every sent message has been delivered
+        assertEquals(0, count(db(database), "SELECT COUNT(*) FROM messages "
+                + "WHERE is_own AND NOT delivered"));
+
+        // the migrated triggers keep the summary and the full text index up to date
+        ChatMessageEntity m = new ChatMessageEntity();
+        m.id = UUID.randomUUID();
+        m.userId = mAlice;
+        m.content = "a new haystack";
+        m.timestamp = MESSAGES * 1000L;
+        messageDao.insert(m);
+        alice = conversationDao.getByUserId(mAlice);
+        assertEquals(m.id, alice.lastMessageId);
+        assertEquals(1, alice.unreadCount);
+        assertEquals(1, messageDao.search("haystack", 10).size());
+    }
+
+    @Test
+    public void migrate6To7KeepsQueuedMessagesUndelivered() {
+        SupportSQLiteDatabase db = mHelper.createDatabase(TEST_DB, 6);
+        db.execSQL("INSERT INTO users (id, name) VALUES (?, ?)",
+                new Object[]{UuidConverter.toBytes(mAlice), "Alice"});
+        UUID acknowledged = UUID.randomUUID();
+        UUID queued = UUID.randomUUID();
+        UUID received = UUID.randomUUID();
+        insertMessage(db, acknowledged, true);
+        insertMessage(db, queued, true);
+        insertMessage(db, received, false);
+        db.execSQL("INSERT INTO outbox (id, payload, queued_at) VALUES (?, ?, ?)",
+                new Object[]{queued.toString(), new byte[]{1, 2, 3}, 1000});
+        db.close();
+
+        db = mHelper.runMigrationsAndValidate(TEST_DB, 7, true, AppDatabase.MIGRATION_6_7);
+        assertEquals(3, count(db, "SELECT COUNT(*) FROM messages"));
+        assertEquals(1, count(db, "SELECT delivered FROM messages WHERE id = x'"
+                + hex(acknowledged) + "'"));
+        assertEquals(0, count(db, "SELECT delivered FROM messages WHERE id = x'"
+                + hex(queued) + "'"));
+        assertEquals(0, count(db, "SELECT delivered FROM messages WHERE id = x'"
+                + hex(received) + "'"));
+    }
+
+    /**
+     * Open the test database at a version, creating it with the schema of version 1 and the
+     * migrations to that version if needed.
+     *
+     * @param version    The version.
+     * @param migrations The migrations to run when upgrading an existing database.
+     * @return The open helper.
+     */
+    private SupportSQLiteOpenHelper open(int version, final Migration... migrations) {
+        SupportSQLiteOpenHelper.Callback callback = new SupportSQLiteOpenHelper.Callback(version) {
+            @Override
+            public void onCreate(@NonNull SupportSQLiteDatabase db) {
+                for (String sql : VERSION_1) {
+                    db.execSQL(sql);
+                }
+                if (version >= 2) {
+                    AppDatabase.MIGRATION_1_2.migrate(db);
+                }
+            }
+
+            @Override
+            public void onUpgrade(@NonNull SupportSQLiteDatabase db, int oldVersion,
+                                  int newVersion) {
+                for (Migration migration : migrations) {
+                    migration.migrate(db);
+                }
+            }
+        };
+        return new FrameworkSQLiteOpenHelperFactory().create(
+                SupportSQLiteOpenHelper.Configuration.builder(mContext).name(TEST_DB)
+                        .callback(callback).build());
+    }
+
+    private static void insertUser(SupportSQLiteDatabase db, String id, String name) {
+        db.execSQL("INSERT INTO users (id, name) VALUES (?, ?)", new Object[]{id, name});
+    }
+
+    private static void insertMessage(SupportSQLiteDatabase db, String id, String userId,
+                                      String content, long timestamp, boolean isOwn) {
+        db.execSQL("INSERT INTO messages (id, user_id, content, timestamp, is_own) "
+                + "VALUES (?, ?, ?, ?, ?)", new Object[]{id, userId, content, timestamp,
+                isOwn ? 1 : 0});
+    }
+
+    private void insertMessage(SupportSQLiteDatabase db, UUID id, boolean isOwn) {
+        db.execSQL("INSERT INTO messages (id, user_id, content, timestamp, is_own) "
+                + "VALUES (?, ?, ?, ?, ?)", new Object[]{UuidConverter.toBytes(id),
+                UuidConverter.toBytes(mAlice), "hello", 1000, isOwn ? 1 : 0});
+    }
+
+    private static String hex(UUID id) {
+        return id.toString().replace("-", "");
+    }
+
+    private static SupportSQLiteDatabase db(AppDatabase database) {
+        return database.getOpenHelper().getReadableDatabase();
+    }
+
+    private static long count(SupportSQLiteDatabase db, String sql) {
+        Cursor cursor = db.query(sql);
+        try {
+            return cursor.moveToNext() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+}
@@ -0,0 +1,208 @@
+package com.example.offlinemessenger.db;
+
+import android.database.Cursor;
+
+import androidx.room.Room;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Guards the indexes of the message and conversation queries: every query must seek or walk
+ * its index and not scan the table or sort its rows.  The statements are the ones the DAOs
+ * and the triggers run, shared through constants.
+ */
+@RunWith(AndroidJUnit4.class)
+public class QueryPlanTest {
+
+    private static final String CONVERSATION_INDEX = "messages_user_id_timestamp";
+    private static final String TIMELINE_INDEX = "messages_timestamp";
+
+    /** A plan step reading a whole table in rowid order, SQLite 3.24 and later omit TABLE. */
+    private static final Pattern TABLE_SCAN =
+            Pattern.compile("^SCAN (TABLE )?\\w+( AS \\w+)?$");
+
+    private final byte[] mUserId = UuidConverter.toBytes(UUID.randomUUID());
+    private final byte[] mMessageId = UuidConverter.toBytes(UUID.randomUUID());
+    private AppDatabase mDatabase;
+    private SupportSQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        mDatabase = Room.inMemoryDatabaseBuilder(InstrumentationRegistry.getTargetContext(),
+                AppDatabase.class).addCallback(AppDatabase.CALLBACK).allowMainThreadQueries()
+                .build();
+        mDb = mDatabase.getOpenHelper().getWritableDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        mDatabase.close();
+    }
+
+    @Test
+    public void latestPageSeeksTheConversationIndex() {
+        List<String> plan = plan(ChatMessageDao.SELECT_LATEST_FROM_USER, mUserId, 50);
+
+        assertSeeks(plan, CONVERSATION_INDEX);
+        assertNoScanOrSort(plan);
+    }
+
+    @Test
+    public void pagesBeforeAndAfterACursorSeekTheConversationIndex() {
+        List<String> before = plan(ChatMessageDao.SELECT_PAGE_BEFORE, mUserId, 1L, 1L,
+                mMessageId, 50);
+        List<String> after = plan(ChatMessageDao.SELECT_PAGE_AFTER, mUserId, 1L, 1L,
+                mMessageId, 50);
+
+        assertSeeks(before, CONVERSATION_INDEX);
+        assertNoScanOrSort(before);
+        assertSeeks(after, CONVERSATION_INDEX);
+        assertNoScanOrSort(after);
+    }
+
+    @Test
+    public void conversationQueriesSeekTheConversationIndex() {
+        List<String> all = plan(ChatMessageDao.SELECT_ALL_FROM_USER, mUserId);
+        List<String> keys = plan(ChatMessageDao.SELECT_KEYS_FROM_USER, mUserId);
+        // the lookup of the latest message left when the delete trigger removes the latest
+        List<String> latest = plan("SELECT `id` "
+                + AppDatabase.LATEST_OF_DELETED.replace("OLD.`user_id`", "?"), mUserId);
+
+        assertSeeks(all, CONVERSATION_INDEX);
+        assertNoScanOrSort(all);
+        assertSeeks(keys, CONVERSATION_INDEX);
+        assertNoScanOrSort(keys);
+        assertSeeks(latest, CONVERSATION_INDEX);
+        assertNoScanOrSort(latest);
+    }
+
+    @Test
+    public void messagesAreLookedUpByPrimaryKey() {
+        List<String> byIds = plan(ChatMessageDao.SELECT_BY_IDS, mMessageId);
+        List<String> delivered = plan(ChatMessageDao.UPDATE_DELIVERED, mMessageId);
+
+        assertSeeksKey(byIds, "id");
+        assertNoScanOrSort(byIds);
+        assertSeeksKey(delivered, "id");
+        assertNoScanOrSort(delivered);
+    }
+
+    @Test
+    public void timelineWalksTheTimestampIndex() {
+        List<String> plan = plan(ChatMessageDao.SELECT_ALL);
+
+        assertUses(plan, TIMELINE_INDEX);
+        assertNoScanOrSort(plan);
+    }
+
+    @Test
+    public void conversationListWalksItsIndex() {
+        List<String> plan = plan(ConversationDao.SELECT_ALL);
+
+        assertUses(plan, "conversations_last_timestamp");
+        assertNoScanOrSort(plan);
+    }
+
+    @Test
+    public void conversationsAreLookedUpByPrimaryKey() {
+        List<String> byUserId = plan(ConversationDao.SELECT_BY_USER_ID, mUserId);
+        List<String> read = plan(ConversationDao.UPDATE_READ, mUserId);
+
+        assertSeeksKey(byUserId, "user_id");
+        assertNoScanOrSort(byUserId);
+        assertSeeksKey(read, "user_id");
+        assertNoScanOrSort(read);
+    }
+
+    @Test
+    public void searchLooksUpTheMatchesByRowid() {
+        List<List<String>> plans = new ArrayList<>();
+        plans.add(plan(ChatMessageDao.SELECT_SEARCH, "word", 20));
+        plans.add(plan(ChatMessageDao.SELECT_SEARCH_AFTER, "word", 1, 1, 1L, 1L, mMessageId,
+                20));
+        plans.add(plan(ChatMessageDao.SELECT_SEARCH_FROM_USER, "word", mUserId, 20));
+        plans.add(plan(ChatMessageDao.SELECT_SEARCH_FROM_USER_AFTER, "word", mUserId, 1, 1,
+                1L, 1L, mMessageId, 20));
+
+        for (List<String> plan : plans) {
+            // ranking sorts the matches, but only the matches
+            assertTrue(plan.toString(), contains(plan, "VIRTUAL TABLE INDEX"));
+            assertTrue(plan.toString(), contains(plan, "USING INTEGER PRIMARY KEY"));
+            assertFalse(plan.toString(), contains(plan, CONVERSATION_INDEX));
+            assertNoTableScan(plan);
+        }
+    }
+
+    /**
+     * Get the query plan of a statement.  Named parameters in {@code sql} are bound in order
+     * of appearance, each occurrence counting.
+     *
+     * @param sql  The statement.
+     * @param args The arguments.
+     * @return The plan steps, one line each.
+     */
+    private List<String> plan(String sql, Object... args) {
+        List<String> plan = new ArrayList<>();
+        Cursor cursor = mDb.query("EXPLAIN QUERY PLAN " + sql.replaceAll(":\\w+", "?"), args);
+        try {
+            int detail = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.add(cursor.getString(detail));
+            }
+        } finally {
+            cursor.close();
+        }
+        return plan;
+    }
+
+    private static void assertSeeks(List<String> plan, String index) {
+        assertTrue(plan.toString(), contains(plan, "SEARCH")
+                && contains(plan, "INDEX " + index + " (user_id=?"));
+    }
+
+    /** Assert a plan seeks the primary key index of a table without a rowid alias. */
+    private static void assertSeeksKey(List<String> plan, String column) {
+        assertTrue(plan.toString(), contains(plan, "SEARCH")
+                && contains(plan, "INDEX sqlite_autoindex_") && contains(plan, "(" + column
+                + "=?)"));
+    }
+
+    private static void assertUses(List<String> plan, String index) {
+        assertTrue(plan.toString(), contains(plan, "INDEX " + index));
+    }
+
+    private static void assertNoScanOrSort(List<String> plan) {
+        assertNoTableScan(plan);
+        assertFalse(plan.toString(), contains(plan, "TEMP B-TREE"));
+    }
+
+    private static void assertNoTableScan(List<String> plan) {
+        for (String step : plan) {
+            assertFalse(plan.toString(), TABLE_SCAN.matcher(step).matches());
+        }
+    }
+
+    private static boolean contains(List<String> plan, String text) {
+        for (String step : plan) {
+            if (step.contains(text)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -2,241 +2,429 @@ package com.example.offlinemessenger;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.os.Handler;
-import android.os.Message;
 import android.util.Log;
 
 import com.example.offlinemessenger.data.ChatMessage;
 import com.example.offlinemessenger.data.Sendable;
+import com.example.offlinemessenger.net.Connection;
+import com.example.offlinemessenger.net.ConnectionConfig;
+import com.example.offlinemessenger.net.ConnectionManager;
+import com.example.offlinemessenger.net.DeliveryManager;
+import com.example.offlinemessenger.net.DeliveryStats;
+import com.example.offlinemessenger.net.Frame;
+import com.example.offlinemessenger.net.HistorySync;
+import com.example.offlinemessenger.net.LinkMonitor;
+import com.example.offlinemessenger.net.LinkQuality;
+import com.example.offlinemessenger.net.MeshRouter;
+import com.example.offlinemessenger.net.SendableCodec;
+import com.example.offlinemessenger.net.TransferManager;
+import com.example.offlinemessenger.net.TransferSink;
+import com.example.offlinemessenger.net.TransferSource;
+import com.example.offlinemessenger.net.Transport;
+import com.example.offlinemessenger.service.BluetoothTransport;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class BluetoothConnectionService {
     //Tag used for logging
     private static final String TAG = "BluetoothConnectService";
-    private final String APP_NAME = "MY_APP";
 
-    //UUID to confirm both devices use the same service in this case the app OfflineMessenger
-    private static final UUID UUID_INSECURE =
-            UUID.fromString("c199f1da-5634-44bf-ad17-394d1c186a24");
+    /** {@link Message#what} for delivery confirmations, {@link Message#obj} is the message id. */
+    public static final int MSG_DELIVERED = 1;
+    /**
+     * {@link Message#what} for messages stored by the history sync, {@link Message#obj} is
+     * the user id of the peer and {@link Message#arg1} the number of messages.
+     */
+    public static final int MSG_HISTORY_SYNCED = 2;
+    /**
+     * {@link Message#what} for changes of the backpressure from a peer, {@link Message#obj} is
+     * the user id of the peer and {@link Message#arg1} is {@code 1} while the outbound queue
+     * to the peer is full, {@code 0} once it has drained again.
+     */
+    public static final int MSG_BACKPRESSURE = 3;
 
-    private final BluetoothAdapter mBluetoothAdapter;
+    /** Payloads streamed at the same time; further uploads wait for a free thread. */
+    private static final int UPLOAD_THREADS = 2;
+    /** Time after which an idle upload thread terminates. */
+    private static final long IDLE_UPLOAD_THREAD_SECONDS = 30;
 
-    private ServerListenThread mInsecureServerListenThread;
-    private ClientConnectThread mConnectThread;
-    private IOThread mIOThread;
+    /**
+     * Parameters for new connections; compression is offered to every peer, and chat
+     * messages overflowing a full queue stay in the outbox.
+     */
+    private final ConnectionConfig mConnectionConfig = new ConnectionConfig();
 
-    private BluetoothDevice mDevice;
-    private UUID deviceUUID;
+    /** All peer sessions, each running on the manager's shared thread pool. */
+    private final ConnectionManager mConnectionManager;
+    private final DeliveryManager.Outbox mOutbox;
+    /** One delivery manager per peer, all running on {@link #mScheduler}. */
+    private final Map<UUID, DeliveryManager> mDeliveryManagers = new ConcurrentHashMap<>();
+    /** Timers of the delivery managers and the link monitor. */
+    private final ScheduledExecutorService mScheduler =
+            Executors.newSingleThreadScheduledExecutor();
+    /** Keepalive and round trip measurement for every session. */
+    private final LinkMonitor mLinkMonitor;
+    private final MeshRouter mMeshRouter;
+    private final HistorySync mHistorySync;
+    private final Map<Connection, TransferManager> mTransferManagers = new ConcurrentHashMap<>();
+    private TransferSink mTransferSink;
+    private TransferManager.Listener mTransferListener;
+    /** Uploads block until the peer acknowledges, so they get threads of their own. */
+    private final ThreadPoolExecutor mUploadExecutor = new ThreadPoolExecutor(UPLOAD_THREADS,
+            UPLOAD_THREADS, IDLE_UPLOAD_THREAD_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "Upload-" + mCount.incrementAndGet());
+                }
+            });
+
+    /**
+     * Handler the results are posted to.  All callbacks are made on the network and timer
+     * threads, they are handed over to the handler's looper rather than dispatched in place.
+     */
     private final Handler mUIHandler;
 
-    public BluetoothConnectionService(Handler handler) {
-        mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+    public BluetoothConnectionService(Handler handler, DeliveryManager.Outbox outbox,
+                                      HistorySync.Store history, UUID localUserId) {
+        this(handler, outbox, history, localUserId,
+                new BluetoothTransport(BluetoothAdapter.getDefaultAdapter()));
+    }
+
+    public BluetoothConnectionService(Handler handler, DeliveryManager.Outbox outbox,
+                                      HistorySync.Store history, UUID localUserId,
+                                      Transport transport) {
         mUIHandler = handler;
+        mOutbox = outbox;
+        mConnectionConfig.setOverflowPolicy(ConnectionConfig.OverflowPolicy.SPILL);
+        mConnectionManager = new ConnectionManager(transport, mSessionListener, mConnectionConfig);
+        mLinkMonitor = new LinkMonitor(mScheduler, mLinkListener);
+        mMeshRouter = new MeshRouter(localUserId, mMeshListener);
+        mHistorySync = new HistorySync(history, mSyncListener);
+        mUploadExecutor.allowCoreThreadTimeOut(true);
         start();
     }
 
-    // Listening for connections and accepting incoming calls
-    private class ServerListenThread extends Thread {
-        private final BluetoothServerSocket mBtServerSocket;
-        public ServerListenThread() {
-            BluetoothServerSocket tmp = null;
-            try {
-                tmp = mBluetoothAdapter.listenUsingInsecureRfcommWithServiceRecord(APP_NAME, UUID_INSECURE);
-                Log.d(TAG, "ServerListenThread setting up Server using: " + UUID_INSECURE);
-            } catch (IOException e) {
-                Log.e(TAG, "Unable to accept client connection", e);
+    // Listening for connections and accepting incoming calls, for as many peers as connect
+    public synchronized void start(){
+        try {
+            mConnectionManager.listen();
+            Log.d(TAG, "start: Accepting connections");
+        } catch (IOException e) {
+            Log.e(TAG, "start: Unable to accept client connections", e);
+        }
+    }
+
+    public void startClient(BluetoothDevice device){
+        startClient(device.getAddress());
+    }
+
+    /**
+     * Open a session with a device.  If the session cannot be established or drops later on,
+     * it is reconnected automatically until {@link #stopClient(String)} is called.
+     *
+     * @param address The device address.
+     */
+    public void startClient(String address){
+        Log.d(TAG, "startClient: Connecting to " + address);
+        try {
+            mConnectionManager.connect(address);
+        } catch (IOException e) {
+            Log.e(TAG, "startClient: Failed connecting to " + address, e);
+        }
+    }
+
+    /**
+     * Close the session with a device and stop reconnecting to it.
+     *
+     * @param address The device address.
+     */
+    public void stopClient(String address){
+        mConnectionManager.disconnect(address);
+    }
+
+    /**
+     * Get the number of peers we currently have a session with.
+     *
+     * @return The session count.
+     */
+    public int getSessionCount() {
+        return mConnectionManager.getSessionCount();
+    }
+
+    /**
+     * Get the delivery counters for a peer, including the time it took to resume the session
+     * after reconnecting and the number of bytes sent again.
+     *
+     * @param userId The user id of the peer.
+     * @return The statistics, or {@code null} if we never had a session with the user.
+     */
+    public DeliveryStats getDeliveryStats(UUID userId) {
+        DeliveryManager deliveryManager = mDeliveryManagers.get(userId);
+        return deliveryManager == null ? null : deliveryManager.getStats();
+    }
+
+    /**
+     * Get the condition of the link to a peer: round trip time, throughput and the time since
+     * the peer has last been heard from.
+     *
+     * @param userId The user id of the peer.
+     * @return The link quality, or {@code null} if there is no session with the user.
+     */
+    public LinkQuality getLinkQuality(UUID userId) {
+        Connection connection = mConnectionManager.getConnection(userId);
+        return connection == null ? null : mLinkMonitor.getLinkQuality(connection);
+    }
+
+    private final ConnectionManager.Listener mSessionListener = new ConnectionManager.Listener() {
+        @Override
+        public void onConnectionOpened(Connection connection) {
+            Log.d(TAG, "Session with " + connection.getPeerAddress() + " opened");
+            // the mesh hello must be queued first, the delivery manager attaches after it
+            mMeshRouter.attach(connection);
+            mHistorySync.attach(connection);
+            mLinkMonitor.attach(connection);
+            connection.setOverflowHandler(mOverflowHandler);
+            connection.setBackpressureListener(mBackpressureListener);
+            mTransferManagers.put(connection,
+                    new TransferManager(connection, mTransferSink, mTransferListener));
+        }
+
+        @Override
+        public void onSendableReceived(Connection connection, Sendable s) {
+            UUID peerId = mMeshRouter.getNeighbourId(connection);
+            if (s instanceof ChatMessage && peerId != null) {
+                s = ((ChatMessage) s).withSender(peerId);
             }
-            mBtServerSocket = tmp;
+            dispatchReceived(s);
         }
-        public void run(){
-            Log.d(TAG, "run: ServerListenThread running!");
-            BluetoothSocket mBtSocket = null;
-            try {
-                mBtSocket = mBtServerSocket.accept();
 
-                Log.d(TAG, "run: server socket accepted connection");
-            } catch (IOException e) {
-                e.printStackTrace();
+        @Override
+        public void onClosed(Connection connection) {
+            Log.d(TAG, "Connection to " + connection.getPeerAddress() + " closed");
+            for (DeliveryManager deliveryManager : mDeliveryManagers.values()) {
+                deliveryManager.detach(connection);
             }
-            if(mBtSocket != null) {
-                connected(mBtSocket, mDevice);
+            mMeshRouter.detach(connection);
+            mHistorySync.detach(connection);
+            mLinkMonitor.detach(connection);
+            TransferManager transferManager = mTransferManagers.remove(connection);
+            if (transferManager != null) {
+                transferManager.suspendAll();
             }
-            Log.d(TAG, "End ServerListenThread");
         }
+    };
 
-        public void cancel(){
-            Log.d(TAG, "cancel: cancelling ServerListenThread");
-            try {
-                mBtServerSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "cancelling of ServerListenThread failed!");
-            }
+    private final DeliveryManager.Listener mDeliveryListener = new DeliveryManager.Listener() {
+        @Override
+        public void onSendableReceived(Sendable s) {
+            dispatchReceived(s);
         }
-    }
-    
-    private class ClientConnectThread extends Thread {
-        private BluetoothSocket mBluetoothSocket;
 
-        private ClientConnectThread(BluetoothDevice device, UUID uuid) {
-            mDevice = device;
-            deviceUUID = uuid;
+        @Override
+        public void onDelivered(UUID messageId) {
+            Log.d(TAG, "Message " + messageId + " delivered");
+            mUIHandler.obtainMessage(MSG_DELIVERED, messageId).sendToTarget();
+        }
+    };
+
+    private final MeshRouter.Listener mMeshListener = new MeshRouter.Listener() {
+        @Override
+        public void onRelayedReceived(Sendable s, UUID origin) {
+            Log.d(TAG, "Relayed message from " + origin);
+            // the sender field holds the destination, which is us
+            if (s instanceof ChatMessage) {
+                s = ((ChatMessage) s).withSender(origin);
+            }
+            dispatchReceived(s);
         }
 
-        public void run(){
-            Log.i(TAG, "run: mConnectThread");
-            tryBtConnection();
-            connected(mBluetoothSocket, mDevice);
+        @Override
+        public void onNeighbourAnnounced(Connection connection, UUID userId) {
+            Log.d(TAG, "Peer " + connection.getPeerAddress() + " is user " + userId);
+            mConnectionManager.setUserId(connection, userId);
+            getDeliveryManager(userId).attach(connection);
+            mHistorySync.start(connection, userId);
         }
+    };
 
-        public void cancel(){
+    /**
+     * Spills chat messages from a full queue into the outbox.  Sequenced messages are in the
+     * outbox already and sent again by their delivery manager once the peer acknowledges
+     * what is in flight; everything else waits for room.
+     */
+    private final Connection.OverflowHandler mOverflowHandler = (connection, frame) -> {
+        if (frame.getType() == Frame.TYPE_SEQUENCED) {
+            return true;
+        }
+        if (frame.getType() == Frame.TYPE_CHAT_MESSAGE) {
             try {
-                Log.d(TAG, "cancel: Closing client socket");
-                mBluetoothSocket.close();
+                ChatMessage message = (ChatMessage) SendableCodec.fromFrame(frame);
+                getDeliveryManager(message.getSender()).send(message);
+                return true;
             } catch (IOException e) {
-                Log.e(TAG, "cancelling of client socket failed!" + e.getMessage());
+                return false;
             }
         }
+        return false;
+    };
 
-        private void tryBtConnection() {
-            BluetoothSocket tmp;
-            try {
-                Log.d(TAG, "ClientConnectThread: Trying to create socket to service record using UUID: " + deviceUUID);
-                tmp = mDevice.createRfcommSocketToServiceRecord(deviceUUID);
-            } catch (IOException e) {
-                Log.e(TAG, "Failed to create socket to service record!" + e.getMessage());
+    private final Connection.BackpressureListener mBackpressureListener =
+            new Connection.BackpressureListener() {
+        @Override
+        public void onBackpressureChanged(Connection connection, boolean congested) {
+            UUID userId = mMeshRouter.getNeighbourId(connection);
+            Log.d(TAG, "Queue to " + connection.getPeerAddress()
+                    + (congested ? " is full" : " has drained"));
+            if (userId == null) {
                 return;
             }
-            mBluetoothSocket = tmp;
-            mBluetoothAdapter.cancelDiscovery();
-            try {
-                mBluetoothSocket.connect();
-                Log.d(TAG, "ClientConnectThread: Socket is connected!");
-            } catch (IOException e) {
-                try {
-                    mBluetoothSocket.close();
-                    Log.d(TAG, "Socket closed!");
-                } catch (Exception e1) {
-                    Log.e(TAG, "Unable to close connection!" + e1.getMessage());
-                }
-                Log.e(TAG, "ClientConnectThread: Failed connecting to UUID: " + deviceUUID + "! " + e.getMessage());
+            mUIHandler.obtainMessage(MSG_BACKPRESSURE, congested ? 1 : 0, 0, userId)
+                    .sendToTarget();
+        }
+    };
+
+    private final LinkMonitor.Listener mLinkListener = new LinkMonitor.Listener() {
+        @Override
+        public void onLinkQualityChanged(Connection connection, LinkQuality quality) {
+            UUID userId = mMeshRouter.getNeighbourId(connection);
+            DeliveryManager deliveryManager = userId == null ? null : mDeliveryManagers.get(userId);
+            if (deliveryManager != null) {
+                deliveryManager.setRetransmitTimeout(quality.getRetransmitTimeoutMillis());
             }
         }
-    }
 
-    public synchronized void start(){
-        if(mConnectThread != null){
-            mConnectThread.cancel();
-            mConnectThread = null;
+        @Override
+        public void onPeerDead(Connection connection) {
+            Log.d(TAG, "Peer " + connection.getPeerAddress() + " stopped responding");
         }
-        if(mInsecureServerListenThread == null){
-            mInsecureServerListenThread = new ServerListenThread();
-            mInsecureServerListenThread.start();
+    };
+
+    private final HistorySync.Listener mSyncListener = new HistorySync.Listener() {
+        @Override
+        public void onHistorySynced(UUID peerId, int count) {
+            Log.d(TAG, "History sync stored " + count + " messages from " + peerId);
+            mUIHandler.obtainMessage(MSG_HISTORY_SYNCED, count, 0, peerId).sendToTarget();
         }
-    }
+    };
 
-    public void startClient(BluetoothDevice device, UUID uuid){
-        Log.d(TAG, "startClient started!");
-        mConnectThread = new ClientConnectThread(device, uuid);
-        mConnectThread.start();
+    private void dispatchReceived(Sendable s) {
+        Log.d(TAG, "Inputstream = " + s.toString());
+        mUIHandler.obtainMessage(0, s).sendToTarget();
     }
 
-    private class IOThread extends Thread {
-        private final BluetoothSocket mBluetoothSocket;
-        private final ObjectOutputStream outputStream;
-        private final ObjectInputStream inputStream;
-
-        private final List<Sendable> queue;
-        private final Object queueLock = new Object();
-
-        public IOThread(BluetoothSocket bluetoothSocket){
-            Log.d(TAG, "ClientThread started");
-            mBluetoothSocket = bluetoothSocket;
-            ObjectOutputStream tmpO = null;
-            ObjectInputStream tmpI = null;
-            queue = new LinkedList<>();
-            try {
-                Log.d(TAG, "Connected Thread: trying to get output and input streams of the socket");
-                tmpO = new ObjectOutputStream(mBluetoothSocket.getOutputStream());
-                tmpI = new ObjectInputStream(mBluetoothSocket.getInputStream());
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            outputStream = tmpO;
-            inputStream = tmpI;
-        }
-
-        public void run(){
-            while (true){
-                try {
-                    Object o = inputStream.readObject();
-                    if (o instanceof ChatMessage) {
-                        Message m = new Message();
-                        m.obj = o;
-                        mUIHandler.dispatchMessage(m);
-                    }
-                    Log.d(TAG, "Inputstream = " + o.toString());
-                } catch (IOException e) {
-                    break;
-                } catch (ClassNotFoundException e) {
-                    Log.wtf(TAG, e);
-                }
-                synchronized (queueLock) {
-                    while (!queue.isEmpty()) {
-                        write(queue.remove(0));
-                    }
-                }
-                try {
-                    Thread.sleep(10);
-                } catch (InterruptedException e) {
-                    return;
+    private DeliveryManager getDeliveryManager(UUID userId) {
+        DeliveryManager deliveryManager = mDeliveryManagers.get(userId);
+        if (deliveryManager == null) {
+            synchronized (mDeliveryManagers) {
+                deliveryManager = mDeliveryManagers.get(userId);
+                if (deliveryManager == null) {
+                    deliveryManager = new DeliveryManager(mOutbox, mDeliveryListener, userId,
+                            mScheduler);
+                    mDeliveryManagers.put(userId, deliveryManager);
                 }
             }
         }
+        return deliveryManager;
+    }
 
-        private void addToQueue(Sendable s) {
-            synchronized (queueLock) {
-                queue.add(s);
-            }
-        }
+    /**
+     * Set where payloads streamed by peers are stored.  Takes effect with the next
+     * connection; without a sink, incoming payloads are refused.
+     *
+     * @param sink     The storage for incoming payloads.
+     * @param listener The listener to notify about incoming payloads, may be {@code null}.
+     */
+    public void setTransferSink(TransferSink sink, TransferManager.Listener listener) {
+        mTransferSink = sink;
+        mTransferListener = listener;
+    }
 
-        public int write(Sendable data){
-            Log.d(TAG, "Write: writing to outputstream :" + data.toString());
-            try {
-                outputStream.writeObject(data);
-                return 1; // if writing was successful
-            } catch (IOException e) {
-                Log.e(TAG, "Write: Error writing to outputstream :" + data.toString());
-                return 0;
-            }
+    /**
+     * Stream a large payload to a peer in the background, interleaved with chat messages.
+     * If the connection drops, sending the same source again after reconnecting resumes
+     * the transfer where it stopped.  Only a few payloads are streamed at a time, the others
+     * wait in line.
+     *
+     * @param userId The user to send the payload to.
+     * @param source The payload.
+     */
+    public void sendPayload(UUID userId, final TransferSource source) {
+        Connection connection = mConnectionManager.getConnection(userId);
+        final TransferManager transferManager =
+                connection == null ? null : mTransferManagers.get(connection);
+        if (transferManager == null) {
+            Log.e(TAG, "sendPayload: Not connected to " + userId);
+            return;
         }
 
-        public void cancel(){
+        mUploadExecutor.execute(() -> {
             try {
-                Log.d(TAG, "cancel: Closing client socket");
-                mBluetoothSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "cancelling of client socket failed!" + e.getMessage());
+                transferManager.upload(source);
+                Log.d(TAG, "sendPayload: Transfer " + source.getId() + " complete");
+            } catch (IOException | InterruptedException e) {
+                Log.e(TAG, "sendPayload: Transfer " + source.getId() + " interrupted", e);
             }
-        }
+        });
     }
 
-    private void connected(BluetoothSocket socket, BluetoothDevice device){
-        Log.d(TAG, "connected: Starting!");
-
-        mIOThread = new IOThread(socket);
-        mIOThread.start();
+    /**
+     * Send a chat message to a user.  If we have a session with the user, the message is
+     * delivered reliably: it is kept in the outbox and retransmitted until the user
+     * acknowledges it, even across reconnects.  Otherwise, it is relayed through the mesh
+     * if we have any peers at all, or kept in the outbox until the user connects.
+     *
+     * @param userId  The user the conversation is with.
+     * @param message The message.
+     */
+    public void sendMessage(UUID userId, ChatMessage message) {
+        if (mConnectionManager.getConnection(userId) != null
+                || mConnectionManager.getSessionCount() == 0) {
+            getDeliveryManager(userId).send(message);
+        } else {
+            mMeshRouter.send(message, userId);
+        }
     }
 
+    /**
+     * Send a sendable.  Chat messages go to the user whose conversation they belong to, see
+     * {@link #sendMessage(UUID, ChatMessage)}; everything else goes to all peers.
+     *
+     * @param data The sendable.
+     */
     public void write(Sendable data){
         Log.d(TAG, "write: Write called");
-        mIOThread.addToQueue(data);
+        if (data instanceof ChatMessage) {
+            ChatMessage message = (ChatMessage) data;
+            sendMessage(message.getSender(), message);
+            return;
+        }
+        for (Connection connection : mConnectionManager.getConnections()) {
+            connection.send(data);
+        }
+    }
+
+    /**
+     * Stop listening and close all sessions.  Undelivered messages stay in the
+     * outbox and are sent by the next instance.
+     */
+    public synchronized void stop(){
+        mConnectionManager.shutdown();
+        mScheduler.shutdownNow();
+        mHistorySync.shutdown();
+        mUploadExecutor.shutdownNow();
     }
 }
@@ -0,0 +1,193 @@
+package com.example.offlinemessenger;
+
+import android.os.Looper;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.example.offlinemessenger.data.ChatMessage;
+import com.example.offlinemessenger.data.MessageStore;
+
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.UUID;
+
+/**
+ * Adapter class for the chat message list.
+ *
+ * The adapter follows the {@link MessageStore} of the displayed conversation and forwards its
+ * changes as range notifications, so new or paged in messages only bind their own rows instead
+ * of redrawing the whole list.  Formatted times are cached, since scrolling through a long
+ * conversation binds the same messages over and over.
+ */
+public class ConversationAdapter extends RecyclerView.Adapter<ConversationAdapter.ViewHolder>
+        implements MessageStore.Listener {
+
+    /** Number of formatted times cached, a power of two. */
+    private static final int TIME_CACHE_SIZE = 256;
+
+    /**
+     * The views of a message row.
+     */
+    static class ViewHolder extends RecyclerView.ViewHolder {
+
+        final TextView mContent;
+        final TextView mTime;
+        final View mDelivered;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            mContent = itemView.findViewById(R.id.message_item_content);
+            mTime = itemView.findViewById(R.id.message_item_time);
+            mDelivered = itemView.findViewById(R.id.message_item_delivered);
+        }
+
+    }
+
+    /** Our layout inflater. */
+    private final LayoutInflater mInflater;
+    /** Date format instance to avoid reinstanciation */
+    private final DateFormat mDateFormat = DateFormat.getTimeInstance();
+    /** Date instance reused for formatting. */
+    private final Date mDate = new Date();
+    /** Direct mapped cache of formatted times, by timestamp in seconds. */
+    private final long[] mTimeKeys = new long[TIME_CACHE_SIZE];
+    private final String[] mTimes = new String[TIME_CACHE_SIZE];
+    /** The messages to display. */
+    private MessageStore mMessages = null;
+    /** Whether the adapter is attached to a list, and thus listening to the store. */
+    private boolean mAttached = false;
+
+    /**
+     * Create a new adapter.
+     *
+     * @param inflater The layout inflater to use.
+     */
+    public ConversationAdapter(LayoutInflater inflater) {
+        mInflater = inflater;
+        setHasStableIds(true);
+    }
+
+    /**
+     * Display the messages of another conversation.  Setting the store already displayed does
+     * nothing, since changes to it are reported by the store itself.
+     *
+     * @param messages The messages to display.
+     */
+    public void setMessages(MessageStore messages) {
+        if (messages == mMessages) {
+            return;
+        }
+        if (mMessages != null) {
+            mMessages.setListener(null);
+        }
+        mMessages = messages;
+        if (mMessages != null && mAttached) {
+            mMessages.setListener(this);
+        }
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Get the message at a position.
+     *
+     * @param position The position.
+     * @return The message.
+     */
+    public ChatMessage getItem(int position) {
+        return mMessages.get(position);
+    }
+
+    @Override
+    public int getItemCount() {
+        return mMessages == null ? 0 : mMessages.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        UUID id = getItem(position).getUUID();
+        return id.getMostSignificantBits() ^ id.getLeastSignificantBits();
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        return new ViewHolder(mInflater.inflate(R.layout.message_list_item, parent, false));
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        ChatMessage message = getItem(position);
+        holder.mContent.setText(message.getContent());
+        holder.mTime.setText(formatTime(message.getTimestamp()));
+        holder.mDelivered.setVisibility(message.isOwn() && message.isDelivered()
+                ? View.VISIBLE : View.GONE);
+    }
+
+    @Override
+    public void onAttachedToRecyclerView(@NonNull RecyclerView recyclerView) {
+        mAttached = true;
+        if (mMessages != null) {
+            mMessages.setListener(this);
+        }
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        // the store outlives the activity in the view model, do not leak it
+        mAttached = false;
+        if (mMessages != null) {
+            mMessages.setListener(null);
+        }
+    }
+
+    @Override
+    public void onInserted(int position, int count) {
+        assertMainThread();
+        notifyItemRangeInserted(position, count);
+    }
+
+    @Override
+    public void onRemoved(int position, int count) {
+        assertMainThread();
+        notifyItemRangeRemoved(position, count);
+    }
+
+    @Override
+    public void onChanged(int position, int count) {
+        assertMainThread();
+        notifyItemRangeChanged(position, count);
+    }
+
+    /**
+     * Make sure a change of the store is reported on the main thread.  The list reads the
+     * store while laying out, a change made on any other thread would race with it.
+     */
+    private static void assertMainThread() {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            throw new IllegalStateException("Message store changed off the main thread");
+        }
+    }
+
+    /**
+     * Format the time of a message, reusing the result for messages of the same second.
+     *
+     * @param timestamp The UNIX timestamp in milliseconds.
+     * @return The formatted time.
+     */
+    private String formatTime(long timestamp) {
+        long second = timestamp / 1000;
+        int slot = (int) (second & (TIME_CACHE_SIZE - 1));
+        if (mTimes[slot] == null || mTimeKeys[slot] != second) {
+            mDate.setTime(timestamp);
+            mTimeKeys[slot] = second;
+            mTimes[slot] = mDateFormat.format(mDate);
+        }
+        return mTimes[slot];
+    }
+
+}
@@ -2,9 +2,12 @@ package com.example.offlinemessenger;
 
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.lifecycle.ViewModelProviders;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 import androidx.room.Room;
 
 import android.app.Activity;
+import android.app.ActivityManager;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.content.BroadcastReceiver;
@@ -23,10 +26,8 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.EditText;
-import android.widget.ListView;
 import android.widget.Toast;
 
-import com.example.offlinemessenger.data.ChatMessage;
 import com.example.offlinemessenger.data.ChatUser;
 import com.example.offlinemessenger.data.ChatViewModel;
 import com.example.offlinemessenger.data.ChatViewModelFactory;
@@ -34,10 +35,6 @@ import com.example.offlinemessenger.data.Sendable;
 import com.example.offlinemessenger.db.AppDatabase;
 import com.example.offlinemessenger.service.BluetoothService;
 
-import java.util.LinkedList;
-import java.util.List;
-import java.util.UUID;
-
 /**
  * The app's main (starting) activity.
  */
@@ -45,17 +42,18 @@ public class MainActivity extends AppCompatActivity {
 
     BluetoothConnectionService mBtConnectionService;
 
-    private static final UUID UUID_INSECURE =
-            UUID.fromString("c199f1da-5634-44bf-ad17-394d1c186a24");
     private static final String TAG = "Main Activity";
     private static final int REQUEST_ENABLE_BLUETOOTH = 110;
     private static final int REQUEST_DISCOVER_DEVICES = 111;
+    /** Share of the app's heap limit available to cached conversations. */
+    private static final int CACHE_HEAP_FRACTION = 16;
 
-    private List<ChatMessage> mMessageList = new LinkedList<>();
     private ChatUser user = new ChatUser(Sendable.Action.NONE, "Heinz");
 
     private String mBtDeviceAddress;
-    private ListView mConversationsListView;
+    private RecyclerView mConversationsListView;
+    private ConversationAdapter mConversationAdapter;
+    private LinearLayoutManager mConversationLayout;
     private EditText mOutput;
     private BluetoothAdapter mBluetoothAdapter;
     private MediaPlayer mp;
@@ -84,15 +82,20 @@ public class MainActivity extends AppCompatActivity {
                 getApplicationContext(),
                 AppDatabase.class,
                 "offline-chat"
-        ).build();
+        ).addMigrations(AppDatabase.MIGRATIONS).addCallback(AppDatabase.CALLBACK).build();
 
         mp = MediaPlayer.create(this, Uri.parse("android.resource://" + getPackageName() + "/" + R.raw.sound11));
 
-        mViewModel = ViewModelProviders.of(this, new ChatViewModelFactory(appDB))
+        ActivityManager am = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+        long cacheBytes = am.getMemoryClass() * 1024L * 1024L / CACHE_HEAP_FRACTION;
+        mViewModel = ViewModelProviders.of(this,
+                new ChatViewModelFactory(appDB, user.getUUID(), cacheBytes))
                 .get(ChatViewModel.class);
         mViewModel.getChatMessages().observe(this, chatMessages -> {
-            mMessageList = chatMessages;
-            mConversationsListView.invalidateViews();
+            mConversationAdapter.setMessages(chatMessages);
+            if (mConversationAdapter.getItemCount() > 0) {
+                mConversationsListView.scrollToPosition(mConversationAdapter.getItemCount() - 1);
+            }
         });
     }
 
@@ -153,6 +156,13 @@ public class MainActivity extends AppCompatActivity {
         // TODO: call bindService() here
     }
 
+    @Override
+    protected void onStop() {
+        super.onStop();
+        // the process may be killed in the background, do not leave messages queued
+        mViewModel.flushPendingWrites();
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
@@ -168,6 +178,14 @@ public class MainActivity extends AppCompatActivity {
         this.unregisterReceiver(receiver1);
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (mViewModel != null) {
+            mViewModel.onTrimMemory(level);
+        }
+    }
+
     @Override
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
@@ -189,7 +207,7 @@ public class MainActivity extends AppCompatActivity {
             Toast toast = Toast.makeText(this, "Connecting to " +
                     device.toString(), Toast.LENGTH_SHORT);
             toast.show();
-            mBtConnectionService.startClient(device, UUID_INSECURE);
+            mBtConnectionService.startClient(device);
         } else {
             Toast toast = Toast.makeText(this, "Choose a device first!", Toast.LENGTH_SHORT);
             toast.show();
@@ -203,7 +221,37 @@ public class MainActivity extends AppCompatActivity {
         mOutput = findViewById(R.id.edit_text_out);
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
         mConversationsListView = findViewById(R.id.conversation_list_view);
-        mConversationsListView.setAdapter(new ConversationListAdapter(mMessageList, getLayoutInflater()));
+        mConversationLayout = new LinearLayoutManager(this);
+        mConversationLayout.setStackFromEnd(true);
+        mConversationsListView.setLayoutManager(mConversationLayout);
+        mConversationAdapter = new ConversationAdapter(getLayoutInflater());
+        mConversationAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                // keep following the conversation when new messages arrive at its end
+                int count = mConversationAdapter.getItemCount();
+                if (positionStart + itemCount == count
+                        && mConversationLayout.findLastVisibleItemPosition() >= positionStart - 1) {
+                    mConversationsListView.scrollToPosition(count - 1);
+                }
+            }
+        });
+        mConversationsListView.setAdapter(mConversationAdapter);
+        mConversationsListView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                // page in the window of the conversation when scrolling to either end
+                if (mViewModel == null) {
+                    return;
+                }
+                if (dy < 0 && mConversationLayout.findFirstVisibleItemPosition() == 0) {
+                    mViewModel.loadOlderMessages();
+                } else if (dy > 0 && mConversationLayout.findLastVisibleItemPosition()
+                        == mConversationAdapter.getItemCount() - 1) {
+                    mViewModel.loadNewerMessages();
+                }
+            }
+        });
     }
 
     /**
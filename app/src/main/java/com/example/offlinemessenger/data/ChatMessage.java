@@ -22,6 +22,8 @@ public class ChatMessage extends Sendable {
     private final UUID mId;
     /** If {@code true}, the message was sent from this device. */
     private boolean mIsOwn;
+    /** If {@code true}, the peer has acknowledged receiving this message. */
+    private transient boolean mIsDelivered;
 
     /**
      * Create a new chat message.
@@ -102,6 +104,18 @@ public class ChatMessage extends Sendable {
         return mId;
     }
 
+    /**
+     * Create a copy of this message filed under another user.  On the wire, the sender field
+     * of a message holds the user the conversation is with from the sender's point of view,
+     * i.e. the recipient, so received messages are filed under the user they came from.
+     *
+     * @param sender The user id the copy belongs to.
+     * @return The copy, with the same action, content, time and id.
+     */
+    public ChatMessage withSender(UUID sender) {
+        return new ChatMessage(getAction(), sender, mContent, mIsOwn, mTimestamp, mId);
+    }
+
     /**
      * Get the message id's hash code (for use with the list adapter)
      *
@@ -129,6 +143,24 @@ public class ChatMessage extends Sendable {
         mIsOwn = isOwn;
     }
 
+    /**
+     * Return whether the peer has acknowledged receiving this message.
+     *
+     * @return {@code true} if the message has been delivered.
+     */
+    public boolean isDelivered() {
+        return mIsDelivered;
+    }
+
+    /**
+     * Set whether the peer has acknowledged receiving this message.
+     *
+     * @param isDelivered {@code true} if the message has been delivered.
+     */
+    public void setDelivered(boolean isDelivered) {
+        mIsDelivered = isDelivered;
+    }
+
     @NonNull
     @Override
     public String toString() {
@@ -1,7 +1,7 @@
 package com.example.offlinemessenger.data;
 
-import android.os.AsyncTask;
 import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -13,14 +13,19 @@ import com.example.offlinemessenger.BluetoothConnectionService;
 import com.example.offlinemessenger.db.AppDatabase;
 import com.example.offlinemessenger.db.ChatMessageDao;
 import com.example.offlinemessenger.db.ChatMessageEntity;
+import com.example.offlinemessenger.db.ChatMessageSearchResult;
 import com.example.offlinemessenger.db.ChatUserDao;
 import com.example.offlinemessenger.db.ChatUserEntity;
+import com.example.offlinemessenger.db.ConversationDao;
+import com.example.offlinemessenger.db.ConversationEntity;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 /**
@@ -30,36 +35,97 @@ public class ChatViewModel extends ViewModel {
 
     private static final String TAG = "ChatViewModel";
 
+    /** Number of messages loaded from the database at once. */
+    public static final int PAGE_SIZE = 50;
+    /** Maximum number of messages of a conversation held in the message list. */
+    public static final int MAX_WINDOW_SIZE = 10 * PAGE_SIZE;
+    /** Number of search results loaded at once. */
+    public static final int SEARCH_PAGE_SIZE = 20;
+    /** Default byte budget of the conversation cache. */
+    public static final long DEFAULT_CACHE_BYTES = 2 * 1024 * 1024;
+
     private BluetoothConnectionService mBtConnectionService;
 
-    /** Handler for communication with the bluetooth transmission thread. */
+    /**
+     * Handler for communication with the bluetooth transmission thread.  The service posts
+     * everything to it, so all state of the view model is only touched on the main thread.
+     */
     private Handler mBtHandler;
 
-    /** A map of all chat messages from each individual user ID. */
-    private final Map<UUID, List<ChatMessage>> mAllMessages = new HashMap<>();
+    /** The loaded windows of recently shown conversations, by user ID. */
+    private final ConversationCache mCache;
 
     /** All messages from the currently displayed chat. */
-    private MutableLiveData<List<ChatMessage>> mMessages = null;
+    private MutableLiveData<MessageStore> mMessages = null;
     /** All users. */
     private MutableLiveData<List<ChatUser>> mUsers = null;
+    /** The summaries of all conversations, latest first. */
+    private MutableLiveData<List<Conversation>> mConversations = null;
     /**
      * The chat user to display messages from.  If this is {@code null}, the
      * message list will contain all messages from all users.
      */
     private ChatUser mSelectedUser = null;
+    /** The window of the selected conversation, the value of {@link #mMessages}. */
+    private MessageStore mStore = new MessageStore(MAX_WINDOW_SIZE);
+    /** The load of the selected conversation in progress, if any. */
+    private DataExecutor.Task<?> mFetchTask = null;
+    /** Messages with the selected user received while its conversation is being loaded. */
+    private final List<ChatMessage> mReceivedDuringFetch = new ArrayList<>();
+    /** The page load in progress, if any. */
+    private DataExecutor.Task<List<ChatMessage>> mPageTask = null;
+    /** Users whose session cannot take any more messages right now. */
+    private final Set<UUID> mCongestedUsers = new HashSet<>();
+    /** Whether messages to the selected user are held back by a full session. */
+    private final MutableLiveData<Boolean> mBackpressure = new MutableLiveData<>();
+    /** The results of the current search. */
+    private final MutableLiveData<List<MessageSearchResult>> mSearchResults =
+            new MutableLiveData<>();
+    /** The current search as full text query, {@code null} if there is none. */
+    private String mSearchQuery = null;
+    /** The user the current search is restricted to, {@code null} for all conversations. */
+    private UUID mSearchUser = null;
+    /** Whether the current search has more results than loaded. */
+    private boolean mHasMoreSearchResults = false;
+    /** The search page load in progress, if any. */
+    private DataExecutor.Task<List<MessageSearchResult>> mSearchTask = null;
 
     /** The user DAO. */
     private ChatUserDao mUserDao;
     /** The message DAO. */
     private ChatMessageDao mMessageDao;
+    /** The conversation DAO. */
+    private ConversationDao mConversationDao;
+    /** Runs the database work off the main thread. */
+    private final DataExecutor mExecutor = new DataExecutor();
+    /** Queue for new users and messages, committed in batches. */
+    private final MessageWriter mWriter;
 
     /**
      * Build a new Chat View Model.
      *
-     * @param database The app database.
+     * @param database    The app database.
+     * @param localUserId The id of the local user, used as our address in the mesh.
+     * @param cacheBytes  The byte budget for conversations kept in memory.
      */
-    ChatViewModel(AppDatabase database) {
-        mBtHandler = new Handler(msg -> {
+    ChatViewModel(AppDatabase database, UUID localUserId, long cacheBytes) {
+        mCache = new ConversationCache(cacheBytes);
+        mBtHandler = new Handler(Looper.getMainLooper(), msg -> {
+            if (msg.what == BluetoothConnectionService.MSG_DELIVERED) {
+                onMessageDelivered((UUID) msg.obj);
+                return true;
+            }
+
+            if (msg.what == BluetoothConnectionService.MSG_BACKPRESSURE) {
+                onBackpressureChanged((UUID) msg.obj, msg.arg1 != 0);
+                return true;
+            }
+
+            if (msg.what == BluetoothConnectionService.MSG_HISTORY_SYNCED) {
+                onHistorySynced((UUID) msg.obj);
+                return true;
+            }
+
             if (msg.obj instanceof Sendable) {
                 onSendableReceived((Sendable) msg.obj);
                 return true;
@@ -67,9 +133,16 @@ public class ChatViewModel extends ViewModel {
 
             return false;
         });
-        mBtConnectionService = new BluetoothConnectionService(mBtHandler);
+        mBtConnectionService = new BluetoothConnectionService(
+                mBtHandler,
+                new MessageOutbox(database.getOutboxDao()),
+                new MessageHistory(database.getChatMessageDao(), database.getChatUserDao()),
+                localUserId
+        );
         mUserDao = database.getChatUserDao();
         mMessageDao = database.getChatMessageDao();
+        mConversationDao = database.getConversationDao();
+        mWriter = new MessageWriter(database, mExecutor);
     }
 
     /**
@@ -80,26 +153,183 @@ public class ChatViewModel extends ViewModel {
     public LiveData<List<ChatUser>> getChatUsers() {
         if (mUsers == null) {
             mUsers = new MutableLiveData<>();
-            new UserFetchTask().execute();
+            mExecutor.read("fetchUsers", this::fetchUsers, this::onUsersFetched);
         }
 
         return mUsers;
     }
 
     /**
-     * Return a list of all messages stored in the database.
+     * Return the summaries of all conversations, the one with the latest message first.
+     * They are loaded on the first call and reloaded by {@link #loadConversations()}.
+     *
+     * @return The conversation list.
+     */
+    public LiveData<List<Conversation>> getConversations() {
+        if (mConversations == null) {
+            mConversations = new MutableLiveData<>();
+            loadConversations();
+        }
+
+        return mConversations;
+    }
+
+    /**
+     * Reload the conversation summaries, e.g. when the overview is shown again.  This only
+     * reads the conversations table, which the database keeps up to date with the messages.
+     */
+    public void loadConversations() {
+        if (mConversations == null) {
+            getConversations();
+            return;
+        }
+        mExecutor.read("fetchConversations", this::fetchConversations, mConversations::setValue);
+    }
+
+    /**
+     * Return the messages of the selected conversation.  Only a window of at most
+     * {@link #MAX_WINDOW_SIZE} messages is loaded, starting with the latest
+     * {@link #PAGE_SIZE}; it is extended by {@link #loadOlderMessages()} and
+     * {@link #loadNewerMessages()}.  The store reports changes within the window to its
+     * listener; a new value is only set when it is replaced by another conversation.
      *
      * @return The message list.
      */
-    public LiveData<List<ChatMessage>> getChatMessages() {
+    public LiveData<MessageStore> getChatMessages() {
         if (mMessages == null) {
             mMessages = new MutableLiveData<>();
-            new MessageFetchTask().execute();
+            loadConversation();
         }
 
         return mMessages;
     }
 
+    /**
+     * Extend the message list by a page of older messages of the selected conversation,
+     * e.g. when the user scrolls to its top.  If the list grows beyond
+     * {@link #MAX_WINDOW_SIZE}, the newest messages are dropped from it.
+     */
+    public void loadOlderMessages() {
+        if (mSelectedUser == null || mPageTask != null || !mStore.hasOlder() || mStore.isEmpty()) {
+            return;
+        }
+        loadPage(mStore.get(0), true);
+    }
+
+    /**
+     * Extend the message list by a page of newer messages of the selected conversation,
+     * after older messages have pushed them out of the window.
+     */
+    public void loadNewerMessages() {
+        if (mSelectedUser == null || mPageTask != null || !mStore.hasNewer() || mStore.isEmpty()) {
+            return;
+        }
+        loadPage(mStore.get(mStore.size() - 1), false);
+    }
+
+    /**
+     * Return whether the selected conversation has messages older than the message list.
+     *
+     * @return {@code true} if {@link #loadOlderMessages()} can load more.
+     */
+    public boolean hasOlderMessages() {
+        return mStore.hasOlder();
+    }
+
+    /**
+     * Return whether the selected conversation has messages newer than the message list.
+     *
+     * @return {@code true} if {@link #loadNewerMessages()} can load more.
+     */
+    public boolean hasNewerMessages() {
+        return mStore.hasNewer();
+    }
+
+    /**
+     * Return whether messages to the selected user are currently held back because the
+     * session with the user is congested.  Messages sent meanwhile are kept in the outbox and
+     * delivered once it drains, so the UI may want to indicate the delay or slow down.
+     *
+     * @return {@code true} while the session is congested.
+     */
+    public LiveData<Boolean> getBackpressure() {
+        return mBackpressure;
+    }
+
+    /**
+     * Return the results of the search started by {@link #searchMessages(String, boolean)},
+     * best matches first.
+     *
+     * @return The search results.
+     */
+    public LiveData<List<MessageSearchResult>> getSearchResults() {
+        return mSearchResults;
+    }
+
+    /**
+     * Search the message history for messages containing all words of a text, the last one
+     * as prefix so results show up while typing.  The first {@link #SEARCH_PAGE_SIZE} results
+     * replace the search results, a search still running is cancelled.
+     *
+     * @param text         The text to search for.
+     * @param selectedOnly {@code true} to only search the conversation with the selected user.
+     */
+    public void searchMessages(String text, boolean selectedOnly) {
+        if (mSearchTask != null) {
+            mSearchTask.cancel();
+            mSearchTask = null;
+        }
+        mSearchQuery = toMatchQuery(text);
+        mSearchUser = selectedOnly && mSelectedUser != null ? mSelectedUser.getUUID() : null;
+        mHasMoreSearchResults = false;
+        if (mSearchQuery == null) {
+            mSearchResults.setValue(new ArrayList<MessageSearchResult>());
+            return;
+        }
+        loadSearchPage(new ArrayList<MessageSearchResult>());
+    }
+
+    /**
+     * Append the next page of results of the current search.
+     */
+    public void loadMoreSearchResults() {
+        List<MessageSearchResult> results = mSearchResults.getValue();
+        if (mSearchQuery == null || mSearchTask != null || !mHasMoreSearchResults
+                || results == null) {
+            return;
+        }
+        loadSearchPage(results);
+    }
+
+    /**
+     * Return whether the current search has more results than loaded.
+     *
+     * @return {@code true} if {@link #loadMoreSearchResults()} can load more.
+     */
+    public boolean hasMoreSearchResults() {
+        return mHasMoreSearchResults;
+    }
+
+    /**
+     * Return the cache of recently shown conversations, e.g. for its statistics.
+     *
+     * @return The conversation cache.
+     */
+    public ConversationCache getConversationCache() {
+        return mCache;
+    }
+
+    /**
+     * Release cached conversations when the system runs low on memory.  To be called from
+     * {@link android.content.ComponentCallbacks2#onTrimMemory(int)} on the main thread.
+     *
+     * @param level The trim level.
+     */
+    public void onTrimMemory(int level) {
+        mCache.onTrimMemory(level);
+        Log.d(TAG, "onTrimMemory(" + level + "): " + mCache);
+    }
+
     /**
      * Add one or more users to the user list and cause all view components to update accordingly.
      *
@@ -112,26 +342,45 @@ public class ChatViewModel extends ViewModel {
 
         List<ChatUser> currentUsers = mUsers.getValue();
         if (currentUsers == null) {
-            currentUsers = new LinkedList<>();
+            currentUsers = new ArrayList<>();
         }
 
         currentUsers.addAll(Arrays.asList(users));
         mUsers.setValue(currentUsers);
-        new UserStoreTask().execute(users);
+        mWriter.write(users);
     }
 
     /**
      * Update the message list to only contain messages from the specified user.
-     * This method MUST be called after {@link #getChatMessages()} because
+     * A conversation that has been shown before is displayed right away, any other one is
+     * loaded from the database on demand, cancelling the loads for previously selected users.
      *
      * @param newUser The new user to display messages from.
      */
     public void changeChatUser(ChatUser newUser) {
-        List<ChatMessage> messages = mAllMessages.get(newUser.getUUID());
-        if (messages == null) {
-            mMessages.setValue(new LinkedList<>());
+        if (mSelectedUser != null) {
+            if (mStore.hasNewer()) {
+                // the cached window does not end with the latest messages anymore
+                mCache.remove(mSelectedUser.getUUID());
+            }
+            // messages received while the conversation was shown have been read as well
+            markConversationRead(mSelectedUser.getUUID());
+        }
+        markConversationRead(newUser.getUUID());
+        mSelectedUser = newUser;
+        mBackpressure.setValue(mCongestedUsers.contains(newUser.getUUID()));
+        if (mMessages == null) {
+            getChatMessages();
+            return;
+        }
+
+        MessageStore store = mCache.get(newUser.getUUID());
+        if (store == null) {
+            loadConversation();
         } else {
-            mMessages.setValue(messages);
+            cancelLoads();
+            mStore = store;
+            mMessages.setValue(store);
         }
     }
 
@@ -142,19 +391,25 @@ public class ChatViewModel extends ViewModel {
 
         List<ChatUser> currentUsers = mUsers.getValue();
         if (currentUsers == null) {
-            currentUsers = new LinkedList<>();
+            currentUsers = new ArrayList<>();
         }
 
         currentUsers.removeAll(Arrays.asList(users));
         mUsers.setValue(currentUsers);
     }
 
+    /**
+     * Send a message to the currently selected user, over the session with that user if
+     * there is one.
+     *
+     * @param content The message content.
+     */
     public void sendMessage(String content) {
-        if (mBtConnectionService == null) {
+        if (mBtConnectionService == null || mSelectedUser == null) {
             return;
         }
         ChatMessage msg = new ChatMessage(mSelectedUser.getUUID(), content, true);
-        mBtConnectionService.write(msg);
+        mBtConnectionService.sendMessage(mSelectedUser.getUUID(), msg);
         addChatMessages(msg);
     }
 
@@ -169,14 +424,21 @@ public class ChatViewModel extends ViewModel {
             getChatMessages();
         }
 
-        List<ChatMessage> messages = mMessages.getValue();
-        if (messages == null) {
-            messages = new LinkedList<>();
+        for (ChatMessage msg : msgs) {
+            if (mFetchTask != null && mSelectedUser != null
+                    && mSelectedUser.getUUID().equals(msg.getSender())) {
+                // the load may have read the conversation before this message was committed
+                mReceivedDuringFetch.add(msg);
+            }
+            // the sender is the user the conversation is with
+            MessageStore store = mCache.peek(msg.getSender());
+            // while newer pages are out of the window, new messages are only paged in later
+            if (store != null && !store.hasNewer()) {
+                store.add(msg);
+            }
         }
-
-        messages.addAll(Arrays.asList(msgs));
-        mMessages.setValue(messages);
-        new MessageStoreTask().execute(msgs);
+        mCache.trim();
+        mWriter.write(msgs);
     }
 
     /**
@@ -238,124 +500,366 @@ public class ChatViewModel extends ViewModel {
     }
 
     /**
-     * Async Task for retrieving all users from the database
-     * and converting them to data models usable by the UI.
+     * Callback when the peer has acknowledged one of our messages.
+     *
+     * @param messageId The message id.
      */
-    @SuppressWarnings("StaticFieldLeak")
-    private class UserFetchTask extends AsyncTask<Void, Void, List<ChatUser>> {
-
-        @Override
-        public List<ChatUser> doInBackground(Void... params) {
-            List<ChatUser> users = new LinkedList<>();
-            for (ChatUserEntity entity : mUserDao.getAll()) {
-                users.add(new ChatUser(
-                        Sendable.Action.NONE,
-                        entity.name,
-                        UUID.fromString(entity.id)
-                ));
+    private void onMessageDelivered(final UUID messageId) {
+        // commit the queued messages first, they are written on the same thread
+        mWriter.flush();
+        mExecutor.write("markDelivered", () -> {
+            mMessageDao.markDelivered(messageId);
+            return null;
+        }, null);
+
+        // own messages are appended, so search from the newest one
+        for (int i = mStore.size() - 1; i >= 0; i--) {
+            ChatMessage m = mStore.get(i);
+            if (m.getUUID().equals(messageId)) {
+                m.setDelivered(true);
+                mStore.notifyChanged(i);
+                return;
             }
-
-            return users;
         }
+    }
 
-        public void onPostExecute(List<ChatUser> users) {
-            List<ChatUser> currentUsers = mUsers.getValue();
-            if (currentUsers != null) {
-                currentUsers.addAll(users);
-            } else {
-                currentUsers = users;
-            }
-
-            mUsers.setValue(currentUsers);
+    /**
+     * Callback when the session with a user has filled up or drained again.
+     *
+     * @param userId    The user.
+     * @param congested {@code true} if the session is full.
+     */
+    private void onBackpressureChanged(UUID userId, boolean congested) {
+        if (congested) {
+            mCongestedUsers.add(userId);
+        } else {
+            mCongestedUsers.remove(userId);
+        }
+        if (mSelectedUser != null && mSelectedUser.getUUID().equals(userId)) {
+            mBackpressure.setValue(congested);
         }
+    }
 
+    /**
+     * Callback when messages missed while disconnected have been stored by the history sync.
+     *
+     * @param userId The user the messages belong to.
+     */
+    private void onHistorySynced(UUID userId) {
+        if (mMessages != null && mSelectedUser != null && mSelectedUser.getUUID().equals(userId)) {
+            loadConversation();
+        } else {
+            mCache.remove(userId);
+        }
     }
 
     /**
-     * Async Task for retrieving all messages from the database
-     * and converting them to data models usable by the UI.
+     * Load the latest page of the selected conversation, replacing the message list once
+     * it is loaded.  Loads still running for a previous selection are cancelled.
+     *
+     * The page is read once the messages queued so far are committed, and messages received
+     * while it loads are added to it afterwards, so the list misses none of them.
      */
-    @SuppressWarnings("StaticFieldLeak")
-    private class MessageFetchTask extends AsyncTask<Void, Void, Map<UUID, List<ChatMessage>>> {
+    private void loadConversation() {
+        cancelLoads();
+        final ChatUser user = mSelectedUser;
+        // commit the queued messages first, and wait on the writer thread until they are
+        mWriter.flush();
+        mFetchTask = mExecutor.write("awaitCommit", () -> null, ignored -> {
+            mFetchTask = mExecutor.read("fetchConversation", () -> fetchConversation(user),
+                    store -> {
+                        mFetchTask = null;
+                        addReceivedDuringFetch(store);
+                        if (user != null) {
+                            mCache.put(user.getUUID(), store);
+                        }
+                        mStore = store;
+                        mMessages.setValue(store);
+                    });
+        });
+    }
 
-        @Override
-        public Map<UUID, List<ChatMessage>> doInBackground(Void... params) {
-            Map<UUID, List<ChatMessage>> allMessages = new HashMap<>();
-            for (ChatMessageEntity entity : mMessageDao.getAll()) {
-                UUID userId = UUID.fromString(entity.userId);
-                List<ChatMessage> messages = allMessages.get(userId);
-                if (messages == null) {
-                    messages = new LinkedList<>();
-                    allMessages.put(userId, messages);
-                }
+    /**
+     * Add the messages received while a conversation was loading to it, unless the load has
+     * read them from the database already.
+     *
+     * @param store The loaded conversation.
+     */
+    private void addReceivedDuringFetch(MessageStore store) {
+        Set<UUID> loaded = new HashSet<>();
+        for (int i = 0; i < store.size(); i++) {
+            loaded.add(store.get(i).getUUID());
+        }
+        for (ChatMessage msg : mReceivedDuringFetch) {
+            if (!loaded.contains(msg.getUUID())) {
+                store.add(msg);
+            }
+        }
+        mReceivedDuringFetch.clear();
+    }
 
-                messages.add(new ChatMessage(
-                        Sendable.Action.ADD,
-                        UUID.fromString(entity.userId),
-                        entity.content,
-                        entity.isOwn,
-                        entity.timestamp,
-                        UUID.fromString(entity.id)
-                ));
+    /**
+     * Mark the conversation with a user as read up to its latest message, and reload the
+     * conversation summaries if they are shown.
+     *
+     * @param userId The user.
+     */
+    private void markConversationRead(final UUID userId) {
+        // commit the queued messages first, they are written on the same thread
+        mWriter.flush();
+        mExecutor.write("markRead", () -> {
+            mConversationDao.markRead(userId);
+            return null;
+        }, result -> {
+            if (mConversations != null) {
+                loadConversations();
             }
+        });
+    }
 
-            return allMessages;
-        }
+    /**
+     * Extend the window of the selected conversation by one page of older or newer messages,
+     * found by their (timestamp, id) key relative to the window's edge.
+     *
+     * @param cursor The first message of the window when loading older messages,
+     *               the last one when loading newer messages.
+     * @param older  {@code true} to load the page before the cursor.
+     */
+    private void loadPage(final ChatMessage cursor, final boolean older) {
+        final UUID userId = mSelectedUser.getUUID();
+        final UUID cursorId = cursor.getUUID();
+        mPageTask = mExecutor.read(older ? "fetchOlderPage" : "fetchNewerPage", () -> {
+            if (older) {
+                return toChatMessages(mMessageDao.getPageBefore(
+                        userId, cursor.getTimestamp(), cursorId, PAGE_SIZE), true);
+            }
+            return toChatMessages(mMessageDao.getPageAfter(
+                    userId, cursor.getTimestamp(), cursorId, PAGE_SIZE), false);
+        }, page -> {
+            mPageTask = null;
+            // the store drops the far end of the window, it is paged in again when scrolling back
+            if (older) {
+                mStore.setHasOlder(page.size() == PAGE_SIZE);
+                mStore.prepend(page);
+            } else {
+                mStore.setHasNewer(page.size() == PAGE_SIZE);
+                mStore.append(page);
+            }
+            mCache.trim();
+        });
+    }
 
-        @Override
-        public void onPostExecute(Map<UUID, List<ChatMessage>> data) {
-            if (mSelectedUser == null) {
-                mMessages.setValue(new LinkedList<>());
+    /**
+     * Load the page of search results following the ones loaded so far.
+     *
+     * @param results The results loaded so far, the page is appended to them.
+     */
+    private void loadSearchPage(final List<MessageSearchResult> results) {
+        final String query = mSearchQuery;
+        final UUID userId = mSearchUser;
+        // the last result is the cursor, the ranking has no ties since ids are unique
+        final MessageSearchResult last = results.isEmpty()
+                ? null : results.get(results.size() - 1);
+        mSearchTask = mExecutor.read("search", () -> {
+            List<ChatMessageSearchResult> rows;
+            if (last == null) {
+                rows = userId == null
+                        ? mMessageDao.search(query, SEARCH_PAGE_SIZE)
+                        : mMessageDao.searchFromUser(userId, query, SEARCH_PAGE_SIZE);
             } else {
-                List<ChatMessage> messages = data.get(mSelectedUser.getUUID());
-                if (messages == null) {
-                    mMessages.setValue(new LinkedList<>());
-                } else {
-                    mMessages.setValue(messages);
-                }
+                ChatMessage m = last.getMessage();
+                rows = userId == null
+                        ? mMessageDao.searchAfter(query, last.getHits(), m.getTimestamp(),
+                        m.getUUID(), SEARCH_PAGE_SIZE)
+                        : mMessageDao.searchFromUserAfter(userId, query, last.getHits(),
+                        m.getTimestamp(), m.getUUID(), SEARCH_PAGE_SIZE);
             }
+            List<MessageSearchResult> page = new ArrayList<>(rows.size());
+            for (ChatMessageSearchResult row : rows) {
+                page.add(new MessageSearchResult(toChatMessage(row.message), row.snippet,
+                        row.hits));
+            }
+            return page;
+        }, page -> {
+            mSearchTask = null;
+            mHasMoreSearchResults = page.size() == SEARCH_PAGE_SIZE;
+            results.addAll(page);
+            mSearchResults.setValue(results);
+        });
+    }
+
+    /**
+     * Cancel all loads for the message list.  Tasks still queued never touch the database,
+     * and the results of a running one are dropped.
+     */
+    private void cancelLoads() {
+        if (mFetchTask != null) {
+            mFetchTask.cancel();
+            mFetchTask = null;
         }
+        mReceivedDuringFetch.clear();
+        if (mPageTask != null) {
+            mPageTask.cancel();
+            mPageTask = null;
+        }
+    }
 
+    /**
+     * Load all users from the database.  Runs on a reader thread.
+     *
+     * @return The users.
+     */
+    private List<ChatUser> fetchUsers() {
+        List<ChatUser> users = new ArrayList<>();
+        for (ChatUserEntity entity : mUserDao.getAll()) {
+            users.add(new ChatUser(
+                    Sendable.Action.NONE,
+                    entity.name,
+                    entity.id
+            ));
+        }
+        return users;
     }
 
-    @SuppressWarnings("StaticFieldLeak")
-    private class MessageStoreTask extends AsyncTask<ChatMessage, Void, Void> {
+    /**
+     * Load the summaries of all conversations from the database.  Runs on a reader thread.
+     *
+     * @return The conversations, latest first.
+     */
+    private List<Conversation> fetchConversations() {
+        List<ConversationEntity> entities = mConversationDao.getAll();
+        List<Conversation> conversations = new ArrayList<>(entities.size());
+        for (ConversationEntity entity : entities) {
+            conversations.add(new Conversation(
+                    entity.userId,
+                    entity.preview,
+                    entity.lastTimestamp,
+                    entity.unreadCount,
+                    entity.messageCount
+            ));
+        }
+        return conversations;
+    }
 
-        @Override
-        public Void doInBackground(ChatMessage... messages) {
-            ChatMessageEntity[] entities = new ChatMessageEntity[messages.length];
-            int i = 0;
-            for (ChatMessage m : messages) {
-                entities[i] = new ChatMessageEntity();
-                entities[i].id = m.getUUID().toString();
-                entities[i].userId = m.getSender().toString();
-                entities[i].content = m.getContent();
-                entities[i++].timestamp = m.getTimestamp();
-            }
+    /**
+     * Callback when the users have been loaded.
+     *
+     * @param users The users.
+     */
+    private void onUsersFetched(List<ChatUser> users) {
+        List<ChatUser> currentUsers = mUsers.getValue();
+        if (currentUsers != null) {
+            currentUsers.addAll(users);
+        } else {
+            currentUsers = users;
+        }
 
-            mMessageDao.insertAll(entities);
+        mUsers.setValue(currentUsers);
+    }
 
-            return null;
+    /**
+     * Load the latest page of a conversation.  Runs on a reader thread.
+     *
+     * @param user The user the conversation is with, or {@code null}.
+     * @return The window of the conversation.
+     */
+    private MessageStore fetchConversation(ChatUser user) {
+        MessageStore store = new MessageStore(MAX_WINDOW_SIZE);
+        if (user == null) {
+            return store;
         }
-    }
 
-    @SuppressWarnings("StaticFieldLeak")
-    private class UserStoreTask extends AsyncTask<ChatUser, Void, Void> {
+        List<ChatMessageEntity> entities =
+                mMessageDao.getLatestFromUser(user.getUUID(), PAGE_SIZE);
+        store.append(toChatMessages(entities, true));
+        store.setHasOlder(entities.size() == PAGE_SIZE);
+        return store;
+    }
 
-        @Override
-        public Void doInBackground(ChatUser... users) {
-            ChatUserEntity[] entities = new ChatUserEntity[users.length];
-            int i = 0;
-            for (ChatUser m : users) {
-                entities[i] = new ChatUserEntity();
-                entities[i].id = m.getUUID().toString();
-                entities[i++].name = m.getName();
+    /**
+     * Build a full text query matching all words of a text, the last one as prefix.
+     * Every word is quoted, so the text cannot inject query operators.
+     *
+     * @param text The text typed by the user.
+     * @return The query, or {@code null} if the text contains no words.
+     */
+    private static String toMatchQuery(String text) {
+        StringBuilder query = new StringBuilder();
+        String[] words = text == null ? new String[0] : text.trim().split("\\s+");
+        for (int i = 0; i < words.length; i++) {
+            String word = words[i].replace("\"", "");
+            if (word.isEmpty()) {
+                continue;
             }
+            if (query.length() > 0) {
+                query.append(' ');
+            }
+            query.append('"').append(word).append(i == words.length - 1 ? "*\"" : "\"");
+        }
+        return query.length() == 0 ? null : query.toString();
+    }
 
-            mUserDao.insertAll(entities);
-
-            return null;
+    /**
+     * Convert a page of database rows to chat messages.
+     *
+     * @param entities    The database rows.
+     * @param newestFirst Whether the rows are ordered from newest to oldest.
+     * @return The chat messages, oldest first.
+     */
+    private static List<ChatMessage> toChatMessages(List<ChatMessageEntity> entities,
+                                                    boolean newestFirst) {
+        List<ChatMessage> messages = new ArrayList<>(entities.size());
+        for (ChatMessageEntity entity : entities) {
+            messages.add(toChatMessage(entity));
+        }
+        if (newestFirst) {
+            Collections.reverse(messages);
         }
+        return messages;
+    }
+
+    /**
+     * Convert a database row to a chat message.
+     *
+     * @param entity The database row.
+     * @return The chat message.
+     */
+    private static ChatMessage toChatMessage(ChatMessageEntity entity) {
+        ChatMessage message = new ChatMessage(
+                Sendable.Action.ADD,
+                entity.userId,
+                entity.content,
+                entity.isOwn,
+                entity.timestamp,
+                entity.id
+        );
+        message.setDelivered(entity.delivered);
+        return message;
+    }
+
+    /**
+     * Commit queued users and messages right away, e.g. when the app goes to the background
+     * and may be killed.
+     */
+    public void flushPendingWrites() {
+        mWriter.flush();
+    }
+
+    /**
+     * Return the queue and run times of the database work, by task name.
+     *
+     * @return The task statistics.
+     */
+    public Map<String, DataExecutor.TaskStats> getTaskStats() {
+        return mExecutor.getStats();
+    }
+
+    @Override
+    protected void onCleared() {
+        mBtConnectionService.stop();
+        cancelLoads();
+        mWriter.flush();
+        mExecutor.shutdown();
     }
 
 }
@@ -6,12 +6,22 @@ import androidx.lifecycle.ViewModelProvider;
 
 import com.example.offlinemessenger.db.AppDatabase;
 
+import java.util.UUID;
+
 public class ChatViewModelFactory implements ViewModelProvider.Factory {
 
     private final AppDatabase mAppDb;
+    private final UUID mLocalUserId;
+    private final long mCacheBytes;
+
+    public ChatViewModelFactory(AppDatabase db, UUID localUserId) {
+        this(db, localUserId, ChatViewModel.DEFAULT_CACHE_BYTES);
+    }
 
-    public ChatViewModelFactory(AppDatabase db) {
+    public ChatViewModelFactory(AppDatabase db, UUID localUserId, long cacheBytes) {
         mAppDb = db;
+        mLocalUserId = localUserId;
+        mCacheBytes = cacheBytes;
     }
 
     @NonNull
@@ -19,7 +29,7 @@ public class ChatViewModelFactory implements ViewModelProvider.Factory {
     @SuppressWarnings("unchecked")
     public <T extends ViewModel> T create(@NonNull Class<T> modelClass) {
         if (modelClass.isAssignableFrom(ChatViewModel.class)) {
-            return (T) new ChatViewModel(mAppDb);
+            return (T) new ChatViewModel(mAppDb, mLocalUserId, mCacheBytes);
         } else {
             throw new IllegalArgumentException("Invalid ViewModel class");
         }
@@ -0,0 +1,79 @@
+package com.example.offlinemessenger.data;
+
+import java.util.UUID;
+
+/**
+ * Summary of the conversation with a user, for the conversation overview.
+ */
+public class Conversation {
+
+    private final UUID mUserId;
+    private final String mPreview;
+    private final long mLastTimestamp;
+    private final int mUnreadCount;
+    private final int mMessageCount;
+
+    /**
+     * Create a new conversation summary.
+     *
+     * @param userId        The user the conversation is with.
+     * @param preview       The beginning of the latest message.
+     * @param lastTimestamp The UNIX timestamp in milliseconds of the latest message.
+     * @param unreadCount   The number of unread messages.
+     * @param messageCount  The number of messages.
+     */
+    public Conversation(UUID userId, String preview, long lastTimestamp, int unreadCount,
+                        int messageCount) {
+        mUserId = userId;
+        mPreview = preview;
+        mLastTimestamp = lastTimestamp;
+        mUnreadCount = unreadCount;
+        mMessageCount = messageCount;
+    }
+
+    /**
+     * Get the id of the user the conversation is with.
+     *
+     * @return The user id.
+     */
+    public UUID getUserId() {
+        return mUserId;
+    }
+
+    /**
+     * Get the beginning of the latest message.
+     *
+     * @return The preview.
+     */
+    public String getPreview() {
+        return mPreview;
+    }
+
+    /**
+     * Get the time of the latest message.
+     *
+     * @return The UNIX timestamp in milliseconds.
+     */
+    public long getLastTimestamp() {
+        return mLastTimestamp;
+    }
+
+    /**
+     * Get the number of messages received since the conversation was last opened.
+     *
+     * @return The unread count.
+     */
+    public int getUnreadCount() {
+        return mUnreadCount;
+    }
+
+    /**
+     * Get the number of messages in the conversation.
+     *
+     * @return The message count.
+     */
+    public int getMessageCount() {
+        return mMessageCount;
+    }
+
+}
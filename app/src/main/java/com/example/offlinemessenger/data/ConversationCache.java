@@ -0,0 +1,206 @@
+package com.example.offlinemessenger.data;
+
+import android.content.ComponentCallbacks2;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The loaded windows of recently shown conversations, by user ID.
+ *
+ * The cache holds as many conversations as fit into a byte budget, estimated from the content
+ * lengths of their messages.  Since the windows keep growing while they are shown, the budget
+ * is enforced on {@link #put(UUID, MessageStore)} and {@link #trim()}, by evicting the least
+ * recently used conversations.  The most recently used one, normally the conversation on
+ * screen, is never evicted, so it may exceed the budget on its own.
+ *
+ * Not thread safe; the view model only uses it on the main thread.
+ */
+public class ConversationCache {
+
+    private final long mMaxBytes;
+    /** The cached windows, from least to most recently used. */
+    private final LinkedHashMap<UUID, MessageStore> mStores = new LinkedHashMap<>();
+
+    private int mHits = 0;
+    private int mMisses = 0;
+    private int mEvictions = 0;
+
+    /**
+     * Create an empty cache.
+     *
+     * @param maxBytes The byte budget for all cached windows.
+     */
+    public ConversationCache(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must not be negative");
+        }
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Get the window of a conversation and mark it as the most recently used one.
+     *
+     * @param userId The user the conversation is with.
+     * @return The window, or {@code null} if it is not cached.
+     */
+    public MessageStore get(UUID userId) {
+        MessageStore store = mStores.remove(userId);
+        if (store == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        mStores.put(userId, store);
+        return store;
+    }
+
+    /**
+     * Get the window of a conversation without affecting the eviction order or the
+     * statistics, e.g. to add a message to a conversation in the background.
+     *
+     * @param userId The user the conversation is with.
+     * @return The window, or {@code null} if it is not cached.
+     */
+    public MessageStore peek(UUID userId) {
+        return mStores.get(userId);
+    }
+
+    /**
+     * Cache the window of a conversation as the most recently used one, evicting others
+     * to stay within the budget.
+     *
+     * @param userId The user the conversation is with.
+     * @param store  The window.
+     */
+    public void put(UUID userId, MessageStore store) {
+        mStores.remove(userId);
+        mStores.put(userId, store);
+        trim();
+    }
+
+    /**
+     * Drop the window of a conversation.
+     *
+     * @param userId The user the conversation is with.
+     */
+    public void remove(UUID userId) {
+        mStores.remove(userId);
+    }
+
+    /**
+     * Evict least recently used conversations until the cache is within its budget again,
+     * after cached windows have grown.
+     */
+    public void trim() {
+        trimTo(mMaxBytes);
+    }
+
+    /**
+     * Release memory as requested by {@link ComponentCallbacks2#onTrimMemory(int)}.  The
+     * more pressing the level, the smaller the share of the budget the cache shrinks to; once
+     * the app is in the background and about to be killed, only the conversation shown last
+     * is kept.
+     *
+     * @param level The trim level.
+     */
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimTo(0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            trimTo(mMaxBytes / 4);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimTo(mMaxBytes / 2);
+        } else if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            trimTo(mMaxBytes * 3 / 4);
+        }
+    }
+
+    /**
+     * Get the number of cached conversations.
+     *
+     * @return The conversation count.
+     */
+    public int size() {
+        return mStores.size();
+    }
+
+    /**
+     * Get the estimated heap size of all cached windows.
+     *
+     * @return The size in bytes.
+     */
+    public long getEstimatedBytes() {
+        long bytes = 0;
+        for (MessageStore store : mStores.values()) {
+            bytes += store.getEstimatedBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Get the byte budget.
+     *
+     * @return The budget in bytes.
+     */
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * Get the number of lookups through {@link #get(UUID)} that found the conversation.
+     *
+     * @return The hit count.
+     */
+    public int getHitCount() {
+        return mHits;
+    }
+
+    /**
+     * Get the number of lookups through {@link #get(UUID)} that had to load the conversation.
+     *
+     * @return The miss count.
+     */
+    public int getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * Get the number of conversations evicted to stay within the budget.
+     *
+     * @return The eviction count.
+     */
+    public int getEvictionCount() {
+        return mEvictions;
+    }
+
+    @Override
+    public String toString() {
+        return "ConversationCache{conversations=" + mStores.size()
+                + ", bytes=" + getEstimatedBytes() + "/" + mMaxBytes
+                + ", hits=" + mHits
+                + ", misses=" + mMisses
+                + ", evictions=" + mEvictions + "}";
+    }
+
+    /**
+     * Evict least recently used conversations, all but the most recently used one at most,
+     * until the estimated size is within a limit.
+     *
+     * @param maxBytes The limit in bytes.
+     */
+    private void trimTo(long maxBytes) {
+        long bytes = getEstimatedBytes();
+        Iterator<Map.Entry<UUID, MessageStore>> it = mStores.entrySet().iterator();
+        while (bytes > maxBytes && mStores.size() > 1) {
+            bytes -= it.next().getValue().getEstimatedBytes();
+            it.remove();
+            mEvictions++;
+        }
+    }
+
+}
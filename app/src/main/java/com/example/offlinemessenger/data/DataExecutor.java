@@ -0,0 +1,355 @@
+package com.example.offlinemessenger.data;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.example.offlinemessenger.net.LatencyHistogram;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background execution of database work for the data layer.
+ *
+ * Reads run on a small pool, since SQLite serves several readers at once in WAL mode, while
+ * writes run one at a time on a writer thread of their own, so a slow query never holds back
+ * a write and vice versa.  Results are delivered on the main thread, unless the task has been
+ * cancelled meanwhile.  For every task name the time spent waiting in the queue and running
+ * is recorded, see {@link #getStats()}.
+ *
+ * The executor belongs to the view model: {@link #shutdown()} cancels all pending reads,
+ * while queued writes still complete.
+ */
+public class DataExecutor {
+
+    private static final String TAG = "DataExecutor";
+
+    /** Number of reader threads. */
+    public static final int READ_THREADS = 2;
+
+    /**
+     * Callback for the result of a task, invoked on the main thread.
+     *
+     * @param <T> The result type.
+     */
+    public interface Callback<T> {
+
+        /**
+         * Called once the task has completed, unless it has been cancelled.
+         *
+         * @param result The result.
+         */
+        void onResult(T result);
+
+    }
+
+    /**
+     * Queue and run times of all tasks of the same name.
+     */
+    public static class TaskStats {
+
+        private final LatencyHistogram mQueueTime = new LatencyHistogram();
+        private final LatencyHistogram mRunTime = new LatencyHistogram();
+        private final AtomicLong mCancelled = new AtomicLong();
+        private final AtomicLong mFailed = new AtomicLong();
+
+        /**
+         * Get the times tasks have waited for a thread, from their submission or, for delayed
+         * tasks, from when they were due.
+         *
+         * @return The queue time histogram.
+         */
+        public LatencyHistogram getQueueTime() {
+            return mQueueTime;
+        }
+
+        /**
+         * Get the times tasks have run for.
+         *
+         * @return The run time histogram.
+         */
+        public LatencyHistogram getRunTime() {
+            return mRunTime;
+        }
+
+        /**
+         * Get the number of tasks cancelled, whether they had run already or not.
+         *
+         * @return The cancelled task count.
+         */
+        public long getCancelledCount() {
+            return mCancelled.get();
+        }
+
+        /**
+         * Get the number of tasks that have thrown.
+         *
+         * @return The failed task count.
+         */
+        public long getFailedCount() {
+            return mFailed.get();
+        }
+
+        @Override
+        public String toString() {
+            return "TaskStats{queue=" + mQueueTime
+                    + ", run=" + mRunTime
+                    + ", cancelled=" + mCancelled.get()
+                    + ", failed=" + mFailed.get() + "}";
+        }
+
+    }
+
+    /**
+     * A submitted task.  Cancelling it keeps it from running if it has not started yet,
+     * and its result from being delivered otherwise.
+     *
+     * @param <T> The result type.
+     */
+    public class Task<T> implements Runnable {
+
+        private final String mName;
+        private final Callable<T> mWork;
+        private final Callback<T> mCallback;
+        private final long mDueNanos;
+        private Future<?> mFuture;
+        private volatile boolean mCancelled = false;
+
+        private Task(String name, Callable<T> work, Callback<T> callback, long delayMillis) {
+            mName = name;
+            mWork = work;
+            mCallback = callback;
+            mDueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        }
+
+        /**
+         * Cancel the task.  Must be called on the main thread to be sure the result is not
+         * delivered anymore.
+         */
+        public void cancel() {
+            Future<?> future;
+            synchronized (this) {
+                if (mCancelled) {
+                    return;
+                }
+                mCancelled = true;
+                future = mFuture;
+            }
+            getStats(mName).mCancelled.incrementAndGet();
+            mPendingReads.remove(this);
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+
+        /**
+         * Return whether the task has been cancelled.
+         *
+         * @return {@code true} if cancelled.
+         */
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        @Override
+        public void run() {
+            TaskStats stats = getStats(mName);
+            long start = System.nanoTime();
+            stats.mQueueTime.record(start - mDueNanos);
+            if (mCancelled) {
+                return;
+            }
+
+            final T result;
+            try {
+                result = mWork.call();
+            } catch (Exception e) {
+                stats.mFailed.incrementAndGet();
+                Log.e(TAG, "Task " + mName + " failed", e);
+                return;
+            } finally {
+                stats.mRunTime.record(System.nanoTime() - start);
+            }
+            if (mCallback != null) {
+                mResultExecutor.execute(() -> {
+                    if (!mCancelled) {
+                        mCallback.onResult(result);
+                    }
+                });
+            }
+        }
+
+        private synchronized void setFuture(Future<?> future) {
+            mFuture = future;
+        }
+
+    }
+
+    private final ThreadPoolExecutor mReadExecutor;
+    private final ScheduledThreadPoolExecutor mWriteExecutor;
+    /** Where the callbacks run, the main thread. */
+    private final Executor mResultExecutor;
+    private final ConcurrentHashMap<String, TaskStats> mStats = new ConcurrentHashMap<>();
+    /** Reads submitted and not completed yet, to be cancelled on shutdown. */
+    private final Set<Task<?>> mPendingReads =
+            Collections.newSetFromMap(new ConcurrentHashMap<Task<?>, Boolean>());
+
+    /**
+     * Create the executor with its reader and writer threads.
+     */
+    public DataExecutor() {
+        this(new Handler(Looper.getMainLooper())::post);
+    }
+
+    /**
+     * Create the executor with its reader and writer threads, delivering results elsewhere
+     * than on the main thread, e.g. in tests without a main looper.
+     *
+     * @param resultExecutor The executor to run the callbacks on.
+     */
+    DataExecutor(Executor resultExecutor) {
+        mResultExecutor = resultExecutor;
+        mReadExecutor = new ThreadPoolExecutor(READ_THREADS, READ_THREADS,
+                0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamedThreadFactory("DataRead"));
+        mWriteExecutor = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("DataWrite"));
+    }
+
+    /**
+     * Run a query on a reader thread.
+     *
+     * @param name     The task name for the statistics.
+     * @param work     The query.
+     * @param callback The callback for the result, or {@code null}.
+     * @param <T>      The result type.
+     * @return The task, already cancelled if the executor has been shut down.
+     */
+    public <T> Task<T> read(String name, Callable<T> work, Callback<T> callback) {
+        final Task<T> task = new Task<>(name, work, callback, 0);
+        mPendingReads.add(task);
+        try {
+            task.setFuture(mReadExecutor.submit(() -> {
+                try {
+                    task.run();
+                } finally {
+                    mPendingReads.remove(task);
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            mPendingReads.remove(task);
+            task.cancel();
+        }
+        return task;
+    }
+
+    /**
+     * Run an update on the writer thread, after all writes submitted before.
+     *
+     * @param name     The task name for the statistics.
+     * @param work     The update.
+     * @param callback The callback for the result, or {@code null}.
+     * @param <T>      The result type.
+     * @return The task, already cancelled if the executor has been shut down.
+     */
+    public <T> Task<T> write(String name, Callable<T> work, Callback<T> callback) {
+        return write(name, work, callback, 0);
+    }
+
+    /**
+     * Run an update on the writer thread after a delay.
+     *
+     * @param name        The task name for the statistics.
+     * @param work        The update.
+     * @param callback    The callback for the result, or {@code null}.
+     * @param delayMillis The delay in milliseconds.
+     * @param <T>         The result type.
+     * @return The task, already cancelled if the executor has been shut down.
+     */
+    public <T> Task<T> write(String name, Callable<T> work, Callback<T> callback,
+                             long delayMillis) {
+        Task<T> task = new Task<>(name, work, callback, delayMillis);
+        try {
+            task.setFuture(delayMillis > 0
+                    ? mWriteExecutor.schedule(task, delayMillis, TimeUnit.MILLISECONDS)
+                    : mWriteExecutor.submit(task));
+        } catch (RejectedExecutionException e) {
+            task.cancel();
+        }
+        return task;
+    }
+
+    /**
+     * Get the statistics of all task names run so far.
+     *
+     * @return A snapshot of the statistics by task name.
+     */
+    public Map<String, TaskStats> getStats() {
+        return new HashMap<>(mStats);
+    }
+
+    /**
+     * Return whether {@link #shutdown()} has been called.
+     *
+     * @return {@code true} if no more tasks are accepted.
+     */
+    public boolean isShutdown() {
+        return mWriteExecutor.isShutdown();
+    }
+
+    /**
+     * Cancel all pending reads and stop the threads once the queued writes are done.
+     */
+    public void shutdown() {
+        mWriteExecutor.shutdown();
+        mReadExecutor.shutdown();
+        for (Task<?> task : mPendingReads) {
+            task.cancel();
+        }
+        mPendingReads.clear();
+        Log.d(TAG, "shutdown: " + mStats);
+    }
+
+    private TaskStats getStats(String name) {
+        TaskStats stats = mStats.get(name);
+        if (stats == null) {
+            stats = new TaskStats();
+            TaskStats previous = mStats.putIfAbsent(name, stats);
+            if (previous != null) {
+                stats = previous;
+            }
+        }
+        return stats;
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, mName + "-" + mCount.incrementAndGet());
+        }
+
+    }
+
+}
@@ -0,0 +1,95 @@
+package com.example.offlinemessenger.data;
+
+import com.example.offlinemessenger.db.ChatMessageDao;
+import com.example.offlinemessenger.db.ChatMessageEntity;
+import com.example.offlinemessenger.db.ChatMessageKey;
+import com.example.offlinemessenger.db.ChatUserDao;
+import com.example.offlinemessenger.net.HistorySync;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Room backed message history for the {@link HistorySync}.
+ */
+public class MessageHistory implements HistorySync.Store {
+
+    /** Number of ids per query, below the SQLite limit on bound parameters. */
+    private static final int QUERY_CHUNK_SIZE = 500;
+
+    private final ChatMessageDao mMessageDao;
+    private final ChatUserDao mUserDao;
+
+    /**
+     * Create a new message history.
+     *
+     * @param messageDao The message DAO.
+     * @param userDao    The user DAO.
+     */
+    public MessageHistory(ChatMessageDao messageDao, ChatUserDao userDao) {
+        mMessageDao = messageDao;
+        mUserDao = userDao;
+    }
+
+    @Override
+    public List<HistorySync.MessageKey> loadKeys(UUID peerId) {
+        List<ChatMessageKey> rows = mMessageDao.getKeysFromUser(peerId);
+        List<HistorySync.MessageKey> keys = new ArrayList<>(rows.size());
+        for (ChatMessageKey row : rows) {
+            keys.add(new HistorySync.MessageKey(row.id, row.timestamp));
+        }
+        return keys;
+    }
+
+    @Override
+    public List<ChatMessage> loadMessages(UUID peerId, Collection<UUID> ids) {
+        List<ChatMessage> messages = new ArrayList<>(ids.size());
+        List<UUID> chunk = new ArrayList<>(QUERY_CHUNK_SIZE);
+        for (UUID id : ids) {
+            chunk.add(id);
+            if (chunk.size() == QUERY_CHUNK_SIZE) {
+                loadChunk(chunk, messages);
+            }
+        }
+        if (!chunk.isEmpty()) {
+            loadChunk(chunk, messages);
+        }
+        return messages;
+    }
+
+    @Override
+    public void insertMessages(UUID peerId, List<ChatMessage> messages) {
+        if (mUserDao.getById(peerId) == null) {
+            // messages must belong to a known user, we will catch up once the user is added
+            return;
+        }
+        ChatMessageEntity[] entities = new ChatMessageEntity[messages.size()];
+        int i = 0;
+        for (ChatMessage m : messages) {
+            entities[i] = new ChatMessageEntity();
+            entities[i].id = m.getUUID();
+            entities[i].userId = peerId;
+            entities[i].content = m.getContent();
+            entities[i].timestamp = m.getTimestamp();
+            entities[i++].isOwn = m.isOwn();
+        }
+        mMessageDao.insertAll(entities);
+    }
+
+    private void loadChunk(List<UUID> ids, List<ChatMessage> messages) {
+        for (ChatMessageEntity entity : mMessageDao.getByIds(ids)) {
+            messages.add(new ChatMessage(
+                    Sendable.Action.NONE,
+                    entity.userId,
+                    entity.content,
+                    entity.isOwn,
+                    entity.timestamp,
+                    entity.id
+            ));
+        }
+        ids.clear();
+    }
+
+}
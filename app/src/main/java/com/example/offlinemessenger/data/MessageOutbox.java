@@ -0,0 +1,51 @@
+package com.example.offlinemessenger.data;
+
+import com.example.offlinemessenger.db.OutboxDao;
+import com.example.offlinemessenger.db.OutboxEntity;
+import com.example.offlinemessenger.net.DeliveryManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Room backed outbox for the {@link DeliveryManager}.
+ */
+public class MessageOutbox implements DeliveryManager.Outbox {
+
+    private final OutboxDao mOutboxDao;
+
+    /**
+     * Create a new outbox.
+     *
+     * @param outboxDao The outbox DAO.
+     */
+    public MessageOutbox(OutboxDao outboxDao) {
+        mOutboxDao = outboxDao;
+    }
+
+    @Override
+    public void add(UUID id, byte[] payload) {
+        OutboxEntity entity = new OutboxEntity();
+        entity.id = id.toString();
+        entity.payload = payload;
+        entity.queuedAt = System.currentTimeMillis();
+        mOutboxDao.insert(entity);
+    }
+
+    @Override
+    public void remove(UUID id) {
+        mOutboxDao.deleteById(id.toString());
+    }
+
+    @Override
+    public List<byte[]> loadAll() {
+        List<OutboxEntity> entities = mOutboxDao.getAll();
+        List<byte[]> payloads = new ArrayList<>(entities.size());
+        for (OutboxEntity entity : entities) {
+            payloads.add(entity.payload);
+        }
+        return payloads;
+    }
+
+}
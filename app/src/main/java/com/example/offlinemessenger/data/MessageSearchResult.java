@@ -0,0 +1,54 @@
+package com.example.offlinemessenger.data;
+
+/**
+ * A chat message found by a full text search.
+ */
+public class MessageSearchResult {
+
+    private final ChatMessage mMessage;
+    private final String mSnippet;
+    private final int mHits;
+
+    /**
+     * Create a new search result.
+     *
+     * @param message The matching message.
+     * @param snippet The excerpt of the content around the matches.
+     * @param hits    The number of matched term occurrences in the content.
+     */
+    public MessageSearchResult(ChatMessage message, String snippet, int hits) {
+        mMessage = message;
+        mSnippet = snippet;
+        mHits = hits;
+    }
+
+    /**
+     * Get the matching message.
+     *
+     * @return The message.
+     */
+    public ChatMessage getMessage() {
+        return mMessage;
+    }
+
+    /**
+     * Get an excerpt of the message content around the matches, with the matched terms in
+     * square brackets.
+     *
+     * @return The snippet.
+     */
+    public String getSnippet() {
+        return mSnippet;
+    }
+
+    /**
+     * Get the number of matched term occurrences in the message content, which ranks the
+     * result.
+     *
+     * @return The number of hits.
+     */
+    public int getHits() {
+        return mHits;
+    }
+
+}
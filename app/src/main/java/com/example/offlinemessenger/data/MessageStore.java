@@ -0,0 +1,292 @@
+package com.example.offlinemessenger.data;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * The loaded window of a single conversation, ordered from oldest to newest.
+ *
+ * Messages are kept in a ring buffer, so positional access as done by list adapters is
+ * {@code O(1)}, and both appending new messages and prepending a page of older ones only
+ * cost the number of added messages.  The window holds at most {@code maxSize} messages:
+ * whatever is pushed out at the far end is dropped, and the store remembers that there is
+ * more to page in on that side.
+ *
+ * Every change is reported to the {@link Listener} as ranges of positions, so a list view
+ * only needs to rebind what actually changed.  The store is not thread safe: while it is
+ * displayed, it must only be changed on the main thread.
+ */
+public class MessageStore extends AbstractList<ChatMessage> implements RandomAccess {
+
+    /**
+     * Callback for changes to the store, in the order they are made.  Positions refer to the
+     * store as it is after all previously reported changes.
+     */
+    public interface Listener {
+
+        /**
+         * Called when messages have been inserted.
+         *
+         * @param position The position of the first inserted message.
+         * @param count    The number of inserted messages.
+         */
+        void onInserted(int position, int count);
+
+        /**
+         * Called when messages have been removed.
+         *
+         * @param position The former position of the first removed message.
+         * @param count    The number of removed messages.
+         */
+        void onRemoved(int position, int count);
+
+        /**
+         * Called when messages have changed in place, e.g. have been delivered.
+         *
+         * @param position The position of the first changed message.
+         * @param count    The number of changed messages.
+         */
+        void onChanged(int position, int count);
+
+    }
+
+    private static final int MIN_CAPACITY = 16;
+    /**
+     * Estimated heap size of a message apart from its content: the message with its
+     * UUIDs, the content string header and the slot in the ring buffer.
+     */
+    private static final int MESSAGE_OVERHEAD_BYTES = 160;
+
+    private final int mMaxSize;
+    /** The ring buffer; its length is always a power of two. */
+    private ChatMessage[] mItems = new ChatMessage[MIN_CAPACITY];
+    /** The index of the oldest message in {@link #mItems}. */
+    private int mHead = 0;
+    private int mSize = 0;
+    /** The estimated heap size of the messages, see {@link #estimateBytes(ChatMessage)}. */
+    private long mBytes = 0;
+    private boolean mHasOlder = false;
+    private boolean mHasNewer = false;
+    private Listener mListener = null;
+
+    /**
+     * Create an empty store.
+     *
+     * @param maxSize The maximum number of messages in the window.
+     */
+    public MessageStore(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        mMaxSize = maxSize;
+    }
+
+    @Override
+    public ChatMessage get(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + mSize);
+        }
+        return mItems[(mHead + index) & (mItems.length - 1)];
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Append a new message.  If the window is full, its oldest message is dropped.
+     *
+     * @param message The message.
+     * @return {@code true}.
+     */
+    @Override
+    public boolean add(ChatMessage message) {
+        ensureCapacity(mSize + 1);
+        mItems[(mHead + mSize) & (mItems.length - 1)] = message;
+        mSize++;
+        mBytes += estimateBytes(message);
+        modCount++;
+        if (mListener != null) {
+            mListener.onInserted(mSize - 1, 1);
+        }
+        trimHead();
+        return true;
+    }
+
+    /**
+     * Append a page of newer messages.  If the window overflows, the oldest messages
+     * are dropped.
+     *
+     * @param page The messages, oldest first.
+     */
+    public void append(List<ChatMessage> page) {
+        ensureCapacity(mSize + page.size());
+        for (ChatMessage message : page) {
+            mItems[(mHead + mSize) & (mItems.length - 1)] = message;
+            mSize++;
+            mBytes += estimateBytes(message);
+        }
+        modCount++;
+        if (mListener != null && !page.isEmpty()) {
+            mListener.onInserted(mSize - page.size(), page.size());
+        }
+        trimHead();
+    }
+
+    /**
+     * Prepend a page of older messages.  If the window overflows, the newest messages
+     * are dropped.
+     *
+     * @param page The messages, oldest first.
+     */
+    public void prepend(List<ChatMessage> page) {
+        ensureCapacity(mSize + page.size());
+        for (int i = page.size() - 1; i >= 0; i--) {
+            mHead = (mHead - 1) & (mItems.length - 1);
+            mItems[mHead] = page.get(i);
+            mSize++;
+            mBytes += estimateBytes(mItems[mHead]);
+        }
+        modCount++;
+        if (mListener != null && !page.isEmpty()) {
+            mListener.onInserted(0, page.size());
+        }
+        int removed = 0;
+        while (mSize > mMaxSize) {
+            int tail = (mHead + mSize - 1) & (mItems.length - 1);
+            mBytes -= estimateBytes(mItems[tail]);
+            mItems[tail] = null;
+            mSize--;
+            removed++;
+            mHasNewer = true;
+        }
+        if (mListener != null && removed > 0) {
+            mListener.onRemoved(mSize, removed);
+        }
+    }
+
+    @Override
+    public void clear() {
+        int removed = mSize;
+        Arrays.fill(mItems, null);
+        mHead = 0;
+        mSize = 0;
+        mBytes = 0;
+        modCount++;
+        if (mListener != null && removed > 0) {
+            mListener.onRemoved(0, removed);
+        }
+    }
+
+    /**
+     * Report that a message has changed in place.
+     *
+     * @param position The position of the message.
+     */
+    public void notifyChanged(int position) {
+        if (mListener != null) {
+            mListener.onChanged(position, 1);
+        }
+    }
+
+    /**
+     * Set the listener for changes to the store.
+     *
+     * @param listener The listener, or {@code null}.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Return the estimated heap size of the messages in the window.
+     *
+     * @return The size in bytes.
+     */
+    public long getEstimatedBytes() {
+        return mBytes;
+    }
+
+    /**
+     * Return whether the conversation has messages older than the window.
+     *
+     * @return {@code true} if older messages can be paged in.
+     */
+    public boolean hasOlder() {
+        return mHasOlder;
+    }
+
+    /**
+     * Set whether the conversation has messages older than the window.
+     *
+     * @param hasOlder {@code true} if older messages can be paged in.
+     */
+    public void setHasOlder(boolean hasOlder) {
+        mHasOlder = hasOlder;
+    }
+
+    /**
+     * Return whether the conversation has messages newer than the window, i.e. the window
+     * does not end with the latest message.
+     *
+     * @return {@code true} if newer messages can be paged in.
+     */
+    public boolean hasNewer() {
+        return mHasNewer;
+    }
+
+    /**
+     * Set whether the conversation has messages newer than the window.
+     *
+     * @param hasNewer {@code true} if newer messages can be paged in.
+     */
+    public void setHasNewer(boolean hasNewer) {
+        mHasNewer = hasNewer;
+    }
+
+    private void trimHead() {
+        int removed = 0;
+        while (mSize > mMaxSize) {
+            mBytes -= estimateBytes(mItems[mHead]);
+            mItems[mHead] = null;
+            mHead = (mHead + 1) & (mItems.length - 1);
+            mSize--;
+            removed++;
+            mHasOlder = true;
+        }
+        if (mListener != null && removed > 0) {
+            mListener.onRemoved(0, removed);
+        }
+    }
+
+    /**
+     * Estimate the heap size of a message from the length of its content.
+     *
+     * @param message The message.
+     * @return The size in bytes.
+     */
+    static long estimateBytes(ChatMessage message) {
+        String content = message.getContent();
+        return MESSAGE_OVERHEAD_BYTES + 2L * (content == null ? 0 : content.length());
+    }
+
+    private void ensureCapacity(int size) {
+        if (size <= mItems.length) {
+            return;
+        }
+        int capacity = mItems.length;
+        while (capacity < size) {
+            capacity <<= 1;
+        }
+        ChatMessage[] items = new ChatMessage[capacity];
+        for (int i = 0; i < mSize; i++) {
+            items[i] = mItems[(mHead + i) & (mItems.length - 1)];
+        }
+        mItems = items;
+        mHead = 0;
+    }
+
+}
@@ -0,0 +1,210 @@
+package com.example.offlinemessenger.data;
+
+import android.util.Log;
+
+import com.example.offlinemessenger.db.AppDatabase;
+import com.example.offlinemessenger.db.ChatMessageDao;
+import com.example.offlinemessenger.db.ChatMessageEntity;
+import com.example.offlinemessenger.db.ChatUserDao;
+import com.example.offlinemessenger.db.ChatUserEntity;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Write-behind persistence of new users and messages.
+ *
+ * Writes are queued and committed on the writer thread of a {@link DataExecutor}, which
+ * coalesces everything queued within {@link #FLUSH_DELAY_MILLIS}, or up to
+ * {@link #MAX_BATCH_ROWS} rows, into one transaction, so a burst of incoming messages costs
+ * one commit instead of one per message.
+ * Batches are committed in the order they were queued, and within a batch users are
+ * inserted before messages, so a message never reaches the database before its user.
+ *
+ * Queued writes are lost if the process dies before they are committed; call
+ * {@link #flush()} when the app goes to the background to keep that window short.
+ */
+public class MessageWriter {
+
+    private static final String TAG = "MessageWriter";
+
+    /** Time writes are held back to be committed together with the following ones. */
+    public static final long FLUSH_DELAY_MILLIS = 5;
+    /** Number of queued rows that are committed right away. */
+    public static final int MAX_BATCH_ROWS = 500;
+    /** Task name of the commits in the executor statistics. */
+    public static final String TASK_COMMIT = "commit";
+
+    private final AppDatabase mDatabase;
+    private final ChatUserDao mUserDao;
+    private final ChatMessageDao mMessageDao;
+    private final DataExecutor mExecutor;
+
+    // guarded by this
+    private List<ChatUserEntity> mPendingUsers = new ArrayList<>();
+    private List<ChatMessageEntity> mPendingMessages = new ArrayList<>();
+    /** Whether a flush has been scheduled that has not taken the pending rows yet. */
+    private boolean mFlushScheduled = false;
+    private long mCommits = 0;
+    private long mRows = 0;
+
+    /**
+     * Create a writer.
+     *
+     * @param database The app database.
+     * @param executor The executor to commit on.
+     */
+    public MessageWriter(AppDatabase database, DataExecutor executor) {
+        mDatabase = database;
+        mUserDao = database.getChatUserDao();
+        mMessageDao = database.getChatMessageDao();
+        mExecutor = executor;
+    }
+
+    /**
+     * Queue messages to be inserted.
+     *
+     * @param messages The messages.
+     */
+    public void write(ChatMessage... messages) {
+        synchronized (this) {
+            for (ChatMessage m : messages) {
+                ChatMessageEntity entity = new ChatMessageEntity();
+                entity.id = m.getUUID();
+                entity.userId = m.getSender();
+                entity.content = m.getContent();
+                entity.isOwn = m.isOwn();
+                entity.timestamp = m.getTimestamp();
+                entity.delivered = m.isDelivered();
+                mPendingMessages.add(entity);
+            }
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Queue users to be inserted.
+     *
+     * @param users The users.
+     */
+    public void write(ChatUser... users) {
+        synchronized (this) {
+            for (ChatUser u : users) {
+                ChatUserEntity entity = new ChatUserEntity();
+                entity.id = u.getUUID();
+                entity.name = u.getName();
+                mPendingUsers.add(entity);
+            }
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Commit all queued writes now, e.g. when the app goes to the background or before the
+     * executor is shut down.
+     */
+    public void flush() {
+        mExecutor.write(TASK_COMMIT, this::commit, null);
+    }
+
+    /**
+     * Get the number of transactions committed.
+     *
+     * @return The commit count.
+     */
+    public synchronized long getCommitCount() {
+        return mCommits;
+    }
+
+    /**
+     * Get the number of rows written.
+     *
+     * @return The row count.
+     */
+    public synchronized long getRowCount() {
+        return mRows;
+    }
+
+    private synchronized void scheduleFlush() {
+        if (mExecutor.isShutdown()) {
+            Log.w(TAG, "Executor shut down, dropping writes");
+            mPendingUsers.clear();
+            mPendingMessages.clear();
+            return;
+        }
+        int rows = mPendingUsers.size() + mPendingMessages.size();
+        if (rows >= MAX_BATCH_ROWS) {
+            mFlushScheduled = true;
+            mExecutor.write(TASK_COMMIT, this::commit, null);
+        } else if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mExecutor.write(TASK_COMMIT, this::commit, null, FLUSH_DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * Take the pending rows and commit them in one transaction.  Runs on the writer thread.
+     *
+     * @return The number of rows committed.
+     */
+    private Integer commit() {
+        final List<ChatUserEntity> users;
+        final List<ChatMessageEntity> messages;
+        synchronized (this) {
+            users = mPendingUsers;
+            messages = mPendingMessages;
+            mPendingUsers = new ArrayList<>();
+            mPendingMessages = new ArrayList<>();
+            mFlushScheduled = false;
+        }
+        if (users.isEmpty() && messages.isEmpty()) {
+            return 0;
+        }
+
+        final ChatUserEntity[] userRows = users.toArray(new ChatUserEntity[users.size()]);
+        final ChatMessageEntity[] messageRows =
+                messages.toArray(new ChatMessageEntity[messages.size()]);
+        try {
+            mDatabase.runInTransaction(() -> {
+                mUserDao.insertAll(userRows);
+                mMessageDao.insertAll(messageRows);
+            });
+            onCommitted(1, userRows.length + messageRows.length);
+            return userRows.length + messageRows.length;
+        } catch (RuntimeException e) {
+            // e.g. a message of an unknown user; do not let it take the whole batch down
+            Log.w(TAG, "Batch of " + (userRows.length + messageRows.length)
+                    + " rows failed, writing rows one by one", e);
+            return commitSeparately(userRows, messageRows);
+        }
+    }
+
+    private int commitSeparately(ChatUserEntity[] users, ChatMessageEntity[] messages) {
+        int committed = 0;
+        for (ChatUserEntity user : users) {
+            try {
+                mUserDao.insert(user);
+                onCommitted(1, 1);
+                committed++;
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to store user " + user.id, e);
+            }
+        }
+        for (ChatMessageEntity message : messages) {
+            try {
+                mMessageDao.insert(message);
+                onCommitted(1, 1);
+                committed++;
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to store message " + message.id, e);
+            }
+        }
+        return committed;
+    }
+
+    private synchronized void onCommitted(int commits, int rows) {
+        mCommits += commits;
+        mRows += rows;
+    }
+
+}
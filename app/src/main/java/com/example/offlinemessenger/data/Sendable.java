@@ -29,7 +29,7 @@ public abstract class Sendable implements Serializable, Parcelable {
             return mVal;
         }
 
-        static Action fromValue(byte value) {
+        public static Action fromValue(byte value) {
             switch (value) {
                 case 1: return ADD;
                 case 2: return REMOVE;
@@ -1,14 +1,211 @@
 package com.example.offlinemessenger.db;
 
+import androidx.annotation.NonNull;
 import androidx.room.Database;
 import androidx.room.RoomDatabase;
+import androidx.room.TypeConverters;
+import androidx.room.migration.Migration;
+import androidx.sqlite.db.SupportSQLiteDatabase;
 
 /**
  * The app's main database class containing both the messages and users table.
+ *
+ * The database must be built with {@link #MIGRATIONS} and {@link #CALLBACK}, which create the
+ * triggers Room does not know about.
  */
-@Database(entities = {ChatUserEntity.class, ChatMessageEntity.class}, version = 1)
+@Database(
+        entities = {ChatUserEntity.class, ChatMessageEntity.class, ChatMessageFtsEntity.class,
+                OutboxEntity.class, ConversationEntity.class},
+        version = 7
+)
+@TypeConverters(UuidConverter.class)
 public abstract class AppDatabase extends RoomDatabase {
 
+    /**
+     * Version 2 adds the outbox table for reliable delivery.
+     */
+    public static final Migration MIGRATION_1_2 = new Migration(1, 2) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS `outbox` (`id` TEXT NOT NULL, "
+                    + "`payload` BLOB, `queued_at` INTEGER NOT NULL, PRIMARY KEY(`id`))");
+        }
+    };
+
+    /**
+     * Version 3 stores the ids of users and messages as 16 byte BLOBs.
+     */
+    public static final BinaryIdMigration MIGRATION_2_3 = new BinaryIdMigration();
+
+    /**
+     * Version 4 replaces the user_id index of the messages table by indexes serving the
+     * conversation and timeline queries in time order.
+     */
+    public static final Migration MIGRATION_3_4 = new Migration(3, 4) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("DROP INDEX IF EXISTS `messages_user_id`");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `messages_user_id_timestamp` "
+                    + "ON `messages` (`user_id`, `timestamp`, `id`)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `messages_timestamp` "
+                    + "ON `messages` (`timestamp`, `id`)");
+        }
+    };
+
+    /**
+     * Version 5 adds the full text index of message contents, with the triggers Room uses to
+     * keep it in sync, and builds it from the existing messages.
+     */
+    public static final Migration MIGRATION_4_5 = new Migration(4, 5) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS `messages_fts` "
+                    + "USING FTS4(`content` TEXT, content=`messages`)");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS "
+                    + "room_fts_content_sync_messages_fts_BEFORE_UPDATE "
+                    + "BEFORE UPDATE ON `messages` BEGIN "
+                    + "DELETE FROM `messages_fts` WHERE `docid`=OLD.`rowid`; END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS "
+                    + "room_fts_content_sync_messages_fts_BEFORE_DELETE "
+                    + "BEFORE DELETE ON `messages` BEGIN "
+                    + "DELETE FROM `messages_fts` WHERE `docid`=OLD.`rowid`; END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS "
+                    + "room_fts_content_sync_messages_fts_AFTER_UPDATE AFTER UPDATE ON `messages` "
+                    + "BEGIN INSERT INTO `messages_fts`(`docid`, `content`) "
+                    + "VALUES (NEW.`rowid`, NEW.`content`); END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS "
+                    + "room_fts_content_sync_messages_fts_AFTER_INSERT AFTER INSERT ON `messages` "
+                    + "BEGIN INSERT INTO `messages_fts`(`docid`, `content`) "
+                    + "VALUES (NEW.`rowid`, NEW.`content`); END");
+            db.execSQL("INSERT INTO `messages_fts`(`messages_fts`) VALUES('rebuild')");
+        }
+    };
+
+    /**
+     * Version 6 adds the conversations table and the triggers maintaining it, and fills it
+     * from the existing messages.  Messages received before the upgrade count as read.
+     */
+    public static final Migration MIGRATION_5_6 = new Migration(5, 6) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS `conversations` (`user_id` BLOB NOT NULL, "
+                    + "`last_message_id` BLOB, `last_timestamp` INTEGER NOT NULL, "
+                    + "`preview` TEXT, `unread_count` INTEGER NOT NULL, "
+                    + "`message_count` INTEGER NOT NULL, `read_timestamp` INTEGER NOT NULL, "
+                    + "PRIMARY KEY(`user_id`), FOREIGN KEY(`user_id`) REFERENCES `users`(`id`) "
+                    + "ON UPDATE NO ACTION ON DELETE CASCADE )");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `conversations_last_timestamp` "
+                    + "ON `conversations` (`last_timestamp`)");
+            // both passes are served by the messages_user_id_timestamp index
+            db.execSQL("INSERT INTO conversations (user_id, last_timestamp, unread_count, "
+                    + "message_count, read_timestamp) "
+                    + "SELECT user_id, MAX(timestamp), 0, COUNT(*), MAX(timestamp) "
+                    + "FROM messages WHERE user_id IS NOT NULL GROUP BY user_id");
+            db.execSQL("UPDATE conversations SET last_message_id = (SELECT id FROM messages "
+                    + "WHERE user_id = conversations.user_id "
+                    + "ORDER BY timestamp DESC, id DESC LIMIT 1)");
+            db.execSQL("UPDATE conversations SET preview = (SELECT substr(content, 1, "
+                    + ConversationEntity.PREVIEW_LENGTH + ") FROM messages "
+                    + "WHERE id = conversations.last_message_id)");
+            createConversationTriggers(db);
+        }
+    };
+
+    /**
+     * Version 7 records which sent messages the peer has acknowledged.  Messages sent before
+     * the upgrade count as delivered unless they are still in the outbox.
+     */
+    public static final Migration MIGRATION_6_7 = new Migration(6, 7) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("ALTER TABLE messages ADD COLUMN `delivered` INTEGER NOT NULL DEFAULT 0");
+            // the outbox keys messages by their id as string, the messages table as blob
+            db.execSQL("UPDATE messages SET delivered = 1 WHERE is_own AND hex(id) NOT IN "
+                    + "(SELECT upper(replace(id, '-', '')) FROM outbox)");
+        }
+    };
+
+    /**
+     * All migrations, to be passed to the database builder.
+     */
+    public static final Migration[] MIGRATIONS = {MIGRATION_1_2, MIGRATION_2_3, MIGRATION_3_4,
+            MIGRATION_4_5, MIGRATION_5_6, MIGRATION_6_7};
+
+    /**
+     * Callback creating the triggers of a new database, to be passed to the database builder.
+     */
+    public static final Callback CALLBACK = new Callback() {
+        @Override
+        public void onCreate(@NonNull SupportSQLiteDatabase db) {
+            createConversationTriggers(db);
+        }
+    };
+
+    /**
+     * The rest of the delete trigger's lookup of the latest message left in the conversation,
+     * following {@code SELECT} and the column wanted.
+     */
+    static final String LATEST_OF_DELETED = "FROM `messages` WHERE `user_id` = OLD.`user_id` "
+            + "ORDER BY `timestamp` DESC, `id` DESC LIMIT 1";
+
+    /**
+     * Create the triggers keeping the conversations table in sync with the messages table.
+     *
+     * Every insert counts the message and makes it the latest one if it is newer by
+     * (timestamp, id), so messages inserted out of order by the history sync are handled.
+     * Every delete uncounts it, removes the conversation with its last message, or looks up
+     * the latest message that is left with a single seek of the messages_user_id_timestamp
+     * index if the deleted one was the latest.  Updates of messages only ever set their delivery
+     * state and leave the summary alone, inserts ignored on conflict do not fire the triggers.
+     *
+     * @param db The database.
+     */
+    static void createConversationTriggers(SupportSQLiteDatabase db) {
+        String preview = "substr(NEW.`content`, 1, " + ConversationEntity.PREVIEW_LENGTH + ")";
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS `conversations_AFTER_INSERT` "
+                + "AFTER INSERT ON `messages` WHEN NEW.`user_id` IS NOT NULL BEGIN "
+                + "INSERT OR IGNORE INTO `conversations` (`user_id`, `last_message_id`, "
+                + "`last_timestamp`, `preview`, `unread_count`, `message_count`, "
+                + "`read_timestamp`) "
+                + "VALUES (NEW.`user_id`, NEW.`id`, NEW.`timestamp`, " + preview + ", 0, 0, 0); "
+                + "UPDATE `conversations` SET `message_count` = `message_count` + 1, "
+                + "`unread_count` = `unread_count` "
+                + "+ (NOT NEW.`is_own` AND NEW.`timestamp` > `read_timestamp`) "
+                + "WHERE `user_id` = NEW.`user_id`; "
+                + "UPDATE `conversations` SET `last_message_id` = NEW.`id`, "
+                + "`last_timestamp` = NEW.`timestamp`, `preview` = " + preview + " "
+                + "WHERE `user_id` = NEW.`user_id` AND (NEW.`timestamp` > `last_timestamp` "
+                + "OR (NEW.`timestamp` = `last_timestamp` AND NEW.`id` > `last_message_id`)); "
+                + "END");
+        String latest = LATEST_OF_DELETED + ")";
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS `conversations_AFTER_DELETE` "
+                + "AFTER DELETE ON `messages` WHEN OLD.`user_id` IS NOT NULL BEGIN "
+                + "UPDATE `conversations` SET `message_count` = `message_count` - 1, "
+                + "`unread_count` = `unread_count` "
+                + "- (NOT OLD.`is_own` AND OLD.`timestamp` > `read_timestamp`) "
+                + "WHERE `user_id` = OLD.`user_id`; "
+                + "DELETE FROM `conversations` "
+                + "WHERE `user_id` = OLD.`user_id` AND `message_count` = 0; "
+                + "UPDATE `conversations` SET `last_message_id` = (SELECT `id` " + latest + ", "
+                + "`last_timestamp` = (SELECT `timestamp` " + latest + ", "
+                + "`preview` = (SELECT substr(`content`, 1, " + ConversationEntity.PREVIEW_LENGTH
+                + ") " + latest + " "
+                + "WHERE `user_id` = OLD.`user_id` AND `last_message_id` = OLD.`id`; "
+                + "END");
+    }
+
+    /**
+     * Compact the database file and rebuild the full text index.  The messages table has no
+     * INTEGER PRIMARY KEY, so VACUUM may renumber its rowids, which the index refers to by
+     * docid.  Must not be called inside a transaction and takes long on a large history, so
+     * only call it on a worker thread.
+     */
+    public void vacuum() {
+        SupportSQLiteDatabase db = getOpenHelper().getWritableDatabase();
+        db.execSQL("VACUUM");
+        db.execSQL("INSERT INTO `messages_fts`(`messages_fts`) VALUES('rebuild')");
+    }
+
     /**
      * Get the DAO for the users table.
      *
@@ -23,4 +220,18 @@ public abstract class AppDatabase extends RoomDatabase {
      */
     public abstract ChatMessageDao getChatMessageDao();
 
+    /**
+     * Get the DAO for the outbox table.
+     *
+     * @return The outbox DAO.
+     */
+    public abstract OutboxDao getOutboxDao();
+
+    /**
+     * Get the DAO for the conversations table.
+     *
+     * @return The conversation DAO.
+     */
+    public abstract ConversationDao getConversationDao();
+
 }
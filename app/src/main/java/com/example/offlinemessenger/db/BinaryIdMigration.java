@@ -0,0 +1,202 @@
+package com.example.offlinemessenger.db;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.room.migration.Migration;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteStatement;
+
+import java.util.UUID;
+
+/**
+ * Migration from version 2 to 3, storing the ids of users and messages as 16 byte BLOBs
+ * instead of 36 character strings, see {@link UuidConverter}.
+ *
+ * Both tables are rebuilt: the rows are copied into a new table in chunks of
+ * {@link #CHUNK_ROWS}, walking the old one by rowid, so the memory held by the migration does
+ * not depend on the size of the history.  Progress is logged and reported to the
+ * {@link ProgressListener}, if any, after every chunk.  Room runs the whole migration in one
+ * transaction, so it either completes or leaves the database at version 2.
+ */
+public class BinaryIdMigration extends Migration {
+
+    private static final String TAG = "BinaryIdMigration";
+
+    /** Number of rows read and written at a time. */
+    public static final int CHUNK_ROWS = 1000;
+
+    /**
+     * Callback for the progress of the migration, invoked on the thread opening the database.
+     */
+    public interface ProgressListener {
+
+        /**
+         * Called after every chunk of rows.
+         *
+         * @param migratedRows The number of rows migrated so far.
+         * @param totalRows    The number of rows to migrate.
+         */
+        void onProgress(long migratedRows, long totalRows);
+
+    }
+
+    private volatile ProgressListener mListener;
+
+    /** The number of rows migrated so far. */
+    private long mMigratedRows;
+    /** The number of rows to migrate. */
+    private long mTotalRows;
+
+    public BinaryIdMigration() {
+        super(2, 3);
+    }
+
+    /**
+     * Set the listener for the progress of the migration.
+     *
+     * @param listener The listener, or {@code null}.
+     */
+    public void setProgressListener(ProgressListener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void migrate(@NonNull SupportSQLiteDatabase db) {
+        // foreign keys are only enforced once Room has opened the database, so the tables
+        // can be swapped one after the other
+        mMigratedRows = 0;
+        mTotalRows = count(db, "users") + count(db, "messages");
+
+        db.execSQL("CREATE TABLE `users_new` (`id` BLOB NOT NULL, `name` TEXT, "
+                + "PRIMARY KEY(`id`))");
+        copyUsers(db);
+        db.execSQL("DROP TABLE `users`");
+        db.execSQL("ALTER TABLE `users_new` RENAME TO `users`");
+
+        db.execSQL("CREATE TABLE `messages_new` (`id` BLOB NOT NULL, `user_id` BLOB, "
+                + "`content` TEXT, `timestamp` INTEGER NOT NULL, `is_own` INTEGER NOT NULL, "
+                + "PRIMARY KEY(`id`), FOREIGN KEY(`user_id`) REFERENCES `users`(`id`) "
+                + "ON UPDATE NO ACTION ON DELETE NO ACTION )");
+        copyMessages(db);
+        db.execSQL("DROP TABLE `messages`");
+        db.execSQL("ALTER TABLE `messages_new` RENAME TO `messages`");
+        db.execSQL("CREATE INDEX IF NOT EXISTS `messages_user_id` ON `messages` (`user_id`)");
+
+        Log.i(TAG, "Migrated " + mMigratedRows + " of " + mTotalRows + " rows");
+    }
+
+    private void copyUsers(SupportSQLiteDatabase db) {
+        SupportSQLiteStatement insert =
+                db.compileStatement("INSERT OR IGNORE INTO `users_new` (`id`, `name`) VALUES (?, ?)");
+        long lastRowId = -1;
+        while (true) {
+            Cursor cursor = db.query("SELECT rowid, id, name FROM users WHERE rowid > ? "
+                    + "ORDER BY rowid LIMIT " + CHUNK_ROWS, new Object[]{lastRowId});
+            int rows = 0;
+            try {
+                while (cursor.moveToNext()) {
+                    rows++;
+                    lastRowId = cursor.getLong(0);
+                    byte[] id = parseId(cursor.getString(1));
+                    if (id == null) {
+                        continue;
+                    }
+                    insert.clearBindings();
+                    insert.bindBlob(1, id);
+                    bindString(insert, 2, cursor.getString(2));
+                    insert.executeInsert();
+                }
+            } finally {
+                cursor.close();
+            }
+            if (rows == 0) {
+                return;
+            }
+            onChunkCopied(rows);
+        }
+    }
+
+    private void copyMessages(SupportSQLiteDatabase db) {
+        SupportSQLiteStatement insert = db.compileStatement("INSERT OR IGNORE INTO `messages_new` "
+                + "(`id`, `user_id`, `content`, `timestamp`, `is_own`) VALUES (?, ?, ?, ?, ?)");
+        long lastRowId = -1;
+        while (true) {
+            Cursor cursor = db.query("SELECT rowid, id, user_id, content, timestamp, is_own "
+                    + "FROM messages WHERE rowid > ? ORDER BY rowid LIMIT " + CHUNK_ROWS,
+                    new Object[]{lastRowId});
+            int rows = 0;
+            try {
+                while (cursor.moveToNext()) {
+                    rows++;
+                    lastRowId = cursor.getLong(0);
+                    byte[] id = parseId(cursor.getString(1));
+                    byte[] userId = cursor.isNull(2) ? null : parseId(cursor.getString(2));
+                    if (id == null || (userId == null && !cursor.isNull(2))) {
+                        continue;
+                    }
+                    insert.clearBindings();
+                    insert.bindBlob(1, id);
+                    if (userId == null) {
+                        insert.bindNull(2);
+                    } else {
+                        insert.bindBlob(2, userId);
+                    }
+                    bindString(insert, 3, cursor.getString(3));
+                    insert.bindLong(4, cursor.getLong(4));
+                    insert.bindLong(5, cursor.getLong(5));
+                    insert.executeInsert();
+                }
+            } finally {
+                cursor.close();
+            }
+            if (rows == 0) {
+                return;
+            }
+            onChunkCopied(rows);
+        }
+    }
+
+    private void onChunkCopied(int rows) {
+        mMigratedRows += rows;
+        Log.d(TAG, "Migrated " + mMigratedRows + " of " + mTotalRows + " rows");
+        ProgressListener listener = mListener;
+        if (listener != null) {
+            listener.onProgress(mMigratedRows, mTotalRows);
+        }
+    }
+
+    private static long count(SupportSQLiteDatabase db, String table) {
+        Cursor cursor = db.query("SELECT COUNT(*) FROM `" + table + "`");
+        try {
+            return cursor.moveToNext() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Convert an id from its string form.
+     *
+     * @param id The id string.
+     * @return The 16 bytes, or {@code null} if the string is not a valid UUID.
+     */
+    private static byte[] parseId(String id) {
+        try {
+            return UuidConverter.toBytes(UUID.fromString(id));
+        } catch (IllegalArgumentException | NullPointerException e) {
+            Log.w(TAG, "Dropping row with invalid id " + id);
+            return null;
+        }
+    }
+
+    private static void bindString(SupportSQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+}
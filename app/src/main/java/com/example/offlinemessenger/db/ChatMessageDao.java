@@ -7,6 +7,7 @@ import androidx.room.OnConflictStrategy;
 import androidx.room.Query;
 
 import java.util.List;
+import java.util.UUID;
 
 /**
  * DAO for the messages table.
@@ -31,24 +32,217 @@ public interface ChatMessageDao {
     void insertAll(ChatMessageEntity... entities);
 
     /**
-     * Get a list of all chat messages.
-     *
-     * TODO: Add pagination so we don't flood the entire RAM when there are
-     *       several million messages.
+     * Get a list of all chat messages.  This loads the entire table, use the paged queries
+     * like {@link #getLatestFromUser(UUID, int)} to display conversations.
      *
      * @return The list of all chat messages, ordered by time.
      */
-    @Query("SELECT * FROM messages ORDER BY timestamp ASC")
+    @Query(SELECT_ALL)
     List<ChatMessageEntity> getAll();
 
+    /** Query of {@link #getAll()}. */
+    String SELECT_ALL = "SELECT * FROM messages ORDER BY timestamp ASC";
+
     /**
      * Get a list of all chat messages from a specific user.
      *
      * @param userId The user id.
      * @return The chat message list.
      */
-    @Query("SELECT * FROM messages WHERE user_id = :userId ORDER BY TIMESTAMP ASC")
-    List<ChatMessageEntity> getAllFromUser(String userId);
+    @Query(SELECT_ALL_FROM_USER)
+    List<ChatMessageEntity> getAllFromUser(UUID userId);
+
+    /** Query of {@link #getAllFromUser(UUID)}. */
+    String SELECT_ALL_FROM_USER =
+            "SELECT * FROM messages WHERE user_id = :userId ORDER BY TIMESTAMP ASC";
+
+    /**
+     * Get the most recent chat messages from a specific user.  Together with
+     * {@link #getPageBefore(UUID, long, UUID, int)} and
+     * {@link #getPageAfter(UUID, long, UUID, int)}, this pages through a conversation
+     * by its (timestamp, id) key, so every page costs the same no matter how deep into
+     * the history it is.  All three are served by the messages_user_id_timestamp index
+     * without a sort step.
+     *
+     * @param userId The user id.
+     * @param limit  The maximum number of messages.
+     * @return The messages, newest first.
+     */
+    @Query(SELECT_LATEST_FROM_USER)
+    List<ChatMessageEntity> getLatestFromUser(UUID userId, int limit);
+
+    /** Query of {@link #getLatestFromUser(UUID, int)}. */
+    String SELECT_LATEST_FROM_USER = "SELECT * FROM messages WHERE user_id = :userId "
+            + "ORDER BY timestamp DESC, id DESC LIMIT :limit";
+
+    /**
+     * Get the chat messages from a specific user that precede a cursor.
+     *
+     * @param userId    The user id.
+     * @param timestamp The timestamp of the cursor message.
+     * @param id        The id of the cursor message.
+     * @param limit     The maximum number of messages.
+     * @return The messages before the cursor, newest first.
+     */
+    @Query(SELECT_PAGE_BEFORE)
+    List<ChatMessageEntity> getPageBefore(UUID userId, long timestamp, UUID id, int limit);
+
+    /** Query of {@link #getPageBefore(UUID, long, UUID, int)}. */
+    String SELECT_PAGE_BEFORE = "SELECT * FROM messages WHERE user_id = :userId "
+            + "AND timestamp <= :timestamp AND (timestamp < :timestamp OR id < :id) "
+            + "ORDER BY timestamp DESC, id DESC LIMIT :limit";
+
+    /**
+     * Get the chat messages from a specific user that follow a cursor.
+     *
+     * @param userId    The user id.
+     * @param timestamp The timestamp of the cursor message.
+     * @param id        The id of the cursor message.
+     * @param limit     The maximum number of messages.
+     * @return The messages after the cursor, oldest first.
+     */
+    @Query(SELECT_PAGE_AFTER)
+    List<ChatMessageEntity> getPageAfter(UUID userId, long timestamp, UUID id, int limit);
+
+    /** Query of {@link #getPageAfter(UUID, long, UUID, int)}. */
+    String SELECT_PAGE_AFTER = "SELECT * FROM messages WHERE user_id = :userId "
+            + "AND timestamp >= :timestamp AND (timestamp > :timestamp OR id > :id) "
+            + "ORDER BY timestamp ASC, id ASC LIMIT :limit";
+
+    /**
+     * Get the ids and timestamps of all chat messages from a specific user.
+     *
+     * @param userId The user id.
+     * @return The message keys, in no particular order.
+     */
+    @Query(SELECT_KEYS_FROM_USER)
+    List<ChatMessageKey> getKeysFromUser(UUID userId);
+
+    /** Query of {@link #getKeysFromUser(UUID)}. */
+    String SELECT_KEYS_FROM_USER = "SELECT id, timestamp FROM messages WHERE user_id = :userId";
+
+    /**
+     * Get chat messages by id.  SQLite limits the number of ids per query to 999.
+     *
+     * @param ids The message ids.
+     * @return The messages that exist, in no particular order.
+     */
+    @Query(SELECT_BY_IDS)
+    List<ChatMessageEntity> getByIds(List<UUID> ids);
+
+    /** Query of {@link #getByIds(List)}. */
+    String SELECT_BY_IDS = "SELECT * FROM messages WHERE id IN (:ids)";
+
+    /**
+     * Record that the peer has acknowledged a message.
+     *
+     * @param id The message id.
+     */
+    @Query(UPDATE_DELIVERED)
+    void markDelivered(UUID id);
+
+    /** Statement of {@link #markDelivered(UUID)}. */
+    String UPDATE_DELIVERED = "UPDATE messages SET delivered = 1 WHERE id = :id";
+
+    /**
+     * The matches of a full text query joined with their messages, with a snippet and the
+     * number of matched term occurrences as {@code hits}.  The inner query is kept from being
+     * flattened with {@code LIMIT -1}, so offsets() runs once per match instead of once per
+     * use of {@code hits}.  Searches rank by hits, then by time, and page with a cursor on all
+     * three, so a deep page costs as much as the first and new messages do not shift pages.
+     */
+    String SEARCH_MATCHES = "SELECT id, user_id, content, timestamp, is_own, snippet, "
+            + "(length(o) - length(replace(o, ' ', '')) + 1) / 4 AS hits FROM ("
+            + "SELECT m.*, snippet(messages_fts, '[', ']', '...', -1, 12) AS snippet, "
+            + "offsets(messages_fts) AS o "
+            + "FROM messages_fts JOIN messages m ON m.rowid = messages_fts.rowid "
+            + "WHERE messages_fts MATCH :query";
+
+    /** End of {@link #SEARCH_MATCHES}. */
+    String SEARCH_MATCHES_END = " LIMIT -1)";
+
+    /** Condition on a search result that comes after a cursor in the ranking. */
+    String SEARCH_AFTER = " WHERE hits < :hits OR (hits = :hits AND (timestamp < :timestamp "
+            + "OR (timestamp = :timestamp AND id < :id)))";
+
+    /** Order of the search results, best first. */
+    String SEARCH_ORDER = " ORDER BY hits DESC, timestamp DESC, id DESC LIMIT :limit";
+
+    /**
+     * Search the content of all messages.  Results are ranked by the number of matched term
+     * occurrences, then by time, newest first.
+     *
+     * @param query The full text query in FTS4 syntax, e.g. {@code "word" "prefix*"}.
+     * @param limit The maximum number of results.
+     * @return The best matching messages with snippets.
+     */
+    @Query(SELECT_SEARCH)
+    List<ChatMessageSearchResult> search(String query, int limit);
+
+    /** Query of {@link #search(String, int)}. */
+    String SELECT_SEARCH =
+            "SELECT * FROM (" + SEARCH_MATCHES + SEARCH_MATCHES_END + ")" + SEARCH_ORDER;
+
+    /**
+     * Get the search results that follow a cursor, ranked like {@link #search(String, int)}.
+     *
+     * @param query     The full text query in FTS4 syntax.
+     * @param hits      The hits of the cursor result.
+     * @param timestamp The timestamp of the cursor result.
+     * @param id        The id of the cursor result.
+     * @param limit     The maximum number of results.
+     * @return The matching messages ranked after the cursor, with snippets.
+     */
+    @Query(SELECT_SEARCH_AFTER)
+    List<ChatMessageSearchResult> searchAfter(String query, int hits, long timestamp, UUID id,
+                                              int limit);
+
+    /** Query of {@link #searchAfter(String, int, long, UUID, int)}. */
+    String SELECT_SEARCH_AFTER = "SELECT * FROM (" + SEARCH_MATCHES + SEARCH_MATCHES_END + ")"
+            + SEARCH_AFTER + SEARCH_ORDER;
+
+    /**
+     * Search the content of the messages from a specific user, ranked like
+     * {@link #search(String, int)}.
+     *
+     * @param userId The user id.
+     * @param query  The full text query in FTS4 syntax.
+     * @param limit  The maximum number of results.
+     * @return The best matching messages with snippets.
+     */
+    @Query(SELECT_SEARCH_FROM_USER)
+    List<ChatMessageSearchResult> searchFromUser(UUID userId, String query, int limit);
+
+    /**
+     * Condition on a match to belong to a conversation.  The unary + keeps SQLite from
+     * walking the conversation by its index and matching every message, instead of looking
+     * up the matches first.
+     */
+    String SEARCH_FROM_USER = " AND +m.user_id = :userId";
+
+    /** Query of {@link #searchFromUser(UUID, String, int)}. */
+    String SELECT_SEARCH_FROM_USER = "SELECT * FROM (" + SEARCH_MATCHES + SEARCH_FROM_USER
+            + SEARCH_MATCHES_END + ")" + SEARCH_ORDER;
+
+    /**
+     * Get the search results from a specific user that follow a cursor, ranked like
+     * {@link #search(String, int)}.
+     *
+     * @param userId    The user id.
+     * @param query     The full text query in FTS4 syntax.
+     * @param hits      The hits of the cursor result.
+     * @param timestamp The timestamp of the cursor result.
+     * @param id        The id of the cursor result.
+     * @param limit     The maximum number of results.
+     * @return The matching messages ranked after the cursor, with snippets.
+     */
+    @Query(SELECT_SEARCH_FROM_USER_AFTER)
+    List<ChatMessageSearchResult> searchFromUserAfter(UUID userId, String query, int hits,
+                                                      long timestamp, UUID id, int limit);
+
+    /** Query of {@link #searchFromUserAfter(UUID, String, int, long, UUID, int)}. */
+    String SELECT_SEARCH_FROM_USER_AFTER = "SELECT * FROM (" + SEARCH_MATCHES + SEARCH_FROM_USER
+            + SEARCH_MATCHES_END + ")" + SEARCH_AFTER + SEARCH_ORDER;
 
     /**
      * Delete a single chat message.
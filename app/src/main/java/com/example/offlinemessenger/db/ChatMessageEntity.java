@@ -7,6 +7,8 @@ import androidx.room.ForeignKey;
 import androidx.room.Index;
 import androidx.room.PrimaryKey;
 
+import java.util.UUID;
+
 /**
  * Column definition for the messages table.
  */
@@ -16,7 +18,12 @@ import androidx.room.PrimaryKey;
                 parentColumns = "id",
                 childColumns = "user_id"
         ),
-        indices = @Index(name = "messages_user_id", value = "user_id"),
+        indices = {
+                // conversations in time order, also covering the history sync's key queries
+                @Index(name = "messages_user_id_timestamp", value = {"user_id", "timestamp", "id"}),
+                // the global timeline
+                @Index(name = "messages_timestamp", value = {"timestamp", "id"})
+        },
         tableName = "messages"
 )
 public class ChatMessageEntity {
@@ -24,11 +31,11 @@ public class ChatMessageEntity {
     /** The message id. */
     @PrimaryKey
     @NonNull
-    public String id;
+    public UUID id;
 
     /** The user ID this message belongs to. */
     @ColumnInfo(name = "user_id")
-    public String userId;
+    public UUID userId;
 
     /** The message content. */
     public String content;
@@ -40,4 +47,8 @@ public class ChatMessageEntity {
     @ColumnInfo(name = "is_own")
     public boolean isOwn;
 
+    /** If {@code true}, the peer has acknowledged receiving this message sent from here. */
+    @ColumnInfo(defaultValue = "0")
+    public boolean delivered;
+
 }
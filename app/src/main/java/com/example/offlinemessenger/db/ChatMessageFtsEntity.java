@@ -0,0 +1,29 @@
+package com.example.offlinemessenger.db;
+
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.Fts4;
+import androidx.room.PrimaryKey;
+
+/**
+ * Full text index over the content of the messages table.
+ *
+ * The table only holds the index: the content is read from the messages table, matched by
+ * rowid, and Room keeps the index in sync with triggers on inserts, updates and deletes of
+ * messages.  The rowids of the messages table are implicit and VACUUM may renumber them,
+ * so the database is only vacuumed with {@link AppDatabase#vacuum()}, which rebuilds the
+ * index afterwards.
+ */
+@Fts4(contentEntity = ChatMessageEntity.class)
+@Entity(tableName = "messages_fts")
+public class ChatMessageFtsEntity {
+
+    /** The rowid of the message in the messages table. */
+    @PrimaryKey
+    @ColumnInfo(name = "rowid")
+    public int rowId;
+
+    /** The message content. */
+    public String content;
+
+}
@@ -0,0 +1,19 @@
+package com.example.offlinemessenger.db;
+
+import androidx.annotation.NonNull;
+
+import java.util.UUID;
+
+/**
+ * Projection of the messages table onto the columns identifying a message in time.
+ */
+public class ChatMessageKey {
+
+    /** The message id. */
+    @NonNull
+    public UUID id;
+
+    /** The UNIX timestamp in milliseconds this message was sent or received. */
+    public long timestamp;
+
+}
@@ -0,0 +1,20 @@
+package com.example.offlinemessenger.db;
+
+import androidx.room.Embedded;
+
+/**
+ * A message matching a full text search, see {@link ChatMessageDao#search(String, int)}.
+ */
+public class ChatMessageSearchResult {
+
+    /** The matching message. */
+    @Embedded
+    public ChatMessageEntity message;
+
+    /** An excerpt of the content around the matches, with the matches in brackets. */
+    public String snippet;
+
+    /** The number of matched term occurrences in the content, used for ranking. */
+    public int hits;
+
+}
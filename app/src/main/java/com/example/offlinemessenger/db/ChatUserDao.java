@@ -7,6 +7,7 @@ import androidx.room.OnConflictStrategy;
 import androidx.room.Query;
 
 import java.util.List;
+import java.util.UUID;
 
 /**
  * DAO for the users table.
@@ -45,7 +46,7 @@ public interface ChatUserDao {
      * @return The user.
      */
     @Query("SELECT DISTINCT * FROM users WHERE id = :id")
-    ChatUserEntity getById(String id);
+    ChatUserEntity getById(UUID id);
 
     /**
      * Delete a user from the database.
@@ -4,6 +4,8 @@ import androidx.annotation.NonNull;
 import androidx.room.Entity;
 import androidx.room.PrimaryKey;
 
+import java.util.UUID;
+
 /**
  * Column definition for the users table.
  */
@@ -13,7 +15,7 @@ public class ChatUserEntity {
     /** The user ID. */
     @PrimaryKey
     @NonNull
-    public String id;
+    public UUID id;
 
     /** The user name. */
     public String name;
@@ -0,0 +1,52 @@
+package com.example.offlinemessenger.db;
+
+import androidx.room.Dao;
+import androidx.room.Query;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * DAO for the conversations table.  There are no inserts, the rows are maintained by the
+ * triggers on the messages table.
+ */
+@Dao
+public interface ConversationDao {
+
+    /**
+     * Get all conversations, served by the conversations_last_timestamp index without
+     * reading any messages.
+     *
+     * @return The conversations, the one with the latest message first.
+     */
+    @Query(SELECT_ALL)
+    List<ConversationEntity> getAll();
+
+    /** Query of {@link #getAll()}. */
+    String SELECT_ALL = "SELECT * FROM conversations ORDER BY last_timestamp DESC";
+
+    /**
+     * Get the conversation with a specific user.
+     *
+     * @param userId The user id.
+     * @return The conversation, or {@code null} if there are no messages with the user.
+     */
+    @Query(SELECT_BY_USER_ID)
+    ConversationEntity getByUserId(UUID userId);
+
+    /** Query of {@link #getByUserId(UUID)}. */
+    String SELECT_BY_USER_ID = "SELECT * FROM conversations WHERE user_id = :userId";
+
+    /**
+     * Mark all messages of a conversation as read, up to its latest message.
+     *
+     * @param userId The user id.
+     */
+    @Query(UPDATE_READ)
+    void markRead(UUID userId);
+
+    /** Statement of {@link #markRead(UUID)}. */
+    String UPDATE_READ = "UPDATE conversations SET unread_count = 0, "
+            + "read_timestamp = last_timestamp WHERE user_id = :userId";
+
+}
@@ -0,0 +1,68 @@
+package com.example.offlinemessenger.db;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.ForeignKey;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+import java.util.UUID;
+
+/**
+ * Column definition for the conversations table, a summary of the messages exchanged with
+ * each user.
+ *
+ * The rows are maintained by triggers on the messages table, see
+ * {@link AppDatabase#createConversationTriggers}, so they are updated in the same transaction
+ * as every insert and delete of a message and never have to be written by the app.  Reading
+ * the conversation overview only reads this table, however long the histories are.
+ */
+@Entity(
+        foreignKeys = @ForeignKey(
+                entity = ChatUserEntity.class,
+                parentColumns = "id",
+                childColumns = "user_id",
+                onDelete = ForeignKey.CASCADE
+        ),
+        indices = @Index(name = "conversations_last_timestamp", value = "last_timestamp"),
+        tableName = "conversations"
+)
+public class ConversationEntity {
+
+    /** Maximum number of characters of the last message kept as preview. */
+    public static final int PREVIEW_LENGTH = 100;
+
+    /** The user ID the conversation is with. */
+    @PrimaryKey
+    @NonNull
+    @ColumnInfo(name = "user_id")
+    public UUID userId;
+
+    /** The id of the latest message, by (timestamp, id). */
+    @ColumnInfo(name = "last_message_id")
+    public UUID lastMessageId;
+
+    /** The UNIX timestamp in milliseconds of the latest message. */
+    @ColumnInfo(name = "last_timestamp")
+    public long lastTimestamp;
+
+    /** The first {@link #PREVIEW_LENGTH} characters of the latest message. */
+    public String preview;
+
+    /** The number of received messages newer than {@link #readTimestamp}. */
+    @ColumnInfo(name = "unread_count")
+    public int unreadCount;
+
+    /** The number of messages in the conversation. */
+    @ColumnInfo(name = "message_count")
+    public int messageCount;
+
+    /**
+     * The UNIX timestamp in milliseconds of the latest message when the conversation was last
+     * read, see {@link ConversationDao#markRead(UUID)}.
+     */
+    @ColumnInfo(name = "read_timestamp")
+    public long readTimestamp;
+
+}
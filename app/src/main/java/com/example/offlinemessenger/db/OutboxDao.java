@@ -0,0 +1,40 @@
+package com.example.offlinemessenger.db;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+
+import java.util.List;
+
+/**
+ * DAO for the outbox table.
+ */
+@Dao
+public interface OutboxDao {
+
+    /**
+     * Queue a message.
+     *
+     * @param entity The outbox entry.
+     */
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insert(OutboxEntity entity);
+
+    /**
+     * Get all queued messages in the order they have been queued.
+     *
+     * @return The outbox entries.
+     */
+    @Query("SELECT * FROM outbox ORDER BY queued_at ASC, rowid ASC")
+    List<OutboxEntity> getAll();
+
+    /**
+     * Remove a message from the outbox.
+     *
+     * @param id The message id.
+     */
+    @Query("DELETE FROM outbox WHERE id = :id")
+    void deleteById(String id);
+
+}
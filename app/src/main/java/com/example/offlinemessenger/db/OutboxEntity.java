@@ -0,0 +1,27 @@
+package com.example.offlinemessenger.db;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+
+/**
+ * Column definition for the outbox table, holding sent messages the peer has not
+ * acknowledged yet.
+ */
+@Entity(tableName = "outbox")
+public class OutboxEntity {
+
+    /** The message id. */
+    @PrimaryKey
+    @NonNull
+    public String id;
+
+    /** The message in its binary wire encoding. */
+    public byte[] payload;
+
+    /** The UNIX timestamp in milliseconds the message was queued at. */
+    @ColumnInfo(name = "queued_at")
+    public long queuedAt;
+
+}
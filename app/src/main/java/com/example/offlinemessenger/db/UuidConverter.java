@@ -0,0 +1,67 @@
+package com.example.offlinemessenger.db;
+
+import androidx.room.TypeConverter;
+
+import java.util.UUID;
+
+/**
+ * Room type converter storing UUIDs as 16 byte BLOBs.
+ *
+ * The bytes are big endian, so BLOBs compare like the canonical string form did, and the
+ * keyset paging by (timestamp, id) keeps its order.
+ */
+public class UuidConverter {
+
+    /** Length of a UUID in its binary form. */
+    public static final int UUID_BYTES = 16;
+
+    /**
+     * Convert a UUID to its binary form.
+     *
+     * @param uuid The UUID, may be {@code null}.
+     * @return The 16 bytes, or {@code null}.
+     */
+    @TypeConverter
+    public static byte[] toBytes(UUID uuid) {
+        if (uuid == null) {
+            return null;
+        }
+        byte[] bytes = new byte[UUID_BYTES];
+        putLong(bytes, 0, uuid.getMostSignificantBits());
+        putLong(bytes, 8, uuid.getLeastSignificantBits());
+        return bytes;
+    }
+
+    /**
+     * Convert the binary form back to a UUID.
+     *
+     * @param bytes The 16 bytes, may be {@code null}.
+     * @return The UUID, or {@code null}.
+     */
+    @TypeConverter
+    public static UUID fromBytes(byte[] bytes) {
+        if (bytes == null) {
+            return null;
+        }
+        if (bytes.length != UUID_BYTES) {
+            throw new IllegalArgumentException("Invalid UUID length " + bytes.length);
+        }
+        return new UUID(getLong(bytes, 0), getLong(bytes, 8));
+    }
+
+    private static void putLong(byte[] bytes, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static long getLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+}
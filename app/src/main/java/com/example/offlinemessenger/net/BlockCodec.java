@@ -0,0 +1,172 @@
+package com.example.offlinemessenger.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Envelope for the frame batches flushed by a {@link Connection}, optionally deflate compressed.
+ *
+ * <pre>
+ * flags (1) | data length (varint) | [raw length (varint), if deflated] | data
+ * </pre>
+ *
+ * Every block is compressed independently, starting from a preset dictionary of common chat
+ * vocabulary, so short batches compress well without depending on earlier blocks.  The
+ * {@link Deflater} and {@link Inflater} are created on first use, reused for all further
+ * blocks and must be released with {@link #end()}.  Instances are not thread safe; a
+ * connection uses one for each direction.
+ */
+final class BlockCodec {
+
+    /** Block flag: the data is zlib compressed using {@link #DICTIONARY}. */
+    static final int FLAG_DEFLATE = 1;
+
+    /** Upper bound for the (uncompressed) size of a block. */
+    static final int MAX_BLOCK_LENGTH = 4 * 1024 * 1024;
+
+    /**
+     * Preset dictionary for chat text.  Deflate prefers matches near the end of the window,
+     * so the most frequent strings come last.
+     */
+    static final byte[] DICTIONARY = (
+            "thanks tomorrow tonight today later maybe where when what how why please sorry "
+                    + "really good great nice cool love miss call home work meet see you soon "
+                    + "can you do you are you will you have you know I think I am I will I have "
+                    + "ok okay yes no haha lol :) :D :( "
+                    + "the and that this for with not but are was have what your you I "
+    ).getBytes(WireFormat.UTF_8);
+
+    private final int mLevel;
+    private Deflater mDeflater;
+    private Inflater mInflater;
+    private final byte[] mChunk = new byte[4096];
+    private final ByteArrayOutputStream mDeflated = new ByteArrayOutputStream(4096);
+
+    /**
+     * Create a new block codec.
+     *
+     * @param level The deflate compression level.
+     */
+    BlockCodec(int level) {
+        mLevel = level;
+    }
+
+    /**
+     * Write a block, compressing it if requested and worthwhile.
+     *
+     * @param out      The stream to write to.
+     * @param data     The buffer holding the encoded frames.
+     * @param length   The number of valid bytes in the buffer.
+     * @param compress {@code true} to try compressing the block.
+     * @return The number of bytes written to the stream.
+     * @throws IOException If the underlying stream fails.
+     */
+    int write(OutputStream out, byte[] data, int length, boolean compress)
+            throws IOException {
+        if (compress && deflate(data, length) < length) {
+            out.write(FLAG_DEFLATE);
+            WireFormat.writeVarLong(out, mDeflated.size());
+            WireFormat.writeVarLong(out, length);
+            mDeflated.writeTo(out);
+            return 1 + WireFormat.varLongLength(mDeflated.size())
+                    + WireFormat.varLongLength(length) + mDeflated.size();
+        }
+
+        out.write(0);
+        WireFormat.writeVarLong(out, length);
+        out.write(data, 0, length);
+        return 1 + WireFormat.varLongLength(length) + length;
+    }
+
+    /**
+     * Read the next block.
+     *
+     * @param in The stream to read from.
+     * @return The uncompressed block contents.
+     * @throws java.io.EOFException If the stream has ended.
+     * @throws IOException          If the stream fails or the block is malformed.
+     */
+    byte[] read(InputStream in) throws IOException {
+        int flags = WireFormat.readByte(in);
+        int length = WireFormat.readVarInt(in, MAX_BLOCK_LENGTH);
+        if ((flags & FLAG_DEFLATE) == 0) {
+            byte[] data = new byte[length];
+            WireFormat.readFully(in, data, 0, length);
+            return data;
+        }
+
+        int rawLength = WireFormat.readVarInt(in, MAX_BLOCK_LENGTH);
+        byte[] compressed = new byte[length];
+        WireFormat.readFully(in, compressed, 0, length);
+        return inflate(compressed, rawLength);
+    }
+
+    /**
+     * Release the native resources held by the compressor and decompressor.
+     */
+    void end() {
+        if (mDeflater != null) {
+            mDeflater.end();
+        }
+        if (mInflater != null) {
+            mInflater.end();
+        }
+    }
+
+    private int deflate(byte[] data, int length) {
+        if (mDeflater == null) {
+            mDeflater = new Deflater(mLevel);
+        }
+        mDeflated.reset();
+        mDeflater.reset();
+        mDeflater.setDictionary(DICTIONARY);
+        mDeflater.setInput(data, 0, length);
+        mDeflater.finish();
+        while (!mDeflater.finished()) {
+            int n = mDeflater.deflate(mChunk);
+            mDeflated.write(mChunk, 0, n);
+            if (mDeflated.size() >= length) {
+                // incompressible, no point in finishing
+                break;
+            }
+        }
+        return mDeflated.size();
+    }
+
+    private byte[] inflate(byte[] compressed, int rawLength) throws IOException {
+        if (mInflater == null) {
+            mInflater = new Inflater();
+        }
+        byte[] data = new byte[rawLength];
+        mInflater.reset();
+        mInflater.setInput(compressed);
+        int offset = 0;
+        try {
+            while (offset < rawLength) {
+                int n = mInflater.inflate(data, offset, rawLength - offset);
+                if (n == 0) {
+                    if (mInflater.needsDictionary()) {
+                        mInflater.setDictionary(DICTIONARY);
+                    } else if (mInflater.finished() || mInflater.needsInput()) {
+                        break;
+                    }
+                }
+                offset += n;
+            }
+        } catch (DataFormatException e) {
+            throw new StreamCorruptedException("Corrupt compressed block: " + e.getMessage());
+        }
+        if (offset != rawLength) {
+            throw new StreamCorruptedException("Compressed block is truncated");
+        }
+
+        return data;
+    }
+
+}
@@ -0,0 +1,189 @@
+package com.example.offlinemessenger.net;
+
+import java.util.UUID;
+
+/**
+ * A fixed size Bloom filter over UUIDs.  UUIDs are already uniformly distributed, so the
+ * probe positions are derived from their bits by double hashing instead of a hash function.
+ */
+public class BloomFilter {
+
+    private final long[] mBits;
+    private final int mNumBits;
+    private final int mNumHashes;
+    private final long mSeed;
+    private int mCount = 0;
+
+    /**
+     * Create a Bloom filter sized for the given number of entries and false positive rate.
+     *
+     * @param expectedEntries       The number of entries the filter should hold.
+     * @param falsePositiveRate     The false positive rate to expect at that size.
+     */
+    public BloomFilter(int expectedEntries, double falsePositiveRate) {
+        this(expectedEntries, falsePositiveRate, 0);
+    }
+
+    /**
+     * Create a Bloom filter sized for the given number of entries and false positive rate.
+     *
+     * @param expectedEntries       The number of entries the filter should hold.
+     * @param falsePositiveRate     The false positive rate to expect at that size.
+     * @param seed                  The hash seed.  Filters with different seeds produce
+     *                              independent false positives.
+     */
+    public BloomFilter(int expectedEntries, double falsePositiveRate, long seed) {
+        this(optimalNumBits(expectedEntries, falsePositiveRate),
+                optimalNumHashes(expectedEntries, optimalNumBits(expectedEntries, falsePositiveRate)),
+                seed);
+    }
+
+    /**
+     * Create a Bloom filter with explicit dimensions.
+     *
+     * @param numBits   The number of bits.
+     * @param numHashes The number of probes per entry.
+     * @param seed      The hash seed.
+     */
+    public BloomFilter(int numBits, int numHashes, long seed) {
+        this(new long[(checkDimensions(numBits, numHashes) + 63) / 64], numBits, numHashes, seed);
+    }
+
+    /**
+     * Create a Bloom filter over existing bits, e.g. ones received from a peer.
+     *
+     * @param bits      The bits, at least {@code (numBits + 63) / 64} words.
+     * @param numBits   The number of bits.
+     * @param numHashes The number of probes per entry.
+     * @param seed      The hash seed.
+     */
+    BloomFilter(long[] bits, int numBits, int numHashes, long seed) {
+        checkDimensions(numBits, numHashes);
+        if (bits.length < (numBits + 63) / 64) {
+            throw new IllegalArgumentException("Not enough bits for " + numBits);
+        }
+        mBits = bits;
+        mNumBits = numBits;
+        mNumHashes = numHashes;
+        mSeed = seed;
+    }
+
+    /**
+     * Add an entry.
+     *
+     * @param id The entry.
+     */
+    public void add(UUID id) {
+        long h1 = mix(id.getMostSignificantBits() ^ mSeed);
+        long h2 = mix(id.getLeastSignificantBits() ^ Long.rotateLeft(mSeed, 32)) | 1;
+        for (int i = 0; i < mNumHashes; i++) {
+            int bit = index(h1 + i * h2);
+            mBits[bit >>> 6] |= 1L << bit;
+        }
+        mCount++;
+    }
+
+    /**
+     * Check whether an entry may have been added.
+     *
+     * @param id The entry.
+     * @return {@code false} if the entry has definitely not been added.
+     */
+    public boolean mightContain(UUID id) {
+        long h1 = mix(id.getMostSignificantBits() ^ mSeed);
+        long h2 = mix(id.getLeastSignificantBits() ^ Long.rotateLeft(mSeed, 32)) | 1;
+        for (int i = 0; i < mNumHashes; i++) {
+            int bit = index(h1 + i * h2);
+            if ((mBits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the number of {@link #add(UUID)} calls since creation or the last {@link #clear()}.
+     *
+     * @return The entry count.
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Get the number of bits.
+     *
+     * @return The filter size in bits.
+     */
+    public int getNumBits() {
+        return mNumBits;
+    }
+
+    /**
+     * Get the number of probes per entry.
+     *
+     * @return The number of hash functions.
+     */
+    public int getNumHashes() {
+        return mNumHashes;
+    }
+
+    /**
+     * Get the hash seed.
+     *
+     * @return The seed.
+     */
+    public long getSeed() {
+        return mSeed;
+    }
+
+    /**
+     * Get the underlying bits for serialization.  The array must not be modified.
+     *
+     * @return The bits, least significant bit first.
+     */
+    long[] getBits() {
+        return mBits;
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public void clear() {
+        for (int i = 0; i < mBits.length; i++) {
+            mBits[i] = 0;
+        }
+        mCount = 0;
+    }
+
+    private static int checkDimensions(int numBits, int numHashes) {
+        if (numBits < 1 || numHashes < 1) {
+            throw new IllegalArgumentException("Bloom filter dimensions must be positive");
+        }
+        return numBits;
+    }
+
+    private int index(long hash) {
+        return (int) ((hash & Long.MAX_VALUE) % mNumBits);
+    }
+
+    /** The finalizer of MurmurHash3, spreading all input bits over the output. */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static int optimalNumBits(int entries, double falsePositiveRate) {
+        double bits = -Math.max(entries, 1) * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        return (int) Math.max(64, Math.min(Integer.MAX_VALUE - 63, Math.ceil(bits)));
+    }
+
+    private static int optimalNumHashes(int entries, int numBits) {
+        return Math.max(1, (int) Math.round((double) numBits / Math.max(entries, 1) * Math.log(2)));
+    }
+
+}
@@ -0,0 +1,671 @@
+package com.example.offlinemessenger.net;
+
+import com.example.offlinemessenger.data.Sendable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
+
+/**
+ * Full duplex frame exchange with a single peer, independent of the underlying transport.
+ *
+ * Incoming frames are read by a dedicated reader thread, while a separate writer thread blocks
+ * on the outbound queue and transmits a frame as soon as it has been enqueued by
+ * {@link #send(Sendable)}.  Neither direction ever waits for the other.
+ *
+ * The writer drains everything that is queued into one batch and flushes it with a single
+ * write to the transport, bounded by the limits of the {@link ConnectionConfig}.
+ *
+ * Both peers start by exchanging a {@link Hello} advertising their capabilities.  If both of
+ * them support it, batches above the configured threshold are sent deflate compressed.
+ *
+ * The outbound queue is a {@link FrameScheduler} with one lane per kind of traffic: control
+ * frames go first, chat and bulk traffic share the link by weight.  If both peers support
+ * it, large frames are sent in fragments, and a flush carries at most about one fragment of
+ * bulk data, so a transfer holds up a chat message for no longer than one fragment takes.
+ *
+ * The queue is bounded, see {@link ConnectionConfig.OverflowPolicy}.  If both peers support
+ * it, each side grants the other credit for a receive window of chat and bulk frames, and
+ * grants more once received frames have been handled.  A receiver that falls behind thus
+ * stops the sender's queue from draining, and the sender is told through its
+ * {@link BackpressureListener}.
+ *
+ * Connections created with an {@link Executor} do not own any threads.  The reader runs as a
+ * long lived task on the executor, and instead of a blocking writer thread, a drain task is
+ * submitted whenever frames are queued while no drain is running.  This allows many
+ * connections to share one bounded pool, see {@link ConnectionManager}.
+ */
+public class Connection {
+
+    /**
+     * Callback interface for connection events.  Callbacks are invoked on the I/O threads.
+     */
+    public interface Listener {
+
+        /**
+         * Called for every sendable received from the peer.
+         *
+         * @param connection The connection the sendable was received on.
+         * @param s          The sendable.
+         */
+        void onSendableReceived(Connection connection, Sendable s);
+
+        /**
+         * Called exactly once after the connection has been closed,
+         * either locally, by the peer or because of an I/O error.
+         *
+         * @param connection The closed connection.
+         */
+        void onClosed(Connection connection);
+
+    }
+
+    /**
+     * Handler for protocol extension frames, see {@link #setFrameHandler(int, FrameHandler)}.
+     */
+    public interface FrameHandler {
+
+        /**
+         * Called on the reader thread for every frame of the registered type.
+         *
+         * @param connection The connection the frame was received on.
+         * @param frame      The frame.
+         * @throws IOException If the frame is malformed, which closes the connection.
+         */
+        void onFrameReceived(Connection connection, Frame frame) throws IOException;
+
+    }
+
+    /**
+     * Takes frames the outbound queue has no room for, see
+     * {@link ConnectionConfig.OverflowPolicy#SPILL}.
+     */
+    public interface OverflowHandler {
+
+        /**
+         * Called on the sending thread for a frame that does not fit into the outbound queue.
+         *
+         * @param connection The connection the frame was sent on.
+         * @param frame      The frame.
+         * @return {@code true} if the frame has been taken care of, e.g. persisted to be sent
+         *         later; {@code false} to wait for room in the queue instead.
+         */
+        boolean onOverflow(Connection connection, Frame frame);
+
+    }
+
+    /**
+     * Callback interface for the state of the outbound queue.
+     */
+    public interface BackpressureListener {
+
+        /**
+         * Called when the outbound queue becomes full, and when it has drained to half its
+         * bound again.  Invoked on the sending or the writing thread, one call at a time and
+         * without holding any lock of the connection.
+         *
+         * @param connection The connection.
+         * @param congested  {@code true} if the queue is full.
+         */
+        void onBackpressureChanged(Connection connection, boolean congested);
+
+    }
+
+    private final Transport.Channel mChannel;
+    private final Listener mListener;
+    private final OutputStream mOut;
+    private final InputStream mIn;
+    private final ConnectionConfig mConfig;
+    private final ConnectionStats mStats = new ConnectionStats();
+
+    /** Frames waiting for the writer thread. */
+    private final FrameScheduler mQueue;
+    /** Frames being received in fragments, confined to the reader. */
+    private final FrameAssembler mAssembler = new FrameAssembler();
+    /** Bytes received since credit has last been granted, confined to the reader. */
+    private long mConsumed = 0;
+    private final Object mBackpressureLock = new Object();
+    /** Whether a thread is reporting congestion changes, guarded by mBackpressureLock. */
+    private boolean mNotifyingBackpressure = false;
+    private volatile OverflowHandler mOverflowHandler;
+    private volatile BackpressureListener mBackpressureListener;
+    /** Handlers for frame types other than sendables. */
+    private final Map<Integer, FrameHandler> mFrameHandlers = new ConcurrentHashMap<>();
+    private final AtomicBoolean mClosed = new AtomicBoolean(false);
+
+    /** Released by the reader once the peer's hello has been received. */
+    private final CountDownLatch mHandshake = new CountDownLatch(1);
+    /** The capabilities offered by both peers, valid after {@link #mHandshake} is released. */
+    private volatile long mCapabilities;
+
+    /** Runs the reader and drain tasks, or {@code null} for dedicated threads. */
+    private final Executor mExecutor;
+    private final Thread mReader;
+    private final Thread mWriter;
+
+    // writer state of pooled connections, handed between drain tasks through mDraining
+    private final AtomicBoolean mDraining = new AtomicBoolean(false);
+    private boolean mHelloSent = false;
+    private BlockCodec mWriteCodec;
+    private FrameBuffer mWriteBatch;
+
+    /**
+     * Create a new connection with the default configuration.
+     * No I/O happens before {@link #start()} is called.
+     *
+     * @param channel  The channel to the peer.
+     * @param listener The listener to notify about incoming sendables.
+     * @throws IOException If the channel streams are unavailable.
+     */
+    public Connection(Transport.Channel channel, Listener listener) throws IOException {
+        this(channel, listener, new ConnectionConfig());
+    }
+
+    /**
+     * Create a new connection on top of an established channel.
+     * No I/O happens before {@link #start()} is called.
+     *
+     * @param channel  The channel to the peer.
+     * @param listener The listener to notify about incoming sendables.
+     * @param config   The connection parameters.
+     * @throws IOException If the channel streams are unavailable.
+     */
+    public Connection(Transport.Channel channel, Listener listener, ConnectionConfig config)
+            throws IOException {
+        this(channel, listener, config, null);
+    }
+
+    /**
+     * Create a new connection whose I/O runs on a shared executor.  The executor must be able
+     * to run the reader, which blocks for the lifetime of the connection, alongside the short
+     * drain tasks of all connections sharing it.
+     * No I/O happens before {@link #start()} is called.
+     *
+     * @param channel  The channel to the peer.
+     * @param listener The listener to notify about incoming sendables.
+     * @param config   The connection parameters.
+     * @param executor The executor for the I/O tasks, or {@code null} for dedicated threads.
+     * @throws IOException If the channel streams are unavailable.
+     */
+    public Connection(Transport.Channel channel, Listener listener, ConnectionConfig config,
+                      Executor executor) throws IOException {
+        mChannel = channel;
+        mListener = listener;
+        mConfig = config;
+        mExecutor = executor;
+        mQueue = new FrameScheduler(config, mStats);
+        mOut = channel.getOutputStream();
+        mIn = channel.getInputStream();
+        mReader = executor == null ? new Thread(this::readLoop) : null;
+        mWriter = executor == null ? new Thread(this::writeLoop) : null;
+    }
+
+    /**
+     * Get the transport address of the peer.
+     *
+     * @return The peer address.
+     */
+    public String getPeerAddress() {
+        return mChannel.getPeerAddress();
+    }
+
+    /**
+     * Get the traffic counters of this connection.
+     *
+     * @return The statistics.
+     */
+    public ConnectionStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Return whether frame batches sent on this connection may be compressed.
+     * This is only known once the handshake has completed.
+     *
+     * @return {@code true} if both peers have agreed to use compression.
+     */
+    public boolean isCompressionActive() {
+        return (mCapabilities & Hello.CAP_DEFLATE) != 0;
+    }
+
+    /**
+     * Return whether large frames sent on this connection may be fragmented.
+     * This is only known once the handshake has completed.
+     *
+     * @return {@code true} if both peers support fragmentation.
+     */
+    public boolean isFragmentationActive() {
+        return (mCapabilities & Hello.CAP_FRAGMENT) != 0;
+    }
+
+    /**
+     * Return whether flow control is used on this connection.
+     * This is only known once the handshake has completed.
+     *
+     * @return {@code true} if both peers grant each other credit.
+     */
+    public boolean isFlowControlActive() {
+        return (mCapabilities & Hello.CAP_CREDIT) != 0;
+    }
+
+    /**
+     * Set the handler taking frames the outbound queue has no room for.  Only used with
+     * {@link ConnectionConfig.OverflowPolicy#SPILL}.
+     *
+     * @param handler The handler, or {@code null} to block instead.
+     */
+    public void setOverflowHandler(OverflowHandler handler) {
+        mOverflowHandler = handler;
+    }
+
+    /**
+     * Set the listener to notify when the outbound queue fills up and drains again.
+     *
+     * @param listener The listener, or {@code null} for none.
+     */
+    public void setBackpressureListener(BackpressureListener listener) {
+        mBackpressureListener = listener;
+    }
+
+    /**
+     * Start the reader and writer threads.
+     */
+    public void start() {
+        if (mExecutor != null) {
+            try {
+                mExecutor.execute(this::readLoop);
+            } catch (RejectedExecutionException e) {
+                close();
+                return;
+            }
+            scheduleDrain();
+            return;
+        }
+
+        mReader.setName("Connection-reader-" + getPeerAddress());
+        mWriter.setName("Connection-writer-" + getPeerAddress());
+        mReader.start();
+        mWriter.start();
+    }
+
+    /**
+     * Queue a sendable for transmission.  The writer thread picks it up immediately.
+     *
+     * @param s The sendable.
+     * @return {@code false} if the connection has already been closed.
+     */
+    public boolean send(Sendable s) {
+        return send(SendableCodec.toFrame(s));
+    }
+
+    /**
+     * Queue a frame for transmission.  If the outbound queue is full, the frame is handled
+     * according to the {@link ConnectionConfig#getOverflowPolicy() overflow policy}, which
+     * may block the caller.
+     *
+     * @param frame The frame.
+     * @return {@code false} if the connection has already been closed, or the frame has been
+     *         refused because the queue was full.
+     */
+    public boolean send(Frame frame) {
+        if (mClosed.get()) {
+            return false;
+        }
+        boolean queued = mQueue.offer(frame);
+        notifyBackpressure();
+        if (!queued) {
+            return overflow(frame);
+        }
+        if (mExecutor != null) {
+            scheduleDrain();
+        }
+        return true;
+    }
+
+    /**
+     * Register the handler for a protocol extension frame type.  Frames of types without a
+     * handler are dropped.  Handlers should be registered before {@link #start()} so no
+     * frame is missed.
+     *
+     * @param type    The frame type.
+     * @param handler The handler, or {@code null} to remove the current one.
+     */
+    public void setFrameHandler(int type, FrameHandler handler) {
+        if (handler == null) {
+            mFrameHandlers.remove(type);
+        } else {
+            mFrameHandlers.put(type, handler);
+        }
+    }
+
+    /**
+     * Return whether the connection has been closed.
+     *
+     * @return {@code true} if the connection is closed.
+     */
+    public boolean isClosed() {
+        return mClosed.get();
+    }
+
+    /**
+     * Close the connection.  Frames still waiting in the outbound queue are discarded.
+     */
+    public void close() {
+        if (!mClosed.compareAndSet(false, true)) {
+            return;
+        }
+
+        mChannel.close();
+        mQueue.close();
+        if (mExecutor == null) {
+            mWriter.interrupt();
+        } else if (mDraining.compareAndSet(false, true)) {
+            // no drain is running and none will be scheduled again
+            releaseWriter();
+        }
+        mListener.onClosed(this);
+    }
+
+    private void readLoop() {
+        BlockCodec codec = new BlockCodec(Deflater.DEFAULT_COMPRESSION);
+        try {
+            Hello hello = Hello.readFrom(mIn);
+            mCapabilities = hello.mCapabilities & localCapabilities();
+            if (isFlowControlActive()) {
+                mQueue.setWindow(hello.mReceiveWindow);
+            }
+            mHandshake.countDown();
+            if (mExecutor != null) {
+                scheduleDrain();
+            }
+
+            while (!mClosed.get()) {
+                byte[] data = codec.read(mIn);
+                mStats.onBlockRead(data.length);
+                InputStream block = new ByteArrayInputStream(data);
+                while (block.available() > 0) {
+                    int available = block.available();
+                    Frame frame = Frame.readFrom(block);
+                    mStats.onFrameRead();
+                    if (frame != null) {
+                        dispatch(frame);
+                    }
+                    if (frame == null || frame.getLane() != Frame.LANE_CONTROL) {
+                        consumed(available - block.available());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // peer went away or we have been closed
+        } finally {
+            codec.end();
+            close();
+        }
+    }
+
+    private void writeLoop() {
+        mWriteCodec = new BlockCodec(Deflater.DEFAULT_COMPRESSION);
+        mWriteBatch = new FrameBuffer(mConfig.getMaxBatchBytes());
+        try {
+            writeHello();
+            mHandshake.await();
+
+            while (!mClosed.get()) {
+                writeBatch(mQueue.take(isFragmentationActive()));
+            }
+        } catch (IOException | InterruptedException e) {
+            // peer went away or we have been closed
+        } finally {
+            releaseWriter();
+            close();
+        }
+    }
+
+    private void scheduleDrain() {
+        if (!mClosed.get() && mDraining.compareAndSet(false, true)) {
+            try {
+                mExecutor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                mDraining.set(false);
+                close();
+            }
+        }
+    }
+
+    /**
+     * Write everything that is queued, the pooled counterpart of {@link #writeLoop()}.
+     * Only one drain task runs at a time.
+     */
+    private void drain() {
+        try {
+            if (!mHelloSent) {
+                mWriteCodec = new BlockCodec(Deflater.DEFAULT_COMPRESSION);
+                mWriteBatch = new FrameBuffer(mConfig.getMaxBatchBytes());
+                writeHello();
+                mHelloSent = true;
+            }
+            if (mHandshake.getCount() == 0) {
+                Frame frame;
+                while (!mClosed.get() && (frame = mQueue.poll(isFragmentationActive())) != null) {
+                    writeBatch(frame);
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            close();
+        }
+
+        mDraining.set(false);
+        if (mClosed.get()) {
+            if (mDraining.compareAndSet(false, true)) {
+                releaseWriter();
+            }
+        } else if (mQueue.isReady(isFragmentationActive()) && mHandshake.getCount() == 0) {
+            // a frame queued while we were finishing did not schedule a drain
+            scheduleDrain();
+        }
+    }
+
+    private void writeHello() throws IOException {
+        new Hello(localCapabilities(), mConfig.getReceiveWindowBytes()).writeTo(mOut);
+        mOut.flush();
+    }
+
+    /**
+     * Write one batch, starting with the given frame and coalescing whatever else is queued.
+     *
+     * @param frame The first frame of the batch.
+     */
+    private void writeBatch(Frame frame) throws IOException, InterruptedException {
+        int frames = 0;
+        long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(mConfig.getMaxLingerMillis());
+        while (frame != null) {
+            frame.writeTo(mWriteBatch);
+            frames++;
+            if (frames >= mConfig.getMaxBatchFrames()
+                    || mWriteBatch.size() >= mConfig.getMaxBatchBytes()) {
+                break;
+            }
+            if (frame.getLane() == Frame.LANE_BULK
+                    && mWriteBatch.size() >= mConfig.getFragmentBytes()) {
+                // let frames queued on other lanes meanwhile go out with the next flush
+                break;
+            }
+            frame = nextForBatch(deadline);
+        }
+
+        int written = mWriteCodec.write(
+                mOut,
+                mWriteBatch.getBuffer(),
+                mWriteBatch.size(),
+                isCompressionActive() && mWriteBatch.size() >= mConfig.getCompressionThreshold()
+        );
+        mOut.flush();
+        mStats.onFlush(frames, mWriteBatch.size(), written);
+        mWriteBatch.reset();
+        notifyBackpressure();
+    }
+
+    /**
+     * Handle a frame the outbound queue has no room for.
+     *
+     * @param frame The frame.
+     * @return Whether the frame has been queued or spilled.
+     */
+    private boolean overflow(Frame frame) {
+        ConnectionConfig.OverflowPolicy policy = mConfig.getOverflowPolicy();
+        if (policy == ConnectionConfig.OverflowPolicy.REJECT) {
+            mStats.onRejected();
+            return false;
+        }
+        OverflowHandler handler = mOverflowHandler;
+        if (policy == ConnectionConfig.OverflowPolicy.SPILL && handler != null
+                && handler.onOverflow(this, frame)) {
+            mStats.onSpilled();
+            return true;
+        }
+
+        long start = System.nanoTime();
+        boolean queued;
+        try {
+            queued = mQueue.offer(frame, mConfig.getBlockTimeoutMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            queued = false;
+        }
+        mStats.onBlocked(System.nanoTime() - start);
+        if (!queued) {
+            mStats.onRejected();
+            return false;
+        }
+        if (mExecutor != null) {
+            scheduleDrain();
+        }
+        return true;
+    }
+
+    /**
+     * Report changes of the congestion state to the listener, in order and one at a time, but
+     * without holding the lock: the listener may call into code that sends on this connection
+     * while holding locks of its own.
+     */
+    private void notifyBackpressure() {
+        synchronized (mBackpressureLock) {
+            if (mNotifyingBackpressure) {
+                // the notifying thread polls again before it stops, and sees this change
+                return;
+            }
+            mNotifyingBackpressure = true;
+        }
+        try {
+            while (true) {
+                Boolean congested;
+                synchronized (mBackpressureLock) {
+                    congested = mQueue.pollCongestionChange();
+                    if (congested == null) {
+                        mNotifyingBackpressure = false;
+                        return;
+                    }
+                }
+                BackpressureListener listener = mBackpressureListener;
+                if (listener != null) {
+                    listener.onBackpressureChanged(this, congested);
+                }
+            }
+        } catch (RuntimeException e) {
+            synchronized (mBackpressureLock) {
+                mNotifyingBackpressure = false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Account for received chat or bulk bytes that have been handled, and grant the peer
+     * credit once a quarter of the window has been used up.
+     *
+     * @param bytes The encoded length of the frame.
+     */
+    private void consumed(int bytes) {
+        if (!isFlowControlActive()) {
+            return;
+        }
+        mConsumed += bytes;
+        if (mConsumed >= mConfig.getReceiveWindowBytes() / 4) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream(5);
+            try {
+                WireFormat.writeVarLong(body, mConsumed);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            send(new Frame(Frame.TYPE_CREDIT, body.toByteArray()));
+            mConsumed = 0;
+        }
+    }
+
+    private void releaseWriter() {
+        if (mWriteCodec != null) {
+            mWriteCodec.end();
+            mWriteCodec = null;
+        }
+    }
+
+    private void dispatch(Frame frame) throws IOException {
+        if (frame.getType() == Frame.TYPE_CREDIT) {
+            mQueue.addCredit(WireFormat.readVarLong(frame.openBody()));
+            if (mExecutor != null) {
+                scheduleDrain();
+            }
+            return;
+        }
+        if (frame.getType() == Frame.TYPE_FRAGMENT) {
+            frame = mAssembler.add(frame);
+            if (frame == null) {
+                return;
+            }
+        }
+        if (frame.isSendable()) {
+            mListener.onSendableReceived(this, SendableCodec.fromFrame(frame));
+            return;
+        }
+
+        FrameHandler handler = mFrameHandlers.get(frame.getType());
+        if (handler != null) {
+            handler.onFrameReceived(this, frame);
+        }
+    }
+
+    private long localCapabilities() {
+        return Hello.CAP_FRAGMENT | Hello.CAP_CREDIT
+                | (mConfig.isCompressionEnabled() ? Hello.CAP_DEFLATE : 0);
+    }
+
+    /**
+     * Get the next frame to add to the current batch, lingering until the deadline
+     * if the queue is empty.
+     *
+     * @param deadline The {@link System#nanoTime()} at which the batch must be flushed.
+     * @return The next frame, or {@code null} if the batch is complete.
+     */
+    private Frame nextForBatch(long deadline) throws InterruptedException {
+        Frame frame = mQueue.poll(isFragmentationActive());
+        if (frame == null) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining > 0) {
+                frame = mQueue.poll(isFragmentationActive(), remaining, TimeUnit.NANOSECONDS);
+            }
+        }
+        return frame;
+    }
+
+}
@@ -0,0 +1,328 @@
+package com.example.offlinemessenger.net;
+
+/**
+ * Tunable parameters of a {@link Connection}.
+ * The defaults favour interactive chat; bulk transfers such as history sync profit from
+ * larger batches and a non-zero linger time.
+ */
+public class ConnectionConfig {
+
+    /**
+     * What {@link Connection#send(Frame)} does with a frame while the outbound queue is full.
+     */
+    public enum OverflowPolicy {
+        /** Wait for room, up to the block timeout, then refuse the frame. */
+        BLOCK,
+        /**
+         * Hand the frame to the connection's {@link Connection.OverflowHandler}, which may
+         * persist it for later; frames it does not take are treated as with {@link #BLOCK}.
+         */
+        SPILL,
+        /** Refuse the frame right away. */
+        REJECT
+    }
+
+    /** Default maximum number of frames coalesced into a single flush. */
+    public static final int DEFAULT_MAX_BATCH_FRAMES = 64;
+    /** Default maximum number of bytes coalesced into a single flush. */
+    public static final int DEFAULT_MAX_BATCH_BYTES = 16 * 1024;
+    /** Largest accepted value for {@link #setMaxBatchBytes(int)}. */
+    public static final int MAX_BATCH_BYTES = 1024 * 1024;
+    /** Default time to wait for more frames before flushing a batch. */
+    public static final long DEFAULT_MAX_LINGER_MILLIS = 0;
+    /** Default size below which batches are sent uncompressed. */
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 96;
+    /** Default size of the pieces large frames are split into. */
+    public static final int DEFAULT_FRAGMENT_BYTES = 4 * 1024;
+    /** Smallest accepted value for {@link #setFragmentBytes(int)}. */
+    public static final int MIN_FRAGMENT_BYTES = 256;
+    /** Default share of the interactive lane in the bandwidth left by control frames. */
+    public static final int DEFAULT_INTERACTIVE_WEIGHT = 4;
+    /** Default share of the bulk lane in the bandwidth left by control frames. */
+    public static final int DEFAULT_BULK_WEIGHT = 1;
+    /** Default bound of the outbound queue. */
+    public static final int DEFAULT_MAX_QUEUED_BYTES = 1024 * 1024;
+    /** Default time {@link OverflowPolicy#BLOCK} waits for room in the outbound queue. */
+    public static final long DEFAULT_BLOCK_TIMEOUT_MILLIS = 10000;
+    /** Default number of bytes the peer may send before waiting for more credit. */
+    public static final int DEFAULT_RECEIVE_WINDOW_BYTES = 256 * 1024;
+
+    private int mMaxBatchFrames = DEFAULT_MAX_BATCH_FRAMES;
+    private int mMaxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+    private long mMaxLingerMillis = DEFAULT_MAX_LINGER_MILLIS;
+    private boolean mCompressionEnabled = true;
+    private int mCompressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+    private int mFragmentBytes = DEFAULT_FRAGMENT_BYTES;
+    private int mInteractiveWeight = DEFAULT_INTERACTIVE_WEIGHT;
+    private int mBulkWeight = DEFAULT_BULK_WEIGHT;
+    private int mMaxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
+    private OverflowPolicy mOverflowPolicy = OverflowPolicy.BLOCK;
+    private long mBlockTimeoutMillis = DEFAULT_BLOCK_TIMEOUT_MILLIS;
+    private int mReceiveWindowBytes = DEFAULT_RECEIVE_WINDOW_BYTES;
+
+    /**
+     * Get the maximum number of frames written before the output is flushed.
+     *
+     * @return The frame limit per flush.
+     */
+    public int getMaxBatchFrames() {
+        return mMaxBatchFrames;
+    }
+
+    /**
+     * Set the maximum number of frames written before the output is flushed.
+     *
+     * @param maxBatchFrames The frame limit per flush, at least 1.
+     */
+    public void setMaxBatchFrames(int maxBatchFrames) {
+        if (maxBatchFrames < 1) {
+            throw new IllegalArgumentException("maxBatchFrames must be positive");
+        }
+        mMaxBatchFrames = maxBatchFrames;
+    }
+
+    /**
+     * Get the number of bytes after which a batch is flushed even if more frames are queued.
+     *
+     * @return The byte limit per flush.
+     */
+    public int getMaxBatchBytes() {
+        return mMaxBatchBytes;
+    }
+
+    /**
+     * Set the number of bytes after which a batch is flushed even if more frames are queued.
+     * A single frame larger than this is still sent, in a batch of its own.
+     *
+     * @param maxBatchBytes The byte limit per flush, at least 1.
+     */
+    public void setMaxBatchBytes(int maxBatchBytes) {
+        if (maxBatchBytes < 1 || maxBatchBytes > MAX_BATCH_BYTES) {
+            throw new IllegalArgumentException("maxBatchBytes out of range");
+        }
+        mMaxBatchBytes = maxBatchBytes;
+    }
+
+    /**
+     * Get the time the writer waits for further frames before flushing an incomplete batch.
+     *
+     * @return The linger time in milliseconds.
+     */
+    public long getMaxLingerMillis() {
+        return mMaxLingerMillis;
+    }
+
+    /**
+     * Set the time the writer waits for further frames before flushing an incomplete batch.
+     * {@code 0} flushes as soon as the queue is empty, which gives the lowest latency.
+     *
+     * @param maxLingerMillis The linger time in milliseconds.
+     */
+    public void setMaxLingerMillis(long maxLingerMillis) {
+        if (maxLingerMillis < 0) {
+            throw new IllegalArgumentException("maxLingerMillis must not be negative");
+        }
+        mMaxLingerMillis = maxLingerMillis;
+    }
+
+    /**
+     * Return whether compression of frame batches is offered to the peer.
+     *
+     * @return {@code true} if compression is offered.
+     */
+    public boolean isCompressionEnabled() {
+        return mCompressionEnabled;
+    }
+
+    /**
+     * Set whether compression of frame batches is offered to the peer.  Compression is only
+     * used if both peers offer it during the handshake.
+     *
+     * @param compressionEnabled {@code true} to offer compression.
+     */
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        mCompressionEnabled = compressionEnabled;
+    }
+
+    /**
+     * Get the batch size below which no compression is attempted.
+     *
+     * @return The threshold in bytes.
+     */
+    public int getCompressionThreshold() {
+        return mCompressionThreshold;
+    }
+
+    /**
+     * Set the batch size below which no compression is attempted.  Tiny batches rarely
+     * shrink enough to be worth the CPU time.
+     *
+     * @param compressionThreshold The threshold in bytes.
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        if (compressionThreshold < 0) {
+            throw new IllegalArgumentException("compressionThreshold must not be negative");
+        }
+        mCompressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Get the size of the pieces large frames are split into.
+     *
+     * @return The fragment size in bytes.
+     */
+    public int getFragmentBytes() {
+        return mFragmentBytes;
+    }
+
+    /**
+     * Set the size of the pieces large frames are split into.  This bounds the time a bulk
+     * frame can hold up a chat message: each flush carries at most about one fragment worth
+     * of bulk data.  Smaller fragments lower the latency of chat traffic during transfers,
+     * larger ones compress better and cost fewer flushes.
+     *
+     * @param fragmentBytes The fragment size in bytes.
+     */
+    public void setFragmentBytes(int fragmentBytes) {
+        if (fragmentBytes < MIN_FRAGMENT_BYTES || fragmentBytes > Frame.MAX_LENGTH) {
+            throw new IllegalArgumentException("fragmentBytes out of range");
+        }
+        mFragmentBytes = fragmentBytes;
+    }
+
+    /**
+     * Get the weight of the interactive lane in the fair scheduling against the bulk lane.
+     *
+     * @return The weight.
+     */
+    public int getInteractiveWeight() {
+        return mInteractiveWeight;
+    }
+
+    /**
+     * Set the weight of the interactive lane in the fair scheduling against the bulk lane.
+     * While both lanes are busy, each gets a share of the bandwidth left by control frames
+     * proportional to its weight.
+     *
+     * @param interactiveWeight The weight, at least 1.
+     */
+    public void setInteractiveWeight(int interactiveWeight) {
+        if (interactiveWeight < 1) {
+            throw new IllegalArgumentException("interactiveWeight must be positive");
+        }
+        mInteractiveWeight = interactiveWeight;
+    }
+
+    /**
+     * Get the weight of the bulk lane in the fair scheduling against the interactive lane.
+     *
+     * @return The weight.
+     */
+    public int getBulkWeight() {
+        return mBulkWeight;
+    }
+
+    /**
+     * Set the weight of the bulk lane in the fair scheduling against the interactive lane.
+     *
+     * @param bulkWeight The weight, at least 1.
+     * @see #setInteractiveWeight(int)
+     */
+    public void setBulkWeight(int bulkWeight) {
+        if (bulkWeight < 1) {
+            throw new IllegalArgumentException("bulkWeight must be positive");
+        }
+        mBulkWeight = bulkWeight;
+    }
+
+    /**
+     * Get the number of bytes of chat and bulk frames the outbound queue holds at most.
+     *
+     * @return The queue bound in bytes.
+     */
+    public int getMaxQueuedBytes() {
+        return mMaxQueuedBytes;
+    }
+
+    /**
+     * Set the number of bytes of chat and bulk frames the outbound queue holds at most.
+     * Control frames are small and always queued.  Once the bound is reached, further frames
+     * are handled according to the {@link #getOverflowPolicy() overflow policy}.
+     *
+     * @param maxQueuedBytes The queue bound in bytes, at least 1.
+     */
+    public void setMaxQueuedBytes(int maxQueuedBytes) {
+        if (maxQueuedBytes < 1) {
+            throw new IllegalArgumentException("maxQueuedBytes must be positive");
+        }
+        mMaxQueuedBytes = maxQueuedBytes;
+    }
+
+    /**
+     * Get what happens to frames sent while the outbound queue is full.
+     *
+     * @return The overflow policy.
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return mOverflowPolicy;
+    }
+
+    /**
+     * Set what happens to frames sent while the outbound queue is full.
+     *
+     * @param overflowPolicy The overflow policy.
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        if (overflowPolicy == null) {
+            throw new IllegalArgumentException("overflowPolicy must not be null");
+        }
+        mOverflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Get the time {@link OverflowPolicy#BLOCK} waits for room in the outbound queue.
+     *
+     * @return The timeout in milliseconds.
+     */
+    public long getBlockTimeoutMillis() {
+        return mBlockTimeoutMillis;
+    }
+
+    /**
+     * Set the time {@link OverflowPolicy#BLOCK} waits for room in the outbound queue before
+     * the frame is refused.  The timeout keeps two peers forwarding to each other from
+     * blocking forever.
+     *
+     * @param blockTimeoutMillis The timeout in milliseconds.
+     */
+    public void setBlockTimeoutMillis(long blockTimeoutMillis) {
+        if (blockTimeoutMillis < 0) {
+            throw new IllegalArgumentException("blockTimeoutMillis must not be negative");
+        }
+        mBlockTimeoutMillis = blockTimeoutMillis;
+    }
+
+    /**
+     * Get the number of bytes the peer may send before it has to wait for more credit.
+     *
+     * @return The receive window in bytes.
+     */
+    public int getReceiveWindowBytes() {
+        return mReceiveWindowBytes;
+    }
+
+    /**
+     * Set the number of bytes of chat and bulk frames the peer may send before it has to wait
+     * for more credit.  Credit is granted back as received frames have been handled, so a
+     * slow receiver makes the sender's queue fill up instead of buffers along the way.
+     *
+     * @param receiveWindowBytes The receive window in bytes, at least one fragment.
+     */
+    public void setReceiveWindowBytes(int receiveWindowBytes) {
+        if (receiveWindowBytes < MIN_FRAGMENT_BYTES) {
+            throw new IllegalArgumentException("receiveWindowBytes out of range");
+        }
+        mReceiveWindowBytes = receiveWindowBytes;
+    }
+
+}
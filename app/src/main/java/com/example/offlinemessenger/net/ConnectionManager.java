@@ -0,0 +1,352 @@
+package com.example.offlinemessenger.net;
+
+import com.example.offlinemessenger.data.Sendable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Concurrent sessions with any number of peers, up to a fixed limit.
+ *
+ * The manager keeps accepting incoming channels for as long as it is listening, and opens
+ * outgoing ones on request.  Every session is a {@link Connection} running on one shared,
+ * bounded thread pool: each connection occupies a pool thread with its reader, and the
+ * remaining threads run the short drain tasks writing the outbound queues of all connections.
+ * Sessions beyond the limit are refused, so the pool can never be exhausted by readers.
+ *
+ * Once the peer of a session has identified itself through
+ * {@link #setUserId(Connection, UUID)}, the session can be looked up by user id.
+ *
+ * Outgoing sessions are kept up until {@link #disconnect(String)} is called: if the channel
+ * cannot be opened or drops, the manager dials again after an exponentially growing delay
+ * with random jitter, so peers coming back into range do not all retry in lockstep.
+ */
+public class ConnectionManager {
+
+    /** Default maximum number of concurrent sessions. */
+    public static final int DEFAULT_MAX_SESSIONS = 64;
+    /** Pool threads available for drain tasks on top of one per session. */
+    private static final int DRAIN_THREADS = 4;
+    /** Time after which an idle pool thread terminates. */
+    private static final long IDLE_THREAD_SECONDS = 30;
+    /** Upper bound of the delay before the first attempt to reconnect. */
+    private static final long RECONNECT_BASE_MILLIS = 500;
+    /** Upper bound of the delay between attempts to reconnect. */
+    private static final long RECONNECT_MAX_MILLIS = 30000;
+    /** Number of failed attempts after which an outgoing session is given up. */
+    private static final int MAX_RECONNECT_ATTEMPTS = 12;
+
+    /**
+     * Callback interface for session events.  Callbacks are invoked on pool threads.
+     */
+    public interface Listener extends Connection.Listener {
+
+        /**
+         * Called for every new session before its connection is started, so protocol
+         * handlers can be attached without missing a frame.
+         *
+         * @param connection The new connection.
+         */
+        void onConnectionOpened(Connection connection);
+
+    }
+
+    private final Transport mTransport;
+    private final Listener mListener;
+    private final ConnectionConfig mConfig;
+    private final int mMaxSessions;
+    private final ScheduledThreadPoolExecutor mExecutor;
+    private final Random mRandom = new Random();
+
+    /** Open sessions; only added to while holding the lock, to enforce the limit. */
+    private final Set<Connection> mConnections =
+            Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+    private final Map<UUID, Connection> mByUser = new ConcurrentHashMap<>();
+    /** Addresses we keep outgoing sessions with. */
+    private final Set<String> mDialed =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    /** The address every outgoing session has been opened to. */
+    private final Map<Connection, String> mOutgoing = new ConcurrentHashMap<>();
+    private final AtomicInteger mRefused = new AtomicInteger();
+    private final AtomicInteger mReconnectAttempts = new AtomicInteger();
+
+    // guarded by this
+    private Transport.Acceptor mAcceptor;
+    private boolean mShutdown = false;
+
+    /**
+     * Create a manager with the default session limit.
+     *
+     * @param transport The transport to accept and open channels on.
+     * @param listener  The listener for session events.
+     * @param config    The parameters for new connections.
+     */
+    public ConnectionManager(Transport transport, Listener listener, ConnectionConfig config) {
+        this(transport, listener, config, DEFAULT_MAX_SESSIONS);
+    }
+
+    /**
+     * Create a manager.
+     *
+     * @param transport   The transport to accept and open channels on.
+     * @param listener    The listener for session events.
+     * @param config      The parameters for new connections.
+     * @param maxSessions The maximum number of concurrent sessions.
+     */
+    public ConnectionManager(Transport transport, Listener listener, ConnectionConfig config,
+                             int maxSessions) {
+        if (maxSessions < 1) {
+            throw new IllegalArgumentException("maxSessions must be positive");
+        }
+        mTransport = transport;
+        mListener = listener;
+        mConfig = config;
+        mMaxSessions = maxSessions;
+
+        // readers, drains and the accept loop; pending connects queue up for a free thread
+        int threads = maxSessions + DRAIN_THREADS + 1;
+        mExecutor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "ConnectionManager-" + mCount.incrementAndGet());
+            }
+        });
+        mExecutor.setKeepAliveTime(IDLE_THREAD_SECONDS, TimeUnit.SECONDS);
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Start accepting incoming sessions until {@link #shutdown()} is called.
+     *
+     * @throws IOException If the transport cannot listen.
+     */
+    public synchronized void listen() throws IOException {
+        if (mShutdown || mAcceptor != null) {
+            return;
+        }
+        final Transport.Acceptor acceptor = mTransport.listen();
+        mAcceptor = acceptor;
+        mExecutor.execute(() -> {
+            try {
+                while (true) {
+                    open(acceptor.accept());
+                }
+            } catch (IOException e) {
+                // the acceptor has been closed
+            }
+        });
+    }
+
+    /**
+     * Open a session with a peer in the background, and keep it up until
+     * {@link #disconnect(String)} is called.
+     *
+     * @param address The transport address of the peer.
+     * @throws IOException If the manager has been shut down.
+     */
+    public void connect(final String address) throws IOException {
+        mDialed.add(address);
+        try {
+            mExecutor.execute(() -> dial(address, 0));
+        } catch (RejectedExecutionException e) {
+            mDialed.remove(address);
+            throw new IOException("Connection manager has been shut down");
+        }
+    }
+
+    /**
+     * Close the outgoing session with a peer and stop reconnecting to it.
+     *
+     * @param address The transport address of the peer.
+     */
+    public void disconnect(String address) {
+        mDialed.remove(address);
+        for (Map.Entry<Connection, String> e : mOutgoing.entrySet()) {
+            if (e.getValue().equals(address)) {
+                e.getKey().close();
+            }
+        }
+    }
+
+    /**
+     * Record which user is on the other end of a session.
+     *
+     * @param connection The connection.
+     * @param userId     The user id of the peer.
+     */
+    public void setUserId(Connection connection, UUID userId) {
+        if (mConnections.contains(connection)) {
+            mByUser.put(userId, connection);
+        }
+    }
+
+    /**
+     * Get the session with a user.
+     *
+     * @param userId The user id.
+     * @return The connection, or {@code null} if there is no open session with the user.
+     */
+    public Connection getConnection(UUID userId) {
+        return mByUser.get(userId);
+    }
+
+    /**
+     * Get all open sessions.
+     *
+     * @return A snapshot of the connections.
+     */
+    public List<Connection> getConnections() {
+        return new ArrayList<>(mConnections);
+    }
+
+    /**
+     * Get the number of open sessions.
+     *
+     * @return The session count.
+     */
+    public int getSessionCount() {
+        return mConnections.size();
+    }
+
+    /**
+     * Get the number of channels that were closed right away, because the session limit had
+     * been reached or the connection could not be set up.
+     *
+     * @return The refused channel count.
+     */
+    public int getRefusedCount() {
+        return mRefused.get();
+    }
+
+    /**
+     * Get the number of times an outgoing session has been dialed again after a failure.
+     *
+     * @return The reconnect attempt count.
+     */
+    public int getReconnectAttempts() {
+        return mReconnectAttempts.get();
+    }
+
+    /**
+     * Stop accepting, close all sessions and terminate the pool.
+     */
+    public void shutdown() {
+        mDialed.clear();
+        synchronized (this) {
+            mShutdown = true;
+            if (mAcceptor != null) {
+                mAcceptor.close();
+            }
+        }
+        for (Connection c : getConnections()) {
+            c.close();
+        }
+        mExecutor.shutdownNow();
+    }
+
+    private void dial(String address, int attempt) {
+        if (!mDialed.contains(address)) {
+            return;
+        }
+        Transport.Channel channel;
+        try {
+            channel = mTransport.connect(address);
+        } catch (IOException e) {
+            scheduleReconnect(address, attempt + 1);
+            return;
+        }
+        if (!open(channel, address)) {
+            scheduleReconnect(address, attempt + 1);
+        }
+    }
+
+    private void scheduleReconnect(final String address, final int attempt) {
+        if (attempt > MAX_RECONNECT_ATTEMPTS || !mDialed.contains(address)) {
+            mDialed.remove(address);
+            return;
+        }
+        // equal jitter: at least half the exponential delay, plus a random share of the rest
+        long limit = Math.min(RECONNECT_MAX_MILLIS, RECONNECT_BASE_MILLIS << Math.min(attempt, 16));
+        long delay = limit / 2 + (long) (mRandom.nextDouble() * (limit / 2));
+        mReconnectAttempts.incrementAndGet();
+        try {
+            mExecutor.schedule(() -> dial(address, attempt), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shut down
+        }
+    }
+
+    private void open(Transport.Channel channel) {
+        open(channel, null);
+    }
+
+    /**
+     * Start a session on a new channel.
+     *
+     * @param channel The channel.
+     * @param address The address the channel has been dialed to, {@code null} if incoming.
+     * @return {@code false} if the session has been refused.
+     */
+    private boolean open(Transport.Channel channel, String address) {
+        Connection connection;
+        synchronized (this) {
+            if (mShutdown || mConnections.size() >= mMaxSessions) {
+                mRefused.incrementAndGet();
+                channel.close();
+                return false;
+            }
+            try {
+                connection = new Connection(channel, mConnectionListener, mConfig, mExecutor);
+            } catch (IOException e) {
+                mRefused.incrementAndGet();
+                channel.close();
+                return false;
+            }
+            mConnections.add(connection);
+            if (address != null) {
+                mOutgoing.put(connection, address);
+            }
+        }
+        mListener.onConnectionOpened(connection);
+        connection.start();
+        return true;
+    }
+
+    private final Connection.Listener mConnectionListener = new Connection.Listener() {
+        @Override
+        public void onSendableReceived(Connection connection, Sendable s) {
+            mListener.onSendableReceived(connection, s);
+        }
+
+        @Override
+        public void onClosed(Connection connection) {
+            mConnections.remove(connection);
+            for (Map.Entry<UUID, Connection> e : mByUser.entrySet()) {
+                if (e.getValue() == connection) {
+                    mByUser.remove(e.getKey(), connection);
+                }
+            }
+            mListener.onClosed(connection);
+
+            String address = mOutgoing.remove(connection);
+            if (address != null) {
+                scheduleReconnect(address, 0);
+            }
+        }
+    };
+
+}
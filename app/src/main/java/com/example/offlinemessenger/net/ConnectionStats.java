@@ -0,0 +1,241 @@
+package com.example.offlinemessenger.net;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters describing the traffic of a {@link Connection}.
+ * All methods are thread safe; readers get a consistent view of each counter,
+ * but not necessarily of all counters at once.
+ */
+public class ConnectionStats {
+
+    /**
+     * Number of buckets in the frames per flush histogram.  Bucket {@code i} counts flushes
+     * carrying {@code [2^i, 2^(i+1))} frames, the last bucket everything above.
+     */
+    public static final int BATCH_HISTOGRAM_BUCKETS = 8;
+
+    private final AtomicLong mFlushes = new AtomicLong();
+    private final AtomicLong mFramesWritten = new AtomicLong();
+    private final AtomicLong mBytesWritten = new AtomicLong();
+    private final AtomicLong mUncompressedBytesWritten = new AtomicLong();
+    private final AtomicLong mCompressedFlushes = new AtomicLong();
+    private final AtomicLong mFramesRead = new AtomicLong();
+    private final AtomicLong mBytesRead = new AtomicLong();
+    private final AtomicLong mLastReadNanos = new AtomicLong(System.nanoTime());
+    private final AtomicLongArray mBatchHistogram = new AtomicLongArray(BATCH_HISTOGRAM_BUCKETS);
+    private final AtomicLong mRejectedFrames = new AtomicLong();
+    private final AtomicLong mSpilledFrames = new AtomicLong();
+    private final AtomicLong mBlockedNanos = new AtomicLong();
+    private final LatencyHistogram[] mLaneLatencies = new LatencyHistogram[Frame.LANES];
+
+    ConnectionStats() {
+        for (int i = 0; i < Frame.LANES; i++) {
+            mLaneLatencies[i] = new LatencyHistogram();
+        }
+    }
+
+    void onFlush(int frames, int uncompressedBytes, int bytes) {
+        mFlushes.incrementAndGet();
+        mFramesWritten.addAndGet(frames);
+        mBytesWritten.addAndGet(bytes);
+        mUncompressedBytesWritten.addAndGet(uncompressedBytes);
+        if (bytes < uncompressedBytes) {
+            mCompressedFlushes.incrementAndGet();
+        }
+        int bucket = 31 - Integer.numberOfLeadingZeros(frames);
+        mBatchHistogram.incrementAndGet(Math.min(bucket, BATCH_HISTOGRAM_BUCKETS - 1));
+    }
+
+    void onDequeued(int lane, long queuedNanos) {
+        mLaneLatencies[lane].record(queuedNanos);
+    }
+
+    void onRejected() {
+        mRejectedFrames.incrementAndGet();
+    }
+
+    void onSpilled() {
+        mSpilledFrames.incrementAndGet();
+    }
+
+    void onBlocked(long nanos) {
+        mBlockedNanos.addAndGet(nanos);
+    }
+
+    void onFrameRead() {
+        mFramesRead.incrementAndGet();
+    }
+
+    void onBlockRead(int bytes) {
+        mBytesRead.addAndGet(bytes);
+        mLastReadNanos.set(System.nanoTime());
+    }
+
+    /**
+     * Get the number of times the output has been flushed.
+     *
+     * @return The flush count.
+     */
+    public long getFlushes() {
+        return mFlushes.get();
+    }
+
+    /**
+     * Get the number of frames written.
+     *
+     * @return The frame count.
+     */
+    public long getFramesWritten() {
+        return mFramesWritten.get();
+    }
+
+    /**
+     * Get the number of bytes handed to the transport.
+     *
+     * @return The byte count.
+     */
+    public long getBytesWritten() {
+        return mBytesWritten.get();
+    }
+
+    /**
+     * Get the number of bytes the written batches had before compression.
+     *
+     * @return The byte count.
+     */
+    public long getUncompressedBytesWritten() {
+        return mUncompressedBytesWritten.get();
+    }
+
+    /**
+     * Get the number of flushes whose batch was sent compressed.
+     *
+     * @return The flush count.
+     */
+    public long getCompressedFlushes() {
+        return mCompressedFlushes.get();
+    }
+
+    /**
+     * Get the ratio of uncompressed to transmitted bytes.
+     *
+     * @return The compression ratio, {@code 1} if nothing has been written yet.
+     */
+    public double getCompressionRatio() {
+        long bytes = mBytesWritten.get();
+        return bytes == 0 ? 1 : (double) mUncompressedBytesWritten.get() / bytes;
+    }
+
+    /**
+     * Get the number of frames received from the peer.
+     *
+     * @return The frame count.
+     */
+    public long getFramesRead() {
+        return mFramesRead.get();
+    }
+
+    /**
+     * Get the number of frame bytes read, after decompression.
+     *
+     * @return The byte count.
+     */
+    public long getBytesRead() {
+        return mBytesRead.get();
+    }
+
+    /**
+     * Get the {@link System#nanoTime()} at which data has last been received from the peer,
+     * or the connection has been created if nothing has been received yet.
+     *
+     * @return The time of the last read.
+     */
+    public long getLastReadNanos() {
+        return mLastReadNanos.get();
+    }
+
+    /**
+     * Get the average number of frames per flush.
+     *
+     * @return The average batch size, {@code 0} if nothing has been written yet.
+     */
+    public double getAverageFramesPerFlush() {
+        long flushes = mFlushes.get();
+        return flushes == 0 ? 0 : (double) mFramesWritten.get() / flushes;
+    }
+
+    /**
+     * Get the number of flushes that fell into a frames per flush bucket.
+     *
+     * @param bucket The bucket index, see {@link #BATCH_HISTOGRAM_BUCKETS}.
+     * @return The number of flushes in that bucket.
+     */
+    public long getBatchHistogram(int bucket) {
+        return mBatchHistogram.get(bucket);
+    }
+
+    /**
+     * Get the number of frames refused because the outbound queue was full.
+     *
+     * @return The frame count.
+     */
+    public long getRejectedFrames() {
+        return mRejectedFrames.get();
+    }
+
+    /**
+     * Get the number of frames handed to the overflow handler because the outbound queue
+     * was full.
+     *
+     * @return The frame count.
+     */
+    public long getSpilledFrames() {
+        return mSpilledFrames.get();
+    }
+
+    /**
+     * Get the total time senders have waited for room in the outbound queue.
+     *
+     * @return The time in milliseconds.
+     */
+    public long getBlockedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mBlockedNanos.get());
+    }
+
+    /**
+     * Get the distribution of the time frames of a lane spent in the outbound queue, from
+     * being sent until their last byte has been handed to the writer.
+     *
+     * @param lane The lane, one of the {@code LANE_} constants of {@link Frame}.
+     * @return The latency histogram.
+     */
+    public LatencyHistogram getLaneLatency(int lane) {
+        return mLaneLatencies[lane];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder()
+                .append("flushes=").append(getFlushes())
+                .append(" framesWritten=").append(getFramesWritten())
+                .append(" bytesWritten=").append(getBytesWritten())
+                .append(" compressionRatio=").append(getCompressionRatio())
+                .append(" framesRead=").append(getFramesRead())
+                .append(" rejectedFrames=").append(getRejectedFrames())
+                .append(" spilledFrames=").append(getSpilledFrames())
+                .append(" blockedMillis=").append(getBlockedMillis())
+                .append(" framesPerFlush=[");
+        for (int i = 0; i < BATCH_HISTOGRAM_BUCKETS; i++) {
+            sb.append(i == 0 ? "" : " ").append(1 << i).append(':').append(getBatchHistogram(i));
+        }
+        sb.append("] laneLatencyP99Millis=[");
+        for (int i = 0; i < Frame.LANES; i++) {
+            sb.append(i == 0 ? "" : " ").append(getLaneLatency(i).getPercentileMillis(99));
+        }
+        return sb.append(']').toString();
+    }
+
+}
@@ -0,0 +1,520 @@
+package com.example.offlinemessenger.net;
+
+import com.example.offlinemessenger.data.ChatMessage;
+import com.example.offlinemessenger.data.Sendable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reliable, exactly-once delivery of chat messages on top of a sequence of connections.
+ *
+ * Every message is persisted in an {@link Outbox} before it is sent and only removed once the
+ * peer has acknowledged it, so it survives both dropped connections and process death.  On
+ * each connection, messages are numbered with a per-session sequence number and at most
+ * {@code windowSize} of them are in flight.  The receiver acknowledges cumulatively; if no
+ * acknowledgement arrives within the retransmission timeout, all frames in flight are sent
+ * again (go-back-N).  Duplicates, e.g. after an acknowledgement got lost with a connection,
+ * are suppressed by message id.
+ *
+ * Sequence numbers continue across connections, so a session survives reconnects.  Every
+ * attach starts with both sides exchanging a resume frame naming the next sequence number
+ * they expect from the other; the sender treats everything before it as delivered and only
+ * replays what follows.  Each delivery manager numbers its messages in an epoch chosen at
+ * random when it is created.  If a peer does not know the current epoch, e.g. because
+ * either side has been restarted, numbering starts over at zero.
+ *
+ * <pre>
+ * sequenced: seq (varint) | inner type (1) | inner body
+ * ack:       cumulative seq (varint), acknowledging every seq up to and including it
+ * resume:    sender epoch (8) | last epoch received from the peer (8) | expected seq (varint)
+ * </pre>
+ *
+ * All sender state is confined to a single internal thread, which is also the only thread
+ * touching the outbox, so callers may invoke {@link #send(ChatMessage)} from the UI thread.
+ * Delivery managers for several peers may share that thread by passing the same
+ * single threaded executor.
+ */
+public class DeliveryManager {
+
+    /** Default number of unacknowledged messages in flight. */
+    public static final int DEFAULT_WINDOW_SIZE = 32;
+    /** Default time without an acknowledgement after which messages are sent again. */
+    public static final long DEFAULT_RETRANSMIT_TIMEOUT_MILLIS = 2000;
+    /** Upper bound for the retransmission timeout after repeated timeouts. */
+    private static final long MAX_RETRANSMIT_TIMEOUT_MILLIS = 60000;
+    /** Number of recently received message ids remembered to suppress duplicates. */
+    private static final int DUPLICATE_CACHE_SIZE = 4096;
+
+    /**
+     * Persistent storage for messages that have not been acknowledged yet.
+     * Methods are only called from the delivery manager's internal thread.
+     */
+    public interface Outbox {
+
+        /**
+         * Persist a message that is about to be sent.
+         *
+         * @param id      The message id.
+         * @param payload The message encoded with {@link SendableCodec#encode(Sendable)}.
+         */
+        void add(UUID id, byte[] payload);
+
+        /**
+         * Remove a message that has been acknowledged by the peer.
+         *
+         * @param id The message id.
+         */
+        void remove(UUID id);
+
+        /**
+         * Load all pending messages in the order they have been added.
+         *
+         * @return The encoded messages.
+         */
+        List<byte[]> loadAll();
+
+    }
+
+    /**
+     * Callback interface for delivery events.
+     */
+    public interface Listener {
+
+        /**
+         * Called on the connection's reader thread for every newly received message,
+         * in the order the peer sent them.  Chat messages are filed under the peer, if the
+         * manager has one, see {@link ChatMessage#withSender(UUID)}.
+         *
+         * @param s The received sendable.
+         */
+        void onSendableReceived(Sendable s);
+
+        /**
+         * Called on the delivery thread once the peer has acknowledged a message.
+         *
+         * @param messageId The message id.
+         */
+        void onDelivered(UUID messageId);
+
+    }
+
+    private final Outbox mOutbox;
+    private final Listener mListener;
+    private final UUID mPeerId;
+    private final int mWindowSize;
+    private final ScheduledExecutorService mExecutor;
+    private final boolean mOwnsExecutor;
+
+    /** The epoch of our sequence numbers, never {@code 0}. */
+    private final long mEpoch;
+
+    // sender state, confined to mExecutor
+    private Connection mConnection;
+    /** Whether the peer has told us where to resume on {@link #mConnection}. */
+    private boolean mResumed;
+    /** The {@link System#nanoTime()} the last connection was lost at, {@code 0} if none. */
+    private long mLostAt;
+    private final Deque<Pending> mBacklog = new ArrayDeque<>();
+    private final Deque<Pending> mInFlight = new ArrayDeque<>();
+    private long mNextSeq;
+    private long mRetransmitTimeout;
+    private long mCurrentTimeout;
+    private ScheduledFuture<?> mRetransmitTimer;
+    private final DeliveryStats mStats = new DeliveryStats();
+
+    // receiver state, guarded by mReceiveLock
+    private final Object mReceiveLock = new Object();
+    private Connection mReceiving;
+    /** The epoch of the peer's sequence numbers, {@code 0} until known. */
+    private long mPeerEpoch;
+    private long mExpectedSeq;
+    private final Map<UUID, Boolean> mRecentlyReceived =
+            new LinkedHashMap<UUID, Boolean>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<UUID, Boolean> eldest) {
+                    return size() > DUPLICATE_CACHE_SIZE;
+                }
+            };
+
+    /**
+     * Create a delivery manager with the default window size and timeout.
+     *
+     * @param outbox   The persistent outbox.
+     * @param listener The listener for received and delivered messages.
+     */
+    public DeliveryManager(Outbox outbox, Listener listener) {
+        this(outbox, listener, null, null);
+    }
+
+    /**
+     * Create a delivery manager for a single peer with the default window size and timeout.
+     *
+     * @param outbox   The persistent outbox.
+     * @param listener The listener for received and delivered messages.
+     * @param peerId   The user id of the peer, or {@code null} to deliver the whole outbox.
+     * @param executor The single threaded executor to run on, or {@code null} for a new one.
+     */
+    public DeliveryManager(Outbox outbox, Listener listener, UUID peerId,
+                           ScheduledExecutorService executor) {
+        this(outbox, listener, peerId, executor, DEFAULT_WINDOW_SIZE,
+                DEFAULT_RETRANSMIT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Create a delivery manager.  Messages left in the outbox by an earlier process are
+     * queued for sending as soon as a connection is attached.
+     *
+     * @param outbox                  The persistent outbox.
+     * @param listener                The listener for received and delivered messages.
+     * @param peerId                  The user id of the peer.  Only outbox messages whose
+     *                                conversation is with this user are loaded; {@code null}
+     *                                loads all of them.
+     * @param executor                The single threaded executor to run on, or {@code null}
+     *                                to create one that is shut down with this manager.
+     * @param windowSize              The number of unacknowledged messages in flight.
+     * @param retransmitTimeoutMillis The time without acknowledgement before resending.
+     */
+    public DeliveryManager(Outbox outbox, Listener listener, UUID peerId,
+                           ScheduledExecutorService executor, int windowSize,
+                           long retransmitTimeoutMillis) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("windowSize must be positive");
+        }
+        mOutbox = outbox;
+        mListener = listener;
+        mPeerId = peerId;
+        mOwnsExecutor = executor == null;
+        mExecutor = executor == null ? Executors.newSingleThreadScheduledExecutor() : executor;
+        mWindowSize = windowSize;
+        mRetransmitTimeout = retransmitTimeoutMillis;
+        mCurrentTimeout = retransmitTimeoutMillis;
+        long epoch;
+        do {
+            epoch = new Random().nextLong();
+        } while (epoch == 0);
+        mEpoch = epoch;
+        mExecutor.execute(this::loadOutbox);
+    }
+
+    /**
+     * Get the delivery counters.
+     *
+     * @return The statistics.
+     */
+    public DeliveryStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Adapt the retransmission timeout to the measured round trip time of the link.  Takes
+     * effect once the timeout currently running has expired or been reset by an
+     * acknowledgement, so a backoff in progress is not cut short.
+     *
+     * @param retransmitTimeoutMillis The time without acknowledgement before resending.
+     */
+    public void setRetransmitTimeout(final long retransmitTimeoutMillis) {
+        if (retransmitTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("retransmitTimeoutMillis must be positive");
+        }
+        mExecutor.execute(() -> mRetransmitTimeout =
+                Math.min(retransmitTimeoutMillis, MAX_RETRANSMIT_TIMEOUT_MILLIS));
+    }
+
+    /**
+     * Continue the session on a connection.  Must be called before the connection is started,
+     * or on its reader thread before the peer can have sent any sequenced frame.
+     * Messages that were in flight on a previous connection are sent again, in order, unless
+     * the peer reports having received them already.
+     *
+     * @param connection The new connection.
+     */
+    public void attach(final Connection connection) {
+        ByteArrayOutputStream resume = new ByteArrayOutputStream(26);
+        synchronized (mReceiveLock) {
+            mReceiving = connection;
+            try {
+                WireFormat.writeLong(resume, mEpoch);
+                WireFormat.writeLong(resume, mPeerEpoch);
+                WireFormat.writeVarLong(resume, mExpectedSeq);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+        connection.setFrameHandler(Frame.TYPE_SEQUENCED, (c, f) -> onSequenced(c, f));
+        connection.setFrameHandler(Frame.TYPE_DELIVERY_ACK, (c, f) -> {
+            final long ack = WireFormat.readVarLong(f.openBody());
+            mExecutor.execute(() -> onAck(c, ack));
+        });
+        connection.setFrameHandler(Frame.TYPE_DELIVERY_RESUME, (c, f) -> onResume(c, f));
+        mExecutor.execute(() -> {
+            mConnection = connection;
+            mResumed = false;
+            mCurrentTimeout = mRetransmitTimeout;
+            cancelTimer();
+        });
+        connection.send(new Frame(Frame.TYPE_DELIVERY_RESUME, resume.toByteArray()));
+    }
+
+    /**
+     * Detach from a connection that has been closed.  Unacknowledged messages stay in the
+     * outbox and are sent again on the next attached connection.
+     *
+     * @param connection The closed connection.
+     */
+    public void detach(final Connection connection) {
+        mExecutor.execute(() -> {
+            if (mConnection == connection) {
+                mConnection = null;
+                mResumed = false;
+                mLostAt = System.nanoTime();
+                cancelTimer();
+            }
+        });
+    }
+
+    /**
+     * Send a message reliably.  The message is persisted first and transmitted once a
+     * connection is attached and the window permits.
+     *
+     * @param message The message.
+     */
+    public void send(final ChatMessage message) {
+        mExecutor.execute(() -> {
+            byte[] payload = SendableCodec.encode(message);
+            mOutbox.add(message.getUUID(), payload);
+            mBacklog.addLast(new Pending(message.getUUID(), payload));
+            fillWindow();
+        });
+    }
+
+    /**
+     * Stop the internal thread unless it is shared.  Pending messages stay in the outbox.
+     */
+    public void shutdown() {
+        if (mOwnsExecutor) {
+            mExecutor.shutdownNow();
+        }
+    }
+
+    private void loadOutbox() {
+        for (byte[] payload : mOutbox.loadAll()) {
+            try {
+                Sendable s = SendableCodec.decode(payload, 0, payload.length);
+                // the sender of an outgoing message is the user the conversation is with
+                if (s instanceof ChatMessage
+                        && (mPeerId == null || mPeerId.equals(((ChatMessage) s).getSender()))) {
+                    mBacklog.addLast(new Pending(((ChatMessage) s).getUUID(), payload));
+                }
+            } catch (IOException e) {
+                // a corrupt entry can never be delivered, leave it alone
+            }
+        }
+    }
+
+    private void fillWindow() {
+        if (mConnection == null || !mResumed) {
+            return;
+        }
+        while (mInFlight.size() < mWindowSize && !mBacklog.isEmpty()) {
+            Pending p = mBacklog.removeFirst();
+            p.mSeq = mNextSeq++;
+            mInFlight.addLast(p);
+            transmit(p);
+        }
+    }
+
+    private void transmit(Pending p) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(p.mPayload.length + 10);
+        try {
+            WireFormat.writeVarLong(body, p.mSeq);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        // the encoded payload starts with the frame version, which the wrapper omits
+        body.write(p.mPayload, 1, p.mPayload.length - 1);
+        p.mSentAt = System.nanoTime();
+        Frame frame = new Frame(Frame.TYPE_SEQUENCED, body.toByteArray());
+        mConnection.send(frame);
+        mStats.onTransmit(p.mTransmissions++ > 0, frame.getEncodedLength());
+        scheduleTimer();
+    }
+
+    private void onAck(Connection connection, long ack) {
+        if (connection != mConnection) {
+            return;
+        }
+        if (acknowledge(ack)) {
+            mCurrentTimeout = mRetransmitTimeout;
+            cancelTimer();
+            fillWindow();
+            scheduleTimer();
+        }
+    }
+
+    /**
+     * Remove all messages up to a sequence number from the window, as they have arrived.
+     *
+     * @param ack The highest delivered sequence number.
+     * @return {@code true} if any message was removed.
+     */
+    private boolean acknowledge(long ack) {
+        boolean progress = false;
+        while (!mInFlight.isEmpty() && mInFlight.peekFirst().mSeq <= ack) {
+            Pending p = mInFlight.removeFirst();
+            mOutbox.remove(p.mId);
+            mStats.onDelivered(System.nanoTime() - p.mSentAt);
+            mListener.onDelivered(p.mId);
+            progress = true;
+        }
+        return progress;
+    }
+
+    private void onResume(Connection connection, Frame frame) throws IOException {
+        InputStream in = frame.openBody();
+        final long peerEpoch = WireFormat.readLong(in);
+        final long epochSeen = WireFormat.readLong(in);
+        final long expected = WireFormat.readVarLong(in);
+
+        synchronized (mReceiveLock) {
+            if (connection != mReceiving) {
+                return;
+            }
+            if (peerEpoch != mPeerEpoch) {
+                // the peer numbers from scratch, there is nothing to resume
+                mPeerEpoch = peerEpoch;
+                mExpectedSeq = 0;
+            }
+        }
+        mExecutor.execute(() -> resume(connection, epochSeen, expected));
+    }
+
+    private void resume(Connection connection, long epochSeen, long expected) {
+        if (connection != mConnection || mResumed) {
+            return;
+        }
+        if (epochSeen == mEpoch) {
+            acknowledge(expected - 1);
+        } else {
+            // the peer has not seen this epoch, so it expects us to start at zero
+            while (!mInFlight.isEmpty()) {
+                mBacklog.addFirst(mInFlight.removeLast());
+            }
+            mNextSeq = 0;
+        }
+        mResumed = true;
+        if (mLostAt != 0) {
+            mStats.onRecovered(System.nanoTime() - mLostAt);
+            mLostAt = 0;
+        }
+
+        // replay only what the peer has not received
+        for (Pending p : mInFlight) {
+            transmit(p);
+        }
+        fillWindow();
+    }
+
+    private void scheduleTimer() {
+        if (mRetransmitTimer != null || mInFlight.isEmpty()) {
+            return;
+        }
+        long elapsed = System.nanoTime() - mInFlight.peekFirst().mSentAt;
+        long delay = Math.max(0, TimeUnit.MILLISECONDS.toNanos(mCurrentTimeout) - elapsed);
+        mRetransmitTimer = mExecutor.schedule(this::onTimeout, delay, TimeUnit.NANOSECONDS);
+    }
+
+    private void cancelTimer() {
+        if (mRetransmitTimer != null) {
+            mRetransmitTimer.cancel(false);
+            mRetransmitTimer = null;
+        }
+    }
+
+    private void onTimeout() {
+        mRetransmitTimer = null;
+        if (mConnection == null || !mResumed || mInFlight.isEmpty()) {
+            return;
+        }
+        long elapsed = System.nanoTime() - mInFlight.peekFirst().mSentAt;
+        if (elapsed >= TimeUnit.MILLISECONDS.toNanos(mCurrentTimeout)) {
+            // go-back-N with exponential backoff
+            mCurrentTimeout = Math.min(mCurrentTimeout * 2, MAX_RETRANSMIT_TIMEOUT_MILLIS);
+            for (Pending p : mInFlight) {
+                transmit(p);
+            }
+        }
+        scheduleTimer();
+    }
+
+    private void onSequenced(Connection connection, Frame frame) throws IOException {
+        InputStream in = frame.openBody();
+        long seq = WireFormat.readVarLong(in);
+        int type = WireFormat.readByte(in);
+        byte[] body = new byte[in.available()];
+        WireFormat.readFully(in, body, 0, body.length);
+
+        synchronized (mReceiveLock) {
+            if (connection == mReceiving) {
+                receive(connection, seq, type, body);
+            }
+        }
+    }
+
+    private void receive(Connection connection, long seq, int type, byte[] body)
+            throws IOException {
+        if (seq == mExpectedSeq) {
+            mExpectedSeq++;
+            Sendable s = SendableCodec.fromFrame(new Frame(type, body));
+            if (s instanceof ChatMessage) {
+                ChatMessage m = (ChatMessage) s;
+                if (mPeerId != null) {
+                    // the sender field holds the recipient, file the message under the peer
+                    m = m.withSender(mPeerId);
+                }
+                if (mRecentlyReceived.put(m.getUUID(), Boolean.TRUE) == null) {
+                    mListener.onSendableReceived(m);
+                }
+            } else if (s != null) {
+                mListener.onSendableReceived(s);
+            }
+        }
+
+        // acknowledge everything received in order so far, which also covers duplicates
+        if (mExpectedSeq > 0) {
+            ByteArrayOutputStream ack = new ByteArrayOutputStream(10);
+            WireFormat.writeVarLong(ack, mExpectedSeq - 1);
+            connection.send(new Frame(Frame.TYPE_DELIVERY_ACK, ack.toByteArray()));
+        }
+    }
+
+    /** A message waiting for delivery. */
+    private static class Pending {
+
+        private final UUID mId;
+        /** The message as encoded by {@link SendableCodec#encode(Sendable)}. */
+        private final byte[] mPayload;
+        private long mSeq;
+        private long mSentAt;
+        private int mTransmissions = 0;
+
+        private Pending(UUID id, byte[] payload) {
+            mId = id;
+            mPayload = payload;
+        }
+
+    }
+
+}
@@ -0,0 +1,127 @@
+package com.example.offlinemessenger.net;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing the reliable delivery of messages by a {@link DeliveryManager}.
+ */
+public class DeliveryStats {
+
+    private final AtomicLong mTransmissions = new AtomicLong();
+    private final AtomicLong mRetransmissions = new AtomicLong();
+    private final AtomicLong mDelivered = new AtomicLong();
+    private final AtomicLong mTotalAckDelayNanos = new AtomicLong();
+    private final AtomicLong mBytesResent = new AtomicLong();
+    private final AtomicLong mRecoveries = new AtomicLong();
+    private final AtomicLong mTotalRecoveryNanos = new AtomicLong();
+    private final AtomicLong mLastRecoveryNanos = new AtomicLong();
+
+    void onTransmit(boolean retransmission, int bytes) {
+        mTransmissions.incrementAndGet();
+        if (retransmission) {
+            mRetransmissions.incrementAndGet();
+            mBytesResent.addAndGet(bytes);
+        }
+    }
+
+    void onRecovered(long nanos) {
+        mRecoveries.incrementAndGet();
+        mTotalRecoveryNanos.addAndGet(nanos);
+        mLastRecoveryNanos.set(nanos);
+    }
+
+    void onDelivered(long ackDelayNanos) {
+        mDelivered.incrementAndGet();
+        mTotalAckDelayNanos.addAndGet(ackDelayNanos);
+    }
+
+    /**
+     * Get the number of message transmissions, including retransmissions.
+     *
+     * @return The transmission count.
+     */
+    public long getTransmissions() {
+        return mTransmissions.get();
+    }
+
+    /**
+     * Get the number of times a message had to be sent again.
+     *
+     * @return The retransmission count.
+     */
+    public long getRetransmissions() {
+        return mRetransmissions.get();
+    }
+
+    /**
+     * Get the number of messages acknowledged by the peer.
+     *
+     * @return The delivered message count.
+     */
+    public long getDelivered() {
+        return mDelivered.get();
+    }
+
+    /**
+     * Get the average time between the last transmission of a message and its acknowledgement.
+     *
+     * @return The average delay in milliseconds, {@code 0} if nothing has been delivered yet.
+     */
+    public double getAverageAckDelayMillis() {
+        long delivered = mDelivered.get();
+        return delivered == 0 ? 0
+                : (double) mTotalAckDelayNanos.get() / delivered / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Get the number of frame bytes sent more than once, by retransmission timeouts and
+     * by replays after a reconnect.
+     *
+     * @return The byte count.
+     */
+    public long getBytesResent() {
+        return mBytesResent.get();
+    }
+
+    /**
+     * Get the number of times the session has been resumed after losing a connection.
+     *
+     * @return The recovery count.
+     */
+    public long getRecoveries() {
+        return mRecoveries.get();
+    }
+
+    /**
+     * Get the average time between losing a connection and resuming the session.
+     *
+     * @return The average time to recover in milliseconds, {@code 0} if there was none.
+     */
+    public double getAverageRecoveryMillis() {
+        long recoveries = mRecoveries.get();
+        return recoveries == 0 ? 0
+                : (double) mTotalRecoveryNanos.get() / recoveries / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Get the time it took to resume the session after the last lost connection.
+     *
+     * @return The time to recover in milliseconds, {@code 0} if there was none.
+     */
+    public double getLastRecoveryMillis() {
+        return (double) mLastRecoveryNanos.get() / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public String toString() {
+        return "transmissions=" + getTransmissions()
+                + " retransmissions=" + getRetransmissions()
+                + " delivered=" + getDelivered()
+                + " avgAckDelayMillis=" + getAverageAckDelayMillis()
+                + " bytesResent=" + getBytesResent()
+                + " recoveries=" + getRecoveries()
+                + " avgRecoveryMillis=" + getAverageRecoveryMillis();
+    }
+
+}
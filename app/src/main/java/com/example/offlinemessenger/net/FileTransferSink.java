@@ -0,0 +1,104 @@
+package com.example.offlinemessenger.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Transfer sink storing payloads as files in a directory.  Incomplete payloads are kept as
+ * {@code <id>.part} files, so a transfer resumes from their length after a reconnect.
+ */
+public class FileTransferSink implements TransferSink {
+
+    private final File mDirectory;
+    private final Map<UUID, Pending> mPending = new HashMap<>();
+
+    /**
+     * Create a new file sink.
+     *
+     * @param directory The directory to store received files in.
+     */
+    public FileTransferSink(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Get the file a completed transfer has been stored in.
+     *
+     * @param id   The transfer id.
+     * @param name The payload name as given by the sender.
+     * @return The target file.
+     */
+    public File getTarget(UUID id, String name) {
+        // never trust path components from the peer
+        String safeName = new File(name).getName();
+        return new File(mDirectory, id + "-" + safeName);
+    }
+
+    @Override
+    public synchronized long open(UUID id, String name, long size) throws IOException {
+        Pending pending = mPending.get(id);
+        if (pending == null) {
+            RandomAccessFile file = new RandomAccessFile(new File(mDirectory, id + ".part"), "rw");
+            pending = new Pending(file, getTarget(id, name));
+            mPending.put(id, pending);
+        }
+        if (pending.mFile.length() > size) {
+            pending.mFile.setLength(0);
+        }
+
+        return pending.mFile.length();
+    }
+
+    @Override
+    public synchronized void write(UUID id, long offset, byte[] data, int off, int len)
+            throws IOException {
+        Pending pending = mPending.get(id);
+        if (pending == null) {
+            throw new IOException("Transfer " + id + " is not open");
+        }
+        pending.mFile.seek(offset);
+        pending.mFile.write(data, off, len);
+    }
+
+    @Override
+    public synchronized void complete(UUID id) throws IOException {
+        Pending pending = mPending.remove(id);
+        if (pending == null) {
+            return;
+        }
+        pending.mFile.getFD().sync();
+        pending.mFile.close();
+        if (!new File(mDirectory, id + ".part").renameTo(pending.mTarget)) {
+            throw new IOException("Unable to move transfer " + id + " to " + pending.mTarget);
+        }
+    }
+
+    @Override
+    public synchronized void suspend(UUID id) {
+        Pending pending = mPending.remove(id);
+        if (pending != null) {
+            try {
+                pending.mFile.close();
+            } catch (IOException e) {
+                // the stored bytes stay where they are
+            }
+        }
+    }
+
+    private static class Pending {
+
+        private final RandomAccessFile mFile;
+        private final File mTarget;
+
+        private Pending(RandomAccessFile file, File target) {
+            mFile = file;
+            mTarget = target;
+        }
+
+    }
+
+}
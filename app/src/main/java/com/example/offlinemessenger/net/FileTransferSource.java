@@ -0,0 +1,63 @@
+package com.example.offlinemessenger.net;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.UUID;
+
+/**
+ * Transfer source reading a file.
+ */
+public class FileTransferSource implements TransferSource {
+
+    private final File mFile;
+    private final UUID mId;
+
+    /**
+     * Create a new file source.
+     *
+     * @param file The file to transfer.
+     * @param id   The transfer id; reuse it to resume an interrupted transfer.
+     */
+    public FileTransferSource(File file, UUID id) {
+        mFile = file;
+        mId = id;
+    }
+
+    @Override
+    public UUID getId() {
+        return mId;
+    }
+
+    @Override
+    public String getName() {
+        return mFile.getName();
+    }
+
+    @Override
+    public long getSize() {
+        return mFile.length();
+    }
+
+    @Override
+    public InputStream open(long offset) throws IOException {
+        InputStream in = new FileInputStream(mFile);
+        try {
+            while (offset > 0) {
+                long skipped = in.skip(offset);
+                if (skipped <= 0) {
+                    throw new EOFException("Offset beyond end of " + mFile);
+                }
+                offset -= skipped;
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+
+        return in;
+    }
+
+}
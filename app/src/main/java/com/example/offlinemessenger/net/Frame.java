@@ -0,0 +1,206 @@
+package com.example.offlinemessenger.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+
+/**
+ * A single unit of transmission on a {@link Connection}: a type tag and an opaque body.
+ *
+ * <pre>
+ * payload length (varint) | version (1) | type (1) | body
+ * </pre>
+ *
+ * {@link com.example.offlinemessenger.data.Sendable}s are encoded into frames by the
+ * {@link SendableCodec}; all other types are protocol extensions which encode their own body.
+ * Frames with an unknown version are dropped by the reader, unknown types are ignored by the
+ * connection, so newer peers can add frame types without breaking older ones.
+ */
+public final class Frame {
+
+    /** The current version of the frame layout. */
+    public static final int VERSION = 1;
+
+    /** Upper bound for a single frame payload, protecting us against corrupted length prefixes. */
+    public static final int MAX_LENGTH = 256 * 1024;
+
+    /** Lane for protocol control frames, always sent before anything else. */
+    public static final int LANE_CONTROL = 0;
+    /** Lane for chat traffic, see {@link ConnectionConfig#getInteractiveWeight()}. */
+    public static final int LANE_INTERACTIVE = 1;
+    /** Lane for transfers and history sync, see {@link ConnectionConfig#getBulkWeight()}. */
+    public static final int LANE_BULK = 2;
+    /** Number of outbound lanes. */
+    public static final int LANES = 3;
+
+    /** Type tag for {@link com.example.offlinemessenger.data.ChatMessage}. */
+    public static final int TYPE_CHAT_MESSAGE = 1;
+    /** Type tag for {@link com.example.offlinemessenger.data.ChatUser}. */
+    public static final int TYPE_CHAT_USER = 2;
+
+    /** Type tag for a keepalive request, echoed by the peer. */
+    public static final int TYPE_PING = 8;
+    /** Type tag for the answer to a keepalive request. */
+    public static final int TYPE_PONG = 9;
+    /** Type tag for a piece of a frame too large to be sent in one go. */
+    public static final int TYPE_FRAGMENT = 10;
+    /** Type tag for receive credit granted to the peer. */
+    public static final int TYPE_CREDIT = 11;
+
+    /** Type tag for the announcement of a payload transfer. */
+    public static final int TYPE_TRANSFER_OFFER = 16;
+    /** Type tag for a chunk of a payload transfer. */
+    public static final int TYPE_TRANSFER_CHUNK = 17;
+    /** Type tag for the acknowledgement of received transfer bytes. */
+    public static final int TYPE_TRANSFER_ACK = 18;
+
+    /** Type tag for a frame wrapped with a delivery sequence number. */
+    public static final int TYPE_SEQUENCED = 32;
+    /** Type tag for the cumulative acknowledgement of sequenced frames. */
+    public static final int TYPE_DELIVERY_ACK = 33;
+    /** Type tag for the resumption point of a delivery session. */
+    public static final int TYPE_DELIVERY_RESUME = 34;
+
+    /** Type tag for the announcement of the local user to a mesh neighbour. */
+    public static final int TYPE_MESH_HELLO = 48;
+    /** Type tag for a message relayed through the mesh. */
+    public static final int TYPE_MESH_RELAY = 49;
+
+    /** Type tag for a digest of the conversation history. */
+    public static final int TYPE_SYNC_DIGEST = 64;
+    /** Type tag for a filter over the message ids in differing history buckets. */
+    public static final int TYPE_SYNC_FILTER = 65;
+    /** Type tag for messages missing from the peer's history. */
+    public static final int TYPE_SYNC_MESSAGES = 66;
+
+    private final int mType;
+    private final byte[] mBody;
+
+    /**
+     * Create a new frame.
+     *
+     * @param type The type tag, {@code 0..255}.
+     * @param body The encoded body.
+     */
+    public Frame(int type, byte[] body) {
+        if (type < 0 || type > 0xFF) {
+            throw new IllegalArgumentException("Invalid frame type " + type);
+        }
+        mType = type;
+        mBody = body;
+    }
+
+    /**
+     * Get the type tag.
+     *
+     * @return The frame type.
+     */
+    public int getType() {
+        return mType;
+    }
+
+    /**
+     * Get the encoded body.  The array must not be modified.
+     *
+     * @return The body.
+     */
+    public byte[] getBody() {
+        return mBody;
+    }
+
+    /**
+     * Get a stream over the body for decoding.
+     *
+     * @return The body stream.
+     */
+    public InputStream openBody() {
+        return new ByteArrayInputStream(mBody);
+    }
+
+    /**
+     * Return whether this frame carries a {@link com.example.offlinemessenger.data.Sendable}.
+     *
+     * @return {@code true} for chat messages and users.
+     */
+    public boolean isSendable() {
+        return mType == TYPE_CHAT_MESSAGE || mType == TYPE_CHAT_USER;
+    }
+
+    /**
+     * Get the outbound lane this frame is scheduled on.  Frames within a lane are sent in
+     * order, frames on different lanes may overtake each other.
+     *
+     * @return One of the {@code LANE_} constants.
+     */
+    public int getLane() {
+        switch (mType) {
+            case TYPE_PING:
+            case TYPE_PONG:
+            case TYPE_CREDIT:
+            case TYPE_TRANSFER_ACK:
+            case TYPE_DELIVERY_ACK:
+            case TYPE_DELIVERY_RESUME:
+            case TYPE_MESH_HELLO:
+                return LANE_CONTROL;
+            case TYPE_FRAGMENT:
+            case TYPE_TRANSFER_OFFER:
+            case TYPE_TRANSFER_CHUNK:
+            case TYPE_SYNC_DIGEST:
+            case TYPE_SYNC_FILTER:
+            case TYPE_SYNC_MESSAGES:
+                return LANE_BULK;
+            default:
+                return LANE_INTERACTIVE;
+        }
+    }
+
+    /**
+     * Get the number of bytes {@link #writeTo(OutputStream)} will produce.
+     *
+     * @return The encoded length including the length prefix.
+     */
+    public int getEncodedLength() {
+        int payloadLength = mBody.length + 2;
+        return WireFormat.varLongLength(payloadLength) + payloadLength;
+    }
+
+    /**
+     * Write this frame.  The stream is not flushed, which allows callers to coalesce
+     * several frames into a single transmission.
+     *
+     * @param out The stream to write to.
+     * @return The number of bytes written, including the length prefix.
+     * @throws IOException If the underlying stream fails.
+     */
+    public int writeTo(OutputStream out) throws IOException {
+        WireFormat.writeVarLong(out, mBody.length + 2);
+        out.write(VERSION);
+        out.write(mType);
+        out.write(mBody);
+        return getEncodedLength();
+    }
+
+    /**
+     * Read exactly one frame.
+     *
+     * @param in The stream to read from.
+     * @return The frame, or {@code null} if it uses an unknown version of the frame layout.
+     * @throws java.io.EOFException If the stream has ended.
+     * @throws IOException          If the stream fails or the frame is malformed.
+     */
+    public static Frame readFrom(InputStream in) throws IOException {
+        int length = WireFormat.readVarInt(in, MAX_LENGTH);
+        if (length < 2) {
+            throw new StreamCorruptedException("Frame too short");
+        }
+        int version = WireFormat.readByte(in);
+        int type = WireFormat.readByte(in);
+        byte[] body = new byte[length - 2];
+        WireFormat.readFully(in, body, 0, body.length);
+
+        return version == VERSION ? new Frame(type, body) : null;
+    }
+
+}
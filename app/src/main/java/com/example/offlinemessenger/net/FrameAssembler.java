@@ -0,0 +1,73 @@
+package com.example.offlinemessenger.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reassembles frames split into fragments by the peer's {@link FrameScheduler}.
+ * The sender fragments at most one frame per lane at a time and sends the fragments of a
+ * frame in order, so anything else is treated as a protocol violation.
+ */
+final class FrameAssembler {
+
+    /** A frame being reassembled. */
+    private static final class Partial {
+
+        private final byte[] mEncoded;
+        private int mFilled;
+
+        private Partial(int length) {
+            mEncoded = new byte[length];
+        }
+
+    }
+
+    /** Frames being reassembled by fragment id, confined to the reader thread. */
+    private final Map<Long, Partial> mPartials = new HashMap<>();
+
+    /**
+     * Add a fragment.
+     *
+     * @param fragment The fragment frame.
+     * @return The reassembled frame if this was its last fragment, {@code null} otherwise,
+     *         also if the reassembled frame uses an unknown version of the frame layout.
+     * @throws IOException If the fragment is malformed or out of order.
+     */
+    Frame add(Frame fragment) throws IOException {
+        InputStream in = fragment.openBody();
+        long id = WireFormat.readVarLong(in);
+        int length = WireFormat.readVarInt(in, Frame.MAX_LENGTH + 8);
+        int offset = WireFormat.readVarInt(in, length);
+
+        Partial partial = mPartials.get(id);
+        if (partial == null) {
+            if (offset != 0 || mPartials.size() >= Frame.LANES) {
+                throw new StreamCorruptedException("Unexpected fragment");
+            }
+            partial = new Partial(length);
+            mPartials.put(id, partial);
+        }
+        int available = in.available();
+        if (offset != partial.mFilled || length != partial.mEncoded.length
+                || available > length - offset) {
+            throw new StreamCorruptedException("Fragment out of order");
+        }
+        WireFormat.readFully(in, partial.mEncoded, offset, available);
+        partial.mFilled += available;
+
+        if (partial.mFilled < length) {
+            return null;
+        }
+        mPartials.remove(id);
+        Frame frame = Frame.readFrom(new ByteArrayInputStream(partial.mEncoded));
+        if (frame != null && frame.getType() == Frame.TYPE_FRAGMENT) {
+            throw new StreamCorruptedException("Nested fragment");
+        }
+        return frame;
+    }
+
+}
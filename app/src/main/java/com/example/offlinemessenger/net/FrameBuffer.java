@@ -0,0 +1,25 @@
+package com.example.offlinemessenger.net;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * A reusable byte array output stream that gives access to its backing array, so batches
+ * can be handed on without copying.
+ */
+final class FrameBuffer extends ByteArrayOutputStream {
+
+    FrameBuffer(int size) {
+        super(size);
+    }
+
+    /**
+     * Get the backing array.  Only the first {@link #size()} bytes are valid, and the array
+     * may be replaced by any further write.
+     *
+     * @return The backing array.
+     */
+    byte[] getBuffer() {
+        return buf;
+    }
+
+}
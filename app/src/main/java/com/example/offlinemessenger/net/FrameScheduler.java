@@ -0,0 +1,365 @@
+package com.example.offlinemessenger.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outbound queue of a {@link Connection}, split into the lanes of {@link Frame#getLane()}.
+ *
+ * Control frames have strict priority over everything else.  The interactive and bulk lanes
+ * share the remaining bandwidth by deficit round robin: on every round, each busy lane may
+ * send as many bytes as its weight times the fragment size, so neither lane can starve the
+ * other and a burst on one lane does not delay the other by more than a round.
+ *
+ * If fragmentation is enabled, frames of the weighted lanes larger than the fragment size are
+ * handed out one fragment at a time, interleaved with the frames of other lanes.  Fragments
+ * carry a piece of the encoded frame, which the peer reassembles with a
+ * {@link FrameAssembler}.  Fragments travel on the bulk lane, so the peer grants credit for
+ * them; control frames are never fragmented, since they are not paid for with credit.
+ *
+ * The interactive and bulk lanes together hold at most {@link ConnectionConfig#getMaxQueuedBytes()}
+ * bytes, and once the peer has granted a receive window, they only hand out frames as long
+ * as there is credit left.  Control frames are neither bounded nor subject to credit, so
+ * acknowledgements and credit grants always get through.
+ *
+ * <pre>
+ * fragment: frame id (varint) | encoded length (varint) | offset (varint) | piece
+ * </pre>
+ */
+final class FrameScheduler {
+
+    /** A queued frame and the progress of its fragmentation. */
+    private static final class Entry {
+
+        private final Frame mFrame;
+        private final long mQueuedAt = System.nanoTime();
+        /** The encoded frame, once fragmentation has started. */
+        private byte[] mEncoded;
+        private long mFragmentId;
+        private int mOffset;
+
+        private Entry(Frame frame) {
+            mFrame = frame;
+        }
+
+    }
+
+    private final ConnectionStats mStats;
+    private final int mFragmentBytes;
+    private final long mMaxQueuedBytes;
+    private final List<ArrayDeque<Entry>> mLanes = new ArrayList<>(Frame.LANES);
+    private final long[] mQuanta = new long[Frame.LANES];
+
+    // all state below is guarded by this
+    /** Deficit round robin state of the weighted lanes. */
+    private final long[] mDeficits = new long[Frame.LANES];
+    private int mCurrent = Frame.LANE_INTERACTIVE;
+    private boolean mVisited = false;
+    private long mNextFragmentId = 0;
+    private int mSize = 0;
+    /** Bytes queued on the weighted lanes. */
+    private long mQueuedBytes = 0;
+    /** The receive window of the peer, {@link Long#MAX_VALUE} without flow control. */
+    private long mWindow = Long.MAX_VALUE;
+    /** Bytes the peer is still willing to receive. */
+    private long mCredit = Long.MAX_VALUE;
+    private boolean mCongested = false;
+    /** Whether {@link #mCongested} has changed since {@link #pollCongestionChange()}. */
+    private boolean mCongestionChanged = false;
+    private boolean mClosed = false;
+
+    /**
+     * Create an empty scheduler.
+     *
+     * @param config The weights, fragment size and queue bound.
+     * @param stats  The statistics to record the queueing latency of every lane in.
+     */
+    FrameScheduler(ConnectionConfig config, ConnectionStats stats) {
+        mStats = stats;
+        mFragmentBytes = config.getFragmentBytes();
+        mMaxQueuedBytes = config.getMaxQueuedBytes();
+        for (int i = 0; i < Frame.LANES; i++) {
+            mLanes.add(new ArrayDeque<Entry>());
+        }
+        mQuanta[Frame.LANE_INTERACTIVE] = (long) config.getInteractiveWeight() * mFragmentBytes;
+        mQuanta[Frame.LANE_BULK] = (long) config.getBulkWeight() * mFragmentBytes;
+    }
+
+    /**
+     * Queue a frame if there is room for it.  Control frames are always accepted.
+     *
+     * @param frame The frame.
+     * @return {@code false} if the queue is full or closed.
+     */
+    synchronized boolean offer(Frame frame) {
+        if (mClosed) {
+            return false;
+        }
+        int lane = frame.getLane();
+        if (lane != Frame.LANE_CONTROL) {
+            if (mQueuedBytes >= mMaxQueuedBytes) {
+                setCongested(true);
+                return false;
+            }
+            mQueuedBytes += frame.getEncodedLength();
+        }
+        mLanes.get(lane).addLast(new Entry(frame));
+        mSize++;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Queue a frame, waiting for room if the queue is full.
+     *
+     * @param frame   The frame.
+     * @param timeout The maximum time to wait.
+     * @param unit    The unit of the timeout.
+     * @return {@code false} if the timeout has elapsed or the queue has been closed.
+     * @throws InterruptedException If the thread has been interrupted while waiting.
+     */
+    synchronized boolean offer(Frame frame, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!offer(frame)) {
+            long remaining = deadline - System.nanoTime();
+            if (mClosed || remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Enable flow control.
+     *
+     * @param window The receive window advertised by the peer, which is also the initial
+     *               credit.
+     */
+    synchronized void setWindow(long window) {
+        mWindow = window;
+        mCredit = window;
+        notifyAll();
+    }
+
+    /**
+     * Add credit granted by the peer.
+     *
+     * @param bytes The number of bytes the peer has consumed.
+     */
+    synchronized void addCredit(long bytes) {
+        if (mWindow != Long.MAX_VALUE) {
+            mCredit = Math.min(mWindow, mCredit + bytes);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Wake up and fail all waiting callers; nothing is queued anymore.
+     */
+    synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+
+    /**
+     * Return whether {@link #poll(boolean)} would return a frame.
+     *
+     * @param fragment Whether frames larger than the fragment size may be split.
+     * @return {@code true} if a frame can be sent right away.
+     */
+    synchronized boolean isReady(boolean fragment) {
+        return !mLanes.get(Frame.LANE_CONTROL).isEmpty()
+                || isEligible(Frame.LANE_INTERACTIVE, fragment)
+                || isEligible(Frame.LANE_BULK, fragment);
+    }
+
+    /**
+     * Get the change of the congestion state since the last call: the queue becomes
+     * congested when a frame has been refused for lack of room, and relieved once it is
+     * at most half full again.
+     *
+     * @return The new state, or {@code null} if it has not changed.
+     */
+    synchronized Boolean pollCongestionChange() {
+        if (!mCongestionChanged) {
+            return null;
+        }
+        mCongestionChanged = false;
+        return mCongested;
+    }
+
+    /**
+     * Get the next frame to send without waiting.
+     *
+     * @param fragment Whether frames larger than the fragment size may be split.
+     * @return The frame or fragment, or {@code null} if nothing is queued or there is no
+     *         credit left for what is queued.
+     */
+    synchronized Frame poll(boolean fragment) {
+        if (mSize == 0) {
+            return null;
+        }
+        int lane = pickLane(fragment);
+        if (lane < 0) {
+            return null;
+        }
+        Entry entry = mLanes.get(lane).peekFirst();
+        Frame frame;
+        if (fragment && lane != Frame.LANE_CONTROL
+                && entry.mFrame.getEncodedLength() > mFragmentBytes) {
+            frame = nextFragment(entry);
+        } else {
+            frame = entry.mFrame;
+        }
+        if (entry.mEncoded == null || entry.mOffset == entry.mEncoded.length) {
+            mLanes.get(lane).removeFirst();
+            mSize--;
+            mStats.onDequeued(lane, System.nanoTime() - entry.mQueuedAt);
+            if (lane != Frame.LANE_CONTROL) {
+                mQueuedBytes -= entry.mFrame.getEncodedLength();
+                if (mQueuedBytes <= mMaxQueuedBytes / 2) {
+                    setCongested(false);
+                }
+                notifyAll();
+            }
+        }
+        if (lane != Frame.LANE_CONTROL) {
+            mDeficits[lane] -= frame.getEncodedLength();
+            if (mWindow != Long.MAX_VALUE) {
+                mCredit -= frame.getEncodedLength();
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * Get the next frame to send, waiting until one can be sent.
+     *
+     * @param fragment Whether frames larger than the fragment size may be split.
+     * @param timeout  The maximum time to wait.
+     * @param unit     The unit of the timeout.
+     * @return The frame or fragment, or {@code null} if the timeout has elapsed.
+     * @throws InterruptedException If the thread has been interrupted while waiting.
+     */
+    synchronized Frame poll(boolean fragment, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Frame frame;
+        while ((frame = poll(fragment)) == null) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return frame;
+    }
+
+    /**
+     * Get the next frame to send, waiting as long as it takes.
+     *
+     * @param fragment Whether frames larger than the fragment size may be split.
+     * @return The frame or fragment.
+     * @throws InterruptedException If the thread has been interrupted while waiting.
+     */
+    synchronized Frame take(boolean fragment) throws InterruptedException {
+        Frame frame;
+        while ((frame = poll(fragment)) == null) {
+            wait();
+        }
+        return frame;
+    }
+
+    /**
+     * Choose the lane to serve next.
+     *
+     * @return The lane, or {@code -1} if no lane may send.
+     */
+    private int pickLane(boolean fragment) {
+        if (!mLanes.get(Frame.LANE_CONTROL).isEmpty()) {
+            return Frame.LANE_CONTROL;
+        }
+        if (!isEligible(Frame.LANE_INTERACTIVE, fragment)
+                && !isEligible(Frame.LANE_BULK, fragment)) {
+            return -1;
+        }
+        while (true) {
+            if (!isEligible(mCurrent, fragment)) {
+                // an idle lane must not save up credit
+                if (mLanes.get(mCurrent).isEmpty()) {
+                    mDeficits[mCurrent] = 0;
+                }
+            } else {
+                if (!mVisited) {
+                    mDeficits[mCurrent] += mQuanta[mCurrent];
+                    mVisited = true;
+                }
+                if (cost(mLanes.get(mCurrent).peekFirst(), fragment) <= mDeficits[mCurrent]) {
+                    return mCurrent;
+                }
+            }
+            mCurrent = mCurrent == Frame.LANE_INTERACTIVE
+                    ? Frame.LANE_BULK : Frame.LANE_INTERACTIVE;
+            mVisited = false;
+        }
+    }
+
+    /**
+     * Return whether the head of a weighted lane may be sent as far as flow control is
+     * concerned.  A frame larger than the whole window is let through once nothing else is
+     * outstanding.
+     */
+    private boolean isEligible(int lane, boolean fragment) {
+        Entry head = mLanes.get(lane).peekFirst();
+        return head != null && (mCredit >= mWindow || cost(head, fragment) <= mCredit);
+    }
+
+    private int cost(Entry entry, boolean fragment) {
+        int length = entry.mFrame.getEncodedLength();
+        if (!fragment || length <= mFragmentBytes) {
+            return length;
+        }
+        return Math.min(mFragmentBytes, length - entry.mOffset);
+    }
+
+    private void setCongested(boolean congested) {
+        if (mCongested != congested) {
+            mCongested = congested;
+            mCongestionChanged = true;
+        }
+    }
+
+    private Frame nextFragment(Entry entry) {
+        if (entry.mEncoded == null) {
+            ByteArrayOutputStream encoded =
+                    new ByteArrayOutputStream(entry.mFrame.getEncodedLength());
+            try {
+                entry.mFrame.writeTo(encoded);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            entry.mEncoded = encoded.toByteArray();
+            entry.mFragmentId = mNextFragmentId++;
+        }
+
+        int length = Math.min(mFragmentBytes, entry.mEncoded.length - entry.mOffset);
+        ByteArrayOutputStream body = new ByteArrayOutputStream(length + 16);
+        try {
+            WireFormat.writeVarLong(body, entry.mFragmentId);
+            WireFormat.writeVarLong(body, entry.mEncoded.length);
+            WireFormat.writeVarLong(body, entry.mOffset);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        body.write(entry.mEncoded, entry.mOffset, length);
+        entry.mOffset += length;
+        return new Frame(Frame.TYPE_FRAGMENT, body.toByteArray());
+    }
+
+}
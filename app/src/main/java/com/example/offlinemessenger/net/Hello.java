@@ -0,0 +1,86 @@
+package com.example.offlinemessenger.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+
+/**
+ * The handshake message both peers send first when a connection is set up.  It identifies the
+ * protocol and advertises optional capabilities; a capability is only used if both peers
+ * advertise it.
+ *
+ * <pre>
+ * magic (4) | payload length (varint) | version (varint) | capabilities (varint)
+ *           | receive window (varint)
+ * </pre>
+ *
+ * Fields appended to the payload by later protocol versions are ignored by older readers.
+ */
+final class Hello {
+
+    /** "OMsg" */
+    static final int MAGIC = 0x4F4D7367;
+    /** The protocol version spoken by this implementation. */
+    static final int PROTOCOL_VERSION = 1;
+
+    /** Capability bit: frame batches may be deflate compressed. */
+    static final long CAP_DEFLATE = 1;
+    /** Capability bit: large frames may be split into {@link Frame#TYPE_FRAGMENT}s. */
+    static final long CAP_FRAGMENT = 2;
+    /** Capability bit: chat and bulk frames are only sent as far as the receiver grants credit. */
+    static final long CAP_CREDIT = 4;
+
+    private static final int MAX_LENGTH = 1024;
+
+    /** The capability bits advertised by the sender. */
+    final long mCapabilities;
+    /** The initial credit granted by the sender, {@code 0} if not advertised. */
+    final long mReceiveWindow;
+
+    Hello(long capabilities, long receiveWindow) {
+        mCapabilities = capabilities;
+        mReceiveWindow = receiveWindow;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        WireFormat.writeVarLong(payload, PROTOCOL_VERSION);
+        WireFormat.writeVarLong(payload, mCapabilities);
+        WireFormat.writeVarLong(payload, mReceiveWindow);
+
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            out.write(MAGIC >>> shift);
+        }
+        WireFormat.writeVarLong(out, payload.size());
+        payload.writeTo(out);
+    }
+
+    static Hello readFrom(InputStream in) throws IOException {
+        int magic = 0;
+        for (int i = 0; i < 4; i++) {
+            magic = (magic << 8) | WireFormat.readByte(in);
+        }
+        if (magic != MAGIC) {
+            throw new StreamCorruptedException("Peer does not speak our protocol");
+        }
+
+        int length = WireFormat.readVarInt(in, MAX_LENGTH);
+        byte[] buf = new byte[length];
+        WireFormat.readFully(in, buf, 0, length);
+        InputStream payload = new ByteArrayInputStream(buf);
+        if (WireFormat.readVarLong(payload) < PROTOCOL_VERSION) {
+            throw new StreamCorruptedException("Peer protocol version is too old");
+        }
+
+        long capabilities = WireFormat.readVarLong(payload);
+        long receiveWindow = payload.available() > 0 ? WireFormat.readVarLong(payload) : 0;
+        if (receiveWindow == 0) {
+            capabilities &= ~CAP_CREDIT;
+        }
+        return new Hello(capabilities, receiveWindow);
+    }
+
+}
@@ -0,0 +1,469 @@
+package com.example.offlinemessenger.net;
+
+import com.example.offlinemessenger.data.ChatMessage;
+import com.example.offlinemessenger.data.Sendable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Anti-entropy reconciliation of the conversation history with a peer after (re)connecting.
+ *
+ * Each side summarizes its copy of the conversation as a digest with one entry per day
+ * bucket: the number of messages and an order independent hash of their ids.  The receiver
+ * of a digest answers with a Bloom filter over its own ids in every bucket that differs,
+ * and the owner of the digest sends exactly the messages the filter does not contain,
+ * followed by a fresh digest to check the result.  Messages missed because of a false
+ * positive are caught in the next round, which uses a different hash seed.  Both sides run
+ * this independently, so each pushes what the other is missing.
+ *
+ * <pre>
+ * digest:   round (varint) | buckets (varint) | per bucket: day delta (varint) | count (varint) | hash (8)
+ * filter:   round (varint) | buckets (varint) | per bucket: day delta (varint)
+ *           | bits (varint) | hashes (1) | filter words (8 each)
+ * messages: count (varint) | per message: id (16) | timestamp (varint) | own (1) | content
+ * </pre>
+ *
+ * Identical buckets cost a few bytes each and nothing else, so the traffic of a sync is
+ * dominated by the buckets that actually differ rather than the size of the history.
+ */
+public class HistorySync {
+
+    /** Width of a digest bucket. */
+    private static final long BUCKET_MILLIS = TimeUnit.DAYS.toMillis(1);
+    /** False positive rate of the filters. */
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+    /** Number of digest rounds after which a sync gives up. */
+    private static final int MAX_ROUNDS = 4;
+    /** Target body size of a message frame. */
+    private static final int MESSAGES_FRAME_BYTES = 32 * 1024;
+    /** Upper bound for the number of buckets in a digest. */
+    private static final int MAX_BUCKETS = 1 << 20;
+
+    /**
+     * Access to the local copy of the conversation histories.
+     * Methods are only called from the sync's internal thread.
+     */
+    public interface Store {
+
+        /**
+         * Load the ids and timestamps of all messages exchanged with a user.
+         *
+         * @param peerId The user id of the peer.
+         * @return The message keys, in any order.
+         */
+        List<MessageKey> loadKeys(UUID peerId);
+
+        /**
+         * Load messages exchanged with a user.
+         *
+         * @param peerId The user id of the peer.
+         * @param ids    The ids of the messages to load.
+         * @return The messages that exist.
+         */
+        List<ChatMessage> loadMessages(UUID peerId, Collection<UUID> ids);
+
+        /**
+         * Store messages received from a user during a sync.  Messages that already exist
+         * must be ignored.
+         *
+         * @param peerId   The user id of the peer.
+         * @param messages The messages, as seen from the local device.
+         */
+        void insertMessages(UUID peerId, List<ChatMessage> messages);
+
+    }
+
+    /**
+     * Callback interface for sync events.
+     */
+    public interface Listener {
+
+        /**
+         * Called on the sync thread after messages missing locally have been stored.
+         *
+         * @param peerId The user id of the peer.
+         * @param count  The number of stored messages.
+         */
+        void onHistorySynced(UUID peerId, int count);
+
+    }
+
+    /**
+     * The id and timestamp of a stored message.
+     */
+    public static class MessageKey {
+
+        private final UUID mId;
+        private final long mTimestamp;
+
+        /**
+         * Create a new message key.
+         *
+         * @param id        The message id.
+         * @param timestamp The message timestamp.
+         */
+        public MessageKey(UUID id, long timestamp) {
+            mId = id;
+            mTimestamp = timestamp;
+        }
+
+        /**
+         * Get the message id.
+         *
+         * @return The id.
+         */
+        public UUID getId() {
+            return mId;
+        }
+
+        /**
+         * Get the message timestamp.
+         *
+         * @return The UNIX timestamp in milliseconds.
+         */
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+    }
+
+    private final Store mStore;
+    private final Listener mListener;
+    private final SyncStats mStats = new SyncStats();
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    /** The user on the other end of every connection a sync has been started on. */
+    private final Map<Connection, UUID> mPeers = new ConcurrentHashMap<>();
+
+    /**
+     * Create a new history sync.
+     *
+     * @param store    The local message history.
+     * @param listener The listener for stored messages, may be {@code null}.
+     */
+    public HistorySync(Store store, Listener listener) {
+        mStore = store;
+        mListener = listener;
+    }
+
+    /**
+     * Get the sync counters.
+     *
+     * @return The statistics.
+     */
+    public SyncStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Register the sync frame handlers on a connection.  Must be called before the
+     * connection is started.
+     *
+     * @param connection The connection.
+     */
+    public void attach(Connection connection) {
+        connection.setFrameHandler(Frame.TYPE_SYNC_DIGEST, this::onFrame);
+        connection.setFrameHandler(Frame.TYPE_SYNC_FILTER, this::onFrame);
+        connection.setFrameHandler(Frame.TYPE_SYNC_MESSAGES, this::onFrame);
+    }
+
+    /**
+     * Start reconciling the conversation with the peer of a connection, once its identity
+     * is known.  Sync frames received before are ignored.
+     *
+     * @param connection The attached connection.
+     * @param peerId     The user id of the peer.
+     */
+    public void start(final Connection connection, final UUID peerId) {
+        mPeers.put(connection, peerId);
+        mExecutor.execute(() -> sendDigest(connection, peerId, 0));
+    }
+
+    /**
+     * Forget a connection that has been closed.
+     *
+     * @param connection The closed connection.
+     */
+    public void detach(Connection connection) {
+        mPeers.remove(connection);
+    }
+
+    /**
+     * Stop the internal thread.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    private void onFrame(final Connection connection, final Frame frame) {
+        final UUID peerId = mPeers.get(connection);
+        if (peerId == null) {
+            return;
+        }
+        mStats.onReceived(frame.getEncodedLength());
+        mExecutor.execute(() -> {
+            if (connection.isClosed()) {
+                return;
+            }
+            try {
+                switch (frame.getType()) {
+                    case Frame.TYPE_SYNC_DIGEST:
+                        onDigest(connection, peerId, frame.openBody());
+                        break;
+                    case Frame.TYPE_SYNC_FILTER:
+                        onFilter(connection, peerId, frame.openBody());
+                        break;
+                    case Frame.TYPE_SYNC_MESSAGES:
+                        onMessages(peerId, frame.openBody());
+                        break;
+                }
+            } catch (IOException e) {
+                // the peer speaks a broken protocol, a sync is not worth keeping it for
+                connection.close();
+            }
+        });
+    }
+
+    private void sendDigest(Connection connection, UUID peerId, int round) {
+        SortedMap<Long, Bucket> buckets = buildBuckets(mStore.loadKeys(peerId));
+        ByteArrayOutputStream body = new ByteArrayOutputStream(16 + buckets.size() * 12);
+        try {
+            WireFormat.writeVarLong(body, round);
+            WireFormat.writeVarLong(body, buckets.size());
+            long previous = 0;
+            for (Map.Entry<Long, Bucket> e : buckets.entrySet()) {
+                WireFormat.writeVarLong(body, e.getKey() - previous);
+                WireFormat.writeVarLong(body, e.getValue().mCount);
+                WireFormat.writeLong(body, e.getValue().mHash);
+                previous = e.getKey();
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        send(connection, new Frame(Frame.TYPE_SYNC_DIGEST, body.toByteArray()));
+    }
+
+    private void onDigest(Connection connection, UUID peerId, InputStream in) throws IOException {
+        int round = WireFormat.readVarInt(in, MAX_ROUNDS);
+        int count = WireFormat.readVarInt(in, MAX_BUCKETS);
+        SortedMap<Long, Bucket> remote = new TreeMap<>();
+        long day = 0;
+        for (int i = 0; i < count; i++) {
+            day += WireFormat.readVarLong(in);
+            Bucket b = new Bucket();
+            b.mCount = WireFormat.readVarInt(in, Integer.MAX_VALUE);
+            b.mHash = WireFormat.readLong(in);
+            remote.put(day, b);
+        }
+
+        List<MessageKey> keys = mStore.loadKeys(peerId);
+        SortedMap<Long, Bucket> local = buildBuckets(keys);
+        Set<Long> differing = new HashSet<>();
+        for (Map.Entry<Long, Bucket> e : remote.entrySet()) {
+            if (!e.getValue().equals(local.get(e.getKey()))) {
+                differing.add(e.getKey());
+            }
+        }
+        if (differing.isEmpty() || round >= MAX_ROUNDS - 1) {
+            // in sync, or we give up; an empty filter ends the peer's rounds
+            differing.clear();
+        }
+        mStats.onDigestCompared(remote.size(), differing.size());
+
+        List<UUID> ids = new ArrayList<>();
+        for (MessageKey key : keys) {
+            if (differing.contains(bucketOf(key))) {
+                ids.add(key.getId());
+            }
+        }
+        BloomFilter filter = new BloomFilter(Math.max(ids.size(), 1), FALSE_POSITIVE_RATE, round);
+        for (UUID id : ids) {
+            filter.add(id);
+        }
+
+        List<Long> sorted = new ArrayList<>(differing);
+        Collections.sort(sorted);
+        ByteArrayOutputStream body = new ByteArrayOutputStream(
+                16 + sorted.size() * 4 + filter.getBits().length * 8);
+        WireFormat.writeVarLong(body, round);
+        WireFormat.writeVarLong(body, sorted.size());
+        long previous = 0;
+        for (long d : sorted) {
+            WireFormat.writeVarLong(body, d - previous);
+            previous = d;
+        }
+        if (!sorted.isEmpty()) {
+            WireFormat.writeVarLong(body, filter.getNumBits());
+            body.write(filter.getNumHashes());
+            for (long word : filter.getBits()) {
+                WireFormat.writeLong(body, word);
+            }
+        }
+        send(connection, new Frame(Frame.TYPE_SYNC_FILTER, body.toByteArray()));
+    }
+
+    private void onFilter(Connection connection, UUID peerId, InputStream in) throws IOException {
+        int round = WireFormat.readVarInt(in, MAX_ROUNDS);
+        int count = WireFormat.readVarInt(in, MAX_BUCKETS);
+        if (count == 0) {
+            return;
+        }
+        Set<Long> buckets = new HashSet<>();
+        long day = 0;
+        for (int i = 0; i < count; i++) {
+            day += WireFormat.readVarLong(in);
+            buckets.add(day);
+        }
+        int numBits = WireFormat.readVarInt(in, Integer.MAX_VALUE - 63);
+        int numHashes = WireFormat.readByte(in);
+        if (numHashes == 0 || in.available() < (numBits + 63) / 64 * 8) {
+            throw new StreamCorruptedException("Truncated filter");
+        }
+        long[] words = new long[(numBits + 63) / 64];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = WireFormat.readLong(in);
+        }
+        BloomFilter filter = new BloomFilter(words, numBits, numHashes, round);
+
+        List<UUID> missing = new ArrayList<>();
+        for (MessageKey key : mStore.loadKeys(peerId)) {
+            if (buckets.contains(bucketOf(key)) && !filter.mightContain(key.getId())) {
+                missing.add(key.getId());
+            }
+        }
+        sendMessages(connection, mStore.loadMessages(peerId, missing));
+
+        // the fresh digest tells the peer whether anything is still missing
+        sendDigest(connection, peerId, round + 1);
+    }
+
+    private void sendMessages(Connection connection, List<ChatMessage> messages) {
+        ByteArrayOutputStream rows = new ByteArrayOutputStream(MESSAGES_FRAME_BYTES + 1024);
+        int count = 0;
+        for (ChatMessage m : messages) {
+            try {
+                WireFormat.writeUUID(rows, m.getUUID());
+                WireFormat.writeVarLong(rows, m.getTimestamp());
+                rows.write(m.isOwn() ? 1 : 0);
+                WireFormat.writeString(rows, m.getContent());
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            count++;
+            if (rows.size() >= MESSAGES_FRAME_BYTES) {
+                sendMessagesFrame(connection, count, rows);
+                count = 0;
+            }
+        }
+        if (count > 0) {
+            sendMessagesFrame(connection, count, rows);
+        }
+        mStats.onMessagesSent(messages.size());
+    }
+
+    private void sendMessagesFrame(Connection connection, int count, ByteArrayOutputStream rows) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(rows.size() + 5);
+        try {
+            WireFormat.writeVarLong(body, count);
+            rows.writeTo(body);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        rows.reset();
+        send(connection, new Frame(Frame.TYPE_SYNC_MESSAGES, body.toByteArray()));
+    }
+
+    private void onMessages(UUID peerId, InputStream in) throws IOException {
+        int count = WireFormat.readVarInt(in, Frame.MAX_LENGTH);
+        List<ChatMessage> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            UUID id = WireFormat.readUUID(in);
+            long timestamp = WireFormat.readVarLong(in);
+            boolean peerOwn = WireFormat.readByte(in) != 0;
+            String content = WireFormat.readString(in, Frame.MAX_LENGTH);
+            // a message the peer sent is one we received, and vice versa
+            messages.add(new ChatMessage(Sendable.Action.NONE, peerId, content, !peerOwn,
+                    timestamp, id));
+        }
+        mStore.insertMessages(peerId, messages);
+        mStats.onMessagesReceived(messages.size());
+        if (mListener != null) {
+            mListener.onHistorySynced(peerId, messages.size());
+        }
+    }
+
+    private void send(Connection connection, Frame frame) {
+        if (connection.send(frame)) {
+            mStats.onSent(frame.getEncodedLength());
+        }
+    }
+
+    private static long bucketOf(MessageKey key) {
+        return Math.max(0, key.getTimestamp()) / BUCKET_MILLIS;
+    }
+
+    private static SortedMap<Long, Bucket> buildBuckets(List<MessageKey> keys) {
+        SortedMap<Long, Bucket> buckets = new TreeMap<>();
+        for (MessageKey key : keys) {
+            long day = bucketOf(key);
+            Bucket b = buckets.get(day);
+            if (b == null) {
+                b = new Bucket();
+                buckets.put(day, b);
+            }
+            b.mCount++;
+            b.mHash += hash(key.getId());
+        }
+        return buckets;
+    }
+
+    /** Hash of a message id; buckets add these up, so the order of messages does not matter. */
+    private static long hash(UUID id) {
+        long h = id.getMostSignificantBits() * 0x9e3779b97f4a7c15L ^ id.getLeastSignificantBits();
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /** Summary of the messages of one day. */
+    private static class Bucket {
+
+        private int mCount;
+        private long mHash;
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Bucket)) {
+                return false;
+            }
+            Bucket other = (Bucket) o;
+            return mCount == other.mCount && mHash == other.mHash;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (mHash ^ (mHash >>> 32)) * 31 + mCount;
+        }
+
+    }
+
+}
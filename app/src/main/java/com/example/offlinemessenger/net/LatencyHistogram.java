@@ -0,0 +1,122 @@
+package com.example.offlinemessenger.net;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of latencies with logarithmic buckets: every power of two of
+ * microseconds is split into four buckets, so percentiles are accurate to within 25%.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    /** Enough buckets for latencies up to {@code 2^40} microseconds. */
+    private static final int BUCKETS = 40 * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotalNanos = new AtomicLong();
+    private final AtomicLong mMaxNanos = new AtomicLong();
+
+    /**
+     * Record a latency.
+     *
+     * @param nanos The latency in nanoseconds; negative values count as zero.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        mCounts.incrementAndGet(bucketOf(TimeUnit.NANOSECONDS.toMicros(nanos)));
+        mCount.incrementAndGet();
+        mTotalNanos.addAndGet(nanos);
+        long max;
+        do {
+            max = mMaxNanos.get();
+        } while (nanos > max && !mMaxNanos.compareAndSet(max, nanos));
+    }
+
+    /**
+     * Get the number of recorded latencies.
+     *
+     * @return The sample count.
+     */
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * Get the average latency.
+     *
+     * @return The average in milliseconds, {@code 0} if nothing has been recorded.
+     */
+    public double getAverageMillis() {
+        long count = mCount.get();
+        return count == 0 ? 0 : (double) mTotalNanos.get() / count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Get the highest recorded latency.
+     *
+     * @return The maximum in milliseconds.
+     */
+    public double getMaxMillis() {
+        return (double) mMaxNanos.get() / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Get a percentile of the recorded latencies.
+     *
+     * @param percentile The percentile, {@code 0..100}.
+     * @return The upper bound of the bucket containing the percentile in milliseconds,
+     *         {@code 0} if nothing has been recorded.
+     */
+    public double getPercentileMillis(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile out of range");
+        }
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i) / 1000.0, getMaxMillis());
+            }
+        }
+        return getMaxMillis();
+    }
+
+    private static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return Math.min(BUCKETS - 1, (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub);
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket + 1;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+        return lower + (1L << (exponent - SUB_BITS));
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount()
+                + " avgMillis=" + getAverageMillis()
+                + " p50Millis=" + getPercentileMillis(50)
+                + " p99Millis=" + getPercentileMillis(99)
+                + " maxMillis=" + getMaxMillis();
+    }
+
+}
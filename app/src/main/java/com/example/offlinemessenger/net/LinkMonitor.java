@@ -0,0 +1,230 @@
+package com.example.offlinemessenger.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keepalive and link quality estimation for any number of connections.
+ *
+ * Every attached connection is pinged periodically; the peer echoes the ping body in a pong,
+ * which yields a round trip sample.  Samples are smoothed as in RFC 6298 into SRTT and RTTVAR,
+ * from which a retransmission timeout is derived.  Throughput in both directions is sampled
+ * from the {@link ConnectionStats} on every tick and smoothed exponentially.
+ *
+ * A peer that has not sent anything, not even a pong, for the dead peer timeout is considered
+ * gone and its connection is closed, which also unblocks a reader stuck on a dead link.
+ *
+ * <pre>
+ * ping: send time (8), local to the sender
+ * pong: the body of the ping
+ * </pre>
+ */
+public class LinkMonitor {
+
+    /** Default time between pings. */
+    public static final long DEFAULT_INTERVAL_MILLIS = 5000;
+    /** Default time without receiving anything after which a peer is considered dead. */
+    public static final long DEFAULT_DEAD_PEER_TIMEOUT_MILLIS = 20000;
+    /** Lower bound of the derived retransmission timeout. */
+    private static final long MIN_RETRANSMIT_TIMEOUT_MILLIS = 200;
+    /** Weight of a new sample in the throughput averages. */
+    private static final double THROUGHPUT_GAIN = 0.25;
+
+    /**
+     * Callback interface for link events.  Callbacks are invoked on the connection's reader
+     * thread or the scheduler thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called whenever a new round trip sample has been taken.
+         *
+         * @param connection The connection.
+         * @param quality    The updated link quality.
+         */
+        void onLinkQualityChanged(Connection connection, LinkQuality quality);
+
+        /**
+         * Called before a connection is closed because the peer stopped responding.
+         *
+         * @param connection The connection.
+         */
+        void onPeerDead(Connection connection);
+
+    }
+
+    private final ScheduledExecutorService mScheduler;
+    private final Listener mListener;
+    private final long mIntervalMillis;
+    private final long mDeadPeerTimeoutMillis;
+    private final Map<Connection, Link> mLinks = new ConcurrentHashMap<>();
+
+    /**
+     * Create a link monitor with the default interval and timeout.
+     *
+     * @param scheduler The scheduler to run the pings on.
+     * @param listener  The listener for link events, may be {@code null}.
+     */
+    public LinkMonitor(ScheduledExecutorService scheduler, Listener listener) {
+        this(scheduler, listener, DEFAULT_INTERVAL_MILLIS, DEFAULT_DEAD_PEER_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Create a link monitor.
+     *
+     * @param scheduler              The scheduler to run the pings on.
+     * @param listener               The listener for link events, may be {@code null}.
+     * @param intervalMillis         The time between pings.
+     * @param deadPeerTimeoutMillis  The time without receiving anything after which the
+     *                               connection is closed.  Should span several intervals.
+     */
+    public LinkMonitor(ScheduledExecutorService scheduler, Listener listener,
+                       long intervalMillis, long deadPeerTimeoutMillis) {
+        if (intervalMillis <= 0 || deadPeerTimeoutMillis <= intervalMillis) {
+            throw new IllegalArgumentException("The timeout must be longer than the interval");
+        }
+        mScheduler = scheduler;
+        mListener = listener;
+        mIntervalMillis = intervalMillis;
+        mDeadPeerTimeoutMillis = deadPeerTimeoutMillis;
+    }
+
+    /**
+     * Start monitoring a connection.  Must be called before the connection is started.
+     *
+     * @param connection The connection.
+     */
+    public void attach(final Connection connection) {
+        final Link link = new Link(connection.getStats());
+        mLinks.put(connection, link);
+        connection.setFrameHandler(Frame.TYPE_PING,
+                (c, f) -> c.send(new Frame(Frame.TYPE_PONG, f.getBody())));
+        connection.setFrameHandler(Frame.TYPE_PONG, (c, f) -> onPong(c, f));
+        try {
+            link.mTimer = mScheduler.scheduleWithFixedDelay(() -> tick(connection, link),
+                    mIntervalMillis, mIntervalMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            mLinks.remove(connection);
+        }
+    }
+
+    /**
+     * Stop monitoring a connection that has been closed.
+     *
+     * @param connection The closed connection.
+     */
+    public void detach(Connection connection) {
+        Link link = mLinks.remove(connection);
+        if (link != null && link.mTimer != null) {
+            link.mTimer.cancel(false);
+        }
+    }
+
+    /**
+     * Get the current condition of a monitored link.
+     *
+     * @param connection The connection.
+     * @return The link quality, or {@code null} if the connection is not monitored.
+     */
+    public LinkQuality getLinkQuality(Connection connection) {
+        Link link = mLinks.get(connection);
+        return link == null ? null : link.snapshot();
+    }
+
+    private void tick(Connection connection, Link link) {
+        long now = System.nanoTime();
+        long idle = now - link.mStats.getLastReadNanos();
+        if (idle > TimeUnit.MILLISECONDS.toNanos(mDeadPeerTimeoutMillis)) {
+            detach(connection);
+            if (mListener != null) {
+                mListener.onPeerDead(connection);
+            }
+            connection.close();
+            return;
+        }
+
+        link.sampleThroughput(now);
+        ByteArrayOutputStream body = new ByteArrayOutputStream(8);
+        try {
+            WireFormat.writeLong(body, now);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        connection.send(new Frame(Frame.TYPE_PING, body.toByteArray()));
+    }
+
+    private void onPong(Connection connection, Frame frame) throws IOException {
+        long sentAt = WireFormat.readLong(frame.openBody());
+        Link link = mLinks.get(connection);
+        long rtt = System.nanoTime() - sentAt;
+        if (link == null || rtt < 0) {
+            return;
+        }
+        LinkQuality quality = link.sampleRtt(rtt / 1e6);
+        if (mListener != null) {
+            mListener.onLinkQualityChanged(connection, quality);
+        }
+    }
+
+    /** Estimator state of one connection. */
+    private static class Link {
+
+        private final ConnectionStats mStats;
+        private ScheduledFuture<?> mTimer;
+
+        // guarded by this
+        private double mSrtt;
+        private double mRttVar;
+        private int mSamples;
+        private long mLastSampleNanos = System.nanoTime();
+        private long mLastBytesWritten;
+        private long mLastBytesRead;
+        private double mSendRate;
+        private double mReceiveRate;
+
+        private Link(ConnectionStats stats) {
+            mStats = stats;
+        }
+
+        private synchronized LinkQuality sampleRtt(double rttMillis) {
+            if (mSamples == 0) {
+                mSrtt = rttMillis;
+                mRttVar = rttMillis / 2;
+            } else {
+                mRttVar = 0.75 * mRttVar + 0.25 * Math.abs(mSrtt - rttMillis);
+                mSrtt = 0.875 * mSrtt + 0.125 * rttMillis;
+            }
+            mSamples++;
+            return snapshot();
+        }
+
+        private synchronized void sampleThroughput(long now) {
+            double seconds = (now - mLastSampleNanos) / 1e9;
+            if (seconds <= 0) {
+                return;
+            }
+            long written = mStats.getBytesWritten();
+            long read = mStats.getBytesRead();
+            mSendRate += THROUGHPUT_GAIN * ((written - mLastBytesWritten) / seconds - mSendRate);
+            mReceiveRate += THROUGHPUT_GAIN * ((read - mLastBytesRead) / seconds - mReceiveRate);
+            mLastBytesWritten = written;
+            mLastBytesRead = read;
+            mLastSampleNanos = now;
+        }
+
+        private synchronized LinkQuality snapshot() {
+            long rto = mSamples == 0 ? 0 : Math.max(MIN_RETRANSMIT_TIMEOUT_MILLIS,
+                    (long) Math.ceil(mSrtt + 4 * mRttVar));
+            long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mStats.getLastReadNanos());
+            return new LinkQuality(mSrtt, mRttVar, rto, mSendRate, mReceiveRate, idle, mSamples);
+        }
+
+    }
+
+}
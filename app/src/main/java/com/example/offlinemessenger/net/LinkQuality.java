@@ -0,0 +1,103 @@
+package com.example.offlinemessenger.net;
+
+/**
+ * Snapshot of the condition of the link to a peer, as measured by a {@link LinkMonitor}.
+ */
+public class LinkQuality {
+
+    private final double mSmoothedRttMillis;
+    private final double mRttVarianceMillis;
+    private final long mRetransmitTimeoutMillis;
+    private final double mSendBytesPerSecond;
+    private final double mReceiveBytesPerSecond;
+    private final long mIdleMillis;
+    private final int mSamples;
+
+    LinkQuality(double smoothedRttMillis, double rttVarianceMillis, long retransmitTimeoutMillis,
+                double sendBytesPerSecond, double receiveBytesPerSecond, long idleMillis,
+                int samples) {
+        mSmoothedRttMillis = smoothedRttMillis;
+        mRttVarianceMillis = rttVarianceMillis;
+        mRetransmitTimeoutMillis = retransmitTimeoutMillis;
+        mSendBytesPerSecond = sendBytesPerSecond;
+        mReceiveBytesPerSecond = receiveBytesPerSecond;
+        mIdleMillis = idleMillis;
+        mSamples = samples;
+    }
+
+    /**
+     * Get the smoothed round trip time.
+     *
+     * @return The SRTT in milliseconds, {@code 0} before the first sample.
+     */
+    public double getSmoothedRttMillis() {
+        return mSmoothedRttMillis;
+    }
+
+    /**
+     * Get the round trip time variation.
+     *
+     * @return The RTTVAR in milliseconds, {@code 0} before the first sample.
+     */
+    public double getRttVarianceMillis() {
+        return mRttVarianceMillis;
+    }
+
+    /**
+     * Get a retransmission timeout suited to the link, {@code SRTT + 4 * RTTVAR} with a lower
+     * bound.
+     *
+     * @return The timeout in milliseconds.
+     */
+    public long getRetransmitTimeoutMillis() {
+        return mRetransmitTimeoutMillis;
+    }
+
+    /**
+     * Get the recent outbound throughput, after compression.
+     *
+     * @return The smoothed throughput in bytes per second.
+     */
+    public double getSendBytesPerSecond() {
+        return mSendBytesPerSecond;
+    }
+
+    /**
+     * Get the recent inbound throughput, after decompression.
+     *
+     * @return The smoothed throughput in bytes per second.
+     */
+    public double getReceiveBytesPerSecond() {
+        return mReceiveBytesPerSecond;
+    }
+
+    /**
+     * Get the time since anything has been received from the peer.
+     *
+     * @return The idle time in milliseconds.
+     */
+    public long getIdleMillis() {
+        return mIdleMillis;
+    }
+
+    /**
+     * Get the number of round trip samples taken.
+     *
+     * @return The sample count.
+     */
+    public int getSamples() {
+        return mSamples;
+    }
+
+    @Override
+    public String toString() {
+        return "srttMillis=" + getSmoothedRttMillis()
+                + " rttvarMillis=" + getRttVarianceMillis()
+                + " rtoMillis=" + getRetransmitTimeoutMillis()
+                + " sendBytesPerSecond=" + getSendBytesPerSecond()
+                + " receiveBytesPerSecond=" + getReceiveBytesPerSecond()
+                + " idleMillis=" + getIdleMillis()
+                + " samples=" + getSamples();
+    }
+
+}
@@ -0,0 +1,306 @@
+package com.example.offlinemessenger.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * In-process transport connecting endpoints of the same {@link Network} through bounded
+ * in-memory pipes.  Used to run the messaging path without any radio.
+ */
+public class LoopbackTransport implements Transport {
+
+    /** Default capacity of a single pipe direction in bytes. */
+    public static final int DEFAULT_PIPE_CAPACITY = 64 * 1024;
+
+    private final Network mNetwork;
+    private final String mLocalAddress;
+
+    /**
+     * Create a transport on a private network with a single endpoint called {@code "loopback"}.
+     */
+    public LoopbackTransport() {
+        this(new Network(), "loopback");
+    }
+
+    /**
+     * Create a transport for an endpoint on the given network.
+     *
+     * @param network      The network shared by all endpoints that should see each other.
+     * @param localAddress The address other endpoints use to connect to this one.
+     */
+    public LoopbackTransport(Network network, String localAddress) {
+        mNetwork = network;
+        mLocalAddress = localAddress;
+    }
+
+    /**
+     * Get the address other endpoints use to connect to this one.
+     *
+     * @return The local address.
+     */
+    public String getLocalAddress() {
+        return mLocalAddress;
+    }
+
+    @Override
+    public Channel connect(String address) throws IOException {
+        LoopbackAcceptor acceptor = mNetwork.get(address);
+        if (acceptor == null) {
+            throw new IOException("Connection refused: " + address);
+        }
+
+        Pipe toServer = new Pipe(mNetwork.mPipeCapacity);
+        Pipe toClient = new Pipe(mNetwork.mPipeCapacity);
+        LoopbackChannel client = new LoopbackChannel(address, toClient, toServer);
+        acceptor.offer(new LoopbackChannel(mLocalAddress, toServer, toClient));
+
+        return client;
+    }
+
+    @Override
+    public Acceptor listen() throws IOException {
+        LoopbackAcceptor acceptor = new LoopbackAcceptor();
+        mNetwork.bind(mLocalAddress, acceptor);
+        return acceptor;
+    }
+
+    /**
+     * A set of loopback endpoints that are able to connect to each other.
+     */
+    public static class Network {
+
+        private final Map<String, LoopbackAcceptor> mAcceptors = new HashMap<>();
+        private final int mPipeCapacity;
+
+        /**
+         * Create a network using the default pipe capacity.
+         */
+        public Network() {
+            this(DEFAULT_PIPE_CAPACITY);
+        }
+
+        /**
+         * Create a network.
+         *
+         * @param pipeCapacity The number of bytes buffered per direction of a channel.
+         *                     Small values emulate a slow reader exerting backpressure.
+         */
+        public Network(int pipeCapacity) {
+            mPipeCapacity = pipeCapacity;
+        }
+
+        private synchronized void bind(String address, LoopbackAcceptor acceptor)
+                throws IOException {
+            LoopbackAcceptor existing = mAcceptors.get(address);
+            if (existing != null && !existing.mClosed) {
+                throw new IOException("Address already in use: " + address);
+            }
+            mAcceptors.put(address, acceptor);
+        }
+
+        private synchronized LoopbackAcceptor get(String address) {
+            LoopbackAcceptor acceptor = mAcceptors.get(address);
+            return acceptor == null || acceptor.mClosed ? null : acceptor;
+        }
+
+    }
+
+    private static class LoopbackAcceptor implements Acceptor {
+
+        private final LinkedList<Channel> mPending = new LinkedList<>();
+        private boolean mClosed = false;
+
+        private synchronized void offer(Channel channel) throws IOException {
+            if (mClosed) {
+                throw new IOException("Connection refused");
+            }
+            mPending.add(channel);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized Channel accept() throws IOException {
+            while (mPending.isEmpty()) {
+                if (mClosed) {
+                    throw new IOException("Acceptor closed");
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+
+            return mPending.removeFirst();
+        }
+
+        @Override
+        public synchronized void close() {
+            mClosed = true;
+            for (Channel c : mPending) {
+                c.close();
+            }
+            mPending.clear();
+            notifyAll();
+        }
+
+    }
+
+    private static class LoopbackChannel implements Channel {
+
+        private final String mPeerAddress;
+        private final Pipe mIn;
+        private final Pipe mOut;
+
+        private LoopbackChannel(String peerAddress, Pipe in, Pipe out) {
+            mPeerAddress = peerAddress;
+            mIn = in;
+            mOut = out;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return mIn.mSource;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return mOut.mSink;
+        }
+
+        @Override
+        public String getPeerAddress() {
+            return mPeerAddress;
+        }
+
+        @Override
+        public void close() {
+            mIn.close();
+            mOut.close();
+        }
+
+    }
+
+    /**
+     * A bounded, thread safe byte ring buffer with a blocking stream on either end.
+     * Unlike {@link java.io.PipedInputStream} it does not care which threads use it.
+     */
+    private static class Pipe {
+
+        private final byte[] mBuf;
+        private int mHead = 0;
+        private int mSize = 0;
+        private boolean mClosed = false;
+
+        private final InputStream mSource = new InputStream() {
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Pipe.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                synchronized (Pipe.this) {
+                    return mSize;
+                }
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+
+        };
+
+        private final OutputStream mSink = new OutputStream() {
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Pipe.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+
+        };
+
+        private Pipe(int capacity) {
+            mBuf = new byte[capacity];
+        }
+
+        private synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (mSize == 0) {
+                if (mClosed) {
+                    return -1;
+                }
+                awaitChange();
+            }
+
+            int n = Math.min(len, mSize);
+            int first = Math.min(n, mBuf.length - mHead);
+            System.arraycopy(mBuf, mHead, b, off, first);
+            System.arraycopy(mBuf, 0, b, off + first, n - first);
+            mHead = (mHead + n) % mBuf.length;
+            mSize -= n;
+            notifyAll();
+
+            return n;
+        }
+
+        private synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                while (mSize == mBuf.length && !mClosed) {
+                    awaitChange();
+                }
+                if (mClosed) {
+                    throw new IOException("Pipe closed");
+                }
+
+                int tail = (mHead + mSize) % mBuf.length;
+                int n = Math.min(len, Math.min(mBuf.length - mSize, mBuf.length - tail));
+                System.arraycopy(b, off, mBuf, tail, n);
+                mSize += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        }
+
+        private synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+
+        private void awaitChange() throws InterruptedIOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+    }
+
+}
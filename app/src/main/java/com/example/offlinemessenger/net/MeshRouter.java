@@ -0,0 +1,333 @@
+package com.example.offlinemessenger.net;
+
+import com.example.offlinemessenger.data.ChatMessage;
+import com.example.offlinemessenger.data.Sendable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multi-hop store-and-forward relaying of chat messages between peers that are not in direct
+ * range of each other.
+ *
+ * Every attached connection starts by announcing the id of the local user, so each node
+ * knows who its direct neighbours are.  A message for a neighbour is sent to that neighbour
+ * only; any other message is flooded to all neighbours except the one it came from, with
+ * its hop limit decremented.  Each node forwards a message at most once, which is enforced
+ * by a {@link SeenCache} keyed by message id, so the relay cost grows linearly with the
+ * number of nodes instead of with the number of paths through the mesh.
+ *
+ * Messages that have not reached their destination are also kept in a bounded store and
+ * handed to every neighbour that connects later, which carries them across partitions of
+ * the mesh.
+ *
+ * <pre>
+ * hello: user id (16)
+ * relay: message id (16) | origin (16) | destination (16) | hops left (1) | sendable
+ * </pre>
+ *
+ * The sendable is encoded with {@link SendableCodec#encode(Sendable)}.  Relaying is best
+ * effort; reliable delivery to direct neighbours is provided by the {@link DeliveryManager}.
+ */
+public class MeshRouter {
+
+    /** Default hop limit of new messages. */
+    public static final int DEFAULT_HOP_LIMIT = 8;
+    /** Default number of messages kept for neighbours that connect later. */
+    public static final int DEFAULT_STORE_CAPACITY = 512;
+    /** Time after which a stored message is no longer handed out. */
+    private static final long STORE_LIFETIME_MILLIS = TimeUnit.DAYS.toMillis(1);
+    /** Number of message ids remembered exactly. */
+    private static final int SEEN_RECENT_CAPACITY = 4096;
+    /** Number of older message ids per Bloom filter generation. */
+    private static final int SEEN_GENERATION_CAPACITY = 65536;
+
+    /**
+     * Callback interface for relayed messages.
+     */
+    public interface Listener {
+
+        /**
+         * Called on a connection's reader thread for every message that has been relayed
+         * to the local user.
+         *
+         * @param s      The sendable.
+         * @param origin The user id of the node that sent it.
+         */
+        void onRelayedReceived(Sendable s, UUID origin);
+
+        /**
+         * Called on a connection's reader thread once the peer has announced its user id.
+         *
+         * @param connection The connection.
+         * @param userId     The user id of the peer.
+         */
+        void onNeighbourAnnounced(Connection connection, UUID userId);
+
+    }
+
+    private final UUID mLocalId;
+    private final Listener mListener;
+    private final int mHopLimit;
+    private final int mStoreCapacity;
+    private final SeenCache mSeen = new SeenCache(SEEN_RECENT_CAPACITY, SEEN_GENERATION_CAPACITY);
+    private final MeshStats mStats = new MeshStats();
+
+    // guarded by this
+    /** Attached connections and the user id of their peer, {@code null} until announced. */
+    private final Map<Connection, UUID> mNeighbours = new LinkedHashMap<>();
+    /** Messages that may still have to be carried to their destination, oldest first. */
+    private final Map<UUID, Packet> mStore = new LinkedHashMap<>();
+
+    /**
+     * Create a router with the default hop limit and store size.
+     *
+     * @param localId  The id of the local user.
+     * @param listener The listener for messages addressed to the local user.
+     */
+    public MeshRouter(UUID localId, Listener listener) {
+        this(localId, listener, DEFAULT_HOP_LIMIT, DEFAULT_STORE_CAPACITY);
+    }
+
+    /**
+     * Create a router.
+     *
+     * @param localId       The id of the local user.
+     * @param listener      The listener for messages addressed to the local user.
+     * @param hopLimit      The number of times a new message may be forwarded, {@code 1..255}.
+     * @param storeCapacity The number of messages kept for neighbours that connect later.
+     */
+    public MeshRouter(UUID localId, Listener listener, int hopLimit, int storeCapacity) {
+        if (hopLimit < 1 || hopLimit > 0xFF) {
+            throw new IllegalArgumentException("hopLimit must be in 1..255");
+        }
+        mLocalId = localId;
+        mListener = listener;
+        mHopLimit = hopLimit;
+        mStoreCapacity = storeCapacity;
+    }
+
+    /**
+     * Get the relay counters.
+     *
+     * @return The statistics.
+     */
+    public MeshStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Add a connection as a neighbour.  Must be called before the connection is started.
+     *
+     * @param connection The connection.
+     */
+    public void attach(Connection connection) {
+        connection.setFrameHandler(Frame.TYPE_MESH_HELLO, this::onHello);
+        connection.setFrameHandler(Frame.TYPE_MESH_RELAY, this::onRelay);
+        synchronized (this) {
+            mNeighbours.put(connection, null);
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream(16);
+        try {
+            WireFormat.writeUUID(body, mLocalId);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        connection.send(new Frame(Frame.TYPE_MESH_HELLO, body.toByteArray()));
+    }
+
+    /**
+     * Remove a connection that has been closed.
+     *
+     * @param connection The closed connection.
+     */
+    public synchronized void detach(Connection connection) {
+        mNeighbours.remove(connection);
+    }
+
+    /**
+     * Get the user on the other end of an attached connection.
+     *
+     * @param connection The connection.
+     * @return The user id, or {@code null} if the peer has not announced itself yet.
+     */
+    public synchronized UUID getNeighbourId(Connection connection) {
+        return mNeighbours.get(connection);
+    }
+
+    /**
+     * Send a message to a user anywhere in the mesh.
+     *
+     * @param message     The message.
+     * @param destination The id of the receiving user.
+     */
+    public void send(ChatMessage message, UUID destination) {
+        Packet p = new Packet(message.getUUID(), mLocalId, destination, mHopLimit,
+                SendableCodec.encode(message));
+        mSeen.markSeen(p.mId);
+        mStats.onOriginated();
+        List<Connection> targets;
+        synchronized (this) {
+            targets = route(p, null);
+        }
+        transmit(targets, p);
+    }
+
+    private void onHello(Connection connection, Frame frame) throws IOException {
+        UUID peerId = WireFormat.readUUID(frame.openBody());
+        List<Packet> handover = new ArrayList<>();
+        synchronized (this) {
+            if (!mNeighbours.containsKey(connection)) {
+                return;
+            }
+            mNeighbours.put(connection, peerId);
+
+            // hand over everything we are carrying
+            long now = System.currentTimeMillis();
+            Iterator<Packet> it = mStore.values().iterator();
+            while (it.hasNext()) {
+                Packet p = it.next();
+                if (now - p.mStoredAt > STORE_LIFETIME_MILLIS) {
+                    it.remove();
+                } else if (!peerId.equals(p.mOrigin)) {
+                    handover.add(p);
+                    if (peerId.equals(p.mDestination)) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+        List<Connection> target = Collections.singletonList(connection);
+        for (Packet p : handover) {
+            transmit(target, p);
+        }
+        mListener.onNeighbourAnnounced(connection, peerId);
+    }
+
+    private void onRelay(Connection connection, Frame frame) throws IOException {
+        InputStream in = frame.openBody();
+        UUID id = WireFormat.readUUID(in);
+        UUID origin = WireFormat.readUUID(in);
+        UUID destination = WireFormat.readUUID(in);
+        int hopsLeft = WireFormat.readByte(in);
+        byte[] payload = new byte[in.available()];
+        WireFormat.readFully(in, payload, 0, payload.length);
+
+        if (mLocalId.equals(destination)) {
+            // only trust the exact part of the cache here, a false positive would lose the message
+            if (!mSeen.markSeenExactly(id)) {
+                mStats.onDuplicate();
+                return;
+            }
+            Sendable s = SendableCodec.decode(payload, 0, payload.length);
+            if (s != null) {
+                mStats.onDelivered();
+                mListener.onRelayedReceived(s, origin);
+            }
+            return;
+        }
+
+        if (!mSeen.markSeen(id)) {
+            mStats.onDuplicate();
+            return;
+        }
+        if (hopsLeft <= 1) {
+            mStats.onExpired();
+            return;
+        }
+        Packet p = new Packet(id, origin, destination, hopsLeft - 1, payload);
+        List<Connection> targets;
+        synchronized (this) {
+            targets = route(p, connection);
+        }
+        transmit(targets, p);
+    }
+
+    /**
+     * Choose the neighbours a packet goes to next, and store it for neighbours that connect
+     * later unless it goes straight to its destination.  Must be called while holding the
+     * lock; the packet is sent after releasing it, as sending may block on a full queue.
+     *
+     * @param p    The packet.
+     * @param from The connection the packet came from, {@code null} for new messages.
+     * @return The connections to send the packet to.
+     */
+    private List<Connection> route(Packet p, Connection from) {
+        for (Map.Entry<Connection, UUID> neighbour : mNeighbours.entrySet()) {
+            if (p.mDestination.equals(neighbour.getValue())) {
+                return Collections.singletonList(neighbour.getKey());
+            }
+        }
+
+        List<Connection> targets = new ArrayList<>(mNeighbours.size());
+        for (Map.Entry<Connection, UUID> neighbour : mNeighbours.entrySet()) {
+            if (neighbour.getKey() != from && !p.mOrigin.equals(neighbour.getValue())) {
+                targets.add(neighbour.getKey());
+            }
+        }
+
+        p.mStoredAt = System.currentTimeMillis();
+        mStore.put(p.mId, p);
+        if (mStore.size() > mStoreCapacity) {
+            Iterator<Packet> it = mStore.values().iterator();
+            it.next();
+            it.remove();
+        }
+        return targets;
+    }
+
+    /** Must be called without holding the lock. */
+    private void transmit(List<Connection> targets, Packet p) {
+        if (targets.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream(49 + p.mPayload.length);
+        try {
+            WireFormat.writeUUID(body, p.mId);
+            WireFormat.writeUUID(body, p.mOrigin);
+            WireFormat.writeUUID(body, p.mDestination);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        body.write(p.mHopsLeft);
+        body.write(p.mPayload, 0, p.mPayload.length);
+        byte[] encoded = body.toByteArray();
+        for (Connection connection : targets) {
+            if (connection.send(new Frame(Frame.TYPE_MESH_RELAY, encoded))) {
+                mStats.onForwarded();
+            }
+        }
+    }
+
+    /** A message on its way through the mesh. */
+    private static class Packet {
+
+        private final UUID mId;
+        private final UUID mOrigin;
+        private final UUID mDestination;
+        private final int mHopsLeft;
+        /** The message as encoded by {@link SendableCodec#encode(Sendable)}. */
+        private final byte[] mPayload;
+        private long mStoredAt;
+
+        private Packet(UUID id, UUID origin, UUID destination, int hopsLeft, byte[] payload) {
+            mId = id;
+            mOrigin = origin;
+            mDestination = destination;
+            mHopsLeft = hopsLeft;
+            mPayload = payload;
+        }
+
+    }
+
+}
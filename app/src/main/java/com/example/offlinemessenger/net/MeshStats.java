@@ -0,0 +1,90 @@
+package com.example.offlinemessenger.net;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing the relaying of messages by a {@link MeshRouter}.
+ */
+public class MeshStats {
+
+    private final AtomicLong mOriginated = new AtomicLong();
+    private final AtomicLong mDelivered = new AtomicLong();
+    private final AtomicLong mForwarded = new AtomicLong();
+    private final AtomicLong mDuplicates = new AtomicLong();
+    private final AtomicLong mExpired = new AtomicLong();
+
+    void onOriginated() {
+        mOriginated.incrementAndGet();
+    }
+
+    void onDelivered() {
+        mDelivered.incrementAndGet();
+    }
+
+    void onForwarded() {
+        mForwarded.incrementAndGet();
+    }
+
+    void onDuplicate() {
+        mDuplicates.incrementAndGet();
+    }
+
+    void onExpired() {
+        mExpired.incrementAndGet();
+    }
+
+    /**
+     * Get the number of messages sent by this node.
+     *
+     * @return The originated message count.
+     */
+    public long getOriginated() {
+        return mOriginated.get();
+    }
+
+    /**
+     * Get the number of messages that reached this node as their destination.
+     *
+     * @return The delivered message count.
+     */
+    public long getDelivered() {
+        return mDelivered.get();
+    }
+
+    /**
+     * Get the number of relay frames sent to peers, including those for own messages.
+     *
+     * @return The forwarded frame count.
+     */
+    public long getForwarded() {
+        return mForwarded.get();
+    }
+
+    /**
+     * Get the number of relay frames dropped because their message had been seen before.
+     *
+     * @return The duplicate count.
+     */
+    public long getDuplicates() {
+        return mDuplicates.get();
+    }
+
+    /**
+     * Get the number of messages dropped because their hop limit was exhausted.
+     *
+     * @return The expired message count.
+     */
+    public long getExpired() {
+        return mExpired.get();
+    }
+
+    @Override
+    public String toString() {
+        return "originated=" + getOriginated()
+                + " delivered=" + getDelivered()
+                + " forwarded=" + getForwarded()
+                + " duplicates=" + getDuplicates()
+                + " expired=" + getExpired();
+    }
+
+}
@@ -0,0 +1,105 @@
+package com.example.offlinemessenger.net;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Bounded memory of message ids that have already been seen.
+ *
+ * The most recent ids are kept exactly in an LRU map.  Ids evicted from it move into a pair of
+ * rotating Bloom filters, which keep answering for a much longer history at a few bits per
+ * id, at the price of a small false positive rate.  Memory use is fixed regardless of how
+ * many messages pass through.  Thread safe.
+ */
+public class SeenCache {
+
+    /** False positive rate of each Bloom filter generation when full. */
+    private static final double FALSE_POSITIVE_RATE = 0.001;
+
+    private final int mRecentCapacity;
+    private final int mGenerationCapacity;
+    private final Map<UUID, Boolean> mRecent;
+    private BloomFilter mCurrent;
+    private BloomFilter mPrevious;
+
+    /**
+     * Create a new cache.
+     *
+     * @param recentCapacity     The number of ids remembered exactly.
+     * @param generationCapacity The number of evicted ids per Bloom filter generation.  Two
+     *                           generations are kept, so ids are remembered approximately for
+     *                           between one and two times this many further messages.
+     */
+    public SeenCache(int recentCapacity, int generationCapacity) {
+        mRecentCapacity = recentCapacity;
+        mGenerationCapacity = generationCapacity;
+        mCurrent = new BloomFilter(generationCapacity, FALSE_POSITIVE_RATE);
+        mPrevious = new BloomFilter(generationCapacity, FALSE_POSITIVE_RATE);
+        mRecent = new LinkedHashMap<UUID, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, Boolean> eldest) {
+                if (size() <= mRecentCapacity) {
+                    return false;
+                }
+                age(eldest.getKey());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Record an id as seen.
+     *
+     * @param id The message id.
+     * @return {@code true} if the id had not been seen before, as far as the cache can tell.
+     */
+    public synchronized boolean markSeen(UUID id) {
+        boolean seen = contains(id);
+        mRecent.put(id, Boolean.TRUE);
+        return !seen;
+    }
+
+    /**
+     * Record an id as seen, only trusting the exact part of the cache to tell whether it has
+     * been seen before.  For callers to whom a false positive would be worse than a duplicate.
+     *
+     * @param id The message id.
+     * @return {@code true} if the id was not among the recently seen ones.
+     */
+    public synchronized boolean markSeenExactly(UUID id) {
+        return mRecent.put(id, Boolean.TRUE) == null;
+    }
+
+    /**
+     * Check whether an id has been seen, either recently or, with a small chance of a false
+     * positive, further in the past.
+     *
+     * @param id The message id.
+     * @return {@code true} if the id has probably been seen.
+     */
+    public synchronized boolean contains(UUID id) {
+        return mRecent.containsKey(id) || mCurrent.mightContain(id) || mPrevious.mightContain(id);
+    }
+
+    /**
+     * Check whether an id is among the recently seen ones.  Never returns false positives.
+     *
+     * @param id The message id.
+     * @return {@code true} if the id has definitely been seen.
+     */
+    public synchronized boolean containsRecent(UUID id) {
+        return mRecent.containsKey(id);
+    }
+
+    private void age(UUID id) {
+        if (mCurrent.getCount() >= mGenerationCapacity) {
+            BloomFilter recycled = mPrevious;
+            recycled.clear();
+            mPrevious = mCurrent;
+            mCurrent = recycled;
+        }
+        mCurrent.add(id);
+    }
+
+}
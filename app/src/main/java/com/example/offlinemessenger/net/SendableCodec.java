@@ -0,0 +1,165 @@
+package com.example.offlinemessenger.net;
+
+import com.example.offlinemessenger.data.ChatMessage;
+import com.example.offlinemessenger.data.ChatUser;
+import com.example.offlinemessenger.data.Sendable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.util.UUID;
+
+/**
+ * Compact binary codec for {@link Sendable} objects, replacing Java serialization on the wire.
+ *
+ * Sendables travel in {@link Frame}s tagged {@link Frame#TYPE_CHAT_MESSAGE} or
+ * {@link Frame#TYPE_CHAT_USER}.  The frame body starts with the {@link Sendable.Action} value,
+ * followed by the fields of the concrete type:
+ *
+ * <pre>
+ * ChatMessage: sender (16) | id (16) | timestamp (varint) | content (varint length + UTF-8)
+ * ChatUser:    id (16)     | name (varint length + UTF-8)
+ * </pre>
+ */
+public final class SendableCodec {
+
+    private SendableCodec() {
+    }
+
+    /**
+     * Encode a sendable into a frame.
+     *
+     * @param s The sendable.
+     * @return The frame.
+     * @throws IllegalArgumentException If the sendable type is not supported by the codec.
+     */
+    public static Frame toFrame(Sendable s) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        int type;
+        try {
+            out.write(s.getAction().getValue());
+            if (s instanceof ChatMessage) {
+                ChatMessage m = (ChatMessage) s;
+                type = Frame.TYPE_CHAT_MESSAGE;
+                WireFormat.writeUUID(out, m.getSender());
+                WireFormat.writeUUID(out, m.getUUID());
+                WireFormat.writeVarLong(out, m.getTimestamp());
+                WireFormat.writeString(out, m.getContent());
+            } else if (s instanceof ChatUser) {
+                ChatUser u = (ChatUser) s;
+                type = Frame.TYPE_CHAT_USER;
+                WireFormat.writeUUID(out, u.getUUID());
+                WireFormat.writeString(out, u.getName());
+            } else {
+                throw new IllegalArgumentException("Unsupported sendable: " + s.getClass());
+            }
+        } catch (IOException e) {
+            // ByteArrayOutputStream never throws
+            throw new AssertionError(e);
+        }
+
+        return new Frame(type, out.toByteArray());
+    }
+
+    /**
+     * Decode a sendable from a frame.
+     *
+     * @param frame The frame.
+     * @return The decoded sendable, or {@code null} if the frame does not carry a sendable.
+     * @throws IOException If the frame body is malformed.
+     */
+    public static Sendable fromFrame(Frame frame) throws IOException {
+        InputStream in = frame.openBody();
+        int maxLength = frame.getBody().length;
+        switch (frame.getType()) {
+            case Frame.TYPE_CHAT_MESSAGE: {
+                Sendable.Action action = Sendable.Action.fromValue((byte) WireFormat.readByte(in));
+                UUID sender = WireFormat.readUUID(in);
+                UUID id = WireFormat.readUUID(in);
+                long timestamp = WireFormat.readVarLong(in);
+                String content = WireFormat.readString(in, maxLength);
+                return new ChatMessage(action, sender, content, false, timestamp, id);
+            }
+
+            case Frame.TYPE_CHAT_USER: {
+                Sendable.Action action = Sendable.Action.fromValue((byte) WireFormat.readByte(in));
+                UUID id = WireFormat.readUUID(in);
+                String name = WireFormat.readString(in, maxLength);
+                return new ChatUser(action, name, id);
+            }
+
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Encode a sendable into a standalone frame payload (without the length prefix).
+     *
+     * @param s The sendable.
+     * @return The encoded payload.
+     */
+    public static byte[] encode(Sendable s) {
+        Frame frame = toFrame(s);
+        byte[] body = frame.getBody();
+        byte[] payload = new byte[body.length + 2];
+        payload[0] = (byte) Frame.VERSION;
+        payload[1] = (byte) frame.getType();
+        System.arraycopy(body, 0, payload, 2, body.length);
+        return payload;
+    }
+
+    /**
+     * Decode a payload produced by {@link #encode(Sendable)}.
+     *
+     * @param data   The buffer containing the payload.
+     * @param offset The payload offset within the buffer.
+     * @param length The payload length.
+     * @return The decoded sendable, or {@code null} if the version or type is unknown.
+     * @throws IOException If the payload is malformed.
+     */
+    public static Sendable decode(byte[] data, int offset, int length) throws IOException {
+        if (length < 2) {
+            throw new StreamCorruptedException("Payload too short");
+        }
+        if ((data[offset] & 0xFF) != Frame.VERSION) {
+            return null;
+        }
+        byte[] body = new byte[length - 2];
+        System.arraycopy(data, offset + 2, body, 0, body.length);
+        return fromFrame(new Frame(data[offset + 1] & 0xFF, body));
+    }
+
+    /**
+     * Write a sendable as a single length prefixed frame.  The stream is not flushed.
+     *
+     * @param out The stream to write to.
+     * @param s   The sendable.
+     * @return The number of bytes written, including the length prefix.
+     * @throws IOException If the underlying stream fails.
+     */
+    public static int writeFrame(OutputStream out, Sendable s) throws IOException {
+        return toFrame(s).writeTo(out);
+    }
+
+    /**
+     * Read the next frame carrying a sendable, silently skipping all other frames.
+     *
+     * @param in The stream to read from.
+     * @return The decoded sendable.
+     * @throws java.io.EOFException If the stream has ended.
+     * @throws IOException          If the stream fails or a frame is malformed.
+     */
+    public static Sendable readFrame(InputStream in) throws IOException {
+        while (true) {
+            Frame frame = Frame.readFrom(in);
+            Sendable s = frame == null ? null : fromFrame(frame);
+            if (s != null) {
+                return s;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,102 @@
+package com.example.offlinemessenger.net;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing the history reconciliation of a {@link HistorySync}.
+ */
+public class SyncStats {
+
+    private final AtomicLong mBytesSent = new AtomicLong();
+    private final AtomicLong mBytesReceived = new AtomicLong();
+    private final AtomicLong mMessagesSent = new AtomicLong();
+    private final AtomicLong mMessagesReceived = new AtomicLong();
+    private final AtomicLong mBucketsCompared = new AtomicLong();
+    private final AtomicLong mBucketsDiffering = new AtomicLong();
+
+    void onSent(int bytes) {
+        mBytesSent.addAndGet(bytes);
+    }
+
+    void onReceived(int bytes) {
+        mBytesReceived.addAndGet(bytes);
+    }
+
+    void onMessagesSent(int count) {
+        mMessagesSent.addAndGet(count);
+    }
+
+    void onMessagesReceived(int count) {
+        mMessagesReceived.addAndGet(count);
+    }
+
+    void onDigestCompared(int buckets, int differing) {
+        mBucketsCompared.addAndGet(buckets);
+        mBucketsDiffering.addAndGet(differing);
+    }
+
+    /**
+     * Get the number of sync frame bytes sent, including digests and filters.
+     *
+     * @return The byte count.
+     */
+    public long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    /**
+     * Get the number of sync frame bytes received.
+     *
+     * @return The byte count.
+     */
+    public long getBytesReceived() {
+        return mBytesReceived.get();
+    }
+
+    /**
+     * Get the number of messages sent because the peer was missing them.
+     *
+     * @return The message count.
+     */
+    public long getMessagesSent() {
+        return mMessagesSent.get();
+    }
+
+    /**
+     * Get the number of missing messages received from the peer.
+     *
+     * @return The message count.
+     */
+    public long getMessagesReceived() {
+        return mMessagesReceived.get();
+    }
+
+    /**
+     * Get the number of digest buckets compared against the local history.
+     *
+     * @return The bucket count.
+     */
+    public long getBucketsCompared() {
+        return mBucketsCompared.get();
+    }
+
+    /**
+     * Get the number of compared buckets that differed from the local history.
+     *
+     * @return The bucket count.
+     */
+    public long getBucketsDiffering() {
+        return mBucketsDiffering.get();
+    }
+
+    @Override
+    public String toString() {
+        return "bytesSent=" + getBytesSent()
+                + " bytesReceived=" + getBytesReceived()
+                + " messagesSent=" + getMessagesSent()
+                + " messagesReceived=" + getMessagesReceived()
+                + " bucketsCompared=" + getBucketsCompared()
+                + " bucketsDiffering=" + getBucketsDiffering();
+    }
+
+}
@@ -0,0 +1,131 @@
+package com.example.offlinemessenger.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * TCP stand-in for the Bluetooth transport, listening on the loopback interface.
+ * Addresses are given as {@code host:port}.
+ */
+public class TcpTransport implements Transport {
+
+    /** The port to listen on, {@code 0} for an ephemeral one. */
+    private final int mPort;
+
+    /**
+     * Create a new TCP transport.
+     *
+     * @param port The local port to listen on, or {@code 0} to pick a free one.
+     */
+    public TcpTransport(int port) {
+        mPort = port;
+    }
+
+    @Override
+    public Channel connect(String address) throws IOException {
+        int sep = address.lastIndexOf(':');
+        if (sep < 0) {
+            throw new IOException("Invalid address: " + address);
+        }
+
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(
+                    address.substring(0, sep),
+                    Integer.parseInt(address.substring(sep + 1))
+            ));
+        } catch (IOException | NumberFormatException e) {
+            socket.close();
+            throw new IOException("Unable to connect to " + address, e);
+        }
+
+        return new TcpChannel(socket);
+    }
+
+    @Override
+    public TcpAcceptor listen() throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), mPort));
+        return new TcpAcceptor(serverSocket);
+    }
+
+    /**
+     * Acceptor backed by a server socket.
+     */
+    public static class TcpAcceptor implements Acceptor {
+
+        private final ServerSocket mServerSocket;
+
+        private TcpAcceptor(ServerSocket serverSocket) {
+            mServerSocket = serverSocket;
+        }
+
+        /**
+         * Get the address peers can connect to.
+         *
+         * @return The local address in {@code host:port} notation.
+         */
+        public String getLocalAddress() {
+            return mServerSocket.getInetAddress().getHostAddress() + ":"
+                    + mServerSocket.getLocalPort();
+        }
+
+        @Override
+        public Channel accept() throws IOException {
+            Socket socket = mServerSocket.accept();
+            socket.setTcpNoDelay(true);
+            return new TcpChannel(socket);
+        }
+
+        @Override
+        public void close() {
+            try {
+                mServerSocket.close();
+            } catch (IOException e) {
+                // nothing left to release
+            }
+        }
+
+    }
+
+    private static class TcpChannel implements Channel {
+
+        private final Socket mSocket;
+
+        private TcpChannel(Socket socket) {
+            mSocket = socket;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mSocket.getOutputStream();
+        }
+
+        @Override
+        public String getPeerAddress() {
+            return mSocket.getInetAddress().getHostAddress() + ":" + mSocket.getPort();
+        }
+
+        @Override
+        public void close() {
+            try {
+                mSocket.close();
+            } catch (IOException e) {
+                // nothing left to release
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,335 @@
+package com.example.offlinemessenger.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Chunked, resumable streaming of large payloads over a {@link Connection}.
+ *
+ * The sender announces a payload with an offer, the receiver answers with the number of bytes
+ * it already holds and the sender streams the rest in fixed size chunks carrying their offset
+ * and a CRC32.  Chunks travel through the regular outbound queue and are interleaved with chat
+ * frames.  At most {@link #WINDOW_CHUNKS} chunks are unacknowledged at any time, so memory use
+ * does not depend on the payload size.  A corrupt or out of order chunk makes the receiver
+ * request a rewind to its current offset.
+ *
+ * <pre>
+ * offer: id (16) | size (varint) | name (string)
+ * chunk: id (16) | offset (varint) | crc32 (varint) | data (varint length + bytes)
+ * ack:   id (16) | offset (varint) | status (1)
+ * </pre>
+ *
+ * After a reconnect, calling {@link #upload(TransferSource)} again with the same transfer id
+ * resumes from the last offset the receiver has stored.
+ */
+public class TransferManager {
+
+    /** Payload bytes per chunk. */
+    public static final int CHUNK_SIZE = 16 * 1024;
+    /** Maximum number of chunks in flight. */
+    public static final int WINDOW_CHUNKS = 4;
+
+    /** Ack status: the receiver holds all bytes up to the offset. */
+    private static final int ACK_OK = 0;
+    /** Ack status: the last chunk was rejected, continue sending from the offset. */
+    private static final int ACK_REWIND = 1;
+    /** Ack status: the receiver does not accept the payload. */
+    private static final int ACK_REFUSED = 2;
+
+    /** How often a waiting upload checks whether the connection is still alive. */
+    private static final long CLOSE_CHECK_MILLIS = 1000;
+
+    /**
+     * Callback interface for transfer progress on the receiving side.
+     * Callbacks are invoked on the connection's reader thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called whenever a chunk has been stored.
+         *
+         * @param id       The transfer id.
+         * @param received The number of bytes stored so far.
+         * @param size     The total payload size.
+         */
+        void onTransferProgress(UUID id, long received, long size);
+
+        /**
+         * Called once a payload has been received completely.
+         *
+         * @param id The transfer id.
+         */
+        void onTransferComplete(UUID id);
+
+    }
+
+    private final Connection mConnection;
+    private final TransferSink mSink;
+    private final Listener mListener;
+
+    private final Map<UUID, Upload> mUploads = new ConcurrentHashMap<>();
+    private final Map<UUID, Download> mDownloads = new ConcurrentHashMap<>();
+
+    /**
+     * Create a new transfer manager and register its frame handlers with the connection.
+     * This must happen before the connection is started.
+     *
+     * @param connection The connection to transfer payloads over.
+     * @param sink       Storage for incoming payloads, or {@code null} to refuse them.
+     * @param listener   Listener for incoming payloads, may be {@code null}.
+     */
+    public TransferManager(Connection connection, TransferSink sink, Listener listener) {
+        mConnection = connection;
+        mSink = sink;
+        mListener = listener;
+        connection.setFrameHandler(Frame.TYPE_TRANSFER_OFFER, (c, f) -> onOffer(f));
+        connection.setFrameHandler(Frame.TYPE_TRANSFER_CHUNK, (c, f) -> onChunk(f));
+        connection.setFrameHandler(Frame.TYPE_TRANSFER_ACK, (c, f) -> onAck(f));
+    }
+
+    /**
+     * Stream a payload to the peer, blocking until the peer has acknowledged all of it.
+     *
+     * @param source The payload.
+     * @throws IOException          If the payload could not be read, the peer refused it or
+     *                              the connection has been closed.  Calling this method again
+     *                              on a new connection resumes the transfer.
+     * @throws InterruptedException If the calling thread has been interrupted.
+     */
+    public void upload(TransferSource source) throws IOException, InterruptedException {
+        UUID id = source.getId();
+        long size = source.getSize();
+        Upload upload = new Upload();
+        if (mUploads.putIfAbsent(id, upload) != null) {
+            throw new IOException("Transfer " + id + " is already running");
+        }
+
+        InputStream in = null;
+        try {
+            ByteArrayOutputStream offer = new ByteArrayOutputStream();
+            WireFormat.writeUUID(offer, id);
+            WireFormat.writeVarLong(offer, size);
+            WireFormat.writeString(offer, source.getName());
+            send(new Frame(Frame.TYPE_TRANSFER_OFFER, offer.toByteArray()));
+
+            long next = -1;
+            byte[] buf = new byte[CHUNK_SIZE];
+            CRC32 crc = new CRC32();
+            while (true) {
+                long rewind;
+                synchronized (upload) {
+                    while (upload.mAcked < 0
+                            || (next - upload.mAcked >= (long) WINDOW_CHUNKS * CHUNK_SIZE
+                                    && upload.mRewind < 0)
+                            || (next >= size && upload.mAcked < size && upload.mRewind < 0)) {
+                        if (upload.mRefused) {
+                            throw new IOException("Transfer " + id + " refused by peer");
+                        }
+                        if (mConnection.isClosed()) {
+                            throw new IOException("Connection closed");
+                        }
+                        upload.wait(CLOSE_CHECK_MILLIS);
+                    }
+                    if (upload.mAcked >= size) {
+                        return;
+                    }
+                    rewind = upload.mRewind;
+                    upload.mRewind = -1;
+                    if (next < 0) {
+                        rewind = upload.mAcked;
+                    }
+                }
+
+                if (rewind >= 0) {
+                    if (in != null) {
+                        in.close();
+                    }
+                    in = source.open(rewind);
+                    next = rewind;
+                }
+
+                int length = (int) Math.min(CHUNK_SIZE, size - next);
+                WireFormat.readFully(in, buf, 0, length);
+                crc.reset();
+                crc.update(buf, 0, length);
+
+                ByteArrayOutputStream chunk = new ByteArrayOutputStream(length + 40);
+                WireFormat.writeUUID(chunk, id);
+                WireFormat.writeVarLong(chunk, next);
+                WireFormat.writeVarLong(chunk, crc.getValue());
+                WireFormat.writeVarLong(chunk, length);
+                chunk.write(buf, 0, length);
+                send(new Frame(Frame.TYPE_TRANSFER_CHUNK, chunk.toByteArray()));
+                next += length;
+            }
+        } finally {
+            mUploads.remove(id);
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Release the sink resources of all incomplete incoming transfers.  Must be called once
+     * the connection has been closed; the transfers resume on the next connection.  Does
+     * nothing without a sink, as no payloads are accepted then.
+     */
+    public void suspendAll() {
+        if (mSink == null) {
+            return;
+        }
+        for (UUID id : mDownloads.keySet()) {
+            mDownloads.remove(id);
+            mSink.suspend(id);
+        }
+    }
+
+    private void send(Frame frame) throws IOException {
+        if (!mConnection.send(frame)) {
+            throw new InterruptedIOException("Connection closed or congested");
+        }
+    }
+
+    private void sendAck(UUID id, long offset, int status) throws IOException {
+        ByteArrayOutputStream ack = new ByteArrayOutputStream(28);
+        WireFormat.writeUUID(ack, id);
+        WireFormat.writeVarLong(ack, offset);
+        ack.write(status);
+        send(new Frame(Frame.TYPE_TRANSFER_ACK, ack.toByteArray()));
+    }
+
+    private void onOffer(Frame frame) throws IOException {
+        InputStream in = frame.openBody();
+        UUID id = WireFormat.readUUID(in);
+        long size = WireFormat.readVarLong(in);
+        String name = WireFormat.readString(in, frame.getBody().length);
+
+        if (mSink == null) {
+            sendAck(id, 0, ACK_REFUSED);
+            return;
+        }
+
+        long offset;
+        try {
+            offset = mSink.open(id, name, size);
+        } catch (IOException e) {
+            sendAck(id, 0, ACK_REFUSED);
+            return;
+        }
+
+        Download download = new Download(size, offset);
+        mDownloads.put(id, download);
+        sendAck(id, offset, ACK_OK);
+        if (offset == size) {
+            complete(id);
+        }
+    }
+
+    private void onChunk(Frame frame) throws IOException {
+        InputStream in = frame.openBody();
+        UUID id = WireFormat.readUUID(in);
+        long offset = WireFormat.readVarLong(in);
+        long checksum = WireFormat.readVarLong(in);
+        int length = WireFormat.readVarInt(in, CHUNK_SIZE);
+        byte[] data = new byte[length];
+        WireFormat.readFully(in, data, 0, length);
+
+        Download download = mDownloads.get(id);
+        if (download == null) {
+            return;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        if (offset != download.mOffset || crc.getValue() != checksum
+                || offset + length > download.mSize) {
+            // ask for a rewind once, then drop everything until the expected offset shows up
+            if (!download.mRejecting) {
+                download.mRejecting = true;
+                sendAck(id, download.mOffset, ACK_REWIND);
+            }
+            return;
+        }
+
+        download.mRejecting = false;
+        mSink.write(id, offset, data, 0, length);
+        download.mOffset += length;
+        sendAck(id, download.mOffset, ACK_OK);
+        if (mListener != null) {
+            mListener.onTransferProgress(id, download.mOffset, download.mSize);
+        }
+        if (download.mOffset == download.mSize) {
+            complete(id);
+        }
+    }
+
+    private void complete(UUID id) throws IOException {
+        mDownloads.remove(id);
+        mSink.complete(id);
+        if (mListener != null) {
+            mListener.onTransferComplete(id);
+        }
+    }
+
+    private void onAck(Frame frame) throws IOException {
+        InputStream in = frame.openBody();
+        UUID id = WireFormat.readUUID(in);
+        long offset = WireFormat.readVarLong(in);
+        int status = WireFormat.readByte(in);
+
+        Upload upload = mUploads.get(id);
+        if (upload == null) {
+            return;
+        }
+        synchronized (upload) {
+            switch (status) {
+                case ACK_OK:
+                    upload.mAcked = Math.max(upload.mAcked, offset);
+                    break;
+
+                case ACK_REWIND:
+                    upload.mAcked = Math.max(upload.mAcked, offset);
+                    upload.mRewind = offset;
+                    break;
+
+                default:
+                    upload.mRefused = true;
+                    break;
+            }
+            upload.notifyAll();
+        }
+    }
+
+    /** Sender side state, guarded by its own monitor. */
+    private static class Upload {
+
+        /** The highest offset acknowledged by the receiver, {@code -1} before the first ack. */
+        private long mAcked = -1;
+        /** The offset to continue from after a rejected chunk, {@code -1} if none. */
+        private long mRewind = -1;
+        private boolean mRefused = false;
+
+    }
+
+    /** Receiver side state, only accessed from the reader thread. */
+    private static class Download {
+
+        private final long mSize;
+        private long mOffset;
+        private boolean mRejecting = false;
+
+        private Download(long size, long offset) {
+            mSize = size;
+            mOffset = offset;
+        }
+
+    }
+
+}
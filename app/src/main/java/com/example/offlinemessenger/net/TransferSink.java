@@ -0,0 +1,52 @@
+package com.example.offlinemessenger.net;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Persistent storage for payloads received through a {@link TransferManager}.
+ * Data is only ever written contiguously, so the number of bytes stored for a transfer is
+ * the offset it resumes from after a reconnect.
+ */
+public interface TransferSink {
+
+    /**
+     * Prepare to receive a payload.
+     *
+     * @param id   The transfer id.
+     * @param name The payload name as given by the sender.
+     * @param size The total payload size.
+     * @return The number of bytes already stored from an earlier attempt.
+     * @throws IOException If the payload cannot be stored.
+     */
+    long open(UUID id, String name, long size) throws IOException;
+
+    /**
+     * Store a chunk of the payload.
+     *
+     * @param id     The transfer id.
+     * @param offset The payload offset of the chunk, always the number of bytes stored so far.
+     * @param data   The buffer holding the chunk.
+     * @param off    The chunk offset within the buffer.
+     * @param len    The chunk length.
+     * @throws IOException If the chunk cannot be stored.
+     */
+    void write(UUID id, long offset, byte[] data, int off, int len) throws IOException;
+
+    /**
+     * Called once all bytes have been stored.
+     *
+     * @param id The transfer id.
+     * @throws IOException If the payload cannot be finalized.
+     */
+    void complete(UUID id) throws IOException;
+
+    /**
+     * Release all resources held for an incomplete transfer, keeping the stored bytes so
+     * the transfer can be resumed later.
+     *
+     * @param id The transfer id.
+     */
+    void suspend(UUID id);
+
+}
@@ -0,0 +1,42 @@
+package com.example.offlinemessenger.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.UUID;
+
+/**
+ * A payload that can be streamed to a peer with {@link TransferManager#upload(TransferSource)}.
+ */
+public interface TransferSource {
+
+    /**
+     * Get the transfer id.  It must stay the same across reconnects for the transfer to resume.
+     *
+     * @return The transfer id.
+     */
+    UUID getId();
+
+    /**
+     * Get a name describing the payload, e.g. a file name.
+     *
+     * @return The payload name.
+     */
+    String getName();
+
+    /**
+     * Get the total payload size.
+     *
+     * @return The size in bytes.
+     */
+    long getSize();
+
+    /**
+     * Open the payload for reading, starting at the given offset.
+     *
+     * @param offset The number of bytes to skip.
+     * @return The payload stream.  It will be closed by the caller.
+     * @throws IOException If the payload is unavailable.
+     */
+    InputStream open(long offset) throws IOException;
+
+}
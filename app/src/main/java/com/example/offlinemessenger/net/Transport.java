@@ -0,0 +1,91 @@
+package com.example.offlinemessenger.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Abstraction over the link layer used to exchange frames with a peer.
+ * Implementations exist for Bluetooth RFCOMM (the production transport), an in-memory
+ * loopback and localhost TCP, the latter two allowing the messaging path to run on a plain JVM.
+ */
+public interface Transport {
+
+    /**
+     * Open a connection to a peer, blocking until it is established.
+     *
+     * @param address The transport specific peer address.
+     * @return The connected channel.
+     * @throws IOException If the connection could not be established.
+     */
+    Channel connect(String address) throws IOException;
+
+    /**
+     * Start listening for incoming connections.
+     *
+     * @return The acceptor to take incoming connections from.
+     * @throws IOException If the transport is unable to listen.
+     */
+    Acceptor listen() throws IOException;
+
+    /**
+     * A connected, full duplex byte stream to a single peer.
+     */
+    interface Channel extends Closeable {
+
+        /**
+         * Get the stream carrying bytes from the peer.
+         *
+         * @return The input stream.
+         * @throws IOException If the channel is broken.
+         */
+        InputStream getInputStream() throws IOException;
+
+        /**
+         * Get the stream carrying bytes to the peer.
+         *
+         * @return The output stream.
+         * @throws IOException If the channel is broken.
+         */
+        OutputStream getOutputStream() throws IOException;
+
+        /**
+         * Get the transport specific address of the peer, e.g. its Bluetooth MAC address.
+         *
+         * @return The peer address.
+         */
+        String getPeerAddress();
+
+        /**
+         * Close the channel.  Any thread blocked on one of its streams will be released
+         * with an {@link IOException}.
+         */
+        @Override
+        void close();
+
+    }
+
+    /**
+     * Source of incoming channels.
+     */
+    interface Acceptor extends Closeable {
+
+        /**
+         * Block until a peer connects.
+         *
+         * @return The channel to the new peer.
+         * @throws IOException If the acceptor has been closed or failed.
+         */
+        Channel accept() throws IOException;
+
+        /**
+         * Stop listening.  A thread blocked in {@link #accept()} will be released
+         * with an {@link IOException}.
+         */
+        @Override
+        void close();
+
+    }
+
+}
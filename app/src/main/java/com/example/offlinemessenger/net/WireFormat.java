@@ -0,0 +1,216 @@
+package com.example.offlinemessenger.net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+/**
+ * Low level primitives of the binary wire format shared by all frame types.
+ * Integers are written as unsigned LEB128 varints, UUIDs as two big endian
+ * longs and strings as a varint byte length followed by their UTF-8 bytes.
+ *
+ * This class must not depend on any Android API so the protocol can be
+ * exercised on a plain JVM.
+ */
+public final class WireFormat {
+
+    /** The charset used for all strings on the wire. */
+    public static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Maximum number of bytes a varint-encoded long may occupy. */
+    public static final int MAX_VARINT_LENGTH = 10;
+
+    private WireFormat() {
+    }
+
+    /**
+     * Write an unsigned varint.
+     *
+     * @param out   The stream to write to.
+     * @param value The value, interpreted as unsigned.
+     * @throws IOException If the underlying stream fails.
+     */
+    public static void writeVarLong(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Read an unsigned varint.
+     *
+     * @param in The stream to read from.
+     * @return The value.
+     * @throws EOFException If the stream ended before the first byte.
+     * @throws IOException  If the underlying stream fails or the varint is malformed.
+     */
+    public static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Malformed varint");
+    }
+
+    /**
+     * Read an unsigned varint that must fit into a non-negative int.
+     *
+     * @param in  The stream to read from.
+     * @param max The largest accepted value.
+     * @return The value.
+     * @throws IOException If the stream fails or the value exceeds {@code max}.
+     */
+    public static int readVarInt(InputStream in, int max) throws IOException {
+        long value = readVarLong(in);
+        if (value < 0 || value > max) {
+            throw new StreamCorruptedException("Varint out of range: " + value);
+        }
+        return (int) value;
+    }
+
+    /**
+     * Get the number of bytes {@link #writeVarLong(OutputStream, long)} will produce.
+     *
+     * @param value The value.
+     * @return The encoded length in bytes.
+     */
+    public static int varLongLength(long value) {
+        int length = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Write a big endian long.
+     *
+     * @param out   The stream to write to.
+     * @param value The value.
+     * @throws IOException If the underlying stream fails.
+     */
+    public static void writeLong(OutputStream out, long value) throws IOException {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift));
+        }
+    }
+
+    /**
+     * Read a big endian long.
+     *
+     * @param in The stream to read from.
+     * @return The value.
+     * @throws IOException If the underlying stream fails or ends prematurely.
+     */
+    public static long readLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | readByte(in);
+        }
+        return value;
+    }
+
+    /**
+     * Read a single byte.
+     *
+     * @param in The stream to read from.
+     * @return The byte as an unsigned value.
+     * @throws IOException If the underlying stream fails or has ended.
+     */
+    public static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    /**
+     * Fill the whole buffer from the stream.
+     *
+     * @param in     The stream to read from.
+     * @param buf    The buffer.
+     * @param offset The offset to start writing to within the buffer.
+     * @param length The number of bytes to read.
+     * @throws IOException If the underlying stream fails or ends prematurely.
+     */
+    public static void readFully(InputStream in, byte[] buf, int offset, int length)
+            throws IOException {
+        while (length > 0) {
+            int n = in.read(buf, offset, length);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Write a UUID as two big endian longs.
+     *
+     * @param out  The stream to write to.
+     * @param uuid The UUID.
+     * @throws IOException If the underlying stream fails.
+     */
+    public static void writeUUID(OutputStream out, UUID uuid) throws IOException {
+        writeLong(out, uuid.getMostSignificantBits());
+        writeLong(out, uuid.getLeastSignificantBits());
+    }
+
+    /**
+     * Read a UUID written by {@link #writeUUID(OutputStream, UUID)}.
+     *
+     * @param in The stream to read from.
+     * @return The UUID.
+     * @throws IOException If the underlying stream fails or ends prematurely.
+     */
+    public static UUID readUUID(InputStream in) throws IOException {
+        long msb = readLong(in);
+        long lsb = readLong(in);
+        return new UUID(msb, lsb);
+    }
+
+    /**
+     * Write a length prefixed UTF-8 string.
+     *
+     * @param out The stream to write to.
+     * @param s   The string.
+     * @throws IOException If the underlying stream fails.
+     */
+    public static void writeString(OutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Read a string written by {@link #writeString(OutputStream, String)}.
+     *
+     * @param in        The stream to read from.
+     * @param maxLength The maximum accepted length in bytes.
+     * @return The string.
+     * @throws IOException If the stream fails or the string is too long.
+     */
+    public static String readString(InputStream in, int maxLength) throws IOException {
+        int length = readVarInt(in, maxLength);
+        byte[] bytes = new byte[length];
+        readFully(in, bytes, 0, length);
+        return new String(bytes, UTF_8);
+    }
+
+}
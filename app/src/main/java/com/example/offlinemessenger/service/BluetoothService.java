@@ -13,13 +13,23 @@ import com.example.offlinemessenger.IBluetoothService;
 import com.example.offlinemessenger.data.ChatMessage;
 import com.example.offlinemessenger.data.ChatUser;
 import com.example.offlinemessenger.data.Sendable;
+import com.example.offlinemessenger.net.Transport;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 public class BluetoothService extends Service {
 
-    private BluetoothAdapter mBtAdapter;
+    /**
+     * Number of received messages held until the UI picks them up.  Once it is reached,
+     * the connection stops reading, so the peer runs out of credit instead of us out of
+     * memory.
+     */
+    private static final int MAX_INCOMING_MESSAGES = 1024;
+
+    private Transport mTransport;
 
     private ServerThread mServerThread;
     private ClientThread mClientThread;
@@ -27,7 +37,8 @@ public class BluetoothService extends Service {
     private Handler mOutHandler;
     private Handler mInHandler;
 
-    private List<ChatMessage> mIncomingQueue;
+    private final BlockingQueue<ChatMessage> mIncomingQueue =
+            new ArrayBlockingQueue<>(MAX_INCOMING_MESSAGES);
     private ChatUser mChatPartner;
     private ChatUser mUser;
 
@@ -56,8 +67,8 @@ public class BluetoothService extends Service {
 
         @Override
         public List<ChatMessage> getMessageQueue() throws RemoteException {
-            List<ChatMessage> queue = mIncomingQueue;
-            mIncomingQueue = new LinkedList<>();
+            List<ChatMessage> queue = new ArrayList<>(mIncomingQueue.size());
+            mIncomingQueue.drainTo(queue);
             return queue;
         }
 
@@ -68,12 +79,12 @@ public class BluetoothService extends Service {
 
         @Override
         public void connect(BluetoothDevice device) {
-            mClientThread = new ClientThread(device, mInHandler);
+            mClientThread = new ClientThread(mTransport, device.getAddress(), mInHandler);
         }
 
         @Override
         public void startListener() {
-            mServerThread = new ServerThread(mBtAdapter, mInHandler);
+            mServerThread = new ServerThread(mTransport, mInHandler);
         }
 
     };
@@ -85,8 +96,7 @@ public class BluetoothService extends Service {
 
     @Override
     public void onCreate() {
-        mIncomingQueue = new LinkedList<>();
-        mBtAdapter = BluetoothAdapter.getDefaultAdapter();
+        mTransport = new BluetoothTransport(BluetoothAdapter.getDefaultAdapter());
 
         mInHandler = new Handler(msg -> {
             if (msg.obj instanceof Handler) {
@@ -119,7 +129,11 @@ public class BluetoothService extends Service {
 
     private void onSendableReceived(Sendable s) {
         if (s instanceof ChatMessage) {
-            mIncomingQueue.add((ChatMessage) s);
+            try {
+                mIncomingQueue.put((ChatMessage) s);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         } else if (s instanceof ChatUser) {
             mChatPartner = (ChatUser) s;
         }
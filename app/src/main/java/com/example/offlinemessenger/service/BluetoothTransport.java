@@ -0,0 +1,144 @@
+package com.example.offlinemessenger.service;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+import com.example.offlinemessenger.net.Transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * Bluetooth RFCOMM implementation of the transport SPI.
+ * Peers are addressed by their Bluetooth MAC address.
+ */
+public class BluetoothTransport implements Transport {
+
+    private static final String TAG = "BluetoothTransport";
+
+    /** The SDP service name of the app. */
+    public static final String SERVICE_NAME = "MY_APP";
+    /** UUID to confirm both devices use the same service, in this case the app OfflineMessenger. */
+    public static final UUID SERVICE_UUID =
+            UUID.fromString("c199f1da-5634-44bf-ad17-394d1c186a24");
+
+    private final BluetoothAdapter mBtAdapter;
+    /** The SDP service name to advertise when listening. */
+    private final String mServiceName;
+    /** The service record UUID both devices must agree on. */
+    private final UUID mServiceUUID;
+
+    /**
+     * Create a new Bluetooth transport for the app's own service record.
+     *
+     * @param adapter The bluetooth adapter to use.
+     */
+    public BluetoothTransport(BluetoothAdapter adapter) {
+        this(adapter, SERVICE_NAME, SERVICE_UUID);
+    }
+
+    /**
+     * Create a new Bluetooth transport.
+     *
+     * @param adapter     The bluetooth adapter to use.
+     * @param serviceName The SDP service name.
+     * @param serviceUUID The SDP service UUID.
+     */
+    public BluetoothTransport(BluetoothAdapter adapter, String serviceName, UUID serviceUUID) {
+        mBtAdapter = adapter;
+        mServiceName = serviceName;
+        mServiceUUID = serviceUUID;
+    }
+
+    @Override
+    public Channel connect(String address) throws IOException {
+        BluetoothSocket socket = mBtAdapter.getRemoteDevice(address)
+                .createRfcommSocketToServiceRecord(mServiceUUID);
+        // Discovery slows down the connection considerably
+        mBtAdapter.cancelDiscovery();
+        try {
+            socket.connect();
+        } catch (IOException e) {
+            close(socket);
+            throw e;
+        }
+        Log.d(TAG, "Connected to " + address + " using " + mServiceUUID);
+
+        return new BluetoothChannel(socket);
+    }
+
+    @Override
+    public Acceptor listen() throws IOException {
+        Log.d(TAG, "Listening using " + mServiceUUID);
+        return new BluetoothAcceptor(
+                mBtAdapter.listenUsingInsecureRfcommWithServiceRecord(mServiceName, mServiceUUID)
+        );
+    }
+
+    private static void close(BluetoothSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to close socket", e);
+        }
+    }
+
+    private static class BluetoothAcceptor implements Acceptor {
+
+        private final BluetoothServerSocket mServerSocket;
+
+        private BluetoothAcceptor(BluetoothServerSocket serverSocket) {
+            mServerSocket = serverSocket;
+        }
+
+        @Override
+        public Channel accept() throws IOException {
+            return new BluetoothChannel(mServerSocket.accept());
+        }
+
+        @Override
+        public void close() {
+            try {
+                mServerSocket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to close server socket", e);
+            }
+        }
+
+    }
+
+    private static class BluetoothChannel implements Channel {
+
+        private final BluetoothSocket mSocket;
+
+        private BluetoothChannel(BluetoothSocket socket) {
+            mSocket = socket;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mSocket.getOutputStream();
+        }
+
+        @Override
+        public String getPeerAddress() {
+            return mSocket.getRemoteDevice().getAddress();
+        }
+
+        @Override
+        public void close() {
+            BluetoothTransport.close(mSocket);
+        }
+
+    }
+
+}
@@ -0,0 +1,38 @@
+package android.util;
+
+/**
+ * Stand-in for the Android logger in the JVM tests, which comes first on their classpath.  The
+ * data layer logs the failures the tests provoke on purpose, like a batch rolled back by a
+ * bad row; they are printed instead of failing on the unmocked android.jar.
+ */
+public final class Log {
+
+    private Log() {
+    }
+
+    public static int d(String tag, String msg) {
+        return print("D", tag, msg, null);
+    }
+
+    public static int w(String tag, String msg) {
+        return print("W", tag, msg, null);
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        return print("W", tag, msg, tr);
+    }
+
+    public static int e(String tag, String msg) {
+        return print("E", tag, msg, null);
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return print("E", tag, msg, tr);
+    }
+
+    private static int print(String level, String tag, String msg, Throwable tr) {
+        System.err.println(level + "/" + tag + ": " + msg + (tr != null ? ": " + tr : ""));
+        return 0;
+    }
+
+}
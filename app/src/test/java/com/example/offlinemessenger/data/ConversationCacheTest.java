@@ -0,0 +1,175 @@
+package com.example.offlinemessenger.data;
+
+import android.content.ComponentCallbacks2;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Eviction order and budget of the conversation cache, as windows are shown, grow and memory
+ * runs low.
+ */
+public class ConversationCacheTest {
+
+    private static final int MESSAGES = 4;
+    /** The estimated size of every window of {@link #MESSAGES} messages. */
+    private static final long WINDOW_BYTES = MESSAGES * MessageStore.estimateBytes(
+            new ChatMessage(Sendable.Action.ADD, UUID.randomUUID(), "message 0", true, 0,
+                    UUID.randomUUID()));
+    private static final int CONVERSATIONS = 8;
+    /** The size limit of every window, leaving room to grow. */
+    private static final int WINDOW_CAPACITY = 100;
+
+    private final ConversationCache mCache =
+            new ConversationCache(CONVERSATIONS * WINDOW_BYTES);
+    private final List<UUID> mUsers = new ArrayList<>();
+    private int mNext = 0;
+
+    @Test
+    public void theLeastRecentlyUsedConversationIsEvicted() {
+        fill(CONVERSATIONS);
+        assertEquals(CONVERSATIONS * WINDOW_BYTES, mCache.getEstimatedBytes());
+        assertEquals(0, mCache.getEvictionCount());
+
+        // showing the oldest conversation again saves it from the next eviction
+        assertNotNull(mCache.get(mUsers.get(0)));
+        // looking at one in the background does not
+        assertNotNull(mCache.peek(mUsers.get(1)));
+        mCache.put(UUID.randomUUID(), window(MESSAGES));
+
+        assertNull(mCache.peek(mUsers.get(1)));
+        assertNotNull(mCache.peek(mUsers.get(0)));
+        assertEquals(CONVERSATIONS, mCache.size());
+        assertEquals(1, mCache.getEvictionCount());
+
+        mCache.put(UUID.randomUUID(), window(MESSAGES));
+        assertNull(mCache.peek(mUsers.get(2)));
+        assertNotNull(mCache.peek(mUsers.get(0)));
+    }
+
+    @Test
+    public void grownWindowsAreTrimmedToTheBudget() {
+        fill(CONVERSATIONS);
+        // messages arrive in a conversation in the background, quadrupling its window
+        MessageStore background = mCache.peek(mUsers.get(1));
+        for (int i = 0; i < 3 * MESSAGES; i++) {
+            background.add(message());
+        }
+        assertEquals((CONVERSATIONS + 3) * WINDOW_BYTES, mCache.getEstimatedBytes());
+
+        mCache.trim();
+
+        // recency decides, not size: the oldest goes first, then the grown window
+        assertEquals((CONVERSATIONS - 2) * WINDOW_BYTES, mCache.getEstimatedBytes());
+        assertEquals(2, mCache.getEvictionCount());
+        for (int i = 0; i < CONVERSATIONS; i++) {
+            assertEquals(i + "", i >= 2, mCache.peek(mUsers.get(i)) != null);
+        }
+    }
+
+    @Test
+    public void theMostRecentlyUsedConversationIsKeptOverBudget() {
+        fill(CONVERSATIONS);
+        UUID large = UUID.randomUUID();
+        MessageStore window = window(2 * CONVERSATIONS * MESSAGES);
+
+        mCache.put(large, window);
+
+        assertEquals(1, mCache.size());
+        assertSame(window, mCache.peek(large));
+        assertTrue(mCache.getEstimatedBytes() > mCache.getMaxBytes());
+        assertEquals(CONVERSATIONS, mCache.getEvictionCount());
+        mCache.trim();
+        assertSame(window, mCache.get(large));
+    }
+
+    @Test
+    public void memoryPressureShrinksTheCache() {
+        Map<Integer, Integer> kept = new LinkedHashMap<>();
+        kept.put(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE, 6);
+        kept.put(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW, 4);
+        kept.put(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL, 1);
+        kept.put(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN, 4);
+        kept.put(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND, 2);
+        kept.put(ComponentCallbacks2.TRIM_MEMORY_MODERATE, 1);
+        kept.put(ComponentCallbacks2.TRIM_MEMORY_COMPLETE, 1);
+
+        for (Map.Entry<Integer, Integer> level : kept.entrySet()) {
+            ConversationCache cache = new ConversationCache(CONVERSATIONS * WINDOW_BYTES);
+            List<UUID> users = new ArrayList<>();
+            for (int i = 0; i < CONVERSATIONS; i++) {
+                users.add(UUID.randomUUID());
+                cache.put(users.get(i), window(MESSAGES));
+            }
+
+            cache.onTrimMemory(level.getKey());
+
+            // the most recently shown conversations stay
+            int expected = level.getValue();
+            assertEquals("level " + level.getKey(), expected, cache.size());
+            for (int i = 0; i < CONVERSATIONS; i++) {
+                assertEquals("level " + level.getKey() + ", " + i,
+                        i >= CONVERSATIONS - expected, cache.peek(users.get(i)) != null);
+            }
+        }
+    }
+
+    @Test
+    public void onlyLookupsAreCounted() {
+        fill(2);
+
+        assertNull(mCache.get(UUID.randomUUID()));
+        assertNotNull(mCache.get(mUsers.get(0)));
+        assertNotNull(mCache.get(mUsers.get(1)));
+        mCache.peek(mUsers.get(0));
+        mCache.peek(UUID.randomUUID());
+        mCache.remove(mUsers.get(0));
+        assertNull(mCache.get(mUsers.get(0)));
+
+        assertEquals(2, mCache.getHitCount());
+        assertEquals(2, mCache.getMissCount());
+        assertEquals(0, mCache.getEvictionCount());
+        assertEquals(1, mCache.size());
+        assertEquals(WINDOW_BYTES, mCache.getEstimatedBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aNegativeBudgetIsRejected() {
+        new ConversationCache(-1);
+    }
+
+    private void fill(int count) {
+        for (int i = 0; i < count; i++) {
+            UUID userId = UUID.randomUUID();
+            mUsers.add(userId);
+            mCache.put(userId, window(MESSAGES));
+        }
+    }
+
+    private MessageStore window(int size) {
+        MessageStore store = new MessageStore(Math.max(size, WINDOW_CAPACITY));
+        for (int i = 0; i < size; i++) {
+            store.add(message());
+        }
+        return store;
+    }
+
+    private ChatMessage message() {
+        // contents of equal length, so every window of the same size is estimated alike
+        int n = mNext++ % 10;
+        return new ChatMessage(Sendable.Action.ADD, UUID.randomUUID(), "message " + n,
+                n % 2 == 0, n + 1, UUID.randomUUID());
+    }
+
+}
@@ -0,0 +1,251 @@
+package com.example.offlinemessenger.data;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The ring buffer of the message store, as it wraps around, grows and trims its window, and
+ * the ranges it reports: a list that only follows the reported changes, like a list view
+ * does, must always show what the store holds.
+ */
+public class MessageStoreTest {
+
+    private static final int MAX_SIZE = 40;
+
+    private final Random mRandom = new Random(42);
+    private final MessageStore mStore = new MessageStore(MAX_SIZE);
+    /** A copy of the store kept up to date only by the listener. */
+    private final List<ChatMessage> mMirror = new ArrayList<>();
+    private final List<String> mEvents = new ArrayList<>();
+    private int mNext = 0;
+
+    @Before
+    public void setUp() {
+        mStore.setListener(new MessageStore.Listener() {
+            @Override
+            public void onInserted(int position, int count) {
+                mEvents.add("+" + position + "," + count);
+                mMirror.addAll(position, new ArrayList<>(
+                        mStore.subList(position, position + count)));
+            }
+
+            @Override
+            public void onRemoved(int position, int count) {
+                mEvents.add("-" + position + "," + count);
+                mMirror.subList(position, position + count).clear();
+            }
+
+            @Override
+            public void onChanged(int position, int count) {
+                mEvents.add("~" + position + "," + count);
+                for (int i = position; i < position + count; i++) {
+                    assertSame(mStore.get(i), mMirror.get(i));
+                }
+            }
+        });
+    }
+
+    @Test
+    public void appendedMessagesWrapAroundTheBuffer() {
+        List<ChatMessage> expected = new ArrayList<>();
+        for (int i = 0; i < 10 * MAX_SIZE; i++) {
+            ChatMessage m = message();
+            mStore.add(m);
+            expected.add(m);
+            assertWindow(tail(expected));
+        }
+
+        assertTrue(mStore.hasOlder());
+        assertFalse(mStore.hasNewer());
+        // every add at the full window is one insert at the end and one removal at the start
+        assertEquals(Arrays.asList("+" + MAX_SIZE + ",1", "-0,1"),
+                mEvents.subList(mEvents.size() - 2, mEvents.size()));
+    }
+
+    @Test
+    public void pagesAreAddedOnBothSidesOfAWrappedBuffer() {
+        List<ChatMessage> expected = new ArrayList<>();
+        // move the head around the buffer first
+        for (int i = 0; i < MAX_SIZE + 7; i++) {
+            ChatMessage m = message();
+            mStore.add(m);
+            expected.add(m);
+        }
+        expected = tail(expected);
+        mStore.setHasOlder(true);
+        mEvents.clear();
+
+        List<ChatMessage> older = messages(5);
+        mStore.prepend(older);
+        expected.addAll(0, older);
+        assertEquals(Arrays.asList("+0,5", "-" + MAX_SIZE + ",5"), mEvents);
+        expected = expected.subList(0, MAX_SIZE);
+        assertWindow(expected);
+        assertTrue(mStore.hasNewer());
+
+        mEvents.clear();
+        List<ChatMessage> newer = messages(12);
+        mStore.append(newer);
+        expected = new ArrayList<>(expected);
+        expected.addAll(newer);
+        assertEquals(Arrays.asList("+" + MAX_SIZE + ",12", "-0,12"), mEvents);
+        assertWindow(tail(expected));
+    }
+
+    @Test
+    public void pagesLargerThanTheWindowKeepTheirNearEnd() {
+        List<ChatMessage> page = messages(3 * MAX_SIZE);
+        mStore.append(page);
+        assertWindow(page.subList(2 * MAX_SIZE, 3 * MAX_SIZE));
+
+        mStore.clear();
+        mStore.setHasOlder(false);
+        mStore.setHasNewer(false);
+        mStore.prepend(page);
+        assertWindow(page.subList(0, MAX_SIZE));
+        assertTrue(mStore.hasNewer());
+        assertFalse(mStore.hasOlder());
+    }
+
+    @Test
+    public void growingKeepsTheOrderOfAWrappedBuffer() {
+        MessageStore store = new MessageStore(1000);
+        List<ChatMessage> expected = new ArrayList<>();
+        // a head in the middle of the initial buffer, then enough to grow it several times
+        List<ChatMessage> older = messages(5);
+        store.prepend(older);
+        expected.addAll(older);
+        for (int i = 0; i < 300; i++) {
+            ChatMessage m = message();
+            if (i % 3 == 0) {
+                store.prepend(Collections.singletonList(m));
+                expected.add(0, m);
+            } else {
+                store.add(m);
+                expected.add(m);
+            }
+            assertEquals(expected, store);
+        }
+    }
+
+    @Test
+    public void randomEditsAreReportedExactly() {
+        List<ChatMessage> expected = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            switch (mRandom.nextInt(10)) {
+                case 0:
+                    mStore.clear();
+                    expected.clear();
+                    break;
+                case 1:
+                case 2:
+                    List<ChatMessage> older = messages(mRandom.nextInt(MAX_SIZE + 10));
+                    mStore.prepend(older);
+                    expected.addAll(0, older);
+                    expected = new ArrayList<>(
+                            expected.subList(0, Math.min(MAX_SIZE, expected.size())));
+                    break;
+                case 3:
+                case 4:
+                    List<ChatMessage> newer = messages(mRandom.nextInt(MAX_SIZE + 10));
+                    mStore.append(newer);
+                    expected.addAll(newer);
+                    expected = tail(expected);
+                    break;
+                case 5:
+                    if (!expected.isEmpty()) {
+                        mStore.notifyChanged(mRandom.nextInt(expected.size()));
+                    }
+                    break;
+                default:
+                    ChatMessage m = message();
+                    mStore.add(m);
+                    expected.add(m);
+                    expected = tail(expected);
+                    break;
+            }
+            assertWindow(expected);
+        }
+    }
+
+    @Test
+    public void positionsOutsideTheWindowAreRejected() {
+        mStore.append(messages(3));
+        for (int index : new int[]{-1, 3, MAX_SIZE}) {
+            try {
+                mStore.get(index);
+                fail("position " + index + " has been accepted");
+            } catch (IndexOutOfBoundsException expected) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void bindingAHundredThousandMessagesIsLinear() {
+        MessageStore store = new MessageStore(100000);
+        store.append(messages(100000));
+        // warm up, then bind every position as a list view scrolled end to end would
+        long sum = bindAll(store);
+        long start = System.nanoTime();
+        sum += bindAll(store);
+        long millis = (System.nanoTime() - start) / 1000000;
+
+        assertTrue(sum != 0);
+        // a linked list needs about five billion steps for the same
+        assertTrue("binding took " + millis + " ms", millis < 500);
+    }
+
+    private static long bindAll(List<ChatMessage> messages) {
+        long sum = 0;
+        for (int i = 0; i < messages.size(); i++) {
+            sum += messages.get(i).getTimestamp();
+        }
+        return sum;
+    }
+
+    /** Assert the store, and the list following its reports, show exactly these messages. */
+    private void assertWindow(List<ChatMessage> expected) {
+        assertEquals(expected, mStore);
+        assertEquals(expected, mMirror);
+        long bytes = 0;
+        for (ChatMessage m : expected) {
+            bytes += MessageStore.estimateBytes(m);
+        }
+        assertEquals(bytes, mStore.getEstimatedBytes());
+    }
+
+    /** The newest messages that fit into the window. */
+    private static List<ChatMessage> tail(List<ChatMessage> messages) {
+        return new ArrayList<>(
+                messages.subList(Math.max(0, messages.size() - MAX_SIZE), messages.size()));
+    }
+
+    private List<ChatMessage> messages(int count) {
+        List<ChatMessage> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            messages.add(message());
+        }
+        return messages;
+    }
+
+    private ChatMessage message() {
+        int n = mNext++;
+        return new ChatMessage(Sendable.Action.ADD, UUID.randomUUID(), "message " + n,
+                n % 2 == 0, n + 1, UUID.randomUUID());
+    }
+
+}
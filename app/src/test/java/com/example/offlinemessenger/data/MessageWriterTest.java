@@ -0,0 +1,298 @@
+package com.example.offlinemessenger.data;
+
+import androidx.room.DatabaseConfiguration;
+import androidx.room.InvalidationTracker;
+import androidx.sqlite.db.SupportSQLiteOpenHelper;
+
+import com.example.offlinemessenger.db.AppDatabase;
+import com.example.offlinemessenger.db.ChatMessageDao;
+import com.example.offlinemessenger.db.ChatMessageEntity;
+import com.example.offlinemessenger.db.ChatUserDao;
+import com.example.offlinemessenger.db.ChatUserEntity;
+import com.example.offlinemessenger.db.ConversationDao;
+import com.example.offlinemessenger.db.OutboxDao;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Coalescing of queued writes into transactions, their order, and the fallback to single
+ * rows, against a database that keeps its tables in memory and charges a fixed cost for
+ * every commit, like the journal sync of SQLite.
+ */
+public class MessageWriterTest {
+
+    /** Time the fake database spends on every commit. */
+    private static final long COMMIT_MILLIS = 2;
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private final FakeDatabase mDatabase = new FakeDatabase();
+    /** Results are unused, run them right where they are delivered. */
+    private final DataExecutor mExecutor = new DataExecutor(Runnable::run);
+    private final MessageWriter mWriter = new MessageWriter(mDatabase, mExecutor);
+    private final UUID mUser = UUID.randomUUID();
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdown();
+    }
+
+    @Test
+    public void burstsAreCommittedTogether() throws Exception {
+        int count = 2000;
+        long start = System.nanoTime();
+        List<ChatMessage> sent = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ChatMessage m = message(i);
+            sent.add(m);
+            mWriter.write(m);
+        }
+        waitForRows(count);
+        long millis = (System.nanoTime() - start) / 1000000;
+
+        assertIds(sent, mDatabase.mMessages);
+        // one commit per message would cost at least count * COMMIT_MILLIS
+        assertTrue(mWriter.getCommitCount() + " commits", mWriter.getCommitCount() <= count / 50);
+        assertTrue(count + " rows took " + millis + " ms", millis < count * COMMIT_MILLIS / 4);
+        assertEquals(mWriter.getCommitCount(), mDatabase.mCommits);
+    }
+
+    @Test
+    public void fullBatchesDoNotWait() throws Exception {
+        ChatMessage[] batch = new ChatMessage[MessageWriter.MAX_BATCH_ROWS];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = message(i);
+        }
+        mWriter.write(batch);
+        waitForRows(batch.length);
+        mWriter.write(message(batch.length));
+        waitForRows(batch.length + 1);
+
+        assertEquals(Arrays.asList(MessageWriter.MAX_BATCH_ROWS, 1), mDatabase.mTransactionSizes);
+    }
+
+    @Test
+    public void usersAreStoredBeforeTheirMessages() throws Exception {
+        mDatabase.mKnownUsersOnly = true;
+        for (int i = 0; i < 50; i++) {
+            UUID userId = UUID.randomUUID();
+            // the message is queued first, the user still reaches the database before it
+            mWriter.write(new ChatMessage(Sendable.Action.ADD, userId, "hello", false, i,
+                    UUID.randomUUID()));
+            mWriter.write(new ChatUser(Sendable.Action.ADD, "user " + i, userId));
+        }
+        waitForRows(100);
+
+        synchronized (mDatabase) {
+            assertEquals(50, mDatabase.mUsers.size());
+            assertEquals(50, mDatabase.mMessages.size());
+            // no batch has run into the foreign key
+            assertEquals(0, mDatabase.mRolledBack);
+        }
+    }
+
+    @Test
+    public void aBadRowDoesNotTakeTheBatchDown() throws Exception {
+        mDatabase.mKnownUsersOnly = true;
+        synchronized (mDatabase) {
+            mDatabase.mUsers.add(user(mUser));
+        }
+        List<ChatMessage> good = new ArrayList<>();
+        ChatMessage[] batch = new ChatMessage[10];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = i == 4
+                    ? new ChatMessage(Sendable.Action.ADD, UUID.randomUUID(), "orphan", false, i,
+                    UUID.randomUUID())
+                    : message(i);
+            if (i != 4) {
+                good.add(batch[i]);
+            }
+        }
+        mWriter.write(batch);
+        waitForRows(batch.length - 1);
+
+        assertIds(good, mDatabase.mMessages);
+        assertEquals(1, mDatabase.mRolledBack);
+    }
+
+    @Test
+    public void flushCommitsBeforeShutdown() throws Exception {
+        mWriter.write(message(0), message(1));
+        mWriter.flush();
+        mExecutor.shutdown();
+        waitForRows(2);
+
+        // writes after shutdown are dropped, not queued forever
+        mWriter.write(message(2));
+        Thread.sleep(MessageWriter.FLUSH_DELAY_MILLIS * 4);
+        assertEquals(2, mWriter.getRowCount());
+        assertEquals(2, mDatabase.mMessages.size());
+    }
+
+    /**
+     * A database that stores rows in lists, applies a transaction only if it completes, and
+     * rejects messages of unknown users if asked to, like the foreign key of the real table.
+     */
+    private static class FakeDatabase extends AppDatabase {
+
+        // guarded by this
+        private final List<ChatUserEntity> mUsers = new ArrayList<>();
+        private final List<ChatMessageEntity> mMessages = new ArrayList<>();
+        private final List<Integer> mTransactionSizes = new ArrayList<>();
+        private volatile boolean mKnownUsersOnly = false;
+        private int mCommits = 0;
+        private int mRolledBack = 0;
+        /** Rows of the running transaction, {@code null} outside of one. */
+        private List<Object> mTransaction;
+
+        private final ChatUserDao mUserDao = dao(ChatUserDao.class);
+        private final ChatMessageDao mMessageDao = dao(ChatMessageDao.class);
+
+        @Override
+        public synchronized void runInTransaction(Runnable body) {
+            mTransaction = new ArrayList<>();
+            try {
+                body.run();
+                apply(mTransaction);
+                mTransactionSizes.add(mTransaction.size());
+            } catch (RuntimeException e) {
+                mRolledBack++;
+                throw e;
+            } finally {
+                mTransaction = null;
+            }
+        }
+
+        @Override
+        public ChatUserDao getChatUserDao() {
+            return mUserDao;
+        }
+
+        @Override
+        public ChatMessageDao getChatMessageDao() {
+            return mMessageDao;
+        }
+
+        @Override
+        public OutboxDao getOutboxDao() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ConversationDao getConversationDao() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected SupportSQLiteOpenHelper createOpenHelper(DatabaseConfiguration config) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected InvalidationTracker createInvalidationTracker() {
+            return null;
+        }
+
+        @Override
+        public void clearAllTables() {
+            throw new UnsupportedOperationException();
+        }
+
+        /** A DAO that only knows how to insert. */
+        private <T> T dao(Class<T> type) {
+            return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                    (proxy, method, args) -> {
+                        if (!method.getName().startsWith("insert")) {
+                            throw new UnsupportedOperationException(method.getName());
+                        }
+                        Object rows = args[0];
+                        insert(rows instanceof Object[] ? (Object[]) rows : new Object[]{rows});
+                        return null;
+                    }));
+        }
+
+        private synchronized void insert(Object[] rows) {
+            Set<UUID> users = new HashSet<>();
+            for (ChatUserEntity u : mUsers) {
+                users.add(u.id);
+            }
+            List<Object> pending = mTransaction != null ? mTransaction : new ArrayList<>();
+            for (Object row : pending) {
+                if (row instanceof ChatUserEntity) {
+                    users.add(((ChatUserEntity) row).id);
+                }
+            }
+            for (Object row : rows) {
+                if (mKnownUsersOnly && row instanceof ChatMessageEntity
+                        && !users.contains(((ChatMessageEntity) row).userId)) {
+                    throw new IllegalStateException("FOREIGN KEY constraint failed");
+                }
+                pending.add(row);
+            }
+            if (mTransaction == null) {
+                apply(pending);
+            }
+        }
+
+        private void apply(List<Object> rows) {
+            try {
+                Thread.sleep(COMMIT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (Object row : rows) {
+                if (row instanceof ChatUserEntity) {
+                    mUsers.add((ChatUserEntity) row);
+                } else {
+                    mMessages.add((ChatMessageEntity) row);
+                }
+            }
+            mCommits++;
+        }
+
+    }
+
+    private ChatMessage message(int i) {
+        return new ChatMessage(Sendable.Action.ADD, mUser, "message " + i, i % 2 == 0, i,
+                UUID.randomUUID());
+    }
+
+    private static ChatUserEntity user(UUID id) {
+        ChatUserEntity entity = new ChatUserEntity();
+        entity.id = id;
+        entity.name = "user";
+        return entity;
+    }
+
+    private void waitForRows(long rows) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mWriter.getRowCount() < rows) {
+            if (System.currentTimeMillis() > deadline) {
+                fail(mWriter.getRowCount() + " of " + rows + " rows written");
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private void assertIds(List<ChatMessage> expected, List<ChatMessageEntity> actual) {
+        synchronized (mDatabase) {
+            assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).getUUID(), actual.get(i).id);
+            }
+        }
+    }
+
+}
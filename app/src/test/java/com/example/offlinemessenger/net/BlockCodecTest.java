@@ -0,0 +1,206 @@
+package com.example.offlinemessenger.net;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Blocks written and read with and without compression, and the rejection of damaged ones.
+ */
+public class BlockCodecTest {
+
+    private final BlockCodec mCodec = new BlockCodec(Deflater.DEFAULT_COMPRESSION);
+    private final Random mRandom = new Random(42);
+
+    @After
+    public void tearDown() {
+        mCodec.end();
+    }
+
+    @Test
+    public void blocksSurviveTheRoundTrip() throws Exception {
+        byte[][] blocks = {new byte[0], chat(1), chat(100), chat(100000), random(5000)};
+        for (byte[] block : blocks) {
+            for (boolean compress : new boolean[]{false, true}) {
+                assertArrayEquals(block, read(write(block, block.length, compress)));
+            }
+        }
+    }
+
+    @Test
+    public void compressibleBlocksAreDeflated() throws Exception {
+        byte[] block = chat(2000);
+        byte[] written = write(block, block.length, true);
+
+        assertEquals(BlockCodec.FLAG_DEFLATE, written[0]);
+        assertTrue(written.length + " bytes written", written.length < block.length / 4);
+        // the dictionary helps a single message just above the compression threshold
+        byte[] line = ("thanks, see you tomorrow at home. I think I will call you later "
+                + "tonight, ok? miss you and love you").getBytes(WireFormat.UTF_8);
+        assertTrue(line.length >= ConnectionConfig.DEFAULT_COMPRESSION_THRESHOLD);
+        written = write(line, line.length, true);
+        assertEquals(BlockCodec.FLAG_DEFLATE, written[0]);
+        assertTrue(written.length + " bytes written", written.length < line.length * 3 / 4);
+    }
+
+    @Test
+    public void incompressibleBlocksAreSentRaw() throws Exception {
+        byte[] block = random(5000);
+        byte[] written = write(block, block.length, true);
+
+        assertEquals(0, written[0]);
+        assertEquals(1 + WireFormat.varLongLength(block.length) + block.length, written.length);
+        assertArrayEquals(block, read(written));
+    }
+
+    @Test
+    public void onlyTheValidPartOfTheBufferIsWritten() throws Exception {
+        byte[] buffer = chat(500);
+        int length = 300;
+        for (boolean compress : new boolean[]{false, true}) {
+            assertArrayEquals(Arrays.copyOf(buffer, length), read(write(buffer, length, compress)));
+        }
+    }
+
+    @Test
+    public void codecsAreReusedAcrossBlocks() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[][] blocks = new byte[50][];
+        int written = 0;
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = i % 5 == 0 ? random(200 + i) : chat(10 * i + 1);
+            written += mCodec.write(out, blocks[i], blocks[i].length, i % 2 == 0);
+        }
+        assertEquals(out.size(), written);
+
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        for (byte[] block : blocks) {
+            assertArrayEquals(block, mCodec.read(in));
+        }
+        try {
+            mCodec.read(in);
+            fail("read past the end of the stream");
+        } catch (EOFException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void truncatedBlocksEndWithEof() throws Exception {
+        for (boolean compress : new boolean[]{false, true}) {
+            byte[] block = chat(1000);
+            byte[] written = write(block, block.length, compress);
+            for (int length = 0; length < written.length; length++) {
+                assertRejected(Arrays.copyOf(written, length), EOFException.class);
+            }
+        }
+    }
+
+    @Test
+    public void corruptDeflateDataIsRejected() throws Exception {
+        byte[] block = chat(1000);
+        byte[] written = write(block, block.length, true);
+        int header = written.length - deflatedLength(written);
+
+        // a broken zlib header
+        byte[] corrupt = written.clone();
+        corrupt[header] ^= 0xFF;
+        assertRejected(corrupt, StreamCorruptedException.class);
+
+        // a stream that ends before the announced raw length
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(BlockCodec.FLAG_DEFLATE);
+        WireFormat.writeVarLong(out, written.length - header);
+        WireFormat.writeVarLong(out, block.length + 1);
+        out.write(written, header, written.length - header);
+        assertRejected(out.toByteArray(), StreamCorruptedException.class);
+
+        // random data in place of the deflated stream, the codec must not run away with it
+        for (int i = 0; i < 1000; i++) {
+            byte[] garbage = written.clone();
+            for (int j = header; j < garbage.length; j++) {
+                garbage[j] = (byte) mRandom.nextInt();
+            }
+            try {
+                read(garbage);
+            } catch (StreamCorruptedException expected) {
+                // expected for most blocks
+            }
+        }
+    }
+
+    @Test
+    public void oversizedBlocksAreRejected() throws Exception {
+        for (int flags : new int[]{0, BlockCodec.FLAG_DEFLATE}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(flags);
+            WireFormat.writeVarLong(out, BlockCodec.MAX_BLOCK_LENGTH + 1);
+            assertRejected(out.toByteArray(), StreamCorruptedException.class);
+        }
+        // the raw length of a deflated block is bounded as well
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(BlockCodec.FLAG_DEFLATE);
+        WireFormat.writeVarLong(out, 16);
+        WireFormat.writeVarLong(out, Integer.MAX_VALUE);
+        out.write(new byte[16]);
+        assertRejected(out.toByteArray(), StreamCorruptedException.class);
+    }
+
+    private byte[] write(byte[] data, int length, boolean compress) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(mCodec.write(out, data, length, compress), out.size());
+        return out.toByteArray();
+    }
+
+    private byte[] read(byte[] bytes) throws IOException {
+        return mCodec.read(new ByteArrayInputStream(bytes));
+    }
+
+    private void assertRejected(byte[] bytes, Class<? extends IOException> expected) {
+        try {
+            read(bytes);
+            fail(bytes.length + " bytes have been accepted");
+        } catch (IOException e) {
+            assertEquals(expected, e.getClass());
+        }
+    }
+
+    /** The length of the deflated data in a written compressed block. */
+    private static int deflatedLength(byte[] written) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(written, 1, written.length - 1);
+        return (int) WireFormat.readVarLong(in);
+    }
+
+    /** Text like a batch of chat messages, {@code lines} lines long. */
+    private byte[] chat(int lines) {
+        String[] words = {"hey", "see", "you", "tomorrow", "at", "home", "thanks", "ok", "lol"};
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            for (int j = 0, n = 1 + mRandom.nextInt(8); j < n; j++) {
+                text.append(words[mRandom.nextInt(words.length)]).append(' ');
+            }
+            text.append('\n');
+        }
+        return text.toString().getBytes(WireFormat.UTF_8);
+    }
+
+    private byte[] random(int length) {
+        byte[] bytes = new byte[length];
+        mRandom.nextBytes(bytes);
+        return bytes;
+    }
+
+}
@@ -0,0 +1,157 @@
+package com.example.offlinemessenger.net;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The Bloom filter keeps every entry and stays near its false positive rate when full.
+ */
+public class BloomFilterTest {
+
+    private static final int ENTRIES = 10000;
+    private static final int PROBES = 100000;
+
+    private final Random mRandom = new Random(42);
+
+    @Test
+    public void addedEntriesAreAlwaysFound() {
+        BloomFilter filter = new BloomFilter(ENTRIES, 0.01);
+        List<UUID> ids = ids(ENTRIES);
+        for (UUID id : ids) {
+            filter.add(id);
+        }
+
+        for (UUID id : ids) {
+            assertTrue(filter.mightContain(id));
+        }
+        assertEquals(ENTRIES, filter.getCount());
+    }
+
+    @Test
+    public void falsePositivesStayNearTheRate() {
+        for (double rate : new double[]{0.1, 0.01, 0.001}) {
+            BloomFilter filter = new BloomFilter(ENTRIES, rate);
+            for (UUID id : ids(ENTRIES)) {
+                filter.add(id);
+            }
+
+            double measured = (double) falsePositives(filter) / PROBES;
+            assertTrue(rate + " measured as " + measured, measured < rate * 1.5);
+        }
+    }
+
+    @Test
+    public void seedsProduceIndependentFalsePositives() {
+        BloomFilter first = new BloomFilter(ENTRIES, 0.05, 1);
+        BloomFilter second = new BloomFilter(ENTRIES, 0.05, 2);
+        for (UUID id : ids(ENTRIES)) {
+            first.add(id);
+            second.add(id);
+        }
+
+        int both = 0;
+        for (int i = 0; i < PROBES; i++) {
+            UUID id = id();
+            if (first.mightContain(id) && second.mightContain(id)) {
+                both++;
+            }
+        }
+        // 0.05 * 0.05 if independent, 0.05 if the same ids collide
+        assertTrue(both + " shared false positives", both < PROBES * 0.05 * 0.05 * 2);
+    }
+
+    @Test
+    public void clearRemovesEverything() {
+        BloomFilter filter = new BloomFilter(ENTRIES, 0.01);
+        List<UUID> ids = ids(ENTRIES);
+        for (UUID id : ids) {
+            filter.add(id);
+        }
+        filter.clear();
+
+        assertEquals(0, filter.getCount());
+        for (UUID id : ids) {
+            assertFalse(filter.mightContain(id));
+        }
+    }
+
+    @Test
+    public void bitsCanBeSharedWithAnotherFilter() {
+        BloomFilter filter = new BloomFilter(1000, 0.01, 7);
+        List<UUID> ids = ids(1000);
+        for (UUID id : ids) {
+            filter.add(id);
+        }
+        BloomFilter copy = new BloomFilter(filter.getBits().clone(), filter.getNumBits(),
+                filter.getNumHashes(), filter.getSeed());
+
+        for (UUID id : ids) {
+            assertTrue(copy.mightContain(id));
+        }
+        for (int i = 0; i < 1000; i++) {
+            UUID id = id();
+            assertEquals(filter.mightContain(id), copy.mightContain(id));
+        }
+    }
+
+    @Test
+    public void sizingFollowsTheRate() {
+        BloomFilter filter = new BloomFilter(ENTRIES, 0.01);
+        // about 9.6 bits and 7 probes per entry
+        assertEquals(95851, filter.getNumBits(), 1);
+        assertEquals(7, filter.getNumHashes());
+        // tiny filters still get a word
+        assertEquals(64, new BloomFilter(0, 0.5).getNumBits());
+    }
+
+    @Test
+    public void invalidDimensionsAreRejected() {
+        int[][] dimensions = {{0, 1}, {64, 0}, {-1, 1}};
+        for (int[] d : dimensions) {
+            try {
+                new BloomFilter(d[0], d[1], 0L);
+                fail(d[0] + " bits and " + d[1] + " probes have been accepted");
+            } catch (IllegalArgumentException expected) {
+                // expected
+            }
+        }
+        try {
+            new BloomFilter(new long[1], 65, 1, 0);
+            fail("too few words have been accepted");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    private int falsePositives(BloomFilter filter) {
+        int count = 0;
+        for (int i = 0; i < PROBES; i++) {
+            if (filter.mightContain(id())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private List<UUID> ids(int count) {
+        List<UUID> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(id());
+        }
+        return ids;
+    }
+
+    private UUID id() {
+        return new UUID(mRandom.nextLong(), mRandom.nextLong());
+    }
+
+}
@@ -0,0 +1,302 @@
+package com.example.offlinemessenger.net;
+
+import com.example.offlinemessenger.data.ChatMessage;
+import com.example.offlinemessenger.data.ChatUser;
+import com.example.offlinemessenger.data.Sendable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Loads a connection manager with many simulated peers over the loopback transport: every
+ * peer gets its own session, sessions are routed by user id, and the pool stays bounded.
+ */
+public class ConnectionManagerTest {
+
+    private static final String SERVER = "server";
+    /** Simulated peers. */
+    private static final int PEERS = 60;
+    /** Messages each peer sends, and receives back. */
+    private static final int MESSAGES = 100;
+
+    private final LoopbackTransport.Network mNetwork = new LoopbackTransport.Network();
+    /** Received by the manager, per user id of the sender. */
+    private final Map<UUID, BlockingQueue<Sendable>> mReceived = new ConcurrentHashMap<>();
+    private final CountDownLatch mIdentified = new CountDownLatch(PEERS);
+    private final List<Peer> mPeers = new ArrayList<>();
+    private ExecutorService mPeerExecutor;
+    private ConnectionManager mManager;
+    private int mBaselineThreads;
+
+    @Before
+    public void setUp() {
+        mPeerExecutor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        if (mManager != null) {
+            mManager.shutdown();
+        }
+        for (Peer peer : mPeers) {
+            peer.mConnection.close();
+        }
+        mPeerExecutor.shutdownNow();
+    }
+
+    @Test
+    public void manyPeersAreServedAtOnce() throws Exception {
+        startManager(ConnectionManager.DEFAULT_MAX_SESSIONS);
+        connectPeers(PEERS);
+        assertTrue(mIdentified.await(ConnectionPair.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(PEERS, mManager.getSessionCount());
+        assertEquals(0, mManager.getRefusedCount());
+
+        // all peers send at once
+        List<Thread> senders = new ArrayList<>();
+        for (final Peer peer : mPeers) {
+            Thread sender = new Thread(() -> {
+                for (int i = 0; i < MESSAGES; i++) {
+                    peer.mConnection.send(message(peer.mId, peer.mId + " " + i));
+                }
+            });
+            senders.add(sender);
+            sender.start();
+        }
+        // meanwhile the manager answers every peer through the session of its user
+        for (Peer peer : mPeers) {
+            Connection session = mManager.getConnection(peer.mId);
+            assertNotNull(session);
+            for (int i = 0; i < MESSAGES; i++) {
+                assertTrue(session.send(message(peer.mId, "to " + peer.mId + " " + i)));
+            }
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+
+        for (Peer peer : mPeers) {
+            BlockingQueue<Sendable> fromPeer = received(peer.mId);
+            for (int i = 0; i < MESSAGES; i++) {
+                assertEquals(peer.mId + " " + i, content(ConnectionPair.poll(fromPeer)));
+                assertEquals("to " + peer.mId + " " + i,
+                        content(ConnectionPair.poll(peer.mReceived)));
+            }
+        }
+        // the pool is sized by the session limit, not two threads per peer
+        int threads = managerThreads();
+        assertTrue(threads + " pool threads",
+                threads <= poolSize(ConnectionManager.DEFAULT_MAX_SESSIONS));
+        assertTrue(threads + " pool threads", threads < 2 * PEERS);
+    }
+
+    @Test
+    public void peersBeyondTheLimitAreRefused() throws Exception {
+        int limit = 50;
+        startManager(limit);
+        connectPeers(PEERS);
+
+        waitFor(() -> mManager.getRefusedCount() == PEERS - limit);
+        assertEquals(limit, mManager.getSessionCount());
+        int threads = managerThreads();
+        assertTrue(threads + " pool threads", threads <= poolSize(limit));
+
+        // a closed session frees its place
+        Peer first = null;
+        for (Peer peer : mPeers) {
+            if (mManager.getConnection(peer.mId) != null) {
+                first = peer;
+                break;
+            }
+        }
+        assertNotNull(first);
+        first.mConnection.close();
+        waitFor(() -> mManager.getSessionCount() == limit - 1);
+        connectPeers(1);
+        waitFor(() -> mManager.getSessionCount() == limit);
+        assertEquals(PEERS - limit, mManager.getRefusedCount());
+    }
+
+    @Test
+    public void closedSessionsAreNoLongerRouted() throws Exception {
+        startManager(ConnectionManager.DEFAULT_MAX_SESSIONS);
+        connectPeers(2);
+        waitFor(() -> mIdentified.getCount() == PEERS - 2);
+        Peer gone = mPeers.get(0);
+        Peer staying = mPeers.get(1);
+        Connection session = mManager.getConnection(staying.mId);
+
+        gone.mConnection.close();
+        waitFor(() -> mManager.getConnection(gone.mId) == null);
+
+        assertEquals(1, mManager.getSessionCount());
+        assertSame(session, mManager.getConnection(staying.mId));
+        assertTrue(session.send(message(staying.mId, "still here")));
+        assertEquals("still here", content(ConnectionPair.poll(staying.mReceived)));
+    }
+
+    @Test
+    public void droppedOutgoingSessionsAreRedialed() throws Exception {
+        startManager(ConnectionManager.DEFAULT_MAX_SESSIONS);
+        LoopbackTransport remote = new LoopbackTransport(mNetwork, "remote");
+        Transport.Acceptor acceptor = remote.listen();
+        try {
+            mManager.connect("remote");
+            Transport.Channel first = acceptor.accept();
+            waitFor(() -> mManager.getSessionCount() == 1);
+
+            first.close();
+            // the manager dials again after a short delay
+            Transport.Channel second = acceptor.accept();
+            assertNotNull(second);
+            waitFor(() -> mManager.getSessionCount() == 1);
+            assertTrue(mManager.getReconnectAttempts() >= 1);
+
+            mManager.disconnect("remote");
+            waitFor(() -> mManager.getSessionCount() == 0);
+        } finally {
+            acceptor.close();
+        }
+    }
+
+    /** A peer with a plain connection to the manager, running on the shared peer pool. */
+    private static class Peer implements Connection.Listener {
+
+        private final UUID mId = UUID.randomUUID();
+        private final BlockingQueue<Sendable> mReceived = new LinkedBlockingQueue<>();
+        private Connection mConnection;
+
+        @Override
+        public void onSendableReceived(Connection connection, Sendable s) {
+            mReceived.add(s);
+        }
+
+        @Override
+        public void onClosed(Connection connection) {
+            // nothing to do
+        }
+
+    }
+
+    private interface Condition {
+
+        boolean holds();
+
+    }
+
+    private void startManager(int maxSessions) throws Exception {
+        mBaselineThreads = countManagerThreads();
+        LoopbackTransport transport = new LoopbackTransport(mNetwork, SERVER);
+        mManager = new ConnectionManager(transport, new ConnectionManager.Listener() {
+            @Override
+            public void onConnectionOpened(Connection connection) {
+                // nothing to attach
+            }
+
+            @Override
+            public void onSendableReceived(Connection connection, Sendable s) {
+                // peers identify themselves with their user, which may overtake their messages
+                if (s instanceof ChatUser) {
+                    mManager.setUserId(connection, ((ChatUser) s).getUUID());
+                    mIdentified.countDown();
+                } else {
+                    received(((ChatMessage) s).getSender()).add(s);
+                }
+            }
+
+            @Override
+            public void onClosed(Connection connection) {
+                // nothing to do
+            }
+        }, new ConnectionConfig(), maxSessions);
+        mManager.listen();
+    }
+
+    private void connectPeers(int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            Peer peer = new Peer();
+            LoopbackTransport transport = new LoopbackTransport(mNetwork, "peer " + peer.mId);
+            peer.mConnection = new Connection(transport.connect(SERVER), peer,
+                    new ConnectionConfig(), mPeerExecutor);
+            peer.mConnection.start();
+            peer.mConnection.send(new ChatUser(Sendable.Action.ADD, "peer " + i, peer.mId));
+            mPeers.add(peer);
+        }
+    }
+
+    private BlockingQueue<Sendable> received(UUID peerId) {
+        BlockingQueue<Sendable> received = mReceived.get(peerId);
+        if (received == null) {
+            mReceived.putIfAbsent(peerId, new LinkedBlockingQueue<Sendable>());
+            received = mReceived.get(peerId);
+        }
+        return received;
+    }
+
+    /**
+     * A message between a peer and the manager.  The sender field carries the id of the peer
+     * in both directions, so the manager can tell who sent what.
+     */
+    private static ChatMessage message(UUID peerId, String content) {
+        return new ChatMessage(Sendable.Action.ADD, peerId, content, true,
+                System.currentTimeMillis(), UUID.randomUUID());
+    }
+
+    /**
+     * The number of live threads of the manager's pool.  Pools of earlier tests may still be
+     * winding down, so only threads beyond those alive before the manager started count.
+     */
+    private int managerThreads() {
+        return countManagerThreads() - mBaselineThreads;
+    }
+
+    /** One reader per session, four drain threads and the accept loop. */
+    private static int poolSize(int maxSessions) {
+        return maxSessions + 4 + 1;
+    }
+
+    private static int countManagerThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("ConnectionManager-")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static String content(Sendable s) {
+        assertNotNull("nothing arrived", s);
+        return ((ChatMessage) s).getContent();
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + ConnectionPair.TIMEOUT_MILLIS;
+        while (!condition.holds()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("timed out");
+            }
+            Thread.sleep(1);
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+package com.example.offlinemessenger.net;
+
+import com.example.offlinemessenger.data.Sendable;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Two connections talking to each other over a {@link LoopbackTransport}, for tests.
+ * Sendables received by either side are collected in a queue.
+ */
+class ConnectionPair {
+
+    /** Time a test waits for anything to arrive before failing. */
+    static final long TIMEOUT_MILLIS = 10000;
+
+    final Connection mClient;
+    final Connection mServer;
+    final BlockingQueue<Sendable> mClientReceived = new LinkedBlockingQueue<>();
+    final BlockingQueue<Sendable> mServerReceived = new LinkedBlockingQueue<>();
+    /** The number of {@link Connection.Listener#onClosed(Connection)} calls of both sides. */
+    final AtomicInteger mCloseCount = new AtomicInteger();
+    private final CountDownLatch mClosed = new CountDownLatch(2);
+
+    /**
+     * Open a pair of connections, not started yet.
+     *
+     * @param clientConfig The configuration of the client side.
+     * @param serverConfig The configuration of the server side.
+     * @param pipeCapacity The number of bytes buffered per direction.
+     * @throws IOException If the loopback channel cannot be opened.
+     */
+    ConnectionPair(ConnectionConfig clientConfig, ConnectionConfig serverConfig,
+                   int pipeCapacity) throws IOException {
+        this(clientConfig, serverConfig, pipeCapacity, null);
+    }
+
+    /**
+     * Open a pair of connections running on an executor, not started yet.
+     *
+     * @param clientConfig The configuration of the client side.
+     * @param serverConfig The configuration of the server side.
+     * @param pipeCapacity The number of bytes buffered per direction.
+     * @param executor     The executor of both sides, or {@code null} for dedicated threads.
+     * @throws IOException If the loopback channel cannot be opened.
+     */
+    ConnectionPair(ConnectionConfig clientConfig, ConnectionConfig serverConfig,
+                   int pipeCapacity, Executor executor) throws IOException {
+        LoopbackTransport.Network network = new LoopbackTransport.Network(pipeCapacity);
+        LoopbackTransport server = new LoopbackTransport(network, "server");
+        LoopbackTransport client = new LoopbackTransport(network, "client");
+        Transport.Acceptor acceptor = server.listen();
+        Transport.Channel clientChannel = client.connect("server");
+        Transport.Channel serverChannel = acceptor.accept();
+        acceptor.close();
+        mClient = new Connection(clientChannel, listener(mClientReceived), clientConfig,
+                executor);
+        mServer = new Connection(serverChannel, listener(mServerReceived), serverConfig,
+                executor);
+    }
+
+    /**
+     * Open a pair of connections with the default configuration, not started yet.
+     *
+     * @throws IOException If the loopback channel cannot be opened.
+     */
+    ConnectionPair() throws IOException {
+        this(new ConnectionConfig(), new ConnectionConfig(),
+                LoopbackTransport.DEFAULT_PIPE_CAPACITY);
+    }
+
+    /**
+     * Start both connections.
+     *
+     * @return This pair.
+     */
+    ConnectionPair start() {
+        mClient.start();
+        mServer.start();
+        return this;
+    }
+
+    /**
+     * Close both connections and wait until both have noticed.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    void close() throws InterruptedException {
+        mClient.close();
+        mServer.close();
+        mClosed.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Take the next sendable received by a side.
+     *
+     * @param received The queue of the side.
+     * @return The sendable, or {@code null} if none arrived in time.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    static Sendable poll(BlockingQueue<Sendable> received) throws InterruptedException {
+        return received.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private Connection.Listener listener(final BlockingQueue<Sendable> received) {
+        return new Connection.Listener() {
+            @Override
+            public void onSendableReceived(Connection connection, Sendable s) {
+                received.add(s);
+            }
+
+            @Override
+            public void onClosed(Connection connection) {
+                mCloseCount.incrementAndGet();
+                mClosed.countDown();
+            }
+        };
+    }
+
+}
@@ -0,0 +1,136 @@
+package com.example.offlinemessenger.net;
+
+import com.example.offlinemessenger.data.ChatMessage;
+import com.example.offlinemessenger.data.Sendable;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The reader and writer of a connection over a loopback link: sends go out as soon as they
+ * are queued, whatever the peer does, in both directions at once.
+ */
+public class ConnectionTest {
+
+    /** Messages sent one at a time, each waiting for the previous one to arrive. */
+    private static final int SEQUENTIAL = 500;
+
+    private ConnectionPair mPair;
+    private ExecutorService mExecutor;
+
+    @After
+    public void tearDown() throws Exception {
+        if (mPair != null) {
+            mPair.close();
+        }
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void oneWaySendsArriveWithoutTrafficBack() throws Exception {
+        mPair = new ConnectionPair().start();
+        assertOneWaySendsArrive();
+    }
+
+    @Test
+    public void pooledOneWaySendsArriveWithoutTrafficBack() throws Exception {
+        mExecutor = Executors.newFixedThreadPool(4);
+        mPair = new ConnectionPair(new ConnectionConfig(), new ConnectionConfig(),
+                LoopbackTransport.DEFAULT_PIPE_CAPACITY, mExecutor).start();
+        assertOneWaySendsArrive();
+    }
+
+    @Test
+    public void bothSidesSendAtOnce() throws Exception {
+        mPair = new ConnectionPair().start();
+        final int count = 2000;
+        Thread server = new Thread(() -> {
+            for (int i = 0; i < count; i++) {
+                mPair.mServer.send(message("server " + i));
+            }
+        });
+        server.start();
+        for (int i = 0; i < count; i++) {
+            assertTrue(mPair.mClient.send(message("client " + i)));
+        }
+        server.join();
+
+        // each direction keeps its order
+        for (int i = 0; i < count; i++) {
+            assertEquals("client " + i, content(ConnectionPair.poll(mPair.mServerReceived)));
+            assertEquals("server " + i, content(ConnectionPair.poll(mPair.mClientReceived)));
+        }
+    }
+
+    @Test
+    public void largeMessagesArriveWhole() throws Exception {
+        mPair = new ConnectionPair().start();
+        char[] chars = new char[200 * 1024];
+        Arrays.fill(chars, 'x');
+        String content = new String(chars);
+
+        assertTrue(mPair.mClient.send(message(content)));
+        assertTrue(mPair.mClient.send(message("after")));
+
+        assertEquals(content, content(ConnectionPair.poll(mPair.mServerReceived)));
+        assertEquals("after", content(ConnectionPair.poll(mPair.mServerReceived)));
+    }
+
+    @Test
+    public void closingOneSideClosesBothOnce() throws Exception {
+        mPair = new ConnectionPair().start();
+        assertTrue(mPair.mClient.send(message("before")));
+        assertNotNull(ConnectionPair.poll(mPair.mServerReceived));
+
+        mPair.mServer.close();
+        long deadline = System.currentTimeMillis() + ConnectionPair.TIMEOUT_MILLIS;
+        while (!mPair.mClient.isClosed() && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+        }
+
+        assertTrue(mPair.mClient.isClosed());
+        assertFalse(mPair.mClient.send(message("after")));
+        assertFalse(mPair.mServer.send(message("after")));
+        mPair.close();
+        assertEquals(2, mPair.mCloseCount.get());
+    }
+
+    private void assertOneWaySendsArrive() throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < SEQUENTIAL; i++) {
+            assertTrue(mPair.mClient.send(message("message " + i)));
+            Sendable s = ConnectionPair.poll(mPair.mServerReceived);
+            assertNotNull("message " + i + " did not arrive", s);
+            assertEquals("message " + i, content(s));
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue(mPair.mClientReceived.isEmpty());
+        // a writer polling every 10 ms would take at least 5 s
+        assertTrue(SEQUENTIAL + " sends took " + millis + " ms", millis < SEQUENTIAL * 5);
+    }
+
+    private static ChatMessage message(String content) {
+        return new ChatMessage(Sendable.Action.ADD, UUID.randomUUID(), content, true,
+                System.currentTimeMillis(), UUID.randomUUID());
+    }
+
+    private static String content(Sendable s) {
+        assertNotNull("nothing arrived", s);
+        return ((ChatMessage) s).getContent();
+    }
+
+}
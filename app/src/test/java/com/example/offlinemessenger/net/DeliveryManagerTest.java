@@ -0,0 +1,417 @@
+package com.example.offlinemessenger.net;
+
+import com.example.offlinemessenger.data.ChatMessage;
+import com.example.offlinemessenger.data.Sendable;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Drives a delivery manager from a scripted peer on the other end of a loopback connection,
+ * which resumes, acknowledges and drops frames at will: the window, cumulative
+ * acknowledgements, go-back-N retransmission, the replay of the outbox and the resumption
+ * of a session over a new connection.
+ */
+public class DeliveryManagerTest {
+
+    private static final int WINDOW = 4;
+    /** Retransmission timeout, short to keep the tests fast. */
+    private static final long TIMEOUT_MILLIS = 100;
+    /** Time after which no further frame is expected to arrive. */
+    private static final long QUIET_MILLIS = 300;
+
+    private final UUID mPeerId = UUID.randomUUID();
+    private final MemoryOutbox mOutbox = new MemoryOutbox();
+    private final BlockingQueue<UUID> mDelivered = new LinkedBlockingQueue<>();
+    private final List<ConnectionPair> mPairs = new ArrayList<>();
+    private DeliveryManager mManager;
+
+    @After
+    public void tearDown() throws Exception {
+        if (mManager != null) {
+            mManager.shutdown();
+        }
+        for (ConnectionPair pair : mPairs) {
+            pair.close();
+        }
+    }
+
+    @Test
+    public void acknowledgedMessagesLeaveTheOutbox() throws Exception {
+        mManager = manager(WINDOW, DeliveryManager.DEFAULT_RETRANSMIT_TIMEOUT_MILLIS);
+        Peer peer = connect();
+        List<ChatMessage> sent = send(10);
+        peer.resume(0, 0);
+
+        // only a window's worth is in flight
+        List<Sequenced> first = peer.take(WINDOW);
+        assertSeqs(first, 0, 1, 2, 3);
+        assertIds(sent.subList(0, WINDOW), first);
+        assertNull(peer.poll(QUIET_MILLIS));
+
+        // a cumulative ack covers everything up to it and opens the window as far
+        peer.ack(1);
+        assertEquals(sent.get(0).getUUID(), poll(mDelivered));
+        assertEquals(sent.get(1).getUUID(), poll(mDelivered));
+        assertSeqs(peer.take(2), 4, 5);
+        peer.ack(5);
+        assertSeqs(peer.take(4), 6, 7, 8, 9);
+        peer.ack(9);
+
+        for (int i = 2; i < sent.size(); i++) {
+            assertEquals(sent.get(i).getUUID(), poll(mDelivered));
+        }
+        waitFor(() -> mOutbox.size() == 0);
+        assertNull(peer.poll(QUIET_MILLIS));
+        assertEquals(10, mManager.getStats().getDelivered());
+        assertEquals(0, mManager.getStats().getRetransmissions());
+    }
+
+    @Test
+    public void theWindowIsSentAgainWithoutAcknowledgement() throws Exception {
+        mManager = manager(WINDOW, TIMEOUT_MILLIS);
+        Peer peer = connect();
+        List<ChatMessage> sent = send(WINDOW);
+        peer.resume(0, 0);
+
+        List<Sequenced> original = peer.take(WINDOW);
+        // lost acks: after the timeout the whole window is sent again, in order
+        List<Sequenced> again = peer.take(WINDOW);
+        assertSeqs(again, 0, 1, 2, 3);
+        assertIds(sent, again);
+        for (int i = 0; i < WINDOW; i++) {
+            assertEquals(original.get(i).mEncodedLength, again.get(i).mEncodedLength);
+        }
+
+        peer.ack(WINDOW - 1);
+        waitFor(() -> mOutbox.size() == 0);
+        // once acknowledged, a backed off timer that was still running sends nothing more
+        peer.drain(2 * TIMEOUT_MILLIS + QUIET_MILLIS);
+        assertNull(peer.poll(QUIET_MILLIS));
+        DeliveryStats stats = mManager.getStats();
+        assertEquals(WINDOW, stats.getDelivered());
+        assertTrue(stats.getRetransmissions() >= WINDOW);
+        assertEquals(0, stats.getRetransmissions() % WINDOW);
+        assertEquals(stats.getRetransmissions() / WINDOW * sum(original),
+                stats.getBytesResent());
+    }
+
+    @Test
+    public void theOutboxOfAnEarlierProcessIsSentForItsPeer() throws Exception {
+        List<ChatMessage> left = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            ChatMessage m = message("left over " + i);
+            left.add(m);
+            mOutbox.add(m.getUUID(), SendableCodec.encode(m));
+        }
+        ChatMessage other = new ChatMessage(Sendable.Action.ADD, UUID.randomUUID(),
+                "for someone else", true, System.currentTimeMillis(), UUID.randomUUID());
+        mOutbox.add(other.getUUID(), SendableCodec.encode(other));
+
+        mManager = manager(WINDOW, DeliveryManager.DEFAULT_RETRANSMIT_TIMEOUT_MILLIS);
+        Peer peer = connect();
+        ChatMessage fresh = message("new");
+        mManager.send(fresh);
+        peer.resume(0, 0);
+
+        // the outbox comes first, in the order it was written, then the new message
+        List<Sequenced> received = peer.take(4);
+        assertSeqs(received, 0, 1, 2, 3);
+        assertIds(Arrays.asList(left.get(0), left.get(1), left.get(2), fresh), received);
+        assertNull(peer.poll(QUIET_MILLIS));
+
+        peer.ack(3);
+        waitFor(() -> mOutbox.size() == 1);
+        assertEquals(Arrays.asList(other.getUUID()), mOutbox.ids());
+    }
+
+    @Test
+    public void aReconnectReplaysOnlyWhatThePeerMissed() throws Exception {
+        mManager = manager(2 * WINDOW, DeliveryManager.DEFAULT_RETRANSMIT_TIMEOUT_MILLIS);
+        Peer peer = connect();
+        List<ChatMessage> sent = send(2 * WINDOW);
+        peer.resume(0, 0);
+        long epoch = peer.senderEpoch();
+        List<Sequenced> original = peer.take(2 * WINDOW);
+
+        // the connection drops before any ack makes it back
+        disconnect();
+        assertEquals(0, mManager.getStats().getRetransmissions());
+
+        // the peer got the first five, so only the rest of the window is sent again
+        peer = connect();
+        assertEquals(epoch, peer.senderEpoch());
+        peer.resume(epoch, 5);
+        List<Sequenced> replayed = peer.take(3);
+        assertSeqs(replayed, 5, 6, 7);
+        assertIds(sent.subList(5, 8), replayed);
+        assertNull(peer.poll(QUIET_MILLIS));
+        for (int i = 0; i < 5; i++) {
+            assertEquals(sent.get(i).getUUID(), poll(mDelivered));
+        }
+        assertNull(mDelivered.poll(0, TimeUnit.MILLISECONDS));
+        assertEquals(3, mOutbox.size());
+
+        DeliveryStats stats = mManager.getStats();
+        assertEquals(3, stats.getRetransmissions());
+        assertEquals(sum(original.subList(5, 8)), stats.getBytesResent());
+        assertEquals(1, stats.getRecoveries());
+
+        peer.ack(7);
+        waitFor(() -> mOutbox.size() == 0);
+    }
+
+    @Test
+    public void aPeerWithoutTheEpochGetsEverythingAgain() throws Exception {
+        mManager = manager(2 * WINDOW, DeliveryManager.DEFAULT_RETRANSMIT_TIMEOUT_MILLIS);
+        Peer peer = connect();
+        List<ChatMessage> sent = send(2 * WINDOW);
+        peer.resume(0, 0);
+        List<Sequenced> original = peer.take(2 * WINDOW);
+        disconnect();
+
+        // a restarted peer has forgotten the session, numbering starts over
+        peer = connect();
+        peer.resume(0, 5);
+        List<Sequenced> replayed = peer.take(2 * WINDOW);
+        assertSeqs(replayed, 0, 1, 2, 3, 4, 5, 6, 7);
+        assertIds(sent, replayed);
+        assertNull(mDelivered.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(sum(original), mManager.getStats().getBytesResent());
+        assertEquals(2 * WINDOW, mOutbox.size());
+    }
+
+    /** A sequenced frame as the peer received it. */
+    private static class Sequenced {
+
+        private final long mSeq;
+        private final ChatMessage mMessage;
+        private final int mEncodedLength;
+
+        private Sequenced(long seq, ChatMessage message, int encodedLength) {
+            mSeq = seq;
+            mMessage = message;
+            mEncodedLength = encodedLength;
+        }
+
+    }
+
+    /**
+     * The receiving end of a session, speaking the delivery protocol by hand.
+     */
+    private static class Peer {
+
+        private final long mEpoch = 42;
+        private final Connection mConnection;
+        private final BlockingQueue<Sequenced> mReceived = new LinkedBlockingQueue<>();
+        private final BlockingQueue<Long> mSenderEpochs = new LinkedBlockingQueue<>();
+
+        private Peer(Connection connection) {
+            mConnection = connection;
+            connection.setFrameHandler(Frame.TYPE_DELIVERY_RESUME, (c, f) ->
+                    mSenderEpochs.add(WireFormat.readLong(f.openBody())));
+            connection.setFrameHandler(Frame.TYPE_SEQUENCED, (c, f) -> {
+                InputStream in = f.openBody();
+                long seq = WireFormat.readVarLong(in);
+                int type = WireFormat.readByte(in);
+                byte[] body = new byte[in.available()];
+                WireFormat.readFully(in, body, 0, body.length);
+                ChatMessage m = (ChatMessage) SendableCodec.fromFrame(new Frame(type, body));
+                mReceived.add(new Sequenced(seq, m, f.getEncodedLength()));
+            });
+        }
+
+        /**
+         * Tell the sender where to continue.
+         *
+         * @param epochSeen The sender's epoch the sequence number refers to, {@code 0} if none.
+         * @param expected  The next sequence number expected.
+         */
+        private void resume(long epochSeen, long expected) throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            WireFormat.writeLong(body, mEpoch);
+            WireFormat.writeLong(body, epochSeen);
+            WireFormat.writeVarLong(body, expected);
+            mConnection.send(new Frame(Frame.TYPE_DELIVERY_RESUME, body.toByteArray()));
+        }
+
+        private void ack(long seq) throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            WireFormat.writeVarLong(body, seq);
+            mConnection.send(new Frame(Frame.TYPE_DELIVERY_ACK, body.toByteArray()));
+        }
+
+        /** The epoch the sender numbers its messages in, from its resume frame. */
+        private long senderEpoch() throws InterruptedException {
+            Long epoch = mSenderEpochs.poll(ConnectionPair.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            assertNotNull("no resume received", epoch);
+            return epoch;
+        }
+
+        private List<Sequenced> take(int count) throws InterruptedException {
+            List<Sequenced> frames = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Sequenced s = poll(ConnectionPair.TIMEOUT_MILLIS);
+                assertNotNull(i + " of " + count + " frames received", s);
+                frames.add(s);
+            }
+            return frames;
+        }
+
+        private Sequenced poll(long millis) throws InterruptedException {
+            return mReceived.poll(millis, TimeUnit.MILLISECONDS);
+        }
+
+        /** Drop whatever arrives for a while. */
+        private void drain(long millis) throws InterruptedException {
+            Thread.sleep(millis);
+            mReceived.clear();
+        }
+
+    }
+
+    /** An outbox in memory, keeping the order messages were added in. */
+    private static class MemoryOutbox implements DeliveryManager.Outbox {
+
+        private final Map<UUID, byte[]> mPending = new LinkedHashMap<>();
+
+        @Override
+        public synchronized void add(UUID id, byte[] payload) {
+            mPending.put(id, payload);
+        }
+
+        @Override
+        public synchronized void remove(UUID id) {
+            mPending.remove(id);
+        }
+
+        @Override
+        public synchronized List<byte[]> loadAll() {
+            return new ArrayList<>(mPending.values());
+        }
+
+        private synchronized int size() {
+            return mPending.size();
+        }
+
+        private synchronized List<UUID> ids() {
+            return new ArrayList<>(mPending.keySet());
+        }
+
+    }
+
+    private interface Condition {
+
+        boolean holds();
+
+    }
+
+    private DeliveryManager manager(int windowSize, long timeoutMillis) {
+        return new DeliveryManager(mOutbox, new DeliveryManager.Listener() {
+            @Override
+            public void onSendableReceived(Sendable s) {
+                // the peer sends nothing but acknowledgements
+            }
+
+            @Override
+            public void onDelivered(UUID messageId) {
+                mDelivered.add(messageId);
+            }
+        }, mPeerId, null, windowSize, timeoutMillis);
+    }
+
+    /**
+     * Attach the manager to a new connection, with a scripted peer on the other end.
+     */
+    private Peer connect() throws IOException {
+        ConnectionPair pair = new ConnectionPair();
+        mPairs.add(pair);
+        mManager.attach(pair.mClient);
+        Peer peer = new Peer(pair.mServer);
+        pair.start();
+        return peer;
+    }
+
+    /**
+     * Close the latest connection, as a lost link would.
+     */
+    private void disconnect() throws InterruptedException {
+        ConnectionPair pair = mPairs.get(mPairs.size() - 1);
+        pair.close();
+        mManager.detach(pair.mClient);
+    }
+
+    private List<ChatMessage> send(int count) {
+        List<ChatMessage> sent = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ChatMessage m = message("message " + i);
+            sent.add(m);
+            mManager.send(m);
+        }
+        return sent;
+    }
+
+    private ChatMessage message(String content) {
+        // the sender field of an outgoing message holds the user the conversation is with
+        return new ChatMessage(Sendable.Action.ADD, mPeerId, content, true,
+                System.currentTimeMillis(), UUID.randomUUID());
+    }
+
+    private static UUID poll(BlockingQueue<UUID> queue) throws InterruptedException {
+        UUID id = queue.poll(ConnectionPair.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertNotNull("not delivered", id);
+        return id;
+    }
+
+    private static long sum(List<Sequenced> frames) {
+        long bytes = 0;
+        for (Sequenced s : frames) {
+            bytes += s.mEncodedLength;
+        }
+        return bytes;
+    }
+
+    private static void assertSeqs(List<Sequenced> frames, long... seqs) {
+        assertEquals(seqs.length, frames.size());
+        for (int i = 0; i < seqs.length; i++) {
+            assertEquals(seqs[i], frames.get(i).mSeq);
+        }
+    }
+
+    private static void assertIds(List<ChatMessage> expected, List<Sequenced> frames) {
+        assertEquals(expected.size(), frames.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getUUID(), frames.get(i).mMessage.getUUID());
+        }
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + ConnectionPair.TIMEOUT_MILLIS;
+        while (!condition.holds()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("timed out");
+            }
+            Thread.sleep(1);
+        }
+    }
+
+}
@@ -0,0 +1,151 @@
+package com.example.offlinemessenger.net;
+
+import com.example.offlinemessenger.data.ChatMessage;
+import com.example.offlinemessenger.data.Sendable;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Pushes a million messages at a receiver that handles them more slowly than they are sent.
+ * Credit keeps the receiver from being overrun and the bounded queue blocks the sender, so
+ * the heap stays flat however far the sender gets ahead.
+ */
+public class FlowControlTest {
+
+    private static final int MESSAGES = 1000000;
+    /** Heap samples taken while sending. */
+    private static final int SAMPLES = 10;
+    /** The receiver pauses for a millisecond after this many messages. */
+    private static final int THROTTLE_EVERY = 100;
+    private static final int RECEIVE_WINDOW = 32 * 1024;
+    private static final int MAX_QUEUED = 64 * 1024;
+    /** Growth of the used heap over the run that is put down to noise. */
+    private static final long HEAP_SLACK = 16 * 1024 * 1024;
+
+    private Connection mSender;
+    private Connection mReceiver;
+
+    @After
+    public void tearDown() {
+        if (mSender != null) {
+            mSender.close();
+        }
+        if (mReceiver != null) {
+            mReceiver.close();
+        }
+    }
+
+    @Test
+    public void aMillionMessagesKeepTheHeapFlat() throws Exception {
+        final AtomicInteger received = new AtomicInteger();
+        final AtomicInteger outOfOrder = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicLong congestions = new AtomicLong();
+        final AtomicLong reliefs = new AtomicLong();
+
+        ConnectionConfig senderConfig = new ConnectionConfig();
+        senderConfig.setMaxQueuedBytes(MAX_QUEUED);
+        senderConfig.setOverflowPolicy(ConnectionConfig.OverflowPolicy.BLOCK);
+        ConnectionConfig receiverConfig = new ConnectionConfig();
+        receiverConfig.setReceiveWindowBytes(RECEIVE_WINDOW);
+        open(senderConfig, receiverConfig, new Connection.Listener() {
+            @Override
+            public void onSendableReceived(Connection connection, Sendable s) {
+                int n = received.getAndIncrement();
+                if (!Integer.toString(n).equals(((ChatMessage) s).getContent())) {
+                    outOfOrder.incrementAndGet();
+                }
+                if (n % THROTTLE_EVERY == 0) {
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                if (n == MESSAGES - 1) {
+                    done.countDown();
+                }
+            }
+
+            @Override
+            public void onClosed(Connection connection) {
+                // nothing to do
+            }
+        });
+        mSender.setBackpressureListener((connection, congested) -> {
+            (congested ? congestions : reliefs).incrementAndGet();
+        });
+        mSender.start();
+        mReceiver.start();
+
+        List<Long> heap = new ArrayList<>(SAMPLES);
+        UUID sender = UUID.randomUUID();
+        for (int i = 0; i < MESSAGES; i++) {
+            ChatMessage m = new ChatMessage(Sendable.Action.ADD, sender, Integer.toString(i),
+                    true, i, UUID.randomUUID());
+            assertTrue("message " + i + " has not been queued", mSender.send(m));
+            if ((i + 1) % (MESSAGES / SAMPLES) == 0) {
+                heap.add(usedHeap());
+            }
+        }
+        assertTrue(received.get() + " of " + MESSAGES + " received",
+                done.await(60, TimeUnit.SECONDS));
+
+        assertEquals(0, outOfOrder.get());
+        assertEquals(0, mSender.getStats().getRejectedFrames());
+        // the sender has been held back, and the queue drained again every time
+        assertTrue(mSender.getStats().getBlockedMillis() > 0);
+        assertTrue(congestions.get() > 0);
+        assertTrue(reliefs.get() >= congestions.get() - 1);
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (long used : heap) {
+            min = Math.min(min, used);
+            max = Math.max(max, used);
+        }
+        assertTrue("heap grew from " + min + " to " + max + " bytes: " + heap,
+                max - min < HEAP_SLACK);
+    }
+
+    private void open(ConnectionConfig senderConfig, ConnectionConfig receiverConfig,
+                      Connection.Listener receiverListener) throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        LoopbackTransport receiver = new LoopbackTransport(network, "receiver");
+        LoopbackTransport sender = new LoopbackTransport(network, "sender");
+        Transport.Acceptor acceptor = receiver.listen();
+        Transport.Channel senderChannel = sender.connect("receiver");
+        Transport.Channel receiverChannel = acceptor.accept();
+        acceptor.close();
+        mSender = new Connection(senderChannel, new Connection.Listener() {
+            @Override
+            public void onSendableReceived(Connection connection, Sendable s) {
+                // the receiver only sends credit
+            }
+
+            @Override
+            public void onClosed(Connection connection) {
+                // nothing to do
+            }
+        }, senderConfig);
+        mReceiver = new Connection(receiverChannel, receiverListener, receiverConfig);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+}
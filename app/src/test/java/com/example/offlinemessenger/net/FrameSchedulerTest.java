@@ -0,0 +1,209 @@
+package com.example.offlinemessenger.net;
+
+import org.junit.Test;
+
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Lane priorities, deficit round robin, fragmentation and credit of the outbound queue.
+ */
+public class FrameSchedulerTest {
+
+    private static final int FRAGMENT_BYTES = 256;
+
+    private final Random mRandom = new Random(42);
+
+    private FrameScheduler scheduler(int interactiveWeight, int bulkWeight) {
+        ConnectionConfig config = new ConnectionConfig();
+        config.setFragmentBytes(FRAGMENT_BYTES);
+        config.setInteractiveWeight(interactiveWeight);
+        config.setBulkWeight(bulkWeight);
+        return new FrameScheduler(config, new ConnectionStats());
+    }
+
+    private Frame frame(int type, int bodyLength) {
+        byte[] body = new byte[bodyLength];
+        mRandom.nextBytes(body);
+        return new Frame(type, body);
+    }
+
+    @Test
+    public void controlFramesGoFirst() {
+        FrameScheduler scheduler = scheduler(4, 1);
+        scheduler.offer(frame(Frame.TYPE_TRANSFER_CHUNK, 100));
+        scheduler.offer(frame(Frame.TYPE_CHAT_MESSAGE, 100));
+        Frame ping = frame(Frame.TYPE_PING, 8);
+        scheduler.offer(ping);
+
+        assertEquals(ping, scheduler.poll(true));
+    }
+
+    @Test
+    public void controlFramesAreNeverFragmented() {
+        FrameScheduler scheduler = scheduler(4, 1);
+        Frame hello = frame(Frame.TYPE_MESH_HELLO, 4 * FRAGMENT_BYTES);
+        scheduler.offer(hello);
+
+        assertEquals(hello, scheduler.poll(true));
+        assertNull(scheduler.poll(true));
+    }
+
+    @Test
+    public void fragmentsAreReassembled() throws Exception {
+        FrameScheduler scheduler = scheduler(4, 1);
+        Frame chunk = frame(Frame.TYPE_TRANSFER_CHUNK, 20 * FRAGMENT_BYTES + 17);
+        Frame large = frame(Frame.TYPE_CHAT_MESSAGE, 3 * FRAGMENT_BYTES);
+        scheduler.offer(chunk);
+        scheduler.offer(large);
+        List<Frame> chats = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Frame chat = frame(Frame.TYPE_CHAT_MESSAGE, 40);
+            chats.add(chat);
+            scheduler.offer(chat);
+        }
+
+        FrameAssembler assembler = new FrameAssembler();
+        List<Frame> received = new ArrayList<>();
+        int fragmentsBeforeLastChat = -1;
+        int fragments = 0;
+        Frame f;
+        while ((f = scheduler.poll(true)) != null) {
+            assertTrue(f.getEncodedLength() <= FRAGMENT_BYTES + 16);
+            if (f.getType() == Frame.TYPE_FRAGMENT) {
+                fragments++;
+                f = assembler.add(f);
+                if (f == null) {
+                    continue;
+                }
+            }
+            received.add(f);
+            if (f == chats.get(chats.size() - 1)) {
+                fragmentsBeforeLastChat = fragments;
+            }
+        }
+
+        assertEquals(chats.size() + 2, received.size());
+        Frame reassembled = received.get(received.size() - 1);
+        assertEquals(Frame.TYPE_TRANSFER_CHUNK, reassembled.getType());
+        assertArrayEquals(chunk.getBody(), reassembled.getBody());
+        assertTrue(received.contains(chats.get(0)));
+        for (Frame r : received) {
+            if (r.getType() == Frame.TYPE_CHAT_MESSAGE
+                    && r.getBody().length == large.getBody().length) {
+                assertArrayEquals(large.getBody(), r.getBody());
+            }
+        }
+        // the chat messages do not wait for the whole chunk
+        assertTrue(fragmentsBeforeLastChat < 21);
+    }
+
+    @Test
+    public void outOfOrderFragmentsAreRejected() throws Exception {
+        FrameScheduler scheduler = scheduler(4, 1);
+        scheduler.offer(frame(Frame.TYPE_TRANSFER_CHUNK, 4 * FRAGMENT_BYTES));
+        Frame first = scheduler.poll(true);
+        Frame second = scheduler.poll(true);
+        assertEquals(Frame.TYPE_FRAGMENT, first.getType());
+
+        try {
+            new FrameAssembler().add(second);
+            fail("a fragment without its predecessor has been accepted");
+        } catch (StreamCorruptedException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void weightedLanesShareByWeight() {
+        FrameScheduler scheduler = scheduler(4, 1);
+        for (int i = 0; i < 1000; i++) {
+            scheduler.offer(frame(Frame.TYPE_CHAT_MESSAGE, 200));
+            scheduler.offer(frame(Frame.TYPE_TRANSFER_CHUNK, 200));
+        }
+
+        long[] bytes = new long[Frame.LANES];
+        for (int i = 0; i < 500; i++) {
+            Frame f = scheduler.poll(true);
+            bytes[f.getLane()] += f.getEncodedLength();
+        }
+
+        double ratio = (double) bytes[Frame.LANE_INTERACTIVE] / bytes[Frame.LANE_BULK];
+        assertTrue("interactive to bulk " + ratio, ratio > 3.5 && ratio < 4.5);
+    }
+
+    @Test
+    public void idleLaneLeavesBandwidthToTheOther() {
+        FrameScheduler scheduler = scheduler(4, 1);
+        for (int i = 0; i < 100; i++) {
+            scheduler.offer(frame(Frame.TYPE_TRANSFER_CHUNK, 200));
+        }
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Frame.LANE_BULK, scheduler.poll(true).getLane());
+        }
+        assertNull(scheduler.poll(true));
+    }
+
+    @Test
+    public void creditLimitsWeightedLanesOnly() {
+        FrameScheduler scheduler = scheduler(4, 1);
+        scheduler.setWindow(1000);
+        for (int i = 0; i < 5; i++) {
+            scheduler.offer(frame(Frame.TYPE_TRANSFER_CHUNK, 200));
+        }
+        Frame hello = frame(Frame.TYPE_MESH_HELLO, 2000);
+        scheduler.offer(hello);
+
+        assertEquals(hello, scheduler.poll(true));
+        int sent = 0;
+        long bytes = 0;
+        Frame f;
+        while ((f = scheduler.poll(true)) != null) {
+            sent++;
+            bytes += f.getEncodedLength();
+        }
+        assertEquals(4, sent);
+        assertTrue(bytes <= 1000);
+        assertFalse(scheduler.isReady(true));
+
+        scheduler.addCredit(bytes);
+        assertNotNull(scheduler.poll(true));
+    }
+
+    @Test
+    public void fullQueueRefusesAndReportsCongestion() {
+        ConnectionConfig config = new ConnectionConfig();
+        config.setMaxQueuedBytes(1000);
+        FrameScheduler scheduler = new FrameScheduler(config, new ConnectionStats());
+
+        int queued = 0;
+        while (scheduler.offer(frame(Frame.TYPE_CHAT_MESSAGE, 100))) {
+            queued++;
+        }
+        assertEquals(10, queued);
+        assertEquals(Boolean.TRUE, scheduler.pollCongestionChange());
+        assertNull(scheduler.pollCongestionChange());
+        // control frames get through anyway
+        assertTrue(scheduler.offer(frame(Frame.TYPE_CREDIT, 4)));
+
+        // the credit frame and half of the chat messages
+        for (int i = 0; i < 6; i++) {
+            scheduler.poll(false);
+        }
+        assertNull(scheduler.pollCongestionChange());
+        scheduler.poll(false);
+        assertEquals(Boolean.FALSE, scheduler.pollCongestionChange());
+    }
+
+}
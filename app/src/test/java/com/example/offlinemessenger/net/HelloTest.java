@@ -0,0 +1,185 @@
+package com.example.offlinemessenger.net;
+
+import com.example.offlinemessenger.data.ChatMessage;
+import com.example.offlinemessenger.data.Sendable;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The handshake format, and the capabilities two connections agree on with it.
+ */
+public class HelloTest {
+
+    private static final long ALL = Hello.CAP_DEFLATE | Hello.CAP_FRAGMENT | Hello.CAP_CREDIT;
+
+    @Test
+    public void helloSurvivesTheRoundTrip() throws Exception {
+        Hello hello = read(write(new Hello(ALL, 65536)));
+
+        assertEquals(ALL, hello.mCapabilities);
+        assertEquals(65536, hello.mReceiveWindow);
+    }
+
+    @Test
+    public void creditNeedsAWindow() throws Exception {
+        assertEquals(Hello.CAP_DEFLATE | Hello.CAP_FRAGMENT,
+                read(write(new Hello(ALL, 0))).mCapabilities);
+        // a peer from before flow control sends no window at all
+        Hello hello = read(hello(Hello.PROTOCOL_VERSION, ALL));
+        assertEquals(Hello.CAP_DEFLATE | Hello.CAP_FRAGMENT, hello.mCapabilities);
+        assertEquals(0, hello.mReceiveWindow);
+    }
+
+    @Test
+    public void fieldsOfLaterVersionsAreIgnored() throws Exception {
+        Hello hello = read(hello(Hello.PROTOCOL_VERSION + 1, ALL | 1L << 40, 4096, 7, 8, 9));
+
+        assertEquals(ALL | 1L << 40, hello.mCapabilities);
+        assertEquals(4096, hello.mReceiveWindow);
+    }
+
+    @Test
+    public void foreignAndBrokenHellosAreRejected() throws Exception {
+        byte[] valid = write(new Hello(ALL, 65536));
+        byte[] magic = valid.clone();
+        magic[0] ^= 1;
+        assertRejected(magic, StreamCorruptedException.class);
+        assertRejected(hello(0, ALL, 65536), StreamCorruptedException.class);
+        ByteArrayOutputStream oversized = new ByteArrayOutputStream();
+        oversized.write(valid, 0, 4);
+        WireFormat.writeVarLong(oversized, 1L << 20);
+        assertRejected(oversized.toByteArray(), StreamCorruptedException.class);
+        for (int length = 0; length < valid.length; length++) {
+            assertRejected(Arrays.copyOf(valid, length), EOFException.class);
+        }
+    }
+
+    @Test
+    public void peersUseWhatBothOffer() throws Exception {
+        ConnectionPair pair = handshake(new ConnectionConfig(), new ConnectionConfig());
+        try {
+            for (Connection c : new Connection[]{pair.mClient, pair.mServer}) {
+                assertTrue(c.isCompressionActive());
+                assertTrue(c.isFragmentationActive());
+                assertTrue(c.isFlowControlActive());
+            }
+        } finally {
+            pair.close();
+        }
+    }
+
+    @Test
+    public void compressionNeedsBothPeers() throws Exception {
+        ConnectionConfig plain = new ConnectionConfig();
+        plain.setCompressionEnabled(false);
+        ConnectionPair pair = handshake(new ConnectionConfig(), plain);
+        try {
+            assertFalse(pair.mClient.isCompressionActive());
+            assertFalse(pair.mServer.isCompressionActive());
+
+            // a compressible batch goes out plain, and still arrives
+            char[] chars = new char[4096];
+            Arrays.fill(chars, 'a');
+            pair.mClient.send(message(new String(chars)));
+            assertNotNull(ConnectionPair.poll(pair.mServerReceived));
+            assertEquals(0, pair.mClient.getStats().getCompressedFlushes());
+        } finally {
+            pair.close();
+        }
+    }
+
+    @Test
+    public void compressedBatchesArrive() throws Exception {
+        ConnectionConfig config = new ConnectionConfig();
+        ConnectionPair pair = handshake(config, new ConnectionConfig());
+        try {
+            StringBuilder content = new StringBuilder();
+            while (content.length() < 4 * config.getCompressionThreshold()) {
+                content.append("see you tomorrow at home, ");
+            }
+            pair.mClient.send(message(content.toString()));
+            Sendable s = ConnectionPair.poll(pair.mServerReceived);
+
+            assertEquals(content.toString(), ((ChatMessage) s).getContent());
+            // the writer counts a flush once it has gone out, the peer may be faster
+            long deadline = System.currentTimeMillis() + ConnectionPair.TIMEOUT_MILLIS;
+            while (pair.mClient.getStats().getCompressedFlushes() == 0
+                    && System.currentTimeMillis() < deadline) {
+                Thread.yield();
+            }
+            assertTrue(pair.mClient.getStats().getCompressedFlushes() > 0);
+            assertTrue(pair.mClient.getStats().getCompressionRatio() > 2);
+        } finally {
+            pair.close();
+        }
+    }
+
+    /**
+     * Start a pair of connections and wait until both have completed the handshake, which is
+     * the case once each has received a message.
+     */
+    private static ConnectionPair handshake(ConnectionConfig client, ConnectionConfig server)
+            throws Exception {
+        ConnectionPair pair = new ConnectionPair(client, server,
+                LoopbackTransport.DEFAULT_PIPE_CAPACITY).start();
+        pair.mClient.send(message("ping"));
+        pair.mServer.send(message("pong"));
+        assertNotNull(ConnectionPair.poll(pair.mServerReceived));
+        assertNotNull(ConnectionPair.poll(pair.mClientReceived));
+        return pair;
+    }
+
+    private static ChatMessage message(String content) {
+        return new ChatMessage(Sendable.Action.ADD, UUID.randomUUID(), content, true,
+                System.currentTimeMillis(), UUID.randomUUID());
+    }
+
+    private static byte[] write(Hello hello) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        hello.writeTo(out);
+        return out.toByteArray();
+    }
+
+    private static Hello read(byte[] bytes) throws IOException {
+        return Hello.readFrom(new ByteArrayInputStream(bytes));
+    }
+
+    /** A hello with arbitrary payload fields. */
+    private static byte[] hello(long... fields) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        for (long field : fields) {
+            WireFormat.writeVarLong(payload, field);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            out.write(Hello.MAGIC >>> shift);
+        }
+        WireFormat.writeVarLong(out, payload.size());
+        payload.writeTo(out);
+        return out.toByteArray();
+    }
+
+    private static void assertRejected(byte[] bytes, Class<? extends IOException> expected) {
+        try {
+            read(bytes);
+            fail(Arrays.toString(bytes) + " has been accepted");
+        } catch (IOException e) {
+            assertEquals(expected, e.getClass());
+        }
+    }
+
+}
@@ -0,0 +1,270 @@
+package com.example.offlinemessenger.net;
+
+import com.example.offlinemessenger.data.ChatMessage;
+import com.example.offlinemessenger.data.Sendable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Reconciles the histories of two devices, each with its own database, over a loopback link.
+ */
+public class HistorySyncTest {
+
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    private final UUID mUserA = UUID.randomUUID();
+    private final UUID mUserB = UUID.randomUUID();
+    private final MemoryHistory mHistoryA = new MemoryHistory();
+    private final MemoryHistory mHistoryB = new MemoryHistory();
+    private final HistorySync mSyncA = new HistorySync(mHistoryA, null);
+    private final HistorySync mSyncB = new HistorySync(mHistoryB, null);
+    private final Random mRandom = new Random(42);
+    private ConnectionPair mPair;
+
+    @Before
+    public void setUp() throws Exception {
+        mPair = new ConnectionPair();
+        mSyncA.attach(mPair.mClient);
+        mSyncB.attach(mPair.mServer);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mPair.close();
+        mSyncA.shutdown();
+        mSyncB.shutdown();
+    }
+
+    @Test
+    public void deliveredMessagesAreInSync() throws Exception {
+        DeliveryManager.Listener storeB = new DeliveryManager.Listener() {
+            @Override
+            public void onSendableReceived(Sendable s) {
+                // stored the way the view model does, under the message's sender
+                ChatMessage m = (ChatMessage) s;
+                mHistoryB.insert(m.getSender(), Collections.singletonList(m));
+            }
+
+            @Override
+            public void onDelivered(UUID messageId) {
+            }
+        };
+        DeliveryManager.Listener ignore = new DeliveryManager.Listener() {
+            @Override
+            public void onSendableReceived(Sendable s) {
+            }
+
+            @Override
+            public void onDelivered(UUID messageId) {
+            }
+        };
+        DeliveryManager deliveryA = new DeliveryManager(new MemoryOutbox(), ignore, mUserB, null);
+        DeliveryManager deliveryB = new DeliveryManager(new MemoryOutbox(), storeB, mUserA, null);
+        deliveryA.attach(mPair.mClient);
+        deliveryB.attach(mPair.mServer);
+        mPair.start();
+
+        for (int i = 0; i < 100; i++) {
+            // a message to B is in the conversation with B
+            ChatMessage m = new ChatMessage(Sendable.Action.ADD, mUserB, "message " + i, true,
+                    i * DAY / 10, UUID.randomUUID());
+            mHistoryA.insert(mUserB, Collections.singletonList(m));
+            deliveryA.send(m);
+        }
+        awaitCount(mHistoryB, mUserA, 100);
+
+        mSyncA.start(mPair.mClient, mUserB);
+        mSyncB.start(mPair.mServer, mUserA);
+        awaitCompared(mSyncA);
+        awaitCompared(mSyncB);
+
+        assertEquals(0, mSyncA.getStats().getBucketsDiffering());
+        assertEquals(0, mSyncB.getStats().getBucketsDiffering());
+        assertEquals(0, mSyncA.getStats().getMessagesSent());
+        assertEquals(0, mSyncB.getStats().getMessagesSent());
+        deliveryA.shutdown();
+        deliveryB.shutdown();
+    }
+
+    @Test
+    public void syncSendsOnlyTheDifference() throws Exception {
+        List<ChatMessage> common = messages(mUserB, 2000, 60);
+        mHistoryA.insert(mUserB, common);
+        mHistoryB.insert(mUserA, mirror(common, mUserA));
+        List<ChatMessage> onlyA = messages(mUserB, 30, 60);
+        mHistoryA.insert(mUserB, onlyA);
+        List<ChatMessage> onlyB = messages(mUserA, 20, 60);
+        mHistoryB.insert(mUserA, onlyB);
+        mPair.start();
+
+        mSyncA.start(mPair.mClient, mUserB);
+        mSyncB.start(mPair.mServer, mUserA);
+        awaitCount(mHistoryA, mUserB, 2050);
+        awaitCount(mHistoryB, mUserA, 2050);
+        assertEquals(mHistoryA.ids(mUserB), mHistoryB.ids(mUserA));
+
+        assertEquals(onlyA.size(), mSyncA.getStats().getMessagesSent());
+        assertEquals(onlyB.size(), mSyncB.getStats().getMessagesSent());
+        // the identical days cost a digest entry each, the differing ones a filter
+        long bytes = mSyncA.getStats().getBytesSent() + mSyncB.getStats().getBytesSent();
+        assertTrue("sync sent " + bytes + " bytes", bytes < 16 * 1024);
+    }
+
+    @Test
+    public void messagesKeepTheirSide() throws Exception {
+        ChatMessage sent = new ChatMessage(Sendable.Action.ADD, mUserB, "from A", true,
+                DAY, UUID.randomUUID());
+        mHistoryA.insert(mUserB, Collections.singletonList(sent));
+        mPair.start();
+
+        mSyncA.start(mPair.mClient, mUserB);
+        mSyncB.start(mPair.mServer, mUserA);
+        awaitCount(mHistoryB, mUserA, 1);
+
+        ChatMessage received = mHistoryB.mRows.get(sent.getUUID());
+        assertEquals(mUserA, received.getSender());
+        assertEquals("from A", received.getContent());
+        assertEquals(sent.getTimestamp(), received.getTimestamp());
+        assertTrue(!received.isOwn());
+    }
+
+    private List<ChatMessage> messages(UUID userId, int count, int days) {
+        List<ChatMessage> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            messages.add(new ChatMessage(Sendable.Action.NONE, userId, "message " + i,
+                    mRandom.nextBoolean(), (long) (mRandom.nextDouble() * days * DAY),
+                    UUID.randomUUID()));
+        }
+        return messages;
+    }
+
+    /** The same messages as stored on the other device. */
+    private static List<ChatMessage> mirror(List<ChatMessage> messages, UUID userId) {
+        List<ChatMessage> mirrored = new ArrayList<>(messages.size());
+        for (ChatMessage m : messages) {
+            mirrored.add(new ChatMessage(Sendable.Action.NONE, userId, m.getContent(),
+                    !m.isOwn(), m.getTimestamp(), m.getUUID()));
+        }
+        return mirrored;
+    }
+
+    private static void awaitCount(MemoryHistory history, UUID userId, int count)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + ConnectionPair.TIMEOUT_MILLIS;
+        while (history.ids(userId).size() < count) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("expected " + count + " messages with " + userId + ", got "
+                        + history.ids(userId).size());
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static void awaitCompared(HistorySync sync) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + ConnectionPair.TIMEOUT_MILLIS;
+        while (sync.getStats().getBucketsCompared() == 0) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("no digest has been compared");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * The message table of one device: rows by id, each filed under a user.
+     */
+    private static class MemoryHistory implements HistorySync.Store {
+
+        private final Map<UUID, ChatMessage> mRows = new LinkedHashMap<>();
+
+        synchronized void insert(UUID userId, List<ChatMessage> messages) {
+            for (ChatMessage m : messages) {
+                if (!mRows.containsKey(m.getUUID())) {
+                    mRows.put(m.getUUID(), m.withSender(userId));
+                }
+            }
+        }
+
+        synchronized Set<UUID> ids(UUID userId) {
+            Set<UUID> ids = new HashSet<>();
+            for (ChatMessage m : mRows.values()) {
+                if (m.getSender().equals(userId)) {
+                    ids.add(m.getUUID());
+                }
+            }
+            return ids;
+        }
+
+        @Override
+        public synchronized List<HistorySync.MessageKey> loadKeys(UUID peerId) {
+            List<HistorySync.MessageKey> keys = new ArrayList<>();
+            for (ChatMessage m : mRows.values()) {
+                if (m.getSender().equals(peerId)) {
+                    keys.add(new HistorySync.MessageKey(m.getUUID(), m.getTimestamp()));
+                }
+            }
+            return keys;
+        }
+
+        @Override
+        public synchronized List<ChatMessage> loadMessages(UUID peerId, Collection<UUID> ids) {
+            List<ChatMessage> messages = new ArrayList<>(ids.size());
+            for (UUID id : ids) {
+                ChatMessage m = mRows.get(id);
+                if (m != null && m.getSender().equals(peerId)) {
+                    messages.add(m);
+                }
+            }
+            return messages;
+        }
+
+        @Override
+        public void insertMessages(UUID peerId, List<ChatMessage> messages) {
+            insert(peerId, messages);
+        }
+
+    }
+
+    /**
+     * An outbox that forgets everything with the process.
+     */
+    private static class MemoryOutbox implements DeliveryManager.Outbox {
+
+        private final Map<UUID, byte[]> mPending = new LinkedHashMap<>();
+
+        @Override
+        public synchronized void add(UUID id, byte[] payload) {
+            mPending.put(id, payload);
+        }
+
+        @Override
+        public synchronized void remove(UUID id) {
+            mPending.remove(id);
+        }
+
+        @Override
+        public synchronized List<byte[]> loadAll() {
+            return new ArrayList<>(mPending.values());
+        }
+
+    }
+
+}
@@ -0,0 +1,188 @@
+package com.example.offlinemessenger.net;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Monitors the client end of a loopback connection whose peer answers pings with a chosen
+ * delay, or not at all: the round trip estimates, the throughput averages and the dead peer
+ * timeout.
+ */
+public class LinkMonitorTest {
+
+    private static final long INTERVAL_MILLIS = 50;
+    private static final long DEAD_PEER_TIMEOUT_MILLIS = 1000;
+    /** Round trip time on top of the pong delay that a loaded machine may add. */
+    private static final double SLACK_MILLIS = 250;
+
+    private final ScheduledExecutorService mScheduler = Executors.newScheduledThreadPool(2);
+    private final BlockingQueue<LinkQuality> mSamples = new LinkedBlockingQueue<>();
+    /** The pong delays in the order the pongs were sent. */
+    private final BlockingQueue<Long> mDelays = new LinkedBlockingQueue<>();
+    private final CountDownLatch mDead = new CountDownLatch(1);
+    private volatile long mPongDelayMillis = 100;
+    private ConnectionPair mPair;
+    private LinkMonitor mMonitor;
+
+    @Before
+    public void setUp() throws Exception {
+        ConnectionConfig config = new ConnectionConfig();
+        // the throughput is measured on the wire, so keep it equal to what is sent
+        config.setCompressionEnabled(false);
+        mPair = new ConnectionPair(config, config, LoopbackTransport.DEFAULT_PIPE_CAPACITY);
+        mMonitor = new LinkMonitor(mScheduler, new LinkMonitor.Listener() {
+            @Override
+            public void onLinkQualityChanged(Connection connection, LinkQuality quality) {
+                mSamples.add(quality);
+            }
+
+            @Override
+            public void onPeerDead(Connection connection) {
+                mDead.countDown();
+            }
+        }, INTERVAL_MILLIS, DEAD_PEER_TIMEOUT_MILLIS);
+        mMonitor.attach(mPair.mClient);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mPair.close();
+        mScheduler.shutdownNow();
+    }
+
+    @Test
+    public void roundTripsFollowTheDelayOfThePeer() throws Exception {
+        answerPings();
+        mPair.start();
+
+        List<LinkQuality> fast = take(8);
+        mPongDelayMillis = 300;
+        List<LinkQuality> slow = take(8);
+
+        List<LinkQuality> all = new ArrayList<>(fast);
+        all.addAll(slow);
+        double srtt = 0;
+        double rttVar = 0;
+        LinkQuality jumped = null;
+        for (int i = 0; i < all.size(); i++) {
+            LinkQuality q = all.get(i);
+            long delay = mDelays.take();
+            if (delay == 300 && jumped == null) {
+                jumped = q;
+            }
+            // the sample behind each estimate, recovered from the smoothed value
+            double rtt = i == 0 ? q.getSmoothedRttMillis()
+                    : (q.getSmoothedRttMillis() - 0.875 * srtt) / 0.125;
+            assertTrue(i + ": " + rtt + " ms for a delay of " + delay,
+                    rtt >= delay && rtt < delay + SLACK_MILLIS);
+            double expectedVar = i == 0 ? rtt / 2 : 0.75 * rttVar + 0.25 * Math.abs(srtt - rtt);
+            assertEquals(expectedVar, q.getRttVarianceMillis(), 1e-6);
+            assertEquals(Math.max(200, (long) Math.ceil(q.getSmoothedRttMillis()
+                    + 4 * q.getRttVarianceMillis())), q.getRetransmitTimeoutMillis());
+            assertEquals(i + 1, q.getSamples());
+            srtt = q.getSmoothedRttMillis();
+            rttVar = q.getRttVarianceMillis();
+        }
+
+        // a steady delay settles the variance, a jump in it shows up again; pongs already
+        // on their way when the delay changed still come back fast
+        LinkQuality settled = fast.get(fast.size() - 1);
+        assertTrue(settled + "", settled.getRttVarianceMillis()
+                < fast.get(0).getRttVarianceMillis());
+        assertNotNull("no pong with the longer delay", jumped);
+        assertTrue(jumped + "", jumped.getRttVarianceMillis() > settled.getRttVarianceMillis());
+        assertTrue(jumped + "", jumped.getSmoothedRttMillis() > settled.getSmoothedRttMillis());
+        // while answering, a slow peer is alive
+        assertEquals(1, mDead.getCount());
+    }
+
+    @Test
+    public void throughputFollowsTheTraffic() throws Exception {
+        answerPings();
+        mPair.start();
+        final Random random = new Random(42);
+        final AtomicLong sent = new AtomicLong();
+        final long start = System.nanoTime();
+        // 4 KB every 10 ms from the peer, frames the client has no handler for
+        mScheduler.scheduleAtFixedRate(() -> {
+            byte[] body = new byte[4096];
+            random.nextBytes(body);
+            Frame frame = new Frame(Frame.TYPE_TRANSFER_CHUNK, body);
+            if (mPair.mServer.send(frame)) {
+                sent.addAndGet(frame.getEncodedLength());
+            }
+        }, 0, 10, TimeUnit.MILLISECONDS);
+
+        Thread.sleep(1500);
+        LinkQuality q = mMonitor.getLinkQuality(mPair.mClient);
+        double rate = sent.get() / ((System.nanoTime() - start) / 1e9);
+        assertTrue(q + " at " + rate + " B/s", q.getReceiveBytesPerSecond() > rate / 2
+                && q.getReceiveBytesPerSecond() < rate * 2);
+        // nothing but pings goes the other way
+        assertTrue(q + "", q.getSendBytesPerSecond() < q.getReceiveBytesPerSecond() / 10);
+        assertTrue(q + "", q.getIdleMillis() < DEAD_PEER_TIMEOUT_MILLIS);
+    }
+
+    @Test
+    public void aSilentPeerIsDeclaredDead() throws Exception {
+        // the peer swallows pings
+        mPair.mServer.setFrameHandler(Frame.TYPE_PING, (c, f) -> {
+        });
+        long start = System.nanoTime();
+        mPair.start();
+
+        assertTrue(mDead.await(ConnectionPair.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(elapsed + " ms", elapsed >= DEAD_PEER_TIMEOUT_MILLIS
+                && elapsed < DEAD_PEER_TIMEOUT_MILLIS + 20 * INTERVAL_MILLIS);
+        // the connection is closed and no longer monitored
+        long deadline = System.currentTimeMillis() + ConnectionPair.TIMEOUT_MILLIS;
+        while (!mPair.mClient.isClosed()) {
+            assertTrue("not closed", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        assertNull(mMonitor.getLinkQuality(mPair.mClient));
+        assertTrue(mSamples.isEmpty());
+    }
+
+    /**
+     * Let the peer answer every ping after the current delay.
+     */
+    private void answerPings() {
+        mPair.mServer.setFrameHandler(Frame.TYPE_PING, (c, f) -> {
+            final long delay = mPongDelayMillis;
+            mScheduler.schedule(() -> {
+                mDelays.add(delay);
+                c.send(new Frame(Frame.TYPE_PONG, f.getBody()));
+            }, delay, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    private List<LinkQuality> take(int count) throws InterruptedException {
+        List<LinkQuality> samples = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            LinkQuality q = mSamples.poll(ConnectionPair.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            assertNotNull("no round trip sample", q);
+            samples.add(q);
+        }
+        return samples;
+    }
+
+}
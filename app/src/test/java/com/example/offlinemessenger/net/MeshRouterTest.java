@@ -0,0 +1,359 @@
+package com.example.offlinemessenger.net;
+
+import com.example.offlinemessenger.data.ChatMessage;
+import com.example.offlinemessenger.data.Sendable;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Simulates meshes of routers linked by loopback connections: messages find their way over
+ * several hops, floods cost every node one forward per message, and carried messages reach
+ * neighbours that connect later.
+ */
+public class MeshRouterTest {
+
+    /** Side length of the grid topology. */
+    private static final int GRID = 4;
+    /** Messages per flood. */
+    private static final int MESSAGES = 50;
+    /** Time after which a quiet mesh is taken to have settled. */
+    private static final long QUIET_MILLIS = 300;
+    /** Time the senders keep a queue congested for. */
+    private static final long SEND_MILLIS = 3000;
+
+    private final List<ConnectionPair> mPairs = new ArrayList<>();
+
+    @After
+    public void tearDown() throws Exception {
+        for (ConnectionPair pair : mPairs) {
+            pair.close();
+        }
+    }
+
+    @Test
+    public void messagesTravelAlongAChain() throws Exception {
+        Node[] chain = chain(6, MeshRouter.DEFAULT_HOP_LIMIT);
+        Node first = chain[0];
+        Node last = chain[chain.length - 1];
+
+        ChatMessage m = message("over five hops");
+        first.mRouter.send(m, last.mId);
+
+        Received r = last.poll();
+        assertNotNull("not delivered", r);
+        assertEquals(first.mId, r.mOrigin);
+        assertEquals(m.getUUID(), ((ChatMessage) r.mSendable).getUUID());
+        assertEquals("over five hops", ((ChatMessage) r.mSendable).getContent());
+        settle(chain);
+        assertNull(last.mReceived.poll());
+        // every node in between forwards it exactly once, to the next one
+        for (int i = 0; i < chain.length - 1; i++) {
+            assertEquals(1, chain[i].mRouter.getStats().getForwarded());
+        }
+    }
+
+    @Test
+    public void hopLimitBoundsTheDistance() throws Exception {
+        Node[] tooShort = chain(4, 2);
+        tooShort[0].mRouter.send(message("too far"), tooShort[3].mId);
+        waitFor(() -> tooShort[2].mRouter.getStats().getExpired() == 1);
+        settle(tooShort);
+        assertNull(tooShort[3].mReceived.poll());
+
+        Node[] longer = chain(4, 3);
+        longer[0].mRouter.send(message("just far enough"), longer[3].mId);
+        assertNotNull(longer[3].poll());
+    }
+
+    @Test
+    public void eachMessageIsDeliveredOnceAcrossAGrid() throws Exception {
+        Node[] grid = grid();
+        Node source = grid[0];
+        Node destination = grid[grid.length - 1];
+
+        Set<UUID> sent = new HashSet<>();
+        for (int i = 0; i < MESSAGES; i++) {
+            ChatMessage m = message("message " + i);
+            sent.add(m.getUUID());
+            source.mRouter.send(m, destination.mId);
+        }
+
+        Set<UUID> received = new HashSet<>();
+        for (int i = 0; i < MESSAGES; i++) {
+            Received r = destination.poll();
+            assertNotNull(i + " of " + MESSAGES + " delivered", r);
+            assertEquals(source.mId, r.mOrigin);
+            assertTrue(received.add(((ChatMessage) r.mSendable).getUUID()));
+        }
+        assertEquals(sent, received);
+        settle(grid);
+        // copies that took other paths are recognized as duplicates
+        assertNull(destination.mReceived.poll());
+        assertEquals(MESSAGES, destination.mRouter.getStats().getDelivered());
+    }
+
+    @Test
+    public void floodsCostOneForwardPerNodeAndMessage() throws Exception {
+        Node[] grid = grid();
+        // nobody in the mesh is the destination, so every message reaches every node
+        UUID absent = UUID.randomUUID();
+        for (int i = 0; i < MESSAGES; i++) {
+            grid[i % grid.length].mRouter.send(message("flood " + i), absent);
+        }
+
+        // every frame sent is received either for the first time or as a duplicate
+        int firstSightings = MESSAGES * (grid.length - 1);
+        waitFor(() -> total(grid, true) == total(grid, false) + firstSightings);
+        settle(grid);
+
+        long forwarded = total(grid, true);
+        assertEquals(total(grid, false) + firstSightings, forwarded);
+        for (Node node : grid) {
+            // a node sends each message at most once over each link
+            assertTrue(node.mRouter.getStats().getForwarded() <= MESSAGES * node.mDegree);
+            assertEquals(0, node.mRouter.getStats().getExpired());
+        }
+        // linear in the number of messages: at most once per message and direction of a link
+        int links = 2 * GRID * (GRID - 1);
+        assertTrue(forwarded + " forwards", forwarded <= (long) MESSAGES * 2 * links);
+    }
+
+    @Test
+    public void carriedMessagesCrossAPartition() throws Exception {
+        Node alice = new Node(MeshRouter.DEFAULT_HOP_LIMIT);
+        Node bob = new Node(MeshRouter.DEFAULT_HOP_LIMIT);
+        Node carol = new Node(MeshRouter.DEFAULT_HOP_LIMIT);
+        Node dave = new Node(MeshRouter.DEFAULT_HOP_LIMIT);
+        ConnectionPair aliceBob = link(alice, bob);
+        link(bob, dave);
+
+        // bob passes it on to dave, so it has been stored by then
+        alice.mRouter.send(message("for later"), carol.mId);
+        waitFor(() -> bob.mRouter.getStats().getForwarded() == 1);
+        aliceBob.close();
+        bob.mRouter.detach(aliceBob.mServer);
+
+        link(bob, carol);
+        Received r = carol.poll();
+        assertNotNull("not carried", r);
+        assertEquals(alice.mId, r.mOrigin);
+        assertEquals("for later", ((ChatMessage) r.mSendable).getContent());
+    }
+
+    @Test
+    public void backpressureDoesNotDeadlockTheRouter() throws Exception {
+        Node alice = new Node(MeshRouter.DEFAULT_HOP_LIMIT);
+        Node bob = new Node(MeshRouter.DEFAULT_HOP_LIMIT);
+        ConnectionConfig config = new ConnectionConfig();
+        config.setMaxQueuedBytes(4096);
+        config.setOverflowPolicy(ConnectionConfig.OverflowPolicy.BLOCK);
+        ConnectionPair pair = new ConnectionPair(config, new ConnectionConfig(), 1024);
+        mPairs.add(pair);
+        AtomicInteger congestions = new AtomicInteger();
+        // like the service's listener, which looks up the user on the other end
+        pair.mClient.setBackpressureListener((connection, congested) -> {
+            alice.mRouter.getNeighbourId(connection);
+            if (congested) {
+                congestions.incrementAndGet();
+            }
+        });
+        alice.mRouter.attach(pair.mClient);
+        bob.mRouter.attach(pair.mServer);
+        pair.start();
+
+        // floods for nobody in particular keep the queue to bob full and draining
+        char[] content = new char[200];
+        Arrays.fill(content, 'x');
+        UUID absent = UUID.randomUUID();
+        long stop = System.currentTimeMillis() + SEND_MILLIS;
+        List<Thread> senders = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread sender = new Thread(() -> {
+                while (System.currentTimeMillis() < stop) {
+                    alice.mRouter.send(message(new String(content)), absent);
+                }
+            }, "sender-" + i);
+            sender.setDaemon(true);
+            sender.start();
+            senders.add(sender);
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long deadline = stop + ConnectionPair.TIMEOUT_MILLIS;
+        for (Thread sender : senders) {
+            while (sender.isAlive()) {
+                long[] deadlocked = threads.findMonitorDeadlockedThreads();
+                if (deadlocked != null) {
+                    StringBuilder names = new StringBuilder();
+                    for (ThreadInfo info : threads.getThreadInfo(deadlocked)) {
+                        names.append(' ').append(info.getThreadName());
+                    }
+                    fail("deadlocked:" + names);
+                }
+                if (System.currentTimeMillis() > deadline) {
+                    fail("timed out");
+                }
+                sender.join(10);
+            }
+        }
+        assertTrue("the queue never filled up", congestions.get() > 0);
+    }
+
+    /** A router with its own user id, collecting the messages relayed to it. */
+    private static class Node implements MeshRouter.Listener {
+
+        private final UUID mId = UUID.randomUUID();
+        private final MeshRouter mRouter;
+        private final BlockingQueue<Received> mReceived = new LinkedBlockingQueue<>();
+        private int mDegree;
+
+        private Node(int hopLimit) {
+            mRouter = new MeshRouter(mId, this, hopLimit, MeshRouter.DEFAULT_STORE_CAPACITY);
+        }
+
+        @Override
+        public void onRelayedReceived(Sendable s, UUID origin) {
+            mReceived.add(new Received(s, origin));
+        }
+
+        @Override
+        public void onNeighbourAnnounced(Connection connection, UUID userId) {
+            // nothing to do
+        }
+
+        private Received poll() throws InterruptedException {
+            return mReceived.poll(ConnectionPair.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+    }
+
+    private static class Received {
+
+        private final Sendable mSendable;
+        private final UUID mOrigin;
+
+        private Received(Sendable s, UUID origin) {
+            mSendable = s;
+            mOrigin = origin;
+        }
+
+    }
+
+    private interface Condition {
+
+        boolean holds();
+
+    }
+
+    /**
+     * Connect two nodes and wait until both know who is on the other end.
+     */
+    private ConnectionPair link(Node a, Node b) throws Exception {
+        ConnectionPair pair = new ConnectionPair();
+        mPairs.add(pair);
+        a.mRouter.attach(pair.mClient);
+        b.mRouter.attach(pair.mServer);
+        pair.start();
+        waitFor(() -> a.mRouter.getNeighbourId(pair.mClient) != null
+                && b.mRouter.getNeighbourId(pair.mServer) != null);
+        a.mDegree++;
+        b.mDegree++;
+        return pair;
+    }
+
+    private Node[] chain(int length, int hopLimit) throws Exception {
+        Node[] nodes = new Node[length];
+        for (int i = 0; i < length; i++) {
+            nodes[i] = new Node(hopLimit);
+            if (i > 0) {
+                link(nodes[i - 1], nodes[i]);
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * A square grid, each node linked to its horizontal and vertical neighbours.  The hop limit
+     * is the highest possible, so that no path is cut short.
+     */
+    private Node[] grid() throws Exception {
+        Node[] nodes = new Node[GRID * GRID];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = new Node(0xFF);
+            if (i % GRID > 0) {
+                link(nodes[i - 1], nodes[i]);
+            }
+            if (i >= GRID) {
+                link(nodes[i - GRID], nodes[i]);
+            }
+        }
+        return nodes;
+    }
+
+    /** The sum of the forwards, or of the duplicates, of all nodes. */
+    private static long total(Node[] nodes, boolean forwarded) {
+        long total = 0;
+        for (Node node : nodes) {
+            MeshStats stats = node.mRouter.getStats();
+            total += forwarded ? stats.getForwarded() : stats.getDuplicates();
+        }
+        return total;
+    }
+
+    /**
+     * Wait until no node has sent or received anything for a while.
+     */
+    private static void settle(Node[] nodes) throws InterruptedException {
+        String last = null;
+        long deadline = System.currentTimeMillis() + ConnectionPair.TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            StringBuilder stats = new StringBuilder();
+            for (Node node : nodes) {
+                stats.append(node.mRouter.getStats()).append('\n');
+            }
+            if (stats.toString().equals(last)) {
+                return;
+            }
+            last = stats.toString();
+            Thread.sleep(QUIET_MILLIS);
+        }
+        fail("the mesh did not settle");
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + ConnectionPair.TIMEOUT_MILLIS;
+        while (!condition.holds()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("timed out");
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private static ChatMessage message(String content) {
+        return new ChatMessage(Sendable.Action.ADD, UUID.randomUUID(), content, true,
+                System.currentTimeMillis(), UUID.randomUUID());
+    }
+
+}
@@ -0,0 +1,123 @@
+package com.example.offlinemessenger.net;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Ids are remembered exactly while recent, approximately for two generations after that, and
+ * then forgotten.
+ */
+public class SeenCacheTest {
+
+    private static final int RECENT = 100;
+    private static final int GENERATION = 1000;
+
+    private final Random mRandom = new Random(42);
+    private final SeenCache mCache = new SeenCache(RECENT, GENERATION);
+
+    @Test
+    public void onlyTheFirstSightingIsNew() {
+        UUID id = id();
+
+        assertFalse(mCache.contains(id));
+        assertTrue(mCache.markSeen(id));
+        assertFalse(mCache.markSeen(id));
+        assertTrue(mCache.contains(id));
+        assertTrue(mCache.containsRecent(id));
+    }
+
+    @Test
+    public void evictedIdsAreStillRecognized() {
+        List<UUID> ids = markSeen(RECENT + GENERATION);
+
+        for (int i = 0; i < ids.size(); i++) {
+            UUID id = ids.get(i);
+            assertTrue(i + " forgotten", mCache.contains(id));
+            // only the latest ids are known exactly
+            if (i >= GENERATION) {
+                assertTrue(i + " not recent", mCache.containsRecent(id));
+            } else {
+                assertFalse(i + " still recent", mCache.containsRecent(id));
+            }
+        }
+    }
+
+    @Test
+    public void exactMarkingIgnoresTheBloomFilters() {
+        List<UUID> ids = markSeen(RECENT + GENERATION);
+        UUID evicted = ids.get(0);
+        UUID recent = ids.get(ids.size() - 1);
+
+        // an evicted id may be a false positive, so it counts as new again
+        assertTrue(mCache.contains(evicted));
+        assertTrue(mCache.markSeenExactly(evicted));
+        assertFalse(mCache.markSeenExactly(evicted));
+        assertFalse(mCache.markSeenExactly(recent));
+        assertTrue(mCache.markSeenExactly(id()));
+    }
+
+    @Test
+    public void recentIdsAreKeptByUse() {
+        UUID first = id();
+        mCache.markSeen(first);
+        for (int i = 0; i < RECENT * 10; i++) {
+            mCache.markSeen(id());
+            // seeing an id again keeps it among the recent ones
+            mCache.markSeen(first);
+        }
+
+        assertTrue(mCache.containsRecent(first));
+    }
+
+    @Test
+    public void oldIdsAreForgottenAfterTwoGenerations() {
+        List<UUID> old = markSeen(GENERATION);
+        markSeen(RECENT + 2 * GENERATION + 1);
+
+        int remembered = 0;
+        for (UUID id : old) {
+            if (mCache.contains(id)) {
+                remembered++;
+            }
+        }
+        // whatever is left are false positives of the two live generations
+        assertTrue(remembered + " old ids remembered", remembered < GENERATION / 100);
+    }
+
+    @Test
+    public void unseenIdsAreRarelyMistaken() {
+        markSeen(RECENT + 2 * GENERATION);
+
+        int mistaken = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (mCache.contains(id())) {
+                mistaken++;
+            }
+        }
+        // two full generations at 0.001 each
+        assertTrue(mistaken + " unseen ids mistaken", mistaken < 100000 * 0.002 * 1.5);
+    }
+
+    private List<UUID> markSeen(int count) {
+        List<UUID> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            UUID id = id();
+            // a false positive may report a new id as seen, it is recorded anyway
+            mCache.markSeen(id);
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    private UUID id() {
+        return new UUID(mRandom.nextLong(), mRandom.nextLong());
+    }
+
+}
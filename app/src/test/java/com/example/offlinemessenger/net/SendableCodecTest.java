@@ -0,0 +1,261 @@
+package com.example.offlinemessenger.net;
+
+import com.example.offlinemessenger.data.ChatMessage;
+import com.example.offlinemessenger.data.ChatUser;
+import com.example.offlinemessenger.data.Sendable;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trips of every sendable type through the codec, and its handling of truncated and
+ * malformed input.
+ */
+public class SendableCodecTest {
+
+    private final Random mRandom = new Random(42);
+
+    @Test
+    public void chatMessagesSurviveTheRoundTrip() throws Exception {
+        String[] contents = {"", "hello", "gr\u00fc\u00df dich \ud83d\udc4b", repeat('x', 70000)};
+        long[] timestamps = {0, 1, 127, 128, System.currentTimeMillis(), Long.MAX_VALUE, -1};
+        for (Sendable.Action action : Sendable.Action.values()) {
+            for (String content : contents) {
+                for (long timestamp : timestamps) {
+                    ChatMessage m = new ChatMessage(action, UUID.randomUUID(), content, true,
+                            timestamp, UUID.randomUUID());
+
+                    assertMessage(m, SendableCodec.fromFrame(SendableCodec.toFrame(m)));
+                    byte[] payload = SendableCodec.encode(m);
+                    assertMessage(m, SendableCodec.decode(payload, 0, payload.length));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void chatUsersSurviveTheRoundTrip() throws Exception {
+        for (Sendable.Action action : Sendable.Action.values()) {
+            for (String name : new String[]{"", "Alice", "\u00c5sa \u00d8stergaard"}) {
+                ChatUser u = new ChatUser(action, name, UUID.randomUUID());
+
+                assertUser(u, SendableCodec.fromFrame(SendableCodec.toFrame(u)));
+                byte[] payload = SendableCodec.encode(u);
+                assertUser(u, SendableCodec.decode(payload, 0, payload.length));
+            }
+        }
+    }
+
+    @Test
+    public void payloadsAreDecodedAtAnOffset() throws Exception {
+        ChatUser u = new ChatUser(Sendable.Action.ADD, "Bob", UUID.randomUUID());
+        byte[] payload = SendableCodec.encode(u);
+        byte[] buffer = new byte[payload.length + 10];
+        System.arraycopy(payload, 0, buffer, 7, payload.length);
+
+        assertUser(u, SendableCodec.decode(buffer, 7, payload.length));
+    }
+
+    @Test
+    public void streamsSkipFramesThatAreNotSendables() throws Exception {
+        ChatMessage m = message("first");
+        ChatUser u = new ChatUser(Sendable.Action.REMOVE, "Carol", UUID.randomUUID());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int written = SendableCodec.writeFrame(out, m);
+        new Frame(Frame.TYPE_PING, new byte[8]).writeTo(out);
+        written += SendableCodec.writeFrame(out, u);
+        assertEquals(out.size() - new Frame(Frame.TYPE_PING, new byte[8]).getEncodedLength(),
+                written);
+
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        assertMessage(m, SendableCodec.readFrame(in));
+        assertUser(u, SendableCodec.readFrame(in));
+        try {
+            SendableCodec.readFrame(in);
+            fail("read past the end of the stream");
+        } catch (EOFException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void truncatedBodiesAreRejected() {
+        Sendable[] sendables = {message("truncated"),
+                new ChatUser(Sendable.Action.ADD, "Dave", UUID.randomUUID())};
+        for (Sendable s : sendables) {
+            Frame frame = SendableCodec.toFrame(s);
+            byte[] body = frame.getBody();
+            for (int length = 0; length < body.length; length++) {
+                Frame truncated = new Frame(frame.getType(), Arrays.copyOf(body, length));
+                try {
+                    SendableCodec.fromFrame(truncated);
+                    fail(length + " of " + body.length + " bytes have been decoded");
+                } catch (IOException expected) {
+                    // expected
+                }
+            }
+        }
+    }
+
+    @Test
+    public void truncatedStreamsEndWithEof() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SendableCodec.writeFrame(out, message("cut short"));
+        byte[] bytes = out.toByteArray();
+        for (int length = 0; length < bytes.length; length++) {
+            try {
+                SendableCodec.readFrame(new ByteArrayInputStream(bytes, 0, length));
+                fail(length + " of " + bytes.length + " bytes have been decoded");
+            } catch (EOFException expected) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void oversizedStringsAreRejected() throws Exception {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(Sendable.Action.ADD.getValue());
+        WireFormat.writeUUID(body, UUID.randomUUID());
+        WireFormat.writeUUID(body, UUID.randomUUID());
+        WireFormat.writeVarLong(body, 1000);
+        // a length larger than the frame, the codec must not allocate it
+        WireFormat.writeVarLong(body, Integer.MAX_VALUE);
+
+        try {
+            SendableCodec.fromFrame(new Frame(Frame.TYPE_CHAT_MESSAGE, body.toByteArray()));
+            fail("an oversized string has been accepted");
+        } catch (StreamCorruptedException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void malformedFramesAreRejected() throws Exception {
+        byte[][] streams = {
+                // a varint that never ends
+                {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80,
+                        (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 1},
+                // shorter than version and type
+                {1, 1},
+                // longer than any frame may be
+                varLong(Frame.MAX_LENGTH + 1)
+        };
+        for (byte[] stream : streams) {
+            try {
+                SendableCodec.readFrame(new ByteArrayInputStream(stream));
+                fail(Arrays.toString(stream) + " has been decoded");
+            } catch (StreamCorruptedException expected) {
+                // expected
+            }
+        }
+        try {
+            SendableCodec.decode(new byte[]{1}, 0, 1);
+            fail("a payload without a type has been decoded");
+        } catch (StreamCorruptedException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void unknownVersionsAndTypesAreIgnored() throws Exception {
+        byte[] payload = SendableCodec.encode(message("from the future"));
+        payload[0] = (byte) (Frame.VERSION + 1);
+        assertNull(SendableCodec.decode(payload, 0, payload.length));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WireFormat.writeVarLong(out, 3);
+        out.write(Frame.VERSION + 1);
+        out.write(Frame.TYPE_CHAT_MESSAGE);
+        out.write(0);
+        ChatMessage m = message("after the unknown frame");
+        SendableCodec.writeFrame(out, m);
+        assertMessage(m, SendableCodec.readFrame(new ByteArrayInputStream(out.toByteArray())));
+
+        assertNull(SendableCodec.fromFrame(new Frame(Frame.TYPE_PING, new byte[0])));
+        assertFalse(new Frame(Frame.TYPE_PING, new byte[0]).isSendable());
+        assertTrue(SendableCodec.toFrame(m).isSendable());
+    }
+
+    @Test
+    public void randomBodiesOnlyFailWithIoExceptions() {
+        int[] types = {Frame.TYPE_CHAT_MESSAGE, Frame.TYPE_CHAT_USER};
+        for (int i = 0; i < 10000; i++) {
+            byte[] body = new byte[mRandom.nextInt(64)];
+            mRandom.nextBytes(body);
+            try {
+                SendableCodec.fromFrame(new Frame(types[i % types.length], body));
+            } catch (IOException expected) {
+                // expected for most bodies
+            }
+        }
+    }
+
+    @Test
+    public void varintsSurviveTheRoundTrip() throws Exception {
+        long[] values = {0, 1, 0x7F, 0x80, 0x3FFF, 0x4000, Integer.MAX_VALUE, 1L << 35,
+                Long.MAX_VALUE, Long.MIN_VALUE, -1};
+        for (long value : values) {
+            byte[] bytes = varLong(value);
+            assertEquals(WireFormat.varLongLength(value), bytes.length);
+            assertTrue(bytes.length <= WireFormat.MAX_VARINT_LENGTH);
+            assertEquals(value, WireFormat.readVarLong(new ByteArrayInputStream(bytes)));
+        }
+        try {
+            WireFormat.readVarInt(new ByteArrayInputStream(varLong(101)), 100);
+            fail("a varint above the maximum has been accepted");
+        } catch (StreamCorruptedException expected) {
+            // expected
+        }
+    }
+
+    private ChatMessage message(String content) {
+        return new ChatMessage(Sendable.Action.ADD, UUID.randomUUID(), content, true,
+                mRandom.nextLong() >>> 1, UUID.randomUUID());
+    }
+
+    private static byte[] varLong(long value) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WireFormat.writeVarLong(out, value);
+        return out.toByteArray();
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    /** Received messages are never own messages, everything else is kept. */
+    private static void assertMessage(ChatMessage expected, Sendable actual) {
+        ChatMessage m = (ChatMessage) actual;
+        assertEquals(expected.getAction(), m.getAction());
+        assertEquals(expected.getSender(), m.getSender());
+        assertEquals(expected.getUUID(), m.getUUID());
+        assertEquals(expected.getTimestamp(), m.getTimestamp());
+        assertEquals(expected.getContent(), m.getContent());
+        assertFalse(m.isOwn());
+    }
+
+    private static void assertUser(ChatUser expected, Sendable actual) {
+        ChatUser u = (ChatUser) actual;
+        assertEquals(expected.getAction(), u.getAction());
+        assertEquals(expected.getUUID(), u.getUUID());
+        assertEquals(expected.getName(), u.getName());
+    }
+
+}
@@ -0,0 +1,461 @@
+package com.example.offlinemessenger.net;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Streams payloads over loopback connections, between two transfer managers or against a
+ * scripted peer on the other end: chunking, rejected chunks, rewinds and resuming after
+ * a reconnect.
+ */
+public class TransferManagerTest {
+
+    private static final int CHUNK = TransferManager.CHUNK_SIZE;
+    /** Ack status values of the protocol. */
+    private static final int ACK_OK = 0;
+    private static final int ACK_REWIND = 1;
+
+    private final Random mRandom = new Random(42);
+    private final MemorySink mSink = new MemorySink();
+    private final List<ConnectionPair> mPairs = new ArrayList<>();
+    private final ExecutorService mUploader = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown() throws Exception {
+        mUploader.shutdownNow();
+        for (ConnectionPair pair : mPairs) {
+            pair.close();
+        }
+    }
+
+    @Test
+    public void payloadsArriveInChunks() throws Exception {
+        MemorySource source = new MemorySource(payload(5 * CHUNK + 123));
+        final List<Long> progress = new ArrayList<>();
+        final CountDownLatch complete = new CountDownLatch(1);
+        ConnectionPair pair = pair();
+        TransferManager sender = new TransferManager(pair.mClient, null, null);
+        new TransferManager(pair.mServer, mSink, new TransferManager.Listener() {
+            @Override
+            public void onTransferProgress(UUID id, long received, long size) {
+                assertEquals(source.getSize(), size);
+                progress.add(received);
+            }
+
+            @Override
+            public void onTransferComplete(UUID id) {
+                complete.countDown();
+            }
+        });
+        pair.start();
+
+        sender.upload(source);
+
+        assertTrue(complete.await(ConnectionPair.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertArrayEquals(source.mData, mSink.get(source.getId()));
+        assertEquals(Arrays.asList((long) CHUNK, 2L * CHUNK, 3L * CHUNK, 4L * CHUNK,
+                5L * CHUNK, source.getSize()), progress);
+        assertEquals(6, mSink.mWrites);
+        assertEquals(Arrays.asList(0L), source.mOpens);
+    }
+
+    @Test
+    public void aPayloadWithoutSinkIsRefused() throws Exception {
+        ConnectionPair pair = pair();
+        TransferManager sender = new TransferManager(pair.mClient, null, null);
+        new TransferManager(pair.mServer, null, null);
+        pair.start();
+
+        try {
+            sender.upload(new MemorySource(payload(CHUNK)));
+            fail("refused payload uploaded");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("refused"));
+        }
+    }
+
+    @Test
+    public void corruptChunksAreRejectedOnce() throws Exception {
+        byte[] data = payload(2 * CHUNK + 10);
+        UUID id = UUID.randomUUID();
+        ConnectionPair pair = pair();
+        new TransferManager(pair.mServer, mSink, null);
+        Sender sender = new Sender(pair.mClient, id);
+        pair.start();
+
+        sender.offer(data.length);
+        sender.assertAck(0, ACK_OK);
+        sender.chunk(0, data, CHUNK, false);
+        sender.assertAck(0, ACK_REWIND);
+        // while rejecting, neither another corrupt chunk nor one out of order is answered
+        sender.chunk(0, data, CHUNK, false);
+        sender.chunk(CHUNK, data, CHUNK, true);
+        sender.chunk(0, data, CHUNK, true);
+        sender.assertAck(CHUNK, ACK_OK);
+        sender.chunk(CHUNK, data, CHUNK, true);
+        sender.assertAck(2 * CHUNK, ACK_OK);
+        sender.chunk(2 * CHUNK, data, 10, true);
+        sender.assertAck(data.length, ACK_OK);
+
+        mSink.awaitComplete(id);
+        assertArrayEquals(data, mSink.get(id));
+        assertEquals(3, mSink.mWrites);
+    }
+
+    @Test
+    public void aRewindResendsFromTheRejectedChunk() throws Exception {
+        final MemorySource source = new MemorySource(payload(6 * CHUNK + 100));
+        ConnectionPair pair = pair();
+        final TransferManager manager = new TransferManager(pair.mClient, null, null);
+        Receiver receiver = new Receiver(pair.mServer, source.getId());
+        pair.start();
+        Future<?> upload = mUploader.submit(() -> {
+            manager.upload(source);
+            return null;
+        });
+
+        receiver.awaitOffer();
+        receiver.ack(0, ACK_OK);
+        for (int i = 0; i < TransferManager.WINDOW_CHUNKS; i++) {
+            assertEquals((long) i * CHUNK, receiver.take().mOffset);
+        }
+        // the second chunk arrived corrupt: the sender goes back to it and fills the window
+        receiver.ack(CHUNK, ACK_REWIND);
+        for (int i = 1; i <= TransferManager.WINDOW_CHUNKS; i++) {
+            assertEquals((long) i * CHUNK, receiver.take().mOffset);
+        }
+        assertEquals(Arrays.asList(0L, (long) CHUNK), source.mOpens);
+
+        long offset = (TransferManager.WINDOW_CHUNKS + 1) * CHUNK;
+        receiver.ack(offset, ACK_OK);
+        while (offset < source.getSize()) {
+            Chunk c = receiver.take();
+            if (c.mOffset == offset) {
+                offset += c.mLength;
+                receiver.ack(offset, ACK_OK);
+            }
+        }
+        upload.get(ConnectionPair.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void aTransferResumesAfterReconnecting() throws Exception {
+        final byte[] data = payload(20 * CHUNK);
+        final ConnectionPair first = pair();
+        // the link drops while the sender is reading the ninth chunk
+        MemorySource source = new MemorySource(data) {
+            @Override
+            public InputStream open(long offset) throws IOException {
+                return new FilterInputStream(super.open(offset)) {
+                    private long mPosition = offset;
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        if (mPosition >= 8L * CHUNK) {
+                            first.mClient.close();
+                        }
+                        int n = super.read(b, off, len);
+                        mPosition += Math.max(n, 0);
+                        return n;
+                    }
+                };
+            }
+        };
+        TransferManager sender = new TransferManager(first.mClient, null, null);
+        TransferManager receiver = new TransferManager(first.mServer, mSink, null);
+        first.start();
+        try {
+            sender.upload(source);
+            fail("uploaded over a closed connection");
+        } catch (IOException e) {
+            // expected
+        }
+        first.close();
+        // what the service does with a closed connection
+        receiver.suspendAll();
+        long stored = mSink.length(source.getId());
+        assertTrue(stored + " bytes stored", stored > 0 && stored <= 8L * CHUNK);
+        assertEquals(Arrays.asList(source.getId()), mSink.mSuspended);
+
+        ConnectionPair second = pair();
+        sender = new TransferManager(second.mClient, null, null);
+        new TransferManager(second.mServer, mSink, null);
+        second.start();
+        MemorySource again = new MemorySource(data, source.getId());
+        sender.upload(again);
+
+        mSink.awaitComplete(source.getId());
+        assertArrayEquals(data, mSink.get(source.getId()));
+        // nothing the receiver already had is read or sent again
+        assertEquals(Arrays.asList(stored), again.mOpens);
+    }
+
+    /** A chunk as the scripted receiver got it. */
+    private static class Chunk {
+
+        private final long mOffset;
+        private final int mLength;
+
+        private Chunk(long offset, int length) {
+            mOffset = offset;
+            mLength = length;
+        }
+
+    }
+
+    /**
+     * The sending end of a transfer, speaking the protocol by hand.
+     */
+    private static class Sender {
+
+        private final Connection mConnection;
+        private final UUID mId;
+        private final BlockingQueue<long[]> mAcks = new LinkedBlockingQueue<>();
+
+        private Sender(Connection connection, UUID id) {
+            mConnection = connection;
+            mId = id;
+            connection.setFrameHandler(Frame.TYPE_TRANSFER_ACK, (c, f) -> {
+                InputStream in = f.openBody();
+                assertEquals(mId, WireFormat.readUUID(in));
+                long offset = WireFormat.readVarLong(in);
+                mAcks.add(new long[]{offset, WireFormat.readByte(in)});
+            });
+        }
+
+        private void offer(long size) throws IOException {
+            ByteArrayOutputStream offer = new ByteArrayOutputStream();
+            WireFormat.writeUUID(offer, mId);
+            WireFormat.writeVarLong(offer, size);
+            WireFormat.writeString(offer, "payload");
+            mConnection.send(new Frame(Frame.TYPE_TRANSFER_OFFER, offer.toByteArray()));
+        }
+
+        /**
+         * Send a chunk of a payload.
+         *
+         * @param offset The payload offset of the chunk.
+         * @param data   The payload.
+         * @param length The chunk length.
+         * @param valid  {@code false} to send it with a wrong checksum.
+         */
+        private void chunk(long offset, byte[] data, int length, boolean valid)
+                throws IOException {
+            CRC32 crc = new CRC32();
+            crc.update(data, (int) offset, length);
+            ByteArrayOutputStream chunk = new ByteArrayOutputStream(length + 40);
+            WireFormat.writeUUID(chunk, mId);
+            WireFormat.writeVarLong(chunk, offset);
+            WireFormat.writeVarLong(chunk, valid ? crc.getValue() : crc.getValue() ^ 1);
+            WireFormat.writeVarLong(chunk, length);
+            chunk.write(data, (int) offset, length);
+            mConnection.send(new Frame(Frame.TYPE_TRANSFER_CHUNK, chunk.toByteArray()));
+        }
+
+        private void assertAck(long offset, int status) throws InterruptedException {
+            long[] ack = mAcks.poll(ConnectionPair.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            assertNotNull("no ack received", ack);
+            assertEquals(offset, ack[0]);
+            assertEquals(status, ack[1]);
+        }
+
+    }
+
+    /**
+     * The receiving end of a transfer, speaking the protocol by hand.  Chunks with a wrong
+     * checksum fail the test.
+     */
+    private static class Receiver {
+
+        private final Connection mConnection;
+        private final UUID mId;
+        private final BlockingQueue<Long> mOffers = new LinkedBlockingQueue<>();
+        private final BlockingQueue<Chunk> mChunks = new LinkedBlockingQueue<>();
+
+        private Receiver(Connection connection, UUID id) {
+            mConnection = connection;
+            mId = id;
+            connection.setFrameHandler(Frame.TYPE_TRANSFER_OFFER, (c, f) -> {
+                InputStream in = f.openBody();
+                assertEquals(mId, WireFormat.readUUID(in));
+                mOffers.add(WireFormat.readVarLong(in));
+            });
+            connection.setFrameHandler(Frame.TYPE_TRANSFER_CHUNK, (c, f) -> {
+                InputStream in = f.openBody();
+                assertEquals(mId, WireFormat.readUUID(in));
+                long offset = WireFormat.readVarLong(in);
+                long checksum = WireFormat.readVarLong(in);
+                int length = WireFormat.readVarInt(in, CHUNK);
+                byte[] data = new byte[length];
+                WireFormat.readFully(in, data, 0, length);
+                CRC32 crc = new CRC32();
+                crc.update(data, 0, length);
+                assertEquals(crc.getValue(), checksum);
+                mChunks.add(new Chunk(offset, length));
+            });
+        }
+
+        private void awaitOffer() throws InterruptedException {
+            assertNotNull("no offer received",
+                    mOffers.poll(ConnectionPair.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        }
+
+        private Chunk take() throws InterruptedException {
+            Chunk c = mChunks.poll(ConnectionPair.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            assertNotNull("no chunk received", c);
+            return c;
+        }
+
+        private void ack(long offset, int status) throws IOException {
+            ByteArrayOutputStream ack = new ByteArrayOutputStream(28);
+            WireFormat.writeUUID(ack, mId);
+            WireFormat.writeVarLong(ack, offset);
+            ack.write(status);
+            mConnection.send(new Frame(Frame.TYPE_TRANSFER_ACK, ack.toByteArray()));
+        }
+
+    }
+
+    /** A payload in memory, recording the offsets it is opened at. */
+    private static class MemorySource implements TransferSource {
+
+        private final byte[] mData;
+        private final UUID mId;
+        private final List<Long> mOpens = Collections.synchronizedList(new ArrayList<>());
+
+        private MemorySource(byte[] data) {
+            this(data, UUID.randomUUID());
+        }
+
+        private MemorySource(byte[] data, UUID id) {
+            mData = data;
+            mId = id;
+        }
+
+        @Override
+        public UUID getId() {
+            return mId;
+        }
+
+        @Override
+        public String getName() {
+            return "payload";
+        }
+
+        @Override
+        public long getSize() {
+            return mData.length;
+        }
+
+        @Override
+        public InputStream open(long offset) throws IOException {
+            mOpens.add(offset);
+            return new ByteArrayInputStream(mData, (int) offset, mData.length - (int) offset);
+        }
+
+    }
+
+    /** Payloads in memory, which only accepts contiguous writes like a file would. */
+    private static class MemorySink implements TransferSink {
+
+        private final Map<UUID, ByteArrayOutputStream> mData = new HashMap<>();
+        private final Set<UUID> mCompleted = new HashSet<>();
+        private final List<UUID> mSuspended = new ArrayList<>();
+        private int mWrites;
+
+        @Override
+        public synchronized long open(UUID id, String name, long size) {
+            ByteArrayOutputStream data = mData.get(id);
+            if (data == null) {
+                data = new ByteArrayOutputStream();
+                mData.put(id, data);
+            }
+            return data.size();
+        }
+
+        @Override
+        public synchronized void write(UUID id, long offset, byte[] data, int off, int len)
+                throws IOException {
+            ByteArrayOutputStream stored = mData.get(id);
+            if (stored == null || offset != stored.size()) {
+                throw new IOException("Write of " + id + " at " + offset + " not contiguous");
+            }
+            stored.write(data, off, len);
+            mWrites++;
+        }
+
+        @Override
+        public synchronized void complete(UUID id) {
+            mCompleted.add(id);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void suspend(UUID id) {
+            mSuspended.add(id);
+        }
+
+        private synchronized long length(UUID id) {
+            return mData.get(id).size();
+        }
+
+        private synchronized byte[] get(UUID id) {
+            return mData.get(id).toByteArray();
+        }
+
+        private synchronized void awaitComplete(UUID id) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + ConnectionPair.TIMEOUT_MILLIS;
+            while (!mCompleted.contains(id)) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    fail("transfer " + id + " not completed");
+                }
+                wait(remaining);
+            }
+        }
+
+    }
+
+    private ConnectionPair pair() throws IOException {
+        ConnectionPair pair = new ConnectionPair();
+        mPairs.add(pair);
+        return pair;
+    }
+
+    private byte[] payload(int size) {
+        byte[] data = new byte[size];
+        mRandom.nextBytes(data);
+        return data;
+    }
+
+}